@@ -17,9 +17,13 @@ import android.widget.Toast;
 import com.google.android.gms.analytics.GoogleAnalytics;
 import com.google.firebase.iid.FirebaseInstanceId;
 import com.rollbar.android.Rollbar;
+import com.squareup.okhttp.Cache;
+import com.squareup.okhttp.ConnectionPool;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.otto.Bus;
 import com.squareup.otto.Subscribe;
+import com.squareup.picasso.OkHttpDownloader;
+import com.squareup.picasso.Picasso;
 
 import org.json.JSONException;
 
@@ -43,8 +47,13 @@ import fi.aalto.legroup.achso.entities.serialization.json.JsonSerializer;
 import fi.aalto.legroup.achso.storage.CombinedVideoRepository;
 import fi.aalto.legroup.achso.storage.VideoInfoRepository;
 import fi.aalto.legroup.achso.storage.VideoRepository;
+import fi.aalto.legroup.achso.storage.remote.HttpValidatorCache;
 import fi.aalto.legroup.achso.storage.remote.SyncService;
-import fi.aalto.legroup.achso.storage.remote.upload.UploadService;
+import fi.aalto.legroup.achso.storage.remote.upload.ResumableUpload;
+import fi.aalto.legroup.achso.storage.remote.upload.UploadQueue;
+import fi.aalto.legroup.achso.storage.remote.upload.UploadScheduler;
+import fi.aalto.legroup.achso.storage.remote.upload.UploadSessionStore;
+import fi.aalto.legroup.achso.storage.remote.upload.transcoding.TranscodeSettings;
 import fi.aalto.legroup.achso.storage.remote.strategies.AchRailsStrategy;
 import fi.aalto.legroup.achso.storage.remote.strategies.ClViTra2Strategy;
 import fi.aalto.legroup.achso.storage.remote.strategies.GoViTraStrategy;
@@ -55,12 +64,15 @@ public final class App extends MultiDexApplication
 
     private static final String ACH_SO_LOCAL_STORAGE_NAME = "Ach so!";
 
+    // Keep a few connections to the servers alive between syncs, uploads and thumbnail loads
+    private static final int HTTP_MAX_IDLE_CONNECTIONS = 5;
+    private static final long HTTP_KEEP_ALIVE_MILLIS = 5 * 60 * 1000;
+
     public static Bus bus;
 
     public static ConnectivityManager connectivityManager;
 
     public static LoginManager loginManager;
-    public static OkHttpClient httpClient;
     public static AuthenticatedHttpClient authenticatedHttpClient;
     public static LocationManager locationManager;
 
@@ -69,6 +81,7 @@ public final class App extends MultiDexApplication
     private static CombinedVideoRepository combinedRepository;
     public static VideoRepository videoRepository;
     public static VideoInfoRepository videoInfoRepository;
+    public static UploadScheduler uploadScheduler;
     public static ExportHelper exportHelper;
 
     public static File localStorageDirectory;
@@ -101,8 +114,11 @@ public final class App extends MultiDexApplication
 
         connectivityManager = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
 
-        httpClient = new OkHttpClient();
+        OkHttpClient httpClient = createHttpClient(this);
         authenticatedHttpClient = new AuthenticatedHttpClient(this, httpClient);
+        OIDCConfig.setHttpClient(httpClient);
+
+        setupPicasso(httpClient);
 
         loginManager = new LoginManager(this, bus);
 
@@ -143,6 +159,11 @@ public final class App extends MultiDexApplication
 
         exportHelper = new ExportHelper(jsonSerializer, achsoExporterUrl);
 
+        uploadScheduler = new UploadScheduler(this, bus,
+                new UploadQueue(new File(getFilesDir(), "upload_queue")));
+        uploadScheduler.setConcurrency(readUploadConcurrency(preferences));
+        uploadScheduler.setTranscodeSettings(readTranscodeSettings(preferences));
+
         setupUploaders(this);
 
         videoRepository.refreshOffline();
@@ -156,12 +177,43 @@ public final class App extends MultiDexApplication
         bus.post(new LoginRequestEvent(LoginRequestEvent.Type.LOGIN));
 
         // Trim the caches asynchronously
-        AppCache.trim(this);
+        AppCache.trim(this, httpClient.getCache());
 
         // Setup Google Analytics
         AppAnalytics.setup(this);
     }
 
+    /**
+     * Creates the HTTP client shared by the whole app, so that connections and cached responses
+     * are reused between the different services.
+     */
+    private static OkHttpClient createHttpClient(Context context) {
+        OkHttpClient client = new OkHttpClient();
+
+        try {
+            client.setCache(new Cache(AppCache.getHttpCache(context), AppCache.HTTP_CACHE_SIZE));
+        } catch (Exception e) {
+            // Everything still works without the cache
+            e.printStackTrace();
+        }
+
+        client.setConnectionPool(new ConnectionPool(HTTP_MAX_IDLE_CONNECTIONS,
+                HTTP_KEEP_ALIVE_MILLIS));
+
+        return client;
+    }
+
+    /**
+     * Make Picasso load the thumbnails with the shared HTTP client.
+     */
+    private void setupPicasso(OkHttpClient httpClient) {
+        Picasso picasso = new Picasso.Builder(this)
+                .downloader(new OkHttpDownloader(httpClient))
+                .build();
+
+        Picasso.setSingletonInstance(picasso);
+    }
+
     public static File makeCacheVideoDirectory() {
         String host = getLayersBoxUrl().getHost().replace('.', '_');
         File path = new File(cacheVideoDirectoryBase, host);
@@ -207,6 +259,11 @@ public final class App extends MultiDexApplication
                 }
             }
         }, 4000);
+
+        // Continue the uploads that were left unfinished when the app was last running
+        if (event.getState() == LoginManager.LoginState.LOGGED_IN) {
+            uploadScheduler.resume();
+        }
     }
 
     @Subscribe
@@ -326,18 +383,27 @@ public final class App extends MultiDexApplication
     public static void setupUploaders(Context context) {
 
         combinedRepository.clear();
-        UploadService.clearUploaders();
+        uploadScheduler.clearUploaders();
 
-        achRails = new AchRailsStrategy(jsonSerializer, getAchRailsUrl(context));
+        HttpValidatorCache validatorCache = new HttpValidatorCache(
+                new File(context.getFilesDir(), "http_validators"));
+
+        achRails = new AchRailsStrategy(jsonSerializer, authenticatedHttpClient,
+                getAchRailsUrl(context), validatorCache, combinedRepository);
         combinedRepository.addHost(achRails);
         combinedRepository.setCacheRoot(makeCacheVideoDirectory());
 
-        UploadService.addUploader(new GoViTraStrategy(jsonSerializer, getAchsoStorageUrl(context)));
+        ResumableUpload resumableUpload = new ResumableUpload(authenticatedHttpClient,
+                new UploadSessionStore(new File(context.getFilesDir(), "upload_sessions")));
+
+        uploadScheduler.addUploader(new GoViTraStrategy(jsonSerializer, authenticatedHttpClient,
+                resumableUpload, getAchsoStorageUrl(context)));
 
         Uri clViTra2Url = Uri.parse(context.getString(R.string.clvitra2Url));
-        ClViTra2Strategy videoStrategy = new ClViTra2Strategy(clViTra2Url);
+        ClViTra2Strategy videoStrategy = new ClViTra2Strategy(authenticatedHttpClient,
+                resumableUpload, clViTra2Url);
 
-        UploadService.addUploader(videoStrategy);
+        uploadScheduler.addUploader(videoStrategy);
     }
 
     private Uri readLayersBoxUrl() {
@@ -395,7 +461,28 @@ public final class App extends MultiDexApplication
             case AppPreferences.USE_PUBLIC_LAYERS_BOX:
                 usePublicLayersBox = preferences.getBoolean(key, false);
                 break;
+
+            case AppPreferences.UPLOAD_CONCURRENCY:
+                uploadScheduler.setConcurrency(readUploadConcurrency(preferences));
+                break;
+
+            case AppPreferences.UPLOAD_QUALITY:
+                uploadScheduler.setTranscodeSettings(readTranscodeSettings(preferences));
+                break;
         }
     }
 
+    private static int readUploadConcurrency(SharedPreferences preferences) {
+        String concurrencyDefault = Integer.toString(UploadScheduler.DEFAULT_CONCURRENCY);
+        String concurrencyString = preferences.getString(AppPreferences.UPLOAD_CONCURRENCY,
+                concurrencyDefault);
+
+        return Integer.parseInt(concurrencyString);
+    }
+
+    private static TranscodeSettings readTranscodeSettings(SharedPreferences preferences) {
+        String quality = preferences.getString(AppPreferences.UPLOAD_QUALITY, "original");
+        return TranscodeSettings.forQuality(quality);
+    }
+
 }
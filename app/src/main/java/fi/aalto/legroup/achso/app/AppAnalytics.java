@@ -18,6 +18,7 @@ public final class AppAnalytics {
 
     // Categories
     public static final String CATEGORY_VIDEOS = "Videos";
+    public static final String CATEGORY_TRANSFERS = "Transfers";
 
     // Actions
     public static final String ACTION_CREATE = "Create";
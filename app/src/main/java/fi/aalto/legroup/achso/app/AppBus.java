@@ -5,9 +5,18 @@ import android.os.Looper;
 
 import com.squareup.otto.Bus;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Ensures that all Otto events are posted on the main thread.
  *
+ * Events implementing CoalescingEvent that are posted from other threads are delayed for a moment,
+ * and all of the events of the same class posted meanwhile are combined and delivered as one.
+ * Those come in bursts from syncing and saving in the background. Events posted on the main
+ * thread are delivered right away, together with any delayed event of the same class so that
+ * the order is kept.
+ *
  * https://github.com/square/otto/issues/38
  *
  * @author Jake Wharton
@@ -15,11 +24,24 @@ import com.squareup.otto.Bus;
  */
 public final class AppBus extends Bus {
 
+    private static final long COALESCE_DELAY_MILLISECONDS = 100;
+
     private final Handler handler = new Handler(Looper.getMainLooper());
 
+    // Coalesced events waiting to be delivered, mapped by class. Guarded by itself.
+    private final Map<Class<?>, CoalescingEvent> pendingEvents = new HashMap<>();
+
     @Override
     public void post(final Object event) {
-        if (Looper.myLooper() == Looper.getMainLooper()) {
+        boolean isMainThread = Looper.myLooper() == Looper.getMainLooper();
+
+        if (event instanceof CoalescingEvent) {
+            if (isMainThread) {
+                postPendingAndNow((CoalescingEvent) event);
+            } else {
+                postCoalesced((CoalescingEvent) event);
+            }
+        } else if (isMainThread) {
             super.post(event);
         } else {
             handler.post(new Runnable() {
@@ -31,4 +53,49 @@ public final class AppBus extends Bus {
         }
     }
 
+    /**
+     * Deliver the event on the main thread at once, along with a delayed one of the same class.
+     */
+    private void postPendingAndNow(CoalescingEvent event) {
+        CoalescingEvent pendingEvent;
+
+        synchronized (pendingEvents) {
+            pendingEvent = pendingEvents.remove(event.getClass());
+        }
+
+        // The delayed delivery finds nothing left to post
+        super.post(pendingEvent != null ? pendingEvent.coalesce(event) : event);
+    }
+
+    private void postCoalesced(CoalescingEvent event) {
+        final Class<?> eventClass = event.getClass();
+
+        synchronized (pendingEvents) {
+            CoalescingEvent pendingEvent = pendingEvents.get(eventClass);
+
+            if (pendingEvent != null) {
+                // Already scheduled, just fold this one in
+                pendingEvents.put(eventClass, pendingEvent.coalesce(event));
+                return;
+            }
+
+            pendingEvents.put(eventClass, event);
+        }
+
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                CoalescingEvent pendingEvent;
+
+                synchronized (pendingEvents) {
+                    pendingEvent = pendingEvents.remove(eventClass);
+                }
+
+                if (pendingEvent != null) {
+                    AppBus.super.post(pendingEvent);
+                }
+            }
+        }, COALESCE_DELAY_MILLISECONDS);
+    }
+
 }
@@ -5,11 +5,13 @@ import android.os.AsyncTask;
 import android.os.Environment;
 
 import com.google.common.collect.ObjectArrays;
+import com.squareup.okhttp.Cache;
 
 import org.joda.time.DateTime;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.IOException;
 
 import javax.annotation.Nullable;
 
@@ -18,6 +20,16 @@ import javax.annotation.Nullable;
  */
 public final class AppCache {
 
+    /**
+     * Maximum size of the HTTP response cache shared by the whole app, in bytes.
+     */
+    public static final long HTTP_CACHE_SIZE = 32 * 1024 * 1024;
+
+    private static final String HTTP_CACHE_DIRECTORY_NAME = "http";
+
+    // Modified whenever the HTTP cache is emptied
+    private static final String HTTP_CACHE_TRIM_MARKER_NAME = "http.trimmed";
+
     private AppCache() {
         // Static access only
     }
@@ -43,14 +55,71 @@ public final class AppCache {
         }
     }
 
+    /**
+     * Returns the directory of the shared HTTP response cache. Deleting its files would break
+     * the journal of the cache, so it's trimmed through the cache itself.
+     */
+    public static File getHttpCache(Context context) {
+        return new File(getCache(context), HTTP_CACHE_DIRECTORY_NAME);
+    }
+
     /**
      * Asynchronously clears expired files from the internal and external app caches.
+     *
+     * @param httpCache The shared HTTP response cache, or null if there is none.
      */
-    public static void trim(Context context) {
+    public static void trim(Context context, @Nullable Cache httpCache) {
+        if (httpCache != null) {
+            AsyncTask.execute(new HttpCacheTrimmingRunnable(context, httpCache));
+        }
+
         AsyncTask.execute(new CacheTrimmingRunnable(context));
         AsyncTask.execute(new LegacyCacheClearingRunnable());
     }
 
+    /**
+     * Empties the HTTP response cache once its contents are older than the other cached files
+     * are allowed to be. The cache doesn't tell the age of its entries, so all of them go at once.
+     */
+    private static class HttpCacheTrimmingRunnable implements Runnable {
+
+        private Context context;
+        private Cache httpCache;
+
+        private HttpCacheTrimmingRunnable(Context context, Cache httpCache) {
+            this.context = context.getApplicationContext();
+            this.httpCache = httpCache;
+        }
+
+        @Override
+        public void run() {
+            File marker = newFile(context, HTTP_CACHE_TRIM_MARKER_NAME);
+
+            try {
+                if (!marker.exists()) {
+                    // Start counting from the first time the cache is seen
+                    //noinspection ResultOfMethodCallIgnored
+                    marker.createNewFile();
+                    return;
+                }
+
+                DateTime lastTrimmed = new DateTime(marker.lastModified());
+
+                if (!lastTrimmed.isBefore(CacheTrimmingRunnable.THRESHOLD)) {
+                    return;
+                }
+
+                httpCache.evictAll();
+
+                //noinspection ResultOfMethodCallIgnored
+                marker.setLastModified(System.currentTimeMillis());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+    }
+
     /**
      * Clears old shared .achso files from the external storage root.
      * TODO: Remove by the next release.
@@ -122,6 +191,13 @@ public final class AppCache {
 
         @Override
         public boolean accept(File file) {
+            String name = file.getName();
+
+            if (name.equals(HTTP_CACHE_DIRECTORY_NAME)
+                    || name.equals(HTTP_CACHE_TRIM_MARKER_NAME)) {
+                return false;
+            }
+
             return new DateTime(file.lastModified()).isBefore(THRESHOLD);
         }
 
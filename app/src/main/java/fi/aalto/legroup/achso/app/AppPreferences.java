@@ -37,4 +37,14 @@ public final class AppPreferences {
      * Whether to use the public Layers servers or a private Box.
      */
     public static final String USE_PUBLIC_LAYERS_BOX = "USE_PUBLIC_LAYERS_BOX";
+
+    /**
+     * How many videos are uploaded at the same time.
+     */
+    public static final String UPLOAD_CONCURRENCY = "UPLOAD_CONCURRENCY";
+
+    /**
+     * Maximum resolution of the uploaded videos, or "original" to upload them as recorded.
+     */
+    public static final String UPLOAD_QUALITY = "UPLOAD_QUALITY";
 }
@@ -0,0 +1,15 @@
+package fi.aalto.legroup.achso.app;
+
+/**
+ * An event that AppBus may combine with other events of the same class posted shortly after it
+ * from background threads, so that subscribers only receive one event per burst.
+ */
+public interface CoalescingEvent {
+
+    /**
+     * Returns an event that has the combined effect of this event and a newer one of the same
+     * class.
+     */
+    public CoalescingEvent coalesce(CoalescingEvent newer);
+
+}
@@ -32,6 +32,13 @@ public class AuthenticatedHttpClient {
         this.httpClient = httpClient;
     }
 
+    /**
+     * Returns the underlying client for requests that don't need authentication.
+     */
+    public OkHttpClient getHttpClient() {
+        return httpClient;
+    }
+
     public String getBearerToken(Account account) {
         AccountManager accountManager = AccountManager.get(context);
         String token = null;
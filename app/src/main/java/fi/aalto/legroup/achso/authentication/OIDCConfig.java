@@ -27,6 +27,7 @@ import android.content.Context;
 import android.net.Uri;
 
 import com.squareup.okhttp.Callback;
+import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.Response;
 
@@ -45,10 +46,23 @@ public final class OIDCConfig {
     private static String clientSecret = null;
     private static int tokenVersion = 0;
 
+    private static OkHttpClient httpClient;
+
     private OIDCConfig() {
         // Static access only
     }
 
+    /**
+     * Set the client to retrieve the tokens with.
+     */
+    public static void setHttpClient(OkHttpClient client) {
+        httpClient = client;
+    }
+
+    public static OkHttpClient getHttpClient() {
+        return httpClient;
+    }
+
     public static boolean isReady() {
         return clientId != null && clientSecret != null;
     }
@@ -86,7 +100,7 @@ public final class OIDCConfig {
         final int expectVersion = tokenVersion;
 
         Request request = createRetrieveOIDCTokensRequest(context);
-        App.httpClient.newCall(request).enqueue(new Callback() {
+        httpClient.newCall(request).enqueue(new Callback() {
             @Override
             public void onFailure(Request request, IOException e) {
                 // TODO?
@@ -110,7 +124,7 @@ public final class OIDCConfig {
             return;
 
         Request request = createRetrieveOIDCTokensRequest(context);
-        Response response = App.httpClient.newCall(request).execute();
+        Response response = httpClient.newCall(request).execute();
         if (!response.isSuccessful()) throw new IOException("Failed to get tokens");
         OIDCTokenResponse tokens = App.jsonSerializer.read(OIDCTokenResponse.class, response.body().byteStream());
         setTokens(tokens.client_id, tokens.client_secret);
@@ -22,8 +22,6 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
-import fi.aalto.legroup.achso.app.App;
-
 /**
  * A layer of syntactic sugar around the google-oauth-java-client library to simplify using OpenID
  * Access on Android.
@@ -175,7 +173,7 @@ public final class OIDCUtils {
                 .get()
                 .build();
 
-        Response response = App.httpClient.newCall(request).execute();
+        Response response = OIDCConfig.getHttpClient().newCall(request).execute();
 
         if (response.isSuccessful()) {
             String jsonString = response.body().string();
@@ -1,8 +1,6 @@
 package fi.aalto.legroup.achso.authoring;
 
-import com.squareup.okhttp.MediaType;
 import com.squareup.okhttp.Request;
-import com.squareup.okhttp.RequestBody;
 import com.squareup.okhttp.Response;
 
 import fi.aalto.legroup.achso.app.App;
@@ -79,11 +77,9 @@ public class ExportHelper {
             throw new IOException("Invalid email address: " + exportPayload.email);
         }
 
-        String serializedPayload = serializer.write(exportPayload);
-
         Request request = new Request.Builder()
                 .url(endpointUri.toString())
-                .post(RequestBody.create(MediaType.parse("application/json"), serializedPayload))
+                .post(serializer.createRequestBody(exportPayload))
                 .build();
 
 
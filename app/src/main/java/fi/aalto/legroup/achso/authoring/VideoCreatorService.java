@@ -167,6 +167,9 @@ public final class VideoCreatorService extends IntentService {
 
         video.save(null);
 
+        // The service may be stopped as soon as it's done, write the new video right away
+        App.videoRepository.flushSaves();
+
         bus.post(new VideoCreationStateEvent(VideoCreationStateEvent.Type.FINISHED, id));
     }
 
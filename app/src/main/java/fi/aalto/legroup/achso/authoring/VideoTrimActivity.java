@@ -262,6 +262,10 @@ public class VideoTrimActivity extends ActionBarActivity implements PlayerFragme
     @Override
     protected void onPause() {
         seekBarUpdater.stop();
+
+        // The process may be killed while paused, don't leave the trimming in memory
+        App.videoRepository.flushSaves();
+
         super.onPause();
     }
 
@@ -196,7 +196,7 @@ public final class BrowserActivity extends BaseActivity implements View.OnClickL
 
         // If we received a VideoRepositoryUpdatedEvent while paused handle it here
         if (pendingListener.hasRepositoryUpdated()) {
-            this.tabAdapter.notifyDataSetChanged();
+            this.tabAdapter.applyUpdate(pendingListener.getPendingEvent());
             pendingListener.clearRepositoryUpdated();
         }
 
@@ -487,7 +487,7 @@ public final class BrowserActivity extends BaseActivity implements View.OnClickL
 
     @Subscribe
     public void onVideoRepositoryUpdated(VideoRepositoryUpdatedEvent event) {
-        this.tabAdapter.notifyDataSetChanged();
+        this.tabAdapter.applyUpdate(event);
         swipeRefreshLayout.setRefreshing(false);
     }
 
@@ -595,21 +595,30 @@ public final class BrowserActivity extends BaseActivity implements View.OnClickL
 
     /**
      * This class listens for the VideoRepositoryUpdatedEvent and tells if one has been received.
+     * All of the events received are combined into one.
      */
     public static class PendingRepositoryUpdateListener {
-        private boolean repositoryUpdated;
+        private VideoRepositoryUpdatedEvent pendingEvent;
 
         public boolean hasRepositoryUpdated() {
-            return repositoryUpdated;
+            return pendingEvent != null;
+        }
+
+        public VideoRepositoryUpdatedEvent getPendingEvent() {
+            return pendingEvent;
         }
 
         public void clearRepositoryUpdated() {
-            repositoryUpdated = false;
+            pendingEvent = null;
         }
 
         @Subscribe
         public void onVideoRepositoryUpdated(VideoRepositoryUpdatedEvent event) {
-            this.repositoryUpdated = true;
+            if (pendingEvent == null) {
+                pendingEvent = event;
+            } else {
+                pendingEvent = pendingEvent.coalesce(event);
+            }
         }
     }
 }
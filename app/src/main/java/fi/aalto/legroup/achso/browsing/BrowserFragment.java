@@ -26,8 +26,9 @@ import com.squareup.otto.Subscribe;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import fi.aalto.legroup.achso.R;
@@ -38,14 +39,17 @@ import fi.aalto.legroup.achso.authoring.VideoDeletionFragment;
 import fi.aalto.legroup.achso.authoring.VideoTrimActivity;
 import fi.aalto.legroup.achso.entities.OptimizedVideo;
 import fi.aalto.legroup.achso.entities.Video;
+import fi.aalto.legroup.achso.entities.VideoSummary;
 import fi.aalto.legroup.achso.playback.PlayerActivity;
 import fi.aalto.legroup.achso.sharing.SharingActivity;
 import fi.aalto.legroup.achso.storage.remote.TransferErrorEvent;
+import fi.aalto.legroup.achso.storage.remote.TransferProgressEvent;
 import fi.aalto.legroup.achso.storage.remote.TransferStateEvent;
 import fi.aalto.legroup.achso.storage.remote.download.DownloadErrorEvent;
+import fi.aalto.legroup.achso.storage.remote.download.DownloadProgressEvent;
 import fi.aalto.legroup.achso.storage.remote.download.DownloadStateEvent;
 import fi.aalto.legroup.achso.storage.remote.upload.UploadErrorEvent;
-import fi.aalto.legroup.achso.storage.remote.upload.UploadService;
+import fi.aalto.legroup.achso.storage.remote.upload.UploadProgressEvent;
 import fi.aalto.legroup.achso.storage.remote.upload.UploadStateEvent;
 import fi.aalto.legroup.achso.storage.remote.download.DownloadService;
 import fi.aalto.legroup.achso.views.RecyclerItemClickListener;
@@ -62,12 +66,24 @@ public final class BrowserFragment extends Fragment implements ActionMode.Callba
 
     private TextView placeHolder;
 
+    private Map<UUID, VideoSummary> summaries = Collections.emptyMap();
+
     private VideoGridAdapter adapter;
     private ActionMode actionMode;
 
     @Nullable
     private ScrollDirectionListener scrollListener;
 
+    @Nullable
+    private EndReachedListener endReachedListener;
+
+    /**
+     * Notified when the grid is scrolled close to its last item, eg. to load more of it.
+     */
+    public interface EndReachedListener {
+        public void onEndReached();
+    }
+
     public static BrowserFragment newInstance(List<UUID> videos) {
         BrowserFragment fragment = new BrowserFragment();
 
@@ -110,6 +126,7 @@ public final class BrowserFragment extends Fragment implements ActionMode.Callba
 
         this.adapter = new VideoGridAdapter(getActivity(), App.videoInfoRepository);
         this.adapter.registerAdapterDataObserver(new PlaceholderDataObserver());
+        this.adapter.setSummaries(summaries);
         this.adapter.setItems(videos);
 
         grid.setHasFixedSize(true);
@@ -121,9 +138,7 @@ public final class BrowserFragment extends Fragment implements ActionMode.Callba
         // This listener sets the span count on layout and then stops listening.
         new GridOnLayoutChangeListener(grid);
 
-        HashSet<UUID> currentlyUploadingVideos = UploadService.getCurrentlyUploadingVideos();
-
-        for (UUID videoId : currentlyUploadingVideos) {
+        for (UUID videoId : App.uploadScheduler.getUploadingVideoIds()) {
             this.adapter.showProgress(videoId);
         }
     }
@@ -260,10 +275,39 @@ public final class BrowserFragment extends Fragment implements ActionMode.Callba
         }
     }
 
+    /**
+     * Set the summaries to show the videos that are not in the repository with.
+     */
+    public void setSummaries(Map<UUID, VideoSummary> summaries) {
+        this.summaries = summaries;
+
+        if (this.adapter != null) {
+            this.adapter.setSummaries(summaries);
+        }
+    }
+
+    public void setEndReachedListener(@Nullable EndReachedListener listener) {
+        this.endReachedListener = listener;
+    }
+
+    /**
+     * Replace the videos with an updated list, animating only the items that have changed.
+     *
+     * @param updatedIds Videos whose contents have changed.
+     */
+    public void updateVideos(List<UUID> videos, Set<UUID> updatedIds) {
+        this.videos = videos;
+
+        if (this.adapter != null) {
+            this.adapter.updateItems(videos, updatedIds);
+        }
+    }
+
     private void onTransferState(TransferStateEvent event) {
         UUID videoId = event.getVideoId();
 
         switch (event.getType()) {
+            case QUEUED:
             case STARTED:
                 this.adapter.showProgress(videoId);
                 break;
@@ -285,6 +329,22 @@ public final class BrowserFragment extends Fragment implements ActionMode.Callba
         onTransferState(event);
     }
 
+    private void onTransferProgress(TransferProgressEvent event) {
+        if (event.isDeterminate()) {
+            this.adapter.setProgress(event.getVideoId(), event.getFraction());
+        }
+    }
+
+    @Subscribe
+    public void onDownloadProgress(DownloadProgressEvent event) {
+        onTransferProgress(event);
+    }
+
+    @Subscribe
+    public void onUploadProgress(UploadProgressEvent event) {
+        onTransferProgress(event);
+    }
+
     private void onTransferError(TransferErrorEvent event, String defaultErrorMessage) {
         UUID videoId = event.getVideoId();
         String message = event.getErrorMessage();
@@ -444,7 +504,22 @@ public final class BrowserFragment extends Fragment implements ActionMode.Callba
         @Override
         public void onChanged() {
             super.onChanged();
+            updatePlaceholder();
+        }
 
+        @Override
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            super.onItemRangeInserted(positionStart, itemCount);
+            updatePlaceholder();
+        }
+
+        @Override
+        public void onItemRangeRemoved(int positionStart, int itemCount) {
+            super.onItemRangeRemoved(positionStart, itemCount);
+            updatePlaceholder();
+        }
+
+        private void updatePlaceholder() {
             int itemCount = BrowserFragment.this.adapter.getItemCount();
             View placeHolder = BrowserFragment.this.placeHolder;
 
@@ -503,10 +578,26 @@ public final class BrowserFragment extends Fragment implements ActionMode.Callba
 
         private static final int THRESHOLD = 100;
 
+        // How many items from the end counts as reaching it
+        private static final int END_THRESHOLD = 6;
+
         private int scrolledDistance = 0;
 
         @Override
         public void onScrolled(RecyclerView recyclerView, int deltaX, int deltaY) {
+            if (endReachedListener != null && deltaY > 0) {
+                RecyclerView.LayoutManager layoutManager = recyclerView.getLayoutManager();
+
+                if (layoutManager instanceof GridLayoutManager) {
+                    int lastPosition =
+                            ((GridLayoutManager) layoutManager).findLastVisibleItemPosition();
+
+                    if (lastPosition >= adapter.getItemCount() - END_THRESHOLD) {
+                        endReachedListener.onEndReached();
+                    }
+                }
+            }
+
             if (scrollListener == null) {
                 return;
             }
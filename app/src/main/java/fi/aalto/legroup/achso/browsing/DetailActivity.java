@@ -10,6 +10,7 @@ import android.os.Bundle;
 import android.support.v4.app.NavUtils;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
+import android.text.format.DateUtils;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
@@ -38,8 +39,8 @@ import com.squareup.otto.Subscribe;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import fi.aalto.legroup.achso.R;
@@ -54,7 +55,7 @@ import fi.aalto.legroup.achso.storage.remote.download.DownloadErrorEvent;
 import fi.aalto.legroup.achso.storage.remote.download.DownloadService;
 import fi.aalto.legroup.achso.storage.remote.download.DownloadStateEvent;
 import fi.aalto.legroup.achso.storage.remote.upload.UploadErrorEvent;
-import fi.aalto.legroup.achso.storage.remote.upload.UploadService;
+import fi.aalto.legroup.achso.storage.remote.upload.UploadProgressEvent;
 import fi.aalto.legroup.achso.storage.remote.upload.UploadStateEvent;
 import fi.aalto.legroup.achso.views.adapters.AnnotationsListAdapter;
 import fi.aalto.legroup.achso.views.adapters.GroupsListAdapter;
@@ -68,7 +69,7 @@ public final class DetailActivity extends AppCompatActivity
     private ArrayList<Video> videos;
     private Video video;
 
-    private HashSet<UUID> videosUploading;
+    private Set<UUID> videosUploading;
 
     private boolean isMultipleVideos;
 
@@ -94,6 +95,9 @@ public final class DetailActivity extends AppCompatActivity
     public void onPause() {
         super.onPause();
         bus.unregister(this);
+
+        // The process may be killed while paused, don't leave edited details in memory
+        App.videoRepository.flushSaves();
     }
 
     @Override
@@ -101,7 +105,7 @@ public final class DetailActivity extends AppCompatActivity
         super.onCreate(savedInstanceState);
         this.bus = App.bus;
         videos = new ArrayList<>();
-        videosUploading = UploadService.getCurrentlyUploadingVideos();
+        videosUploading = App.uploadScheduler.getUploadingVideoIds();
 
         for (String stringId : getIntent().getStringArrayListExtra(ARG_VIDEO_IDS)) {
             UUID videoId = UUID.fromString(stringId);
@@ -383,7 +387,7 @@ public final class DetailActivity extends AppCompatActivity
 
                     markUploadButtonAsUploading();
 
-                    UploadService.upload(DetailActivity.this, uploadIds);
+                    App.uploadScheduler.upload(uploadIds);
                 }
             });
 
@@ -404,7 +408,7 @@ public final class DetailActivity extends AppCompatActivity
     }
     private boolean isUploadingAnyVideo() {
         for (Video video: videos) {
-            if (UploadService.isUploadingVideo(video.getId())) {
+            if (App.uploadScheduler.isUploadingVideo(video.getId())) {
                 return true;
             }
         }
@@ -464,6 +468,26 @@ public final class DetailActivity extends AppCompatActivity
         }
     }
 
+    @Subscribe
+    public void onUploadProgress(UploadProgressEvent event) {
+        // The button shows the total number of videos when there are many
+        if (isMultipleVideos || !event.getVideoId().equals(video.getId())
+                || !event.isDeterminate()) {
+            return;
+        }
+
+        int percent = Math.round(event.getFraction() * 100);
+        long remainingMilliseconds = event.getRemainingMilliseconds();
+
+        if (remainingMilliseconds == UploadProgressEvent.UNKNOWN) {
+            uploadButton.setText(getString(R.string.currently_uploading_percent, percent));
+        } else {
+            String remaining = DateUtils.formatElapsedTime(remainingMilliseconds / 1000);
+            uploadButton.setText(getString(R.string.currently_uploading_remaining, percent,
+                    remaining));
+        }
+    }
+
     @Subscribe
     public void onUploadError(UploadErrorEvent event) {
         String message = event.getErrorMessage();
@@ -5,6 +5,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.ParcelUuid;
 import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.ActionBarActivity;
@@ -14,21 +15,24 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.TextView;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.List;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import fi.aalto.legroup.achso.R;
 import fi.aalto.legroup.achso.app.App;
 import fi.aalto.legroup.achso.authoring.QRHelper;
-import fi.aalto.legroup.achso.entities.OptimizedVideo;
-import fi.aalto.legroup.achso.entities.Video;
+import fi.aalto.legroup.achso.entities.VideoSearchPage;
+import fi.aalto.legroup.achso.entities.VideoSummary;
+import fi.aalto.legroup.achso.storage.Cancellable;
 import fi.aalto.legroup.achso.storage.VideoRepository;
 import fi.aalto.legroup.achso.views.VideoRefreshLayout;
 
@@ -36,12 +40,27 @@ public final class SearchActivity extends ActionBarActivity {
 
     private static final String STATE_MATCHES = "STATE_MATCHES";
 
+    // How long to wait for the user to stop typing before searching
+    private static final long QUERY_DELAY_MILLISECONDS = 300;
+
+    private static final int ONLINE_PAGE_SIZE = 24;
+
     private BrowserFragment browserFragment;
     private VideoRefreshLayout videoRefreshLayout;
     private ArrayList<UUID> matches = new ArrayList<>();
     private String lastQuery;
     private MenuItem searchItem;
 
+    private Handler queryHandler = new Handler();
+    private Runnable pendingQuery;
+
+    @Nullable
+    private Cancellable onlineQuery;
+
+    // Summaries of the online results, which are not added to the repository
+    private Map<UUID, VideoSummary> summaries = new HashMap<>();
+    private int nextOnlineOffset = VideoSearchPage.NO_MORE_PAGES;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -58,6 +77,13 @@ public final class SearchActivity extends ActionBarActivity {
         videoRefreshLayout = (VideoRefreshLayout) findViewById(R.id.search_refresh);
         videoRefreshLayout.setEnabled(false);
 
+        this.browserFragment.setEndReachedListener(new BrowserFragment.EndReachedListener() {
+            @Override
+            public void onEndReached() {
+                loadNextOnlinePage();
+            }
+        });
+
         if (savedInstanceState == null) {
             handleIntent(getIntent());
         } else {
@@ -95,17 +121,19 @@ public final class SearchActivity extends ActionBarActivity {
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
         String code = QRHelper.getQRCodeForResult(requestCode, resultCode, data);
-        lastQuery = code;
         SearchView view = (SearchView) searchItem.getActionView();
-        view.setQuery(lastQuery, true);
+        view.setQuery(code, true);
     }
 
     private void restoreSavedState(@Nonnull Bundle savedInstanceState) {
         ArrayList<ParcelUuid> parcelableMatches =
                 savedInstanceState.getParcelableArrayList(STATE_MATCHES);
 
+        // The summaries of the online results are gone, only the videos we have can be shown
         for (ParcelUuid match : parcelableMatches) {
-            this.matches.add(match.getUuid());
+            if (App.videoInfoRepository.doesVideoExist(match.getUuid())) {
+                this.matches.add(match.getUuid());
+            }
         }
 
         this.browserFragment.setVideos(this.matches);
@@ -126,68 +154,73 @@ public final class SearchActivity extends ActionBarActivity {
         view.setSearchableInfo(manager.getSearchableInfo(getComponentName()));
         view.setQuery(query, false);
         view.setIconifiedByDefault(false);
+        view.setOnQueryTextListener(new QueryTextListener());
 
         return true;
     }
 
     @Override
     protected void onNewIntent(Intent intent) {
-        this.matches.clear();
         handleIntent(intent);
     }
 
+    @Override
+    protected void onDestroy() {
+        cancelQueries();
+        super.onDestroy();
+    }
+
     private void handleIntent(Intent intent) {
         String action = intent.getAction();
 
         switch (action) {
             case Intent.ACTION_SEARCH:
-                String query = intent.getStringExtra(SearchManager.QUERY).toLowerCase();
+                String query = intent.getStringExtra(SearchManager.QUERY);
                 queryVideos(query);
                 break;
         }
     }
 
 
-    private void finishVideoOnlineQuery(ArrayList<Video> onlineVideos) {
-        List<OptimizedVideo> newVideos = new ArrayList<>();
-
-        Collection<OptimizedVideo> allVideos;
-
-        if (onlineVideos != null) {
-            for (Video video: onlineVideos) {
-                OptimizedVideo optimizedVideo = new OptimizedVideo(video);
-                newVideos.add(optimizedVideo);
-            }
-
-            App.videoRepository.addVideos(newVideos);
+    /**
+     * Merge a page of online results into the results so far.
+     */
+    private void finishVideoOnlineQuery(String query, VideoSearchPage page) {
+        if (!query.equals(lastQuery)) {
+            // The query has changed since, these results are stale
+            return;
         }
 
-        try {
-            allVideos = App.videoInfoRepository.getAll();
-        } catch (IOException e) {
-            e.printStackTrace();
+        onlineQuery = null;
+        videoRefreshLayout.setRefreshing(false);
+
+        if (page == null) {
+            nextOnlineOffset = VideoSearchPage.NO_MORE_PAGES;
             return;
         }
 
-        List<OptimizedVideo> matching = new ArrayList<>(allVideos.size());
-        for (OptimizedVideo video : allVideos) {
-            if (isMatch(video, lastQuery)) {
-                matching.add(video);
+        ArrayList<UUID> newMatches = new ArrayList<>(this.matches);
+        Set<UUID> matchSet = new HashSet<>(newMatches);
+        boolean hasNewMatches = false;
+
+        for (VideoSummary summary : page.getSummaries()) {
+            if (matchSet.add(summary.getId())) {
+                newMatches.add(summary.getId());
+                summaries.put(summary.getId(), summary);
+                hasNewMatches = true;
             }
         }
 
-
-        // TODO: Better sorting?
-        Collections.sort(matching,
-                Collections.reverseOrder(new OptimizedVideo.CreateTimeComparator()));
-
-        // TODO: General toIds?
-        for (OptimizedVideo match : matching) {
-            this.matches.add(match.getId());
+        // Servers that don't page would send the same results again
+        if (hasNewMatches) {
+            nextOnlineOffset = page.getNextOffset();
+        } else {
+            nextOnlineOffset = VideoSearchPage.NO_MORE_PAGES;
         }
 
-        videoRefreshLayout.setRefreshing(false);
-        this.browserFragment.setVideos(this.matches);
+        this.matches = newMatches;
+        this.browserFragment.setSummaries(summaries);
+        this.browserFragment.updateVideos(this.matches, Collections.<UUID>emptySet());
         setBrowserFragmentPlaceholder();
     }
 
@@ -199,9 +232,43 @@ public final class SearchActivity extends ActionBarActivity {
     }
 
     /**
-     * Searches all videos for a match against the given query.
+     * Searches all videos for a match against the given query. The local results are shown
+     * right away and the online ones are added when they arrive.
      */
     private void queryVideos(String query) {
+        query = query.trim();
+
+        if (query.equals(lastQuery)) {
+            return;
+        }
+
+        cancelQueries();
+        lastQuery = query;
+
+        this.summaries = new HashMap<>();
+        this.matches = new ArrayList<>(App.videoInfoRepository.findVideos(query));
+        this.browserFragment.setSummaries(summaries);
+        this.browserFragment.setVideos(this.matches);
+        setBrowserFragmentPlaceholder();
+
+        if (query.isEmpty()) {
+            nextOnlineOffset = VideoSearchPage.NO_MORE_PAGES;
+            videoRefreshLayout.setRefreshing(false);
+            return;
+        }
+
+        nextOnlineOffset = 0;
+        loadNextOnlinePage();
+    }
+
+    /**
+     * Request the next page of online results, if there is one and it isn't loading already.
+     */
+    private void loadNextOnlinePage() {
+        if (onlineQuery != null || nextOnlineOffset == VideoSearchPage.NO_MORE_PAGES) {
+            return;
+        }
+
         videoRefreshLayout.post(new Runnable() {
             @Override
             public void run() {
@@ -209,18 +276,80 @@ public final class SearchActivity extends ActionBarActivity {
             }
         });
 
-        lastQuery = query;
-        App.videoRepository.findOnlineVideoByQuery(query, new FindQueryVideoCallback());
+        onlineQuery = App.videoRepository.searchOnlineVideos(lastQuery, nextOnlineOffset,
+                ONLINE_PAGE_SIZE, new FindQueryVideoCallback(lastQuery));
     }
 
-    protected class FindQueryVideoCallback implements VideoRepository.VideoListCallback {
+    /**
+     * Search after the user has stopped typing for a moment.
+     */
+    private void queryVideosDelayed(final String query) {
+        if (pendingQuery != null) {
+            queryHandler.removeCallbacks(pendingQuery);
+        }
+
+        pendingQuery = new Runnable() {
+            @Override
+            public void run() {
+                pendingQuery = null;
+                queryVideos(query);
+            }
+        };
+
+        queryHandler.postDelayed(pendingQuery, QUERY_DELAY_MILLISECONDS);
+    }
+
+    /**
+     * Cancel the pending and in-flight queries, including their HTTP requests.
+     */
+    private void cancelQueries() {
+        if (pendingQuery != null) {
+            queryHandler.removeCallbacks(pendingQuery);
+            pendingQuery = null;
+        }
+
+        if (onlineQuery != null) {
+            onlineQuery.cancel();
+            onlineQuery = null;
+        }
+    }
+
+    private class QueryTextListener implements SearchView.OnQueryTextListener {
+
+        @Override
+        public boolean onQueryTextSubmit(String query) {
+            if (pendingQuery != null) {
+                queryHandler.removeCallbacks(pendingQuery);
+                pendingQuery = null;
+            }
+
+            queryVideos(query);
+
+            // Handled here, there's no need to restart the activity with a search intent
+            return true;
+        }
 
         @Override
-        public void found(final ArrayList<Video> videos) {
+        public boolean onQueryTextChange(String query) {
+            queryVideosDelayed(query);
+            return true;
+        }
+    }
+
+    protected class FindQueryVideoCallback implements VideoRepository.VideoSearchCallback {
+
+        private final String query;
+
+        public FindQueryVideoCallback(String query) {
+            this.query = query;
+        }
+
+        @Override
+        public void found(final VideoSearchPage page) {
             runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    finishVideoOnlineQuery(videos);
+                    finishVideoOnlineQuery(query, page);
                 }
             });
         }
@@ -230,34 +359,10 @@ public final class SearchActivity extends ActionBarActivity {
             runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    finishVideoOnlineQuery(null);
+                    finishVideoOnlineQuery(query, null);
                 }
             });
         }
     }
 
-    /**
-     * Returns if a video matches the given query. Tries to be as memory-efficient as possible by
-     * checking cached information objects for matches first before loading entire videos and their
-     * annotations.
-     */
-    private boolean isMatch(OptimizedVideo video, String query) {
-
-        if (query.equals(video.getTag())) {
-            return true;
-        }
-
-        if (video.getTitle().toLowerCase().contains(query)) {
-            return true;
-        }
-
-        for (int i = 0; i < video.getAnnotationCount(); i++) {
-            if (video.getAnnotationText(i).toLowerCase().contains(query)) {
-                return true;
-            }
-        }
-
-        return false;
-    }
-
 }
@@ -1,6 +1,8 @@
 package fi.aalto.legroup.achso.entities;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import fi.aalto.legroup.achso.entities.serialization.json.JsonSerializable;
@@ -10,6 +12,10 @@ public class Group implements JsonSerializable {
     protected String name;
     protected List<UUID> videos;
 
+    // Lookup set of the videos, built lazily since Gson fills in only the list. Published groups
+    // are read from many threads, which may each build the set; they all get an equal one.
+    protected transient volatile Set<UUID> videoSet;
+
     public String getName() {
         return name;
     }
@@ -25,18 +31,37 @@ public class Group implements JsonSerializable {
     }
     public void setVideos(List<UUID> videos) {
         this.videos = videos;
+        this.videoSet = null;
     }
     public  boolean hasVideo(UUID id) {
-        return this.videos.contains(id);
+        return getVideoSet().contains(id);
     }
 
+    /**
+     * Note: Groups are not modified once the repository has published them, the repository
+     * changes a copy instead. The same goes for addVideoToGroup().
+     */
     public void removeVideoFromGroup(UUID videoID) {
-        this.videos.remove(videoID);
+        if (getVideoSet().remove(videoID)) {
+            this.videos.remove(videoID);
+        }
     }
 
     public void addVideoToGroup(UUID videoID) {
-        if (!this.videos.contains(videoID)) {
+        if (getVideoSet().add(videoID)) {
             this.videos.add(videoID);
         }
     }
+
+    private Set<UUID> getVideoSet() {
+        Set<UUID> set = this.videoSet;
+
+        if (set == null) {
+            // Filled in before publishing so that other threads see the whole set
+            set = new HashSet<>(this.videos);
+            this.videoSet = set;
+        }
+
+        return set;
+    }
 }
@@ -5,13 +5,22 @@ import android.location.Location;
 import android.net.Uri;
 
 import com.google.common.primitives.Longs;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
+import org.joda.time.DateTime;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
 
 import fi.aalto.legroup.achso.app.App;
+import fi.aalto.legroup.achso.storage.VideoIndexSnapshot;
 import fi.aalto.legroup.achso.storage.VideoRepository;
 
 /**
@@ -95,6 +104,24 @@ public class OptimizedVideo {
         return Uri.parse(manifestUri);
     }
 
+    public void setManifestUri(Uri manifestUri) {
+        if (manifestUri != null) {
+            this.manifestUri = manifestUri.toString();
+        } else {
+            this.manifestUri = null;
+        }
+    }
+
+    public void setLastModified(Date lastModified) {
+        if (lastModified != null) {
+            hasLastModified = true;
+            lastModifiedInMs = lastModified.getTime();
+        } else {
+            hasLastModified = false;
+            lastModifiedInMs = 0;
+        }
+    }
+
     public Location getLocation() {
         if (!hasLocation) {
             return null;
@@ -150,6 +177,11 @@ public class OptimizedVideo {
     public long getLastModified() {
         return lastModified;
     }
+
+    public long getDateInMs() {
+        return dateInMs;
+    }
+
     /**
      * Returns number of annotations the video has, query annotation details with functions
      * taking index as a parameter
@@ -229,6 +261,10 @@ public class OptimizedVideo {
         return !isLocal();
     }
 
+    private OptimizedVideo() {
+        // For reading from a snapshot
+    }
+
     /**
      * Store the data of the video in a more GC friendly way.
      */
@@ -485,6 +521,422 @@ public class OptimizedVideo {
         return inflate(new PooledVideo(annotationTime.length, hasLocation));
     }
 
+    /**
+     * Write the optimized data in binary form, see VideoIndexSnapshot for the file layout.
+     * Note: The user indices are written as-is, so the user pool should be written too.
+     * The repository is not written.
+     */
+    public void writeTo(DataOutputStream output) throws IOException {
+        VideoIndexSnapshot.writeString(output, manifestUri);
+        VideoIndexSnapshot.writeString(output, videoUri);
+        VideoIndexSnapshot.writeString(output, thumbUri);
+        VideoIndexSnapshot.writeString(output, deleteUri);
+        VideoIndexSnapshot.writeString(output, cacheThumbUri);
+        VideoIndexSnapshot.writeString(output, cacheVideoUri);
+
+        output.writeInt(startTime);
+        output.writeInt(endTime);
+
+        output.writeLong(id.getMostSignificantBits());
+        output.writeLong(id.getLeastSignificantBits());
+        VideoIndexSnapshot.writeString(output, title);
+        VideoIndexSnapshot.writeString(output, tag);
+        output.writeBoolean(isPublic);
+        output.writeLong(dateInMs);
+        output.writeInt(revision);
+        output.writeLong(lastModifiedInMs);
+        output.writeInt(rotation);
+        output.writeDouble(locationLatitude);
+        output.writeDouble(locationLongitude);
+        output.writeFloat(locationAccuracy);
+        output.writeBoolean(hasLocation);
+        output.writeBoolean(hasLastModified);
+        output.writeBoolean(isTemporary);
+        output.writeInt(authorUserIndex);
+        output.writeLong(lastModified);
+        output.writeInt(formatVersion);
+
+        VideoIndexSnapshot.writeString(output, annotationTextBuffer);
+
+        int annotationCount = annotationTime.length;
+        output.writeInt(annotationCount);
+
+        for (int i = 0; i < annotationCount; i++) {
+            output.writeLong(annotationTime[i]);
+            output.writeFloat(annotationXY[i * 2]);
+            output.writeFloat(annotationXY[i * 2 + 1]);
+            output.writeInt(annotationTextStartEnd[i * 2]);
+            output.writeInt(annotationTextStartEnd[i * 2 + 1]);
+            output.writeInt(annotationAuthorUserIndex[i]);
+            output.writeLong(annotationCreatedTimestampInMs[i]);
+        }
+    }
+
+    /**
+     * Read optimized data written with writeTo().
+     *
+     * @param userIndexMap Maps the user indices of the written data to the current user pool.
+     */
+    public static OptimizedVideo readFrom(ByteBuffer input, int[] userIndexMap) {
+        OptimizedVideo video = new OptimizedVideo();
+
+        video.manifestUri = VideoIndexSnapshot.readString(input);
+        video.videoUri = VideoIndexSnapshot.readString(input);
+        video.thumbUri = VideoIndexSnapshot.readString(input);
+        video.deleteUri = VideoIndexSnapshot.readString(input);
+        video.cacheThumbUri = VideoIndexSnapshot.readString(input);
+        video.cacheVideoUri = VideoIndexSnapshot.readString(input);
+
+        video.startTime = input.getInt();
+        video.endTime = input.getInt();
+
+        long mostSignificantBits = input.getLong();
+        long leastSignificantBits = input.getLong();
+        video.id = new UUID(mostSignificantBits, leastSignificantBits);
+        video.title = VideoIndexSnapshot.readString(input);
+        video.tag = VideoIndexSnapshot.readString(input);
+        video.isPublic = input.get() != 0;
+        video.dateInMs = input.getLong();
+        video.revision = input.getInt();
+        video.lastModifiedInMs = input.getLong();
+        video.rotation = input.getInt();
+        video.locationLatitude = input.getDouble();
+        video.locationLongitude = input.getDouble();
+        video.locationAccuracy = input.getFloat();
+        video.hasLocation = input.get() != 0;
+        video.hasLastModified = input.get() != 0;
+        video.isTemporary = input.get() != 0;
+        video.authorUserIndex = mapUserIndex(input.getInt(), userIndexMap);
+        video.lastModified = input.getLong();
+        video.formatVersion = input.getInt();
+
+        video.annotationTextBuffer = VideoIndexSnapshot.readString(input);
+
+        int annotationCount = input.getInt();
+
+        video.annotationTime = new long[annotationCount];
+        video.annotationXY = new float[annotationCount * 2];
+        video.annotationTextStartEnd = new int[annotationCount * 2];
+        video.annotationAuthorUserIndex = new int[annotationCount];
+        video.annotationCreatedTimestampInMs = new long[annotationCount];
+
+        for (int i = 0; i < annotationCount; i++) {
+            video.annotationTime[i] = input.getLong();
+            video.annotationXY[i * 2] = input.getFloat();
+            video.annotationXY[i * 2 + 1] = input.getFloat();
+            video.annotationTextStartEnd[i * 2] = input.getInt();
+            video.annotationTextStartEnd[i * 2 + 1] = input.getInt();
+            video.annotationAuthorUserIndex[i] = mapUserIndex(input.getInt(), userIndexMap);
+            video.annotationCreatedTimestampInMs[i] = input.getLong();
+        }
+
+        return video;
+    }
+
+    /**
+     * Decode a JSON video manifest straight into the optimized form, without creating the Video,
+     * Annotation, User, Date and Uri objects in between. The result is the same as with
+     * new OptimizedVideo(video) for the Video that Gson would read from the manifest.
+     * Note: The manifest URI, the last modified date and the repository are not part of the
+     * manifest and need to be set separately.
+     */
+    public static OptimizedVideo readJson(JsonReader reader) throws IOException {
+        OptimizedVideo video = new OptimizedVideo();
+
+        // Same defaults as for a Video read by Gson
+        video.authorUserIndex = -1;
+        video.annotationTextBuffer = "";
+        video.annotationTime = new long[0];
+        video.annotationXY = new float[0];
+        video.annotationTextStartEnd = new int[0];
+        video.annotationAuthorUserIndex = new int[0];
+        video.annotationCreatedTimestampInMs = new long[0];
+
+        boolean hasDate = false;
+
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            // Gson leaves null fields unset
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+
+            switch (name) {
+                case "videoUri":
+                    video.videoUri = reader.nextString();
+                    break;
+                case "thumbUri":
+                    video.thumbUri = reader.nextString();
+                    break;
+                case "deleteUri":
+                    video.deleteUri = reader.nextString();
+                    break;
+                case "videoCacheUri":
+                    video.cacheVideoUri = reader.nextString();
+                    break;
+                case "thumbCacheUri":
+                    video.cacheThumbUri = reader.nextString();
+                    break;
+                case "id":
+                    video.id = UUID.fromString(reader.nextString());
+                    break;
+                case "title":
+                    video.title = reader.nextString();
+                    break;
+                case "tag":
+                    video.tag = reader.nextString();
+                    break;
+                case "rotation":
+                    video.rotation = reader.nextInt();
+                    break;
+                case "date":
+                    video.dateInMs = readDateInMs(reader);
+                    hasDate = true;
+                    break;
+                case "revision":
+                    video.revision = reader.nextInt();
+                    break;
+                case "formatVersion":
+                    video.formatVersion = reader.nextInt();
+                    break;
+                case "isPublic":
+                    video.isPublic = reader.nextBoolean();
+                    break;
+                case "startTime":
+                    video.startTime = reader.nextInt();
+                    break;
+                case "endTime":
+                    video.endTime = reader.nextInt();
+                    break;
+                case "author":
+                    video.authorUserIndex = readUserIndex(reader);
+                    break;
+                case "location":
+                    video.readJsonLocation(reader);
+                    break;
+                case "annotations":
+                    video.readJsonAnnotations(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+
+        reader.endObject();
+
+        // These are required by the regular constructor too
+        if (video.videoUri == null || video.thumbUri == null || !hasDate) {
+            throw new IOException("Video manifest is missing required fields");
+        }
+
+        return video;
+    }
+
+    private void readJsonLocation(JsonReader reader) throws IOException {
+        hasLocation = true;
+
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "latitude":
+                    locationLatitude = reader.nextDouble();
+                    break;
+                case "longitude":
+                    locationLongitude = reader.nextDouble();
+                    break;
+                case "accuracy":
+                    locationAccuracy = (float) reader.nextDouble();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+
+        reader.endObject();
+    }
+
+    private void readJsonAnnotations(JsonReader reader) throws IOException {
+        int capacity = 8;
+        int count = 0;
+
+        long[] time = new long[capacity];
+        float[] xy = new float[capacity * 2];
+        int[] textStartEnd = new int[capacity * 2];
+        int[] authorUserIndex = new int[capacity];
+        long[] createdTimestampInMs = new long[capacity];
+
+        StringBuilder textBuffer = new StringBuilder();
+
+        reader.beginArray();
+
+        while (reader.hasNext()) {
+            if (count == capacity) {
+                capacity *= 2;
+                time = Arrays.copyOf(time, capacity);
+                xy = Arrays.copyOf(xy, capacity * 2);
+                textStartEnd = Arrays.copyOf(textStartEnd, capacity * 2);
+                authorUserIndex = Arrays.copyOf(authorUserIndex, capacity);
+                createdTimestampInMs = Arrays.copyOf(createdTimestampInMs, capacity);
+            }
+
+            // Same defaults as for an Annotation read by Gson, getText() turns null into ""
+            textStartEnd[count * 2] = 0;
+            textStartEnd[count * 2 + 1] = 0;
+            authorUserIndex[count] = -1;
+            createdTimestampInMs[count] = System.currentTimeMillis();
+            xy[count * 2] = 0;
+            xy[count * 2 + 1] = 0;
+            time[count] = 0;
+
+            reader.beginObject();
+
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    continue;
+                }
+
+                switch (name) {
+                    case "time":
+                        time[count] = reader.nextLong();
+                        break;
+                    case "position":
+                        readJsonPosition(reader, xy, count * 2);
+                        break;
+                    case "text":
+                        String text = reader.nextString();
+
+                        // See the regular constructor for how the text is stored
+                        int start = textBuffer.length();
+                        textBuffer.append(text);
+                        int end = textBuffer.length();
+
+                        if (text.isEmpty()) {
+                            start = 0;
+                            end = 0;
+                        }
+
+                        textStartEnd[count * 2] = start;
+                        textStartEnd[count * 2 + 1] = end;
+                        break;
+                    case "author":
+                        authorUserIndex[count] = readUserIndex(reader);
+                        break;
+                    case "createdTimestamp":
+                        createdTimestampInMs[count] = readDateInMs(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+
+            reader.endObject();
+            count++;
+        }
+
+        reader.endArray();
+
+        annotationTime = Arrays.copyOf(time, count);
+        annotationXY = Arrays.copyOf(xy, count * 2);
+        annotationTextStartEnd = Arrays.copyOf(textStartEnd, count * 2);
+        annotationAuthorUserIndex = Arrays.copyOf(authorUserIndex, count);
+        annotationCreatedTimestampInMs = Arrays.copyOf(createdTimestampInMs, count);
+        annotationTextBuffer = textBuffer.toString();
+    }
+
+    private static void readJsonPosition(JsonReader reader, float[] xy, int offset)
+            throws IOException {
+
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "x":
+                    xy[offset] = (float) reader.nextDouble();
+                    break;
+                case "y":
+                    xy[offset + 1] = (float) reader.nextDouble();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+
+        reader.endObject();
+    }
+
+    private static int readUserIndex(JsonReader reader) throws IOException {
+        String name = null;
+        String uri = null;
+
+        // Same default as in the User constructor used by Gson
+        String id = "";
+
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+
+                if (field.equals("id")) {
+                    id = null;
+                }
+                continue;
+            }
+
+            switch (field) {
+                case "name":
+                    name = reader.nextString();
+                    break;
+                case "uri":
+                    uri = reader.nextString();
+                    break;
+                case "id":
+                    id = reader.nextString();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+
+        reader.endObject();
+
+        // The pool has to compare against a User anyway, but only one is created per user here
+        return UserPool.internUser(new User(name, uri != null ? Uri.parse(uri) : null, id));
+    }
+
+    private static long readDateInMs(JsonReader reader) throws IOException {
+        try {
+            return new DateTime(reader.nextString()).getMillis();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid date in video manifest", e);
+        }
+    }
+
+    private static int mapUserIndex(int index, int[] userIndexMap) {
+
+        // Null users are marked with -1 in the pool too
+        if (index < 0) {
+            return -1;
+        }
+
+        return userIndexMap[index];
+    }
+
     public static class CreateTimeComparator implements Comparator<OptimizedVideo> {
 
         @Override
@@ -5,6 +5,7 @@ import java.util.ArrayList;
 /**
  * Use this class to store users memory efficiently.
  * Maps User objects to indices that can later retrieve the actual User back.
+ * Note: The pool is accessed from the manifest loading threads, so all access is synchronized.
  */
 public final class UserPool {
 
@@ -20,7 +21,7 @@ public final class UserPool {
      * @param user User object to make unique.
      * @return Index to the user in the pool.
      */
-    public static int internUser(User user) {
+    public static synchronized int internUser(User user) {
 
         // Map null to -1
         if (user == null) {
@@ -46,7 +47,7 @@ public final class UserPool {
      * @param index User object to make unique.
      * @return The user object for the index
      */
-    public static User getInternedUser(int index) {
+    public static synchronized User getInternedUser(int index) {
 
         // Map null to -1
         if (index == -1) {
@@ -56,4 +57,11 @@ public final class UserPool {
         return userPool.get(index);
     }
 
+    /**
+     * Returns the amount of users in the pool, valid indices are in range [0, getUserCount()[.
+     */
+    public static synchronized int getUserCount() {
+        return userPool.size();
+    }
+
 }
@@ -10,13 +10,14 @@ import java.util.UUID;
 import java.util.regex.Pattern;
 
 import fi.aalto.legroup.achso.app.App;
+import fi.aalto.legroup.achso.entities.serialization.binary.BinarySerializable;
 import fi.aalto.legroup.achso.entities.serialization.json.JsonSerializable;
 import fi.aalto.legroup.achso.storage.VideoRepository;
 
 /**
  * A video entity that represents a video and is an aggregate root for annotations.
  */
-public class Video implements JsonSerializable {
+public class Video implements JsonSerializable, BinarySerializable {
 
     /**
      * This is the current video format version that is saved by the app.
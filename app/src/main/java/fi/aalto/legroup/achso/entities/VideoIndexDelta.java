@@ -0,0 +1,52 @@
+package fi.aalto.legroup.achso.entities;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The video index of a host, either in full or as the changes since a sync cursor.
+ */
+public class VideoIndexDelta {
+
+    private List<VideoReference> changed;
+    private List<UUID> deleted;
+    private String cursor;
+    private boolean isFullIndex;
+
+    /**
+     * @param changed     References to the videos that have changed, or all videos if this is a
+     *                    full index.
+     * @param deleted     IDs of the videos that have been deleted since the cursor.
+     * @param cursor      Cursor to request the next delta with, or null if the host doesn't
+     *                    support delta syncing.
+     * @param isFullIndex True if this contains every video, not just the changed ones.
+     */
+    public VideoIndexDelta(List<VideoReference> changed, List<UUID> deleted, String cursor,
+            boolean isFullIndex) {
+        this.changed = changed;
+        this.deleted = deleted;
+        this.cursor = cursor;
+        this.isFullIndex = isFullIndex;
+    }
+
+    public static VideoIndexDelta fullIndex(List<VideoReference> videos, String cursor) {
+        return new VideoIndexDelta(videos, Collections.<UUID>emptyList(), cursor, true);
+    }
+
+    public List<VideoReference> getChanged() {
+        return changed;
+    }
+
+    public List<UUID> getDeleted() {
+        return deleted;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public boolean isFullIndex() {
+        return isFullIndex;
+    }
+}
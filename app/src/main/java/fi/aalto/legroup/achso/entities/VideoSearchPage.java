@@ -0,0 +1,35 @@
+package fi.aalto.legroup.achso.entities;
+
+import java.util.List;
+
+/**
+ * One page of the results of a search.
+ */
+public class VideoSearchPage {
+
+    public static final int NO_MORE_PAGES = -1;
+
+    private List<VideoSummary> summaries;
+    private int nextOffset;
+
+    /**
+     * @param summaries  Summaries of the videos on this page.
+     * @param nextOffset Offset of the next page, or NO_MORE_PAGES if this is the last one.
+     */
+    public VideoSearchPage(List<VideoSummary> summaries, int nextOffset) {
+        this.summaries = summaries;
+        this.nextOffset = nextOffset;
+    }
+
+    public List<VideoSummary> getSummaries() {
+        return summaries;
+    }
+
+    public int getNextOffset() {
+        return nextOffset;
+    }
+
+    public boolean hasMorePages() {
+        return nextOffset != NO_MORE_PAGES;
+    }
+}
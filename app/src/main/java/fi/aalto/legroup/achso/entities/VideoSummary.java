@@ -0,0 +1,52 @@
+package fi.aalto.legroup.achso.entities;
+
+import android.net.Uri;
+
+import java.util.Date;
+import java.util.UUID;
+
+import fi.aalto.legroup.achso.entities.serialization.json.JsonSerializable;
+
+/**
+ * The little there is to know about a video to list it, without the annotations or any of the
+ * other manifest data. The fields have the same names as in Video, so a full manifest can be read
+ * as a summary too.
+ */
+public class VideoSummary implements JsonSerializable {
+
+    protected UUID id;
+    protected String title;
+    protected String tag;
+    protected Uri thumbUri;
+    protected Date date;
+    protected boolean isPublic;
+    protected User author;
+
+    public UUID getId() {
+        return id;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    public Uri getThumbUri() {
+        return thumbUri;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public boolean getIsPublic() {
+        return isPublic;
+    }
+
+    public User getAuthor() {
+        return author;
+    }
+}
@@ -1,7 +1,15 @@
 package fi.aalto.legroup.achso.entities.serialization;
 
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -14,6 +22,9 @@ import javax.annotation.Nonnull;
  */
 public abstract class Serializer<S extends Serializable> {
 
+    // Cleared if the directories can't be synced on this device at all
+    private static volatile boolean canSyncDirectories = true;
+
     /**
      * De-serialises a new object of the given type from the input stream.
      *
@@ -66,22 +77,119 @@ public abstract class Serializer<S extends Serializable> {
     }
 
     /**
-     * Serialises an object into the given (local) file.
+     * Serialises an object into the given (local) file. The serialisation is written to a
+     * temporary file first, synced to the disk and then renamed over the destination, so the
+     * destination always has either the old or the new serialisation in full even if the app is
+     * killed while saving. The directory is synced after the rename as well, so the new name
+     * survives a power loss. That needs Lollipop; on older versions the rename can still be lost,
+     * which leaves the old serialisation in place.
      *
      * @param object Object to serialise.
      * @param output Local file to use for outputting the serialisation.
      * @throws IOException If the destination cannot be written to.
      */
     public void save(S object, URI output) throws IOException {
-        OutputStream stream = null;
+        File file = new File(output);
+        File temporaryFile = new File(file.getPath() + ".tmp");
+
+        FileOutputStream stream = null;
+        boolean isWritten = false;
 
         try {
-            stream = new FileOutputStream(new File(output));
-            write(object, stream);
+            stream = new FileOutputStream(temporaryFile);
+
+            // Writers may close the stream when done, so sync it from the inside
+            SyncingOutputStream syncingStream = new SyncingOutputStream(stream);
+            write(object, syncingStream);
+            syncingStream.close();
+            stream = null;
+
+            if (!temporaryFile.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+
+            isWritten = true;
+
+            syncDirectory(file.getParentFile());
         } finally {
             if (stream != null) {
                 stream.close();
             }
+
+            if (!isWritten) {
+                //noinspection ResultOfMethodCallIgnored
+                temporaryFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Sync the directory entries to the disk. The rename has already happened, so a failure here
+     * only means that it may not survive a power loss and is not worth failing the save for.
+     */
+    private static void syncDirectory(File directory) {
+        if (directory == null || !canSyncDirectories
+                || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+
+        try {
+            syncDirectoryDescriptor(directory);
+        } catch (RuntimeException | LinkageError e) {
+            // The system calls are missing where Os isn't backed by libcore, eg. in unit tests
+            e.printStackTrace();
+            canSyncDirectories = false;
+        }
+    }
+
+    // Kept apart so that older versions never load the classes
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void syncDirectoryDescriptor(File directory) {
+        try {
+            FileDescriptor descriptor = Os.open(directory.getPath(), OsConstants.O_RDONLY, 0);
+
+            try {
+                Os.fsync(descriptor);
+            } finally {
+                Os.close(descriptor);
+            }
+        } catch (ErrnoException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Syncs the file to the disk before closing it.
+     */
+    private static final class SyncingOutputStream extends FilterOutputStream {
+
+        private final FileOutputStream stream;
+        private boolean isClosed = false;
+
+        private SyncingOutputStream(FileOutputStream stream) {
+            super(stream);
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(@Nonnull byte[] buffer, int offset, int count) throws IOException {
+            stream.write(buffer, offset, count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (isClosed) {
+                return;
+            }
+
+            isClosed = true;
+
+            try {
+                stream.flush();
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
         }
     }
 
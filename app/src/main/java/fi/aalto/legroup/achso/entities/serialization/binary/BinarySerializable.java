@@ -0,0 +1,9 @@
+package fi.aalto.legroup.achso.entities.serialization.binary;
+
+import fi.aalto.legroup.achso.entities.serialization.Serializable;
+
+public interface BinarySerializable extends Serializable {
+
+    // Marker interface
+
+}
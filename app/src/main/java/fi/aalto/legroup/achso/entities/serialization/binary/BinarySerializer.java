@@ -0,0 +1,524 @@
+package fi.aalto.legroup.achso.entities.serialization.binary;
+
+import android.graphics.PointF;
+import android.location.Location;
+import android.net.Uri;
+import android.util.Base64;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.Nonnull;
+
+import fi.aalto.legroup.achso.entities.Annotation;
+import fi.aalto.legroup.achso.entities.User;
+import fi.aalto.legroup.achso.entities.Video;
+import fi.aalto.legroup.achso.entities.serialization.Serializer;
+
+/**
+ * Compact binary serialisation of videos for the local manifest cache. JSON stays the format
+ * for everything that leaves the device.
+ *
+ * Layout (big-endian):
+ *   int magic, byte version
+ *   varint stringCount, { varint byteCount, UTF-8 bytes } * stringCount
+ *   varint userCount, { string name, string uri, string id } * userCount
+ *   video, see writeVideo()
+ *
+ * Varints are unsigned LEB128, signed values are zigzag-encoded first. Strings and users refer
+ * to their tables with index + 1, 0 marks null. The tables are shared by the whole video, so
+ * the URIs and the authors of the annotations are stored only once.
+ */
+public final class BinarySerializer extends Serializer<BinarySerializable> {
+
+    // Starts with a zero byte so it can never be confused with a JSON document
+    private static final int MAGIC = 0x00414356;
+
+    /**
+     * Increment this if the layout changes. Manifests with other versions fail to load, so a
+     * migration is needed as well.
+     */
+    private static final int VERSION = 1;
+
+    private static final int ANNOTATION_HAS_POSITION = 1;
+    private static final int ANNOTATION_HAS_CREATED_TIMESTAMP = 2;
+
+    /**
+     * Returns true if the stream contains a binary serialisation. The stream must support
+     * marking, its position is not changed.
+     */
+    public static boolean isBinary(InputStream input) throws IOException {
+        input.mark(4);
+
+        try {
+            int magic = 0;
+
+            for (int i = 0; i < 4; i++) {
+                int value = input.read();
+                if (value < 0) {
+                    return false;
+                }
+                magic = (magic << 8) | value;
+            }
+
+            return magic == MAGIC;
+        } finally {
+            input.reset();
+        }
+    }
+
+    /**
+     * De-serialises a new object of the given type from the input stream.
+     *
+     * @param type  Type of the de-serialised object, only videos are supported.
+     * @param input Stream with the serialised representation.
+     * @return The de-serialised object.
+     * @throws IOException If the source cannot be read.
+     */
+    @Nonnull
+    @Override
+    public <T extends BinarySerializable> T read(Class<T> type, InputStream input)
+            throws IOException {
+
+        if (!type.isAssignableFrom(Video.class)) {
+            throw new IOException("Can't read " + type.toString() + " in binary");
+        }
+
+        DataInputStream dataInput = null;
+
+        try {
+            dataInput = new DataInputStream(new BufferedInputStream(input));
+
+            if (dataInput.readInt() != MAGIC) {
+                throw new IOException("Not a binary video");
+            }
+
+            int version = dataInput.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported binary video version " + version);
+            }
+
+            return type.cast(new Reader(dataInput).readVideo());
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Could not read " + type.toString(), e);
+        } finally {
+            if (dataInput != null) {
+                dataInput.close();
+            }
+        }
+    }
+
+    /**
+     * Serialises an object into the output stream.
+     *
+     * @param object Object to serialise, only videos are supported.
+     * @param output Stream to use for outputting the serialisation.
+     * @throws IOException If the destination cannot be written to.
+     */
+    @Override
+    public void write(BinarySerializable object, OutputStream output) throws IOException {
+        if (!(object instanceof Video)) {
+            throw new IOException("Can't write " + object + " in binary");
+        }
+
+        DataOutputStream dataOutput = null;
+
+        try {
+            dataOutput = new DataOutputStream(new BufferedOutputStream(output));
+
+            dataOutput.writeInt(MAGIC);
+            dataOutput.writeByte(VERSION);
+
+            new Writer((Video) object).write(dataOutput);
+        } finally {
+            if (dataOutput != null) {
+                dataOutput.close();
+            }
+        }
+    }
+
+    /**
+     * Serialises an object into a Base64 string.
+     *
+     * @param object Object to serialise.
+     */
+    @Override
+    public String write(BinarySerializable object) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        try {
+            write(object, output);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not write " + object, e);
+        }
+
+        return Base64.encodeToString(output.toByteArray(), Base64.NO_WRAP);
+    }
+
+    /**
+     * Collects the string and user tables of a video and writes them with the video.
+     */
+    private static final class Writer {
+
+        private final Video video;
+
+        private final Map<String, Integer> strings = new LinkedHashMap<>();
+        private final Map<User, Integer> users = new LinkedHashMap<>();
+
+        private Writer(Video video) {
+            this.video = video;
+
+            addString(video.getTitle());
+            addString(video.getTag());
+            addUri(video.getVideoUri());
+            addUri(video.getThumbUri());
+            addUri(video.getDeleteUri());
+            addUri(video.getCacheVideoUri());
+            addUri(video.getCacheThumbUri());
+            addUser(video.getAuthor());
+
+            for (Annotation annotation : video.getAnnotations()) {
+                addUser(annotation.getAuthor());
+            }
+        }
+
+        private void addString(String string) {
+            if (string != null && !strings.containsKey(string)) {
+                strings.put(string, strings.size());
+            }
+        }
+
+        private void addUri(Uri uri) {
+            if (uri != null) {
+                addString(uri.toString());
+            }
+        }
+
+        private void addUser(User user) {
+            if (user == null || users.containsKey(user)) {
+                return;
+            }
+
+            users.put(user, users.size());
+
+            addString(user.getName());
+            addUri(user.getUri());
+            addString(user.getId());
+        }
+
+        private void write(DataOutputStream output) throws IOException {
+            writeVarLong(output, strings.size());
+            for (String string : strings.keySet()) {
+                writeInlineString(output, string);
+            }
+
+            writeVarLong(output, users.size());
+            for (User user : users.keySet()) {
+                writeString(output, user.getName());
+                writeUri(output, user.getUri());
+                writeString(output, user.getId());
+            }
+
+            writeVideo(output);
+        }
+
+        /**
+         * The video fields in order, then the annotations. The times of the annotations are
+         * stored as differences to the previous one, since they are usually sorted and close to
+         * each other.
+         */
+        private void writeVideo(DataOutputStream output) throws IOException {
+            UUID id = video.getId();
+            output.writeBoolean(id != null);
+            if (id != null) {
+                output.writeLong(id.getMostSignificantBits());
+                output.writeLong(id.getLeastSignificantBits());
+            }
+
+            writeString(output, video.getTitle());
+            writeString(output, video.getTag());
+            writeUri(output, video.getVideoUri());
+            writeUri(output, video.getThumbUri());
+            writeUri(output, video.getDeleteUri());
+            writeUri(output, video.getCacheVideoUri());
+            writeUri(output, video.getCacheThumbUri());
+
+            writeSignedVarLong(output, video.getRotation());
+
+            Date date = video.getDate();
+            output.writeBoolean(date != null);
+            if (date != null) {
+                output.writeLong(date.getTime());
+            }
+
+            writeSignedVarLong(output, video.getRevision());
+            writeSignedVarLong(output, video.getFormatVersion());
+            output.writeBoolean(video.getIsPublic());
+            writeSignedVarLong(output, video.getStartTime());
+            writeSignedVarLong(output, video.getEndTime());
+            writeUser(output, video.getAuthor());
+
+            Location location = video.getLocation();
+            output.writeBoolean(location != null);
+            if (location != null) {
+                output.writeDouble(location.getLatitude());
+                output.writeDouble(location.getLongitude());
+                output.writeFloat(location.getAccuracy());
+            }
+
+            List<Annotation> annotations = video.getAnnotations();
+            writeVarLong(output, annotations.size());
+
+            long previousTime = 0;
+            long previousCreatedTimestamp = 0;
+
+            for (Annotation annotation : annotations) {
+                PointF position = annotation.getPosition();
+                Date createdTimestamp = annotation.getCreatedTimestamp();
+
+                int flags = 0;
+                if (position != null) {
+                    flags |= ANNOTATION_HAS_POSITION;
+                }
+                if (createdTimestamp != null) {
+                    flags |= ANNOTATION_HAS_CREATED_TIMESTAMP;
+                }
+                output.writeByte(flags);
+
+                writeSignedVarLong(output, annotation.getTime() - previousTime);
+                previousTime = annotation.getTime();
+
+                if (position != null) {
+                    output.writeFloat(position.x);
+                    output.writeFloat(position.y);
+                }
+
+                writeInlineString(output, annotation.getText());
+                writeUser(output, annotation.getAuthor());
+
+                if (createdTimestamp != null) {
+                    long timestamp = createdTimestamp.getTime();
+                    writeSignedVarLong(output, timestamp - previousCreatedTimestamp);
+                    previousCreatedTimestamp = timestamp;
+                }
+            }
+        }
+
+        private void writeString(DataOutputStream output, String string) throws IOException {
+            writeVarLong(output, string != null ? strings.get(string) + 1 : 0);
+        }
+
+        private void writeUri(DataOutputStream output, Uri uri) throws IOException {
+            writeString(output, uri != null ? uri.toString() : null);
+        }
+
+        private void writeUser(DataOutputStream output, User user) throws IOException {
+            writeVarLong(output, user != null ? users.get(user) + 1 : 0);
+        }
+    }
+
+    /**
+     * Reads the tables and the video in the order Writer wrote them.
+     */
+    private static final class Reader {
+
+        private final DataInputStream input;
+
+        private String[] strings;
+        private User[] users;
+
+        private Reader(DataInputStream input) {
+            this.input = input;
+        }
+
+        private Video readVideo() throws IOException {
+            strings = new String[readCount()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = readInlineString(input);
+            }
+
+            users = new User[readCount()];
+            for (int i = 0; i < users.length; i++) {
+                String name = readString();
+                Uri uri = readUri();
+                String id = readString();
+                users[i] = new User(name, uri, id);
+            }
+
+            UUID id = null;
+            if (input.readBoolean()) {
+                long mostSignificantBits = input.readLong();
+                long leastSignificantBits = input.readLong();
+                id = new UUID(mostSignificantBits, leastSignificantBits);
+            }
+
+            String title = readString();
+            String tag = readString();
+            Uri videoUri = readUri();
+            Uri thumbUri = readUri();
+            Uri deleteUri = readUri();
+            Uri videoCacheUri = readUri();
+            Uri thumbCacheUri = readUri();
+
+            int rotation = (int) readSignedVarLong(input);
+            Date date = input.readBoolean() ? new Date(input.readLong()) : null;
+            int revision = (int) readSignedVarLong(input);
+            int formatVersion = (int) readSignedVarLong(input);
+            boolean isPublic = input.readBoolean();
+            int startTime = (int) readSignedVarLong(input);
+            int endTime = (int) readSignedVarLong(input);
+            User author = readUser();
+
+            Location location = null;
+            if (input.readBoolean()) {
+                location = new Location("deserialized");
+                location.setLatitude(input.readDouble());
+                location.setLongitude(input.readDouble());
+                location.setAccuracy(input.readFloat());
+            }
+
+            int annotationCount = readCount();
+            List<Annotation> annotations = new ArrayList<>(annotationCount);
+
+            long time = 0;
+            long createdTimestamp = 0;
+
+            for (int i = 0; i < annotationCount; i++) {
+                int flags = input.readUnsignedByte();
+
+                time += readSignedVarLong(input);
+
+                PointF position = null;
+                if ((flags & ANNOTATION_HAS_POSITION) != 0) {
+                    float x = input.readFloat();
+                    float y = input.readFloat();
+                    position = new PointF(x, y);
+                }
+
+                String text = readInlineString(input);
+                User annotationAuthor = readUser();
+
+                Date created = null;
+                if ((flags & ANNOTATION_HAS_CREATED_TIMESTAMP) != 0) {
+                    createdTimestamp += readSignedVarLong(input);
+                    created = new Date(createdTimestamp);
+                }
+
+                annotations.add(new Annotation(time, position, text, annotationAuthor, created));
+            }
+
+            Video video = new Video(null, null, videoUri, thumbUri, videoCacheUri, thumbCacheUri,
+                    id, title, tag, isPublic, rotation, date, author, location, formatVersion,
+                    annotations);
+
+            video.setDeleteUri(deleteUri);
+            video.setRevision(revision);
+            video.setStartTime(startTime);
+            video.setEndTime(endTime);
+
+            return video;
+        }
+
+        private int readCount() throws IOException {
+            long count = readVarLong(input);
+            if (count < 0 || count > Integer.MAX_VALUE) {
+                throw new IOException("Invalid count " + count);
+            }
+            return (int) count;
+        }
+
+        private String readString() throws IOException {
+            int index = readCount();
+            return index != 0 ? strings[index - 1] : null;
+        }
+
+        private Uri readUri() throws IOException {
+            String string = readString();
+            return string != null ? Uri.parse(string) : null;
+        }
+
+        private User readUser() throws IOException {
+            int index = readCount();
+            return index != 0 ? users[index - 1] : null;
+        }
+    }
+
+    /**
+     * Write a nullable string as its UTF-8 byte count + 1 followed by the bytes.
+     */
+    private static void writeInlineString(DataOutputStream output, String string)
+            throws IOException {
+
+        if (string == null) {
+            writeVarLong(output, 0);
+            return;
+        }
+
+        byte[] bytes = string.getBytes(Charsets.UTF_8);
+        writeVarLong(output, bytes.length + 1);
+        output.write(bytes);
+    }
+
+    private static String readInlineString(DataInputStream input) throws IOException {
+        long length = readVarLong(input);
+        if (length == 0) {
+            return null;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Invalid string length " + length);
+        }
+
+        byte[] bytes = new byte[(int) length - 1];
+        input.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    private static void writeVarLong(DataOutputStream output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream input) throws IOException {
+        long value = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = input.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("Malformed varint");
+    }
+
+    private static void writeSignedVarLong(DataOutputStream output, long value)
+            throws IOException {
+        writeVarLong(output, (value << 1) ^ (value >> 63));
+    }
+
+    private static long readSignedVarLong(DataInputStream input) throws IOException {
+        long value = readVarLong(input);
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
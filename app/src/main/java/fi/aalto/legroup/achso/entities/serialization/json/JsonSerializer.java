@@ -3,22 +3,32 @@ package fi.aalto.legroup.achso.entities.serialization.json;
 import android.location.Location;
 import android.net.Uri;
 
+import com.google.common.base.Charsets;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.RequestBody;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.Date;
 
 import javax.annotation.Nonnull;
 
+import fi.aalto.legroup.achso.entities.OptimizedVideo;
 import fi.aalto.legroup.achso.entities.serialization.Serializer;
+import okio.BufferedSink;
 
 public final class JsonSerializer extends Serializer<JsonSerializable> {
 
+    private static final MediaType JSON_MEDIA_TYPE =
+            MediaType.parse("application/json; charset=utf-8");
+
     private Gson gson;
 
     public JsonSerializer() {
@@ -63,6 +73,90 @@ public final class JsonSerializer extends Serializer<JsonSerializable> {
         }
     }
 
+    /**
+     * De-serialises a video manifest directly into an optimised video. Much cheaper than reading
+     * a Video and converting it, as none of the intermediate objects are created.
+     *
+     * @param input Stream with the serialised manifest.
+     * @return The de-serialised video.
+     * @throws IOException If the source cannot be read.
+     */
+    @Nonnull
+    public OptimizedVideo readOptimizedVideo(InputStream input) throws IOException {
+        JsonReader reader = null;
+
+        try {
+            reader = new JsonReader(new InputStreamReader(input));
+
+            // Gson reads leniently too
+            reader.setLenient(true);
+
+            return OptimizedVideo.readJson(reader);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Could not read " + OptimizedVideo.class.toString(), e);
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * De-serialises the elements of an array field of a JSON object one by one, without reading
+     * the whole array into memory first. Other fields of the object are skipped.
+     *
+     * @param type      Type of the array elements.
+     * @param fieldName Name of the array field in the top-level object.
+     * @param input     Stream with the serialised representation.
+     * @param handler   Handler that receives the elements in order.
+     * @throws IOException If the source cannot be read or the handler fails.
+     */
+    public <T extends JsonSerializable> void readArray(Class<T> type, String fieldName,
+            InputStream input, ElementHandler<T> handler) throws IOException {
+
+        JsonReader reader = null;
+
+        try {
+            reader = new JsonReader(new InputStreamReader(input));
+            reader.beginObject();
+
+            while (reader.hasNext()) {
+                if (!reader.nextName().equals(fieldName)) {
+                    reader.skipValue();
+                    continue;
+                }
+
+                reader.beginArray();
+
+                while (reader.hasNext()) {
+                    T element = gson.fromJson(reader, type);
+                    handler.onElement(element);
+                }
+
+                reader.endArray();
+            }
+
+            reader.endObject();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Could not read " + type.toString(), e);
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Receives the elements read with readArray().
+     */
+    public interface ElementHandler<T> {
+        public void onElement(T element) throws IOException;
+    }
+
     /**
      * Serialises an object into the output stream.
      *
@@ -86,6 +180,36 @@ public final class JsonSerializer extends Serializer<JsonSerializable> {
         }
     }
 
+    /**
+     * Creates a request body that serialises the object straight into the request as it's sent,
+     * instead of building the whole serialisation in memory first. The object is serialised
+     * again if the request is retried, so it shouldn't be modified until the request is done.
+     *
+     * @param object Object to serialise.
+     */
+    public RequestBody createRequestBody(final JsonSerializable object) {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return JSON_MEDIA_TYPE;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                // Don't close the writer, the sink belongs to the request
+                Writer writer = new OutputStreamWriter(sink.outputStream(), Charsets.UTF_8);
+
+                try {
+                    gson.toJson(object, writer);
+                } catch (Exception e) {
+                    throw new IOException("Could not write " + object, e);
+                }
+
+                writer.flush();
+            }
+        };
+    }
+
     /**
      * Serialises an object into a string.
      *
@@ -182,6 +182,12 @@ public final class PlayerActivity extends ActionBarActivity implements Annotatio
     }
 
     protected void loadVideo(UUID videoId) {
+        // Search results are only fetched once they are opened
+        if (!App.videoRepository.doesVideoExist(videoId)) {
+            App.videoRepository.downloadVideoManifest(videoId, new FindVideoCallback());
+            return;
+        }
+
         Video video;
         try {
             video = App.videoRepository.getVideo(videoId).inflate();
@@ -224,6 +230,9 @@ public final class PlayerActivity extends ActionBarActivity implements Annotatio
 
         new DownloadUpdatedVideoAsync().execute(video);
 
+        // If the video is waiting to be uploaded, upload it before the others
+        App.uploadScheduler.prioritize(video.getId());
+
         populateVideoInformation();
         playerFragment = (PlayerFragment)
                 getFragmentManager().findFragmentById(R.id.videoPlayerFragment);
@@ -238,6 +247,9 @@ public final class PlayerActivity extends ActionBarActivity implements Annotatio
         seekBarUpdater.stop();
         controllerVisibilityHandler.removeCallbacksAndMessages(null);
 
+        // The process may be killed while paused, don't leave annotation edits in memory
+        App.videoRepository.flushSaves();
+
         super.onPause();
     }
 
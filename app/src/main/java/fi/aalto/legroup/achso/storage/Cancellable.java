@@ -0,0 +1,14 @@
+package fi.aalto.legroup.achso.storage;
+
+/**
+ * A handle to an operation running in the background that can be cancelled.
+ */
+public interface Cancellable {
+
+    /**
+     * Stop the operation if it's still running. Callbacks may still be called after this, but
+     * their results should be ignored.
+     */
+    public void cancel();
+
+}
@@ -1,29 +1,47 @@
 package fi.aalto.legroup.achso.storage;
 
+import android.accounts.Account;
 import android.content.Context;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.support.annotation.NonNull;
+import android.util.Log;
 import android.webkit.URLUtil;
 
+import com.google.common.base.Objects;
 import com.google.common.io.Files;
 import com.google.common.primitives.Booleans;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.rollbar.android.Rollbar;
 import com.squareup.otto.Bus;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -33,8 +51,11 @@ import fi.aalto.legroup.achso.entities.OptimizedVideo;
 import fi.aalto.legroup.achso.entities.User;
 import fi.aalto.legroup.achso.entities.UserPool;
 import fi.aalto.legroup.achso.entities.Video;
+import fi.aalto.legroup.achso.entities.VideoIndexDelta;
 import fi.aalto.legroup.achso.entities.VideoReference;
+import fi.aalto.legroup.achso.entities.VideoSearchPage;
 import fi.aalto.legroup.achso.entities.migration.VideoMigration;
+import fi.aalto.legroup.achso.entities.serialization.binary.BinarySerializer;
 import fi.aalto.legroup.achso.entities.serialization.json.JsonSerializer;
 import fi.aalto.legroup.achso.playback.PlayerActivity;
 import fi.aalto.legroup.achso.storage.remote.SyncRequiredEvent;
@@ -43,15 +64,59 @@ import fi.aalto.legroup.achso.storage.remote.VideoHost;
 
 public class CombinedVideoRepository implements VideoRepository {
 
-    private static final Pattern cacheNamePattern = Pattern.compile("(.*)_original\\.json");
+    private static final String TAG = CombinedVideoRepository.class.getSimpleName();
 
-    protected Map<UUID, OptimizedVideo> allVideos = Collections.emptyMap();
-    protected List<Group> allGroups = Collections.emptyList();
+    private static final Pattern cacheNamePattern = Pattern.compile("(.*)_original\\.bin");
+
+    // Cached manifests were JSON before they were stored in binary
+    private static final Pattern legacyCacheNamePattern =
+            Pattern.compile("(.*_(?:original|modified))\\.json");
+    private static final String INDEX_DIRECTORY_NAME = ".index";
+    private static final String SNAPSHOT_FILE_NAME = "videos.snapshot";
+    private static final String JOURNAL_FILE_NAME = "manifests.journal";
+    private static final String SYNC_STATE_FILE_NAME = "sync.state";
+
+    // Manifest loading is mostly parsing, so use one thread per core
+    private static final int LOADER_THREAD_COUNT =
+            Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final long LOADER_KEEP_ALIVE_SECONDS = 30;
+
+    // Syncing is mostly waiting for the network, keep a few requests in flight at a time
+    private static final int SYNC_THREAD_COUNT = 4;
+
+    // Saves are written to disk at most this long after the first unsaved change
+    private static final long SAVE_DELAY_MILLISECONDS = 1000;
+
+    // Failed saves are retried after a delay that doubles on every failure up to this
+    private static final long MAX_SAVE_RETRY_DELAY_MILLISECONDS = 60 * 1000;
+
+    // Both can be read from any thread, the groups are replaced instead of modified
+    protected final VideoIndex allVideos = new VideoIndex();
+    protected volatile List<Group> allGroups = Collections.emptyList();
+
+    // Held while publishing a new list of groups and the indexes built from it
+    protected final Object groupsLock = new Object();
+
+    // Kept up to date with the videos and groups above. The indexes are updated one after
+    // another and the search index even later on its own thread, so for a moment a video can be
+    // in allVideos but not yet in the ordering or the search results. The views only reload on
+    // the events posted after all of them, and the ones that look videos up by ID skip the IDs
+    // they can't find.
+    protected final VideoOrderIndex videoOrder = new VideoOrderIndex();
+    protected final GroupMembershipIndex groupMembership = new GroupMembershipIndex();
+
+    // Updated in order on the index executor so that indexing never blocks the caller
+    protected final VideoSearchIndex searchIndex = new VideoSearchIndex();
+    protected ThreadPoolExecutor indexExecutor;
 
     protected Bus bus;
     protected JsonSerializer serializer;
+
+    // The cached manifests are stored in binary, everything else is JSON
+    protected BinarySerializer cacheSerializer = new BinarySerializer();
     protected File localRoot;
     protected File cacheRoot;
+    protected ManifestJournal journal;
 
     protected boolean isFirstSync = true;
     protected boolean hasVideoToUpload = false;
@@ -59,37 +124,115 @@ public class CombinedVideoRepository implements VideoRepository {
 
     protected int stateNumber = 0;
 
+    // Entries of the index snapshot that haven't been claimed yet during refreshOffline()
+    protected Map<UUID, VideoIndexSnapshot.Entry> snapshotEntries = Collections.emptyMap();
+    protected AtomicInteger parsedManifestCount = new AtomicInteger();
+
+    protected ThreadPoolExecutor manifestLoader;
+    protected ThreadPoolExecutor syncExecutor;
+
+    // Errors of the videos that failed during the last completed sync, mapped by video ID
+    protected volatile Map<UUID, Throwable> lastSyncErrors = Collections.emptyMap();
+
+    // Saved videos which haven't been written to disk yet, only the latest save of every video
+    // is kept. Guarded by itself.
+    protected final Map<UUID, PendingSave> pendingSaves = new LinkedHashMap<>();
+    protected boolean isFlushScheduled = false;
+
+    // Held while writing pending saves so that they are written in the order they were made.
+    // Also held while deleting manifest files, so that a save can't bring a deleted file back.
+    private final Object saveWriteLock = new Object();
+
+    protected ScheduledThreadPoolExecutor saveExecutor;
+
     protected List<VideoHost> cloudHosts = new ArrayList<>();
 
+    // Delta sync state of every host after the last completed sync, mapped by getHostKey().
+    // Read from the sync state store on the first sync so a restart doesn't force a full sync.
+    protected Map<String, HostSyncState> hostSyncStates = new HashMap<>();
+    protected SyncStateStore syncStateStore;
+    protected boolean isSyncStateLoaded = false;
+
+    // Account the host sync states belong to
+    protected String syncAccountName;
+
+    /**
+     * A snapshot of a saved video waiting to be written to its manifest file.
+     */
+    protected static final class PendingSave {
+        private final OptimizedVideo video;
+        private final File file;
+
+        // Number of times writing this save has failed
+        private final int failureCount;
+
+        private PendingSave(OptimizedVideo video, File file, int failureCount) {
+            this.video = video;
+            this.file = file;
+            this.failureCount = failureCount;
+        }
+    }
+
     public CombinedVideoRepository(Bus bus, JsonSerializer serializer, File localRoot,
             File cacheRoot) {
         this.bus = bus;
         this.serializer = serializer;
         this.localRoot = localRoot;
         this.cacheRoot = cacheRoot;
+        openJournal();
     }
 
     public void clear() {
         allVideos.clear();
-        allGroups.clear();
+
+        synchronized (groupsLock) {
+            allGroups = Collections.emptyList();
+            videoOrder.clear();
+            groupMembership.clear();
+        }
+
+        rebuildSearchIndex();
         cloudHosts.clear();
+        hostSyncStates.clear();
+        isSyncStateLoaded = false;
         bus.post(new VideoRepositoryUpdatedEvent(this));
     }
 
     public void setCacheRoot(File path) {
+        if (path.equals(cacheRoot)) {
+            return;
+        }
+
         cacheRoot = path;
+        openJournal();
+    }
+
+    /**
+     * Open the manifest journal of the current cache root.
+     */
+    private void openJournal() {
+        File indexDirectory = getIndexDirectory();
+        indexDirectory.mkdirs();
+
+        journal = new ManifestJournal(new File(indexDirectory, JOURNAL_FILE_NAME),
+                new ManifestFileFilter());
+        journal.read();
+
+        syncStateStore = new SyncStateStore(new File(indexDirectory, SYNC_STATE_FILE_NAME));
+        isSyncStateLoaded = false;
     }
 
     private List<UUID> getCacheIds() {
-        String[] entries = cacheRoot.list();
-        if (entries == null) {
-            return Collections.emptyList();
+        File[] entries = journal.listFiles(cacheRoot);
+
+        if (renameLegacyCacheFiles(entries)) {
+            entries = journal.listFiles(cacheRoot);
         }
 
         ArrayList<UUID> results = new ArrayList<>(entries.length);
 
-        for (String entry : entries) {
-            Matcher matcher = cacheNamePattern.matcher(entry);
+        for (File entry : entries) {
+            Matcher matcher = cacheNamePattern.matcher(entry.getName());
             if (matcher.matches()) {
                 try {
                     UUID id = UUID.fromString(matcher.group(1));
@@ -104,12 +247,42 @@ public class CombinedVideoRepository implements VideoRepository {
         return results;
     }
 
+    /**
+     * Give the cached manifests written by older versions the binary extension. The contents
+     * stay JSON until the file is read, see readOptimizedVideoFromFile().
+     * Returns true if any file was renamed.
+     */
+    private boolean renameLegacyCacheFiles(File[] entries) {
+        boolean didRename = false;
+
+        for (File entry : entries) {
+            Matcher matcher = legacyCacheNamePattern.matcher(entry.getName());
+            if (!matcher.matches()) {
+                continue;
+            }
+
+            File target = new File(cacheRoot, matcher.group(1) + ".bin");
+
+            // A binary file written by this version is newer than the legacy one
+            if (target.exists() || !entry.renameTo(target)) {
+                deleteManifestFile(entry);
+            } else {
+                journal.remove(entry);
+                journal.update(target, ManifestJournal.UNKNOWN_REVISION);
+            }
+
+            didRename = true;
+        }
+
+        return didRename;
+    }
+
     private File getLocalVideoFile(UUID id) {
         return new File(localRoot, id + ".json");
     }
 
     private File getCacheFile(UUID id, String suffix) {
-        return new File(cacheRoot, id + "_" + suffix + ".json");
+        return new File(cacheRoot, id + "_" + suffix + ".bin");
     }
 
     @Override
@@ -122,6 +295,52 @@ public class CombinedVideoRepository implements VideoRepository {
         return new File(cacheRoot, id + ".mp4");
     }
 
+    @Override
+    public File getManifestCacheFile(UUID id) {
+        return getOriginalCacheFile(id);
+    }
+
+    @Override
+    public Video readManifestCacheFile(UUID id) throws IOException {
+        return readManifest(getOriginalCacheFile(id));
+    }
+
+    /**
+     * The snapshot and the journal are kept in their own directory so that writing them doesn't
+     * count as a change to the cache directory.
+     */
+    private File getIndexDirectory() {
+        return new File(cacheRoot, INDEX_DIRECTORY_NAME);
+    }
+
+    private File getSnapshotFile() {
+        return new File(getIndexDirectory(), SNAPSHOT_FILE_NAME);
+    }
+
+    /**
+     * Returns the manifest file the current version of the video is stored in, or null if the
+     * video isn't stored at all (eg. temporary search results).
+     * Note: Uses the journal, so the directories should have been listed through it.
+     */
+    private File getNewestManifestFile(UUID id) {
+        File localFile = getLocalVideoFile(id);
+        if (journal.contains(localFile)) {
+            return localFile;
+        }
+
+        File modifiedFile = getModifiedCacheFile(id);
+        if (journal.contains(modifiedFile)) {
+            return modifiedFile;
+        }
+
+        File originalFile = getOriginalCacheFile(id);
+        if (journal.contains(originalFile)) {
+            return originalFile;
+        }
+
+        return null;
+    }
+
     private UUID getIdFromFile(File file) {
         final int uuidLength = 36;
         return UUID.fromString(file.getName().substring(0, uuidLength));
@@ -140,71 +359,266 @@ public class CombinedVideoRepository implements VideoRepository {
         return getCacheFile(id, "modified");
     }
 
+    /**
+     * Returns true if the file is in the manifest cache and thus stored in binary.
+     */
+    private boolean isCacheFile(File file) {
+        return cacheRoot.equals(file.getParentFile());
+    }
+
+    /**
+     * Read a manifest in either format. Cached manifests written by older versions are still
+     * JSON until they are migrated.
+     */
+    private Video readManifest(File file) throws IOException {
+        InputStream input = new BufferedInputStream(new FileInputStream(file));
+
+        try {
+            if (BinarySerializer.isBinary(input)) {
+                return cacheSerializer.read(Video.class, input);
+            } else {
+                return serializer.read(Video.class, input);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Rewrite a cached JSON manifest in binary. The modification time is kept, since it's the
+     * last modified date of the video.
+     */
+    private void migrateCacheFile(Video video, File file) {
+        long lastModified = file.lastModified();
+
+        try {
+            cacheSerializer.save(video, file.toURI());
+            file.setLastModified(lastModified);
+            journal.update(file, video.getRevision());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     protected Video readVideoFromFile(File file) throws IOException {
-        Video video = serializer.load(Video.class, file.toURI());
+        Video video = readManifest(file);
         video.setManifestUri(Uri.fromFile(file));
         video.setLastModified(new Date(file.lastModified()));
         video.setRepository(this);
 
-
-        // Sanity test to check if user deleted video file from gallery
-        // Missing thumb nail icon is fine, since you can still watch the local video
         if (video.isLocal()) {
-            Uri videoUri = video.getVideoUri();
-            File sanityCheckFile = new File(videoUri.getPath());
+            checkLocalVideoFile(video.getId(), video.getVideoUri(), video.getThumbUri());
+        }
 
-            if (!sanityCheckFile.exists()) {
+        return video;
+    }
 
-                // Also remove thumb file;
-                File thumbFile = new File(video.getThumbUri().getPath());
-                File videoFile = getLocalVideoFile(video.getId());
+    /**
+     * Same as new OptimizedVideo(readVideoFromFile(file)), but decodes the manifest directly
+     * without creating the Video first.
+     */
+    protected OptimizedVideo readOptimizedVideoFromFile(File file) throws IOException {
+        OptimizedVideo video;
+        Video migratedVideo = null;
 
-                thumbFile.delete();
-                videoFile.delete();
-                allVideos.remove(video.getId());
-                bus.post(new VideoRepositoryUpdatedEvent(this));
+        InputStream input = new BufferedInputStream(new FileInputStream(file));
 
-                throw new IOException("Local video file not found at " + videoUri);
+        try {
+            if (BinarySerializer.isBinary(input)) {
+                video = new OptimizedVideo(cacheSerializer.read(Video.class, input));
+            } else if (isCacheFile(file)) {
+                // Written by an older version, convert it to binary below
+                migratedVideo = serializer.read(Video.class, input);
+                video = new OptimizedVideo(migratedVideo);
+            } else {
+                video = serializer.readOptimizedVideo(input);
             }
+        } finally {
+            input.close();
+        }
+
+        Date lastModified = new Date(file.lastModified());
+
+        if (migratedVideo != null) {
+            migrateCacheFile(migratedVideo, file);
+        }
+
+        video.setManifestUri(Uri.fromFile(file));
+        video.setLastModified(lastModified);
+        video.setRepository(this);
+
+        if (video.isLocal()) {
+            checkLocalVideoFile(video.getId(), video.getVideoUri(), video.getThumbUri());
         }
 
         return video;
     }
 
+    /**
+     * Sanity test to check if user deleted video file from gallery, removes the video if so.
+     * Missing thumb nail icon is fine, since you can still watch the local video
+     */
+    private void checkLocalVideoFile(UUID id, Uri videoUri, Uri thumbUri) throws IOException {
+        File sanityCheckFile = new File(videoUri.getPath());
+
+        if (!sanityCheckFile.exists()) {
+
+            // Also remove thumb file;
+            File thumbFile = new File(thumbUri.getPath());
+            File videoFile = getLocalVideoFile(id);
+
+            thumbFile.delete();
+            deleteManifestFile(videoFile);
+
+            allVideos.remove(id);
+            videoOrder.remove(id);
+            removeFromSearchIndex(id);
+            bus.post(VideoRepositoryUpdatedEvent.removed(this, Collections.singleton(id)));
+
+            throw new IOException("Local video file not found at " + videoUri);
+        }
+    }
+
     protected void writeVideoToFile(Video video, File file) throws IOException {
-        serializer.save(video, file.toURI());
+        if (isCacheFile(file)) {
+            cacheSerializer.save(video, file.toURI());
+        } else {
+            serializer.save(video, file.toURI());
+        }
+
+        journal.update(file, video.getRevision());
+    }
+
+    protected boolean deleteManifestFile(File file) {
+        boolean deleted = file.delete();
+        journal.remove(file);
+        return deleted;
     }
 
     protected void updateVideos(List<OptimizedVideo> videos, List<Group> groups) {
-        Map<UUID, OptimizedVideo> newAllVideos = new HashMap<>();
+
+        Collection<OptimizedVideo> oldVideos = allVideos.values();
+        List<Group> oldGroups;
+
+        // Publish the new generation at once so readers never see a partial sync
+        allVideos.replaceAll(videos);
+
+        synchronized (groupsLock) {
+            oldGroups = allGroups;
+            allGroups = Collections.unmodifiableList(new ArrayList<>(groups));
+            videoOrder.rebuild(allVideos, groups);
+            groupMembership.rebuild(groups);
+        }
+
+        rebuildSearchIndex();
+
+        if (!groupsEqual(oldGroups, groups)) {
+            bus.post(new VideoRepositoryUpdatedEvent(this));
+            return;
+        }
+
+        // Diff the generations, re-used videos are the very same objects if unchanged
+        Set<UUID> added = new HashSet<>();
+        Set<UUID> updated = new HashSet<>();
+        Set<UUID> removed = new HashSet<>();
+
+        Map<UUID, OptimizedVideo> oldVideosById = new HashMap<>(oldVideos.size() * 2);
+        for (OptimizedVideo video : oldVideos) {
+            oldVideosById.put(video.getId(), video);
+        }
 
         for (OptimizedVideo video : videos) {
-            newAllVideos.put(video.getId(), video);
+            OptimizedVideo oldVideo = oldVideosById.remove(video.getId());
+
+            if (oldVideo == null) {
+                added.add(video.getId());
+            } else if (oldVideo != video) {
+                updated.add(video.getId());
+            }
         }
 
-        allVideos = newAllVideos;
-        allGroups = groups;
+        removed.addAll(oldVideosById.keySet());
 
-        bus.post(new VideoRepositoryUpdatedEvent(this));
+        VideoRepositoryUpdatedEvent event = new VideoRepositoryUpdatedEvent(this, added, updated,
+                removed, false);
+
+        if (!event.isEmpty()) {
+            bus.post(event);
+        }
+    }
+
+    private void rebuildSearchIndex() {
+        getIndexExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                searchIndex.rebuild(allVideos);
+            }
+        });
+    }
+
+    private void putToSearchIndex(final OptimizedVideo video) {
+        getIndexExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                searchIndex.put(video);
+            }
+        });
+    }
+
+    private void removeFromSearchIndex(final UUID id) {
+        getIndexExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                searchIndex.remove(id);
+            }
+        });
+    }
+
+    private synchronized ThreadPoolExecutor getIndexExecutor() {
+        if (indexExecutor == null) {
+            indexExecutor = new ThreadPoolExecutor(1, 1, LOADER_KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            indexExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        return indexExecutor;
+    }
+
+    private static boolean groupsEqual(List<Group> a, List<Group> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+
+        for (int i = 0; i < a.size(); i++) {
+            Group groupA = a.get(i);
+            Group groupB = b.get(i);
+
+            if (groupA.getId() != groupB.getId()
+                    || !Objects.equal(groupA.getName(), groupB.getName())
+                    || !Objects.equal(groupA.getVideos(), groupB.getVideos())) {
+                return false;
+            }
+        }
+
+        return true;
     }
 
     @Override
     public void addVideos(List<OptimizedVideo> videos) {
-        for (OptimizedVideo video: videos) {
-            if (!doesVideoExist(video.getId())) {
-                allVideos.put(video.getId(), video);
+        List<UUID> addedIds = new ArrayList<>();
+        for (OptimizedVideo video : videos) {
+            if (!allVideos.contains(video.getId())) {
+                addedIds.add(video.getId());
             }
         }
-        bus.post(new VideoRepositoryUpdatedEvent(this));
-    }
 
-    private File[] safeListFiles(File root, FilenameFilter filter) {
-        File[] files = root.listFiles(filter);
-        if (files != null) {
-            return files;
-        } else {
-            return new File[0];
+        allVideos.putAllAbsent(videos);
+        for (UUID id : addedIds) {
+            videoOrder.put(allVideos.get(id));
+            putToSearchIndex(allVideos.get(id));
         }
+
+        bus.post(VideoRepositoryUpdatedEvent.added(this, addedIds));
     }
 
     /**
@@ -247,16 +661,29 @@ public class CombinedVideoRepository implements VideoRepository {
     @Override
     public void refreshOffline() {
 
+        // Make sure the manifests on disk are up to date before reading them
+        flushSaves();
+
+        // Syncs trust the journal, this is where changes made by anyone else are picked up
+        journal.rescan();
+
         List<OptimizedVideo> videos = new ArrayList<>();
 
+        // Videos whose manifests haven't changed since the last snapshot don't need to be parsed.
+        // If the videos have already been loaded they are re-used instead.
+        if (allVideos.isEmpty()) {
+            snapshotEntries = readSnapshot();
+        }
+        parsedManifestCount.set(0);
+
+        List<File> files = new ArrayList<>();
+        List<UUID> ids = new ArrayList<>();
+
         // Add the local videos
-        File[] localFiles = safeListFiles(localRoot, new ManifestFileFilter());
+        File[] localFiles = journal.listFiles(localRoot);
         for (File file : localFiles) {
-
-            OptimizedVideo video = tryLoadOrReUseVideo(file, getIdFromFile(file));
-            if (video != null) {
-                videos.add(video);
-            }
+            files.add(file);
+            ids.add(getIdFromFile(file));
         }
 
         // Add the cached remote videos
@@ -266,19 +693,67 @@ public class CombinedVideoRepository implements VideoRepository {
             File modified = getModifiedCacheFile(id);
 
             File newest;
-            if (modified.exists()) {
+            if (journal.contains(modified)) {
                 newest = modified;
             } else {
                 newest = original;
             }
 
-            OptimizedVideo video = tryLoadOrReUseVideo(newest, id);
-            if (video != null) {
-                videos.add(video);
-            }
+            files.add(newest);
+            ids.add(id);
         }
 
+        videos.addAll(tryLoadOrReUseVideos(files, ids));
+
+        // Any leftover entries belong to manifests that have been removed
+        boolean isSnapshotStale = parsedManifestCount.get() > 0 || !snapshotEntries.isEmpty();
+        snapshotEntries = Collections.emptyMap();
+
         updateVideos(videos, Collections.<Group>emptyList());
+
+        if (isSnapshotStale) {
+            writeSnapshot();
+        }
+        journal.writeIfDirty();
+    }
+
+    private Map<UUID, VideoIndexSnapshot.Entry> readSnapshot() {
+        File file = getSnapshotFile();
+        if (!file.exists()) {
+            return Collections.emptyMap();
+        }
+
+        try {
+            // The entries are claimed from the loader threads
+            return new ConcurrentHashMap<>(VideoIndexSnapshot.read(file));
+        } catch (IOException e) {
+            e.printStackTrace();
+            file.delete();
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Write a snapshot of the current videos so the next refreshOffline() can skip parsing the
+     * manifests which haven't changed.
+     */
+    protected void writeSnapshot() {
+        List<VideoIndexSnapshot.Entry> entries = new ArrayList<>(allVideos.size());
+
+        for (OptimizedVideo video : allVideos.values()) {
+            File manifest = getNewestManifestFile(video.getId());
+            if (manifest == null) {
+                continue;
+            }
+
+            entries.add(VideoIndexSnapshot.Entry.fromFile(video, manifest));
+        }
+
+        try {
+            VideoIndexSnapshot.write(getSnapshotFile(), entries);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -294,148 +769,458 @@ public class CombinedVideoRepository implements VideoRepository {
             if (video != null) {
                 return video;
             }
-        } catch (IllegalArgumentException e) {
-            e.printStackTrace();
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+
+        VideoIndexSnapshot.Entry entry = snapshotEntries.remove(id);
+        if (entry != null && entry.matches(file)) {
+            OptimizedVideo video = entry.getVideo();
+
+            // Same sanity test as in checkLocalVideoFile(), if it fails parse the manifest so
+            // that the missing video gets cleaned up.
+            if (video.isRemote() || new File(video.getVideoUri().getPath()).exists()) {
+                video.setRepository(this);
+                return video;
+            }
+        }
+
+        try {
+            parsedManifestCount.incrementAndGet();
+            return readOptimizedVideoFromFile(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    /**
+     * Load the videos from the files, or use the ones that have been already loaded, in parallel.
+     * The result is the same as calling tryLoadOrReUseVideo() for each file in order, but without
+     * the videos that failed to load.
+     * @param files Manifest files to load.
+     * @param ids   IDs of the videos in the manifest files, in the same order.
+     */
+    protected List<OptimizedVideo> tryLoadOrReUseVideos(List<File> files, List<UUID> ids) {
+        ThreadPoolExecutor loader = getManifestLoader();
+        List<Future<OptimizedVideo>> results = new ArrayList<>(files.size());
+
+        for (int i = 0; i < files.size(); i++) {
+            final File file = files.get(i);
+            final UUID id = ids.get(i);
+
+            results.add(loader.submit(new Callable<OptimizedVideo>() {
+                @Override
+                public OptimizedVideo call() {
+                    return tryLoadOrReUseVideo(file, id);
+                }
+            }));
+        }
+
+        // Collect the results in the submission order so the result matches the serial one
+        List<OptimizedVideo> videos = new ArrayList<>(results.size());
+
+        for (Future<OptimizedVideo> result : results) {
+            try {
+                OptimizedVideo video = Uninterruptibles.getUninterruptibly(result);
+                if (video != null) {
+                    videos.add(video);
+                }
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return videos;
+    }
+
+    private synchronized ThreadPoolExecutor getManifestLoader() {
+        if (manifestLoader == null) {
+            manifestLoader = new ThreadPoolExecutor(LOADER_THREAD_COUNT, LOADER_THREAD_COUNT,
+                    LOADER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+
+            // Don't keep the threads around between refreshes
+            manifestLoader.allowCoreThreadTimeOut(true);
+        }
+
+        return manifestLoader;
+    }
+
+    /**
+     * Syncs the videos with the cloud and populate the video list with remote data.
+     * - Download new and remotely modified videos
+     * - Upload locally modified videos
+     * - Resolve conflicts (merge)
+     * Note: This operation is slow and should be only called from a background thread.
+     */
+    @Override
+    public void refreshOnline() {
+
+        // Pending saves need to be on disk so that they are uploaded
+        flushSaves();
+
+        int startState = this.stateNumber;
+
+        List<OptimizedVideo> videos = new ArrayList<>();
+
+        hasVideoToUpload = false;
+
+        // The indexes of the hosts depend on the account, start over if it has changed
+        String accountName = getSyncAccountName();
+        if (!isSyncStateLoaded || !Objects.equal(accountName, syncAccountName)) {
+            hostSyncStates = syncStateStore.read(accountName);
+            syncAccountName = accountName;
+            isSyncStateLoaded = true;
+        }
+
+        // Add the local videos, the journal has listed the directory already in refreshOffline()
+        File[] localFiles = journal.listFiles(localRoot);
+        List<UUID> localIds = new ArrayList<>(localFiles.length);
+        for (File file : localFiles) {
+            localIds.add(getIdFromFile(file));
+        }
+
+        videos.addAll(tryLoadOrReUseVideos(Arrays.asList(localFiles), localIds));
+
+        Set<UUID> addedVideoIds = new HashSet<>();
+        List<Group> groups = new ArrayList<>();
+        Map<String, HostSyncState> newSyncStates = new HashMap<>();
+        Map<UUID, Throwable> syncErrors = new ConcurrentHashMap<>();
+
+        // Bring the journal up to date with the cache so that the existence checks below don't
+        // need to touch the file system.
+        List<UUID> cacheIds = getCacheIds();
+
+        for (VideoHost host : cloudHosts) {
+
+            HostSyncState syncState = hostSyncStates.get(getHostKey(host));
+            VideoIndexDelta delta;
+
+            try {
+                groups.addAll(host.getGroups());
+            } catch (IOException e) {
+                // Pass
+            }
+
+            try {
+                delta = host.getIndexSince(syncState != null ? syncState.cursor : null);
+            } catch (IOException e) {
+                continue;
+            }
+
+            List<VideoReference> results = new ArrayList<>(delta.getChanged());
+            Set<UUID> hostVideoIds = new HashSet<>();
+
+            if (!delta.isFullIndex() && syncState != null) {
+                Set<UUID> skippedIds = new HashSet<>(delta.getDeleted());
+                for (VideoReference reference : delta.getChanged()) {
+                    skippedIds.add(reference.getId());
+                }
+
+                // Keep the videos that haven't changed since the last sync as they are, unless
+                // they have local modifications to upload or have gone missing from memory.
+                for (UUID id : syncState.videoIds) {
+                    if (skippedIds.contains(id)) {
+                        continue;
+                    }
+
+                    OptimizedVideo video = allVideos.get(id);
+
+                    if (video != null && !journal.contains(getModifiedCacheFile(id))) {
+                        addedVideoIds.add(id);
+                        hostVideoIds.add(id);
+                        videos.add(video);
+                    } else {
+                        int revision = video != null ? video.getRevision() : -1;
+                        results.add(new VideoReference(id, revision));
+                    }
+                }
+            }
+
+            // Upload, reuse and download the manifests concurrently
+            List<OptimizedVideo> hostVideos = new ArrayList<>(results.size());
+            boolean hasFailures = !syncVideos(host, results, hostVideos, syncErrors);
+
+            for (OptimizedVideo video : hostVideos) {
+                addedVideoIds.add(video.getId());
+                hostVideoIds.add(video.getId());
+                videos.add(video);
+            }
+
+            // If some video failed the next delta wouldn't contain it, so do a full sync instead
+            String cursor = hasFailures ? null : delta.getCursor();
+            newSyncStates.put(getHostKey(host), new HostSyncState(cursor, hostVideoIds));
+        }
+
+        // Remove unexistant cached videos
+        for (UUID id : cacheIds) {
+            if (addedVideoIds.contains(id)) {
+                continue;
+            }
+
+            File original = getOriginalCacheFile(id);
+            File modified = getModifiedCacheFile(id);
+
+            File thumbFile = getThumbCacheFile(id);
+            File videoFile = getVideoCacheFile(id);
+
+            deleteManifestFile(original);
+            deleteManifestFile(modified);
+
+            thumbFile.delete();
+            videoFile.delete();
+        }
+
+        // TODO: Remove this
+        if (this.stateNumber != startState) {
+            // Temporary fix for handling modified state while refreshing online. Fixes disappearing
+            // video after recording. Should make real cancel support for refreshing.
+            this.refreshOnline();
+        } else {
+            isFirstSync = false;
+            forceImportant = false;
+            hostSyncStates = newSyncStates;
+            syncStateStore.write(accountName, newSyncStates);
+            lastSyncErrors = Collections.unmodifiableMap(new HashMap<>(syncErrors));
+            updateVideos(videos, groups);
+            writeSnapshot();
+            journal.writeIfDirty();
+        }
+    }
+
+    /**
+     * Sync the manifests of the referenced videos with the host. Locally modified manifests are
+     * uploaded and up-to-date cached ones are reused, the rest are downloaded afterwards. Up to
+     * SYNC_THREAD_COUNT videos are processed at a time.
+     *
+     * @param syncedVideos Receives the synced videos in the same order as the references.
+     * @param errors       Receives the errors of the videos that could not be synced.
+     * @return True if every video was synced successfully.
+     */
+    protected boolean syncVideos(final VideoHost host, List<VideoReference> references,
+            List<OptimizedVideo> syncedVideos, Map<UUID, Throwable> errors) {
+
+        ThreadPoolExecutor executor = getSyncExecutor();
+        List<Future<OptimizedVideo>> results = new ArrayList<>(references.size());
+
+        for (final VideoReference reference : references) {
+            results.add(executor.submit(new Callable<OptimizedVideo>() {
+                @Override
+                public OptimizedVideo call() throws Exception {
+                    return uploadOrReuseVideo(host, reference);
+                }
+            }));
+        }
+
+        // Collect the results in the submission order so the timing of the requests doesn't
+        // affect the result
+        OptimizedVideo[] videos = new OptimizedVideo[references.size()];
+        List<UUID> downloadIds = new ArrayList<>();
+
+        for (int i = 0; i < references.size(); i++) {
+            UUID id = references.get(i).getId();
+
+            try {
+                videos[i] = Uninterruptibles.getUninterruptibly(results.get(i));
+                if (videos[i] == null) {
+                    downloadIds.add(id);
+                }
+            } catch (ExecutionException e) {
+                recordSyncError(id, e.getCause(), errors);
+            }
         }
 
-        try {
-            Video video = readVideoFromFile(file);
-            return new OptimizedVideo(video);
-        } catch (IOException e) {
-            e.printStackTrace();
+        Map<UUID, OptimizedVideo> downloadedVideos = downloadVideos(host, downloadIds, errors);
+        boolean isComplete = true;
+
+        for (int i = 0; i < videos.length; i++) {
+            OptimizedVideo video = videos[i];
+
+            if (video == null) {
+                video = downloadedVideos.get(references.get(i).getId());
+            }
+
+            if (video != null) {
+                syncedVideos.add(video);
+            } else {
+                isComplete = false;
+            }
         }
 
-        return null;
+        return isComplete;
     }
 
     /**
-     * Syncs the videos with the cloud and populate the video list with remote data.
-     * - Download new and remotely modified videos
-     * - Upload locally modified videos
-     * - Resolve conflicts (merge)
-     * Note: This operation is slow and should be only called from a background thread.
+     * Upload the locally modified manifest of the video or reuse the cached one if it's up to
+     * date.
+     *
+     * @return The synced video or null if the manifest needs to be downloaded.
      */
-    @Override
-    public void refreshOnline() {
+    private OptimizedVideo uploadOrReuseVideo(VideoHost host, VideoReference reference)
+            throws IOException {
 
-        int startState = this.stateNumber;
+        UUID id = reference.getId();
 
-        List<OptimizedVideo> videos = new ArrayList<>();
+        File localFileOriginal = getOriginalCacheFile(id);
+        File localFileModified = getModifiedCacheFile(id);
 
-        hasVideoToUpload = false;
+        OptimizedVideo resultVideo = null;
 
-        // Add the local videos
-        // TODO: These can be cached
-        File[] localFiles = safeListFiles(localRoot, new ManifestFileFilter());
-        for (File file : localFiles) {
+        if (journal.contains(localFileModified)) {
+            Video localVideo = readVideoFromFile(localFileModified);
+            Video uploadedVideo = host.uploadVideoManifest(localVideo);
 
-            OptimizedVideo localVideo = tryLoadOrReUseVideo(file, getIdFromFile(file));
-            if (localVideo != null) {
-                videos.add(localVideo);
+            // Since merging is done on the server side, preserve cached video data URIs
+            if (localVideo.hasCachedFiles()) {
+                uploadedVideo.setCacheVideoUri(localVideo.getCacheVideoUri());
+                uploadedVideo.setCacheThumbUri(localVideo.getCacheThumbUri());
             }
-        }
 
-        Set<UUID> addedVideoIds = new HashSet<>();
-        List<Group> groups = new ArrayList<>();
+            writeVideoToFile(uploadedVideo, localFileOriginal);
+            resultVideo = new OptimizedVideo(uploadedVideo);
+            deleteManifestFile(localFileModified);
 
-        for (VideoHost host : cloudHosts) {
+        } else if (journal.contains(localFileOriginal)) {
 
-            List<VideoReference> results;
+            // If the journal knows the cached revision is old don't bother loading it
+            int cachedRevision = journal.getRevision(localFileOriginal);
+            boolean isKnownStale = cachedRevision != ManifestJournal.UNKNOWN_REVISION
+                    && cachedRevision != reference.getRevision();
 
-            try {
-                groups.addAll(host.getGroups());
-            } catch (IOException e) {
-                // Pass
+            if (!isKnownStale) {
+                OptimizedVideo localVideo = tryLoadOrReUseVideo(localFileOriginal, id);
+                if (localVideo != null && localVideo.getRevision() == reference.getRevision()) {
+                    resultVideo = localVideo;
+                }
             }
+        }
 
-            try {
-                results = host.getIndex();
-            } catch (IOException e) {
-                continue;
-            }
+        if (resultVideo != null) {
+            resultVideo.setRepository(this);
+        }
 
-            for (VideoReference indexVideo : results) {
+        return resultVideo;
+    }
 
-                UUID id = indexVideo.getId();
+    /**
+     * Download the manifests of the videos and write them to the cache. The IDs are split
+     * evenly between the sync threads, each of which downloads its share as a batch.
+     *
+     * @return The downloaded videos mapped by ID.
+     */
+    private Map<UUID, OptimizedVideo> downloadVideos(final VideoHost host, List<UUID> ids,
+            final Map<UUID, Throwable> errors) {
 
-                File localFileOriginal = getOriginalCacheFile(id);
-                File localFileModified = getModifiedCacheFile(id);
+        if (ids.isEmpty()) {
+            return Collections.emptyMap();
+        }
 
-                try {
+        ThreadPoolExecutor executor = getSyncExecutor();
+        List<Future<List<OptimizedVideo>>> results = new ArrayList<>();
 
-                    OptimizedVideo resultVideo = null;
+        int sliceSize = (ids.size() + SYNC_THREAD_COUNT - 1) / SYNC_THREAD_COUNT;
 
-                    if (localFileModified.exists()) {
-                        Video localVideo = readVideoFromFile(localFileModified);
-                        Video uploadedVideo = host.uploadVideoManifest(localVideo);
+        for (int start = 0; start < ids.size(); start += sliceSize) {
+            final List<UUID> slice = ids.subList(start, Math.min(start + sliceSize, ids.size()));
 
-                        // Since merging is done on the server side, preserve cached video data URIs
-                        if (localVideo.hasCachedFiles()) {
-                            uploadedVideo.setCacheVideoUri(localVideo.getCacheVideoUri());
-                            uploadedVideo.setCacheThumbUri(localVideo.getCacheThumbUri());
-                        }
+            results.add(executor.submit(new Callable<List<OptimizedVideo>>() {
+                @Override
+                public List<OptimizedVideo> call() throws Exception {
+                    return downloadVideoSlice(host, slice, errors);
+                }
+            }));
+        }
 
-                        writeVideoToFile(uploadedVideo, localFileOriginal);
-                        resultVideo = new OptimizedVideo(uploadedVideo);
-                        localFileModified.delete();
+        Map<UUID, OptimizedVideo> videos = new HashMap<>(ids.size() * 2);
 
-                    } else if (localFileOriginal.exists()) {
+        for (Future<List<OptimizedVideo>> result : results) {
+            try {
+                for (OptimizedVideo video : Uninterruptibles.getUninterruptibly(result)) {
+                    videos.put(video.getId(), video);
+                }
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
 
-                        OptimizedVideo localVideo = tryLoadOrReUseVideo(localFileOriginal, indexVideo.getId());
-                        if (localVideo != null && localVideo.getRevision() == indexVideo.getRevision()) {
-                            resultVideo = localVideo;
-                        }
-                    }
+        for (UUID id : ids) {
+            if (!videos.containsKey(id) && !errors.containsKey(id)) {
+                errors.put(id, new IOException("Could not download the manifest of " + id));
+            }
+        }
 
-                    if (resultVideo == null) {
-                        Video downloadedVideo = host.downloadVideoManifest(indexVideo.getId());
-                        writeVideoToFile(downloadedVideo, localFileOriginal);
+        return videos;
+    }
 
-                        resultVideo = new OptimizedVideo(downloadedVideo);
-                    }
+    private List<OptimizedVideo> downloadVideoSlice(VideoHost host, List<UUID> ids,
+            Map<UUID, Throwable> errors) {
 
-                    resultVideo.setRepository(this);
-                    addedVideoIds.add(resultVideo.getId());
-                    videos.add(resultVideo);
+        List<Video> downloadedVideos;
 
-                } catch (IOException e) {
-                    e.printStackTrace();
-                } catch (Exception error) {
-                    Rollbar.reportException(error);
-                }
+        try {
+            downloadedVideos = host.downloadVideoManifests(ids);
+        } catch (IOException e) {
+            for (UUID id : ids) {
+                recordSyncError(id, e, errors);
             }
+            return Collections.emptyList();
         }
 
-        // Remove unexistant cached videos
-        List<UUID> cacheIds = getCacheIds();
-        for (UUID id : cacheIds) {
-            if (addedVideoIds.contains(id)) {
+        Set<UUID> requestedIds = new HashSet<>(ids);
+        List<OptimizedVideo> videos = new ArrayList<>(downloadedVideos.size());
+
+        for (Video downloadedVideo : downloadedVideos) {
+            UUID id = downloadedVideo.getId();
+
+            if (!requestedIds.remove(id)) {
                 continue;
             }
 
-            File original = getOriginalCacheFile(id);
-            File modified = getModifiedCacheFile(id);
+            try {
+                writeVideoToFile(downloadedVideo, getOriginalCacheFile(id));
 
-            File thumbFile = getThumbCacheFile(id);
-            File videoFile = getVideoCacheFile(id);
+                OptimizedVideo video = new OptimizedVideo(downloadedVideo);
+                video.setRepository(this);
+                videos.add(video);
+            } catch (IOException e) {
+                recordSyncError(id, e, errors);
+            }
+        }
 
-            original.delete();
-            modified.delete();
+        return videos;
+    }
 
-            thumbFile.delete();
-            videoFile.delete();
+    private void recordSyncError(UUID id, Throwable error, Map<UUID, Throwable> errors) {
+        if (error instanceof IOException) {
+            error.printStackTrace();
+        } else {
+            Rollbar.reportException(error);
         }
 
-        // TODO: Remove this
-        if (this.stateNumber != startState) {
-            // Temporary fix for handling modified state while refreshing online. Fixes disappearing
-            // video after recording. Should make real cancel support for refreshing.
-            this.refreshOnline();
-        } else {
-            isFirstSync = false;
-            forceImportant = false;
-            updateVideos(videos, groups);
+        errors.put(id, error);
+    }
+
+    private synchronized ThreadPoolExecutor getSyncExecutor() {
+        if (syncExecutor == null) {
+            syncExecutor = new ThreadPoolExecutor(SYNC_THREAD_COUNT, SYNC_THREAD_COUNT,
+                    LOADER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+
+            // Don't keep the threads around between syncs
+            syncExecutor.allowCoreThreadTimeOut(true);
         }
+
+        return syncExecutor;
+    }
+
+    /**
+     * Returns the errors of the videos that could not be synced during the last completed sync,
+     * mapped by video ID.
+     */
+    public Map<UUID, Throwable> getLastSyncErrors() {
+        return lastSyncErrors;
     }
 
     private void stateModified() {
@@ -467,25 +1252,152 @@ public class CombinedVideoRepository implements VideoRepository {
             }
 
             this.stateModified();
-            serializer.save(video, targetFile.toURI());
 
-            // Do partial update
-            allVideos.put(video.getId(), new OptimizedVideo(video));
+            // Do partial update, the manifest is written later in the background. The snapshot
+            // is immutable so it can be written even if the video is modified again meanwhile.
+            OptimizedVideo snapshot = new OptimizedVideo(video);
+            boolean isNew = !allVideos.contains(id);
+            allVideos.put(snapshot);
+            videoOrder.put(snapshot);
+            putToSearchIndex(snapshot);
+            enqueueSave(snapshot, targetFile);
+
             if (callback != null) {
                 callback.found(video);
             }
+
+            postVideoSaved(id, isNew);
         } else {
             new UpdateRemoteVideoTask(new UpdateRemoteVideoCallback(callback)).execute(video);
         }
+    }
 
-        bus.post(new VideoRepositoryUpdatedEvent(this));
+    private void postVideoSaved(UUID id, boolean isNew) {
+        List<UUID> ids = Collections.singletonList(id);
+
+        if (isNew) {
+            bus.post(VideoRepositoryUpdatedEvent.added(this, ids));
+        } else {
+            bus.post(VideoRepositoryUpdatedEvent.updated(this, ids));
+        }
+    }
+
+    /**
+     * Queue a video to be written to a file. Saves to the same video are coalesced so that only
+     * the latest one is written.
+     */
+    private void enqueueSave(OptimizedVideo video, File file) {
+        synchronized (pendingSaves) {
+            pendingSaves.put(video.getId(), new PendingSave(video, file, 0));
+        }
+
+        scheduleFlush(SAVE_DELAY_MILLISECONDS);
+    }
+
+    /**
+     * Queue saves that could not be written to be tried again, unless the video has been saved
+     * again meanwhile. The saves are kept until they are written, so that a full disk or an
+     * unmounted storage doesn't lose the changes.
+     * Note: Must be called while holding saveWriteLock.
+     */
+    private void requeueFailedSaves(List<PendingSave> saves) {
+        int failureCount = 0;
+
+        synchronized (pendingSaves) {
+            for (PendingSave save : saves) {
+                UUID id = save.video.getId();
+
+                if (!pendingSaves.containsKey(id)) {
+                    pendingSaves.put(id, new PendingSave(save.video, save.file,
+                            save.failureCount + 1));
+                    failureCount = Math.max(failureCount, save.failureCount + 1);
+                }
+            }
+        }
+
+        if (failureCount == 0) {
+            return;
+        }
+
+        long delay = SAVE_DELAY_MILLISECONDS << Math.min(failureCount, 16);
+        scheduleFlush(Math.min(delay, MAX_SAVE_RETRY_DELAY_MILLISECONDS));
+    }
+
+    private void scheduleFlush(long delayMilliseconds) {
+        synchronized (pendingSaves) {
+            if (isFlushScheduled) {
+                return;
+            }
+
+            isFlushScheduled = true;
+        }
+
+        getSaveExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                flushSaves();
+            }
+        }, delayMilliseconds, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drop the pending save of a video, eg. when it is deleted before it has been written.
+     * Note: Hold saveWriteLock while calling this together with deleting the manifest file.
+     */
+    private void discardPendingSave(UUID id) {
+        synchronized (pendingSaves) {
+            pendingSaves.remove(id);
+        }
+    }
+
+    /**
+     * Write all pending saves to disk, blocking until they are written. Saves that fail are
+     * queued to be tried again later.
+     */
+    @Override
+    public void flushSaves() {
+        synchronized (saveWriteLock) {
+            List<PendingSave> saves;
+            List<PendingSave> failedSaves = new ArrayList<>();
+
+            synchronized (pendingSaves) {
+                saves = new ArrayList<>(pendingSaves.values());
+                pendingSaves.clear();
+                isFlushScheduled = false;
+            }
+
+            for (PendingSave save : saves) {
+                try {
+                    writeVideoToFile(save.video.inflate(), save.file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    failedSaves.add(save);
+                }
+            }
+
+            if (!failedSaves.isEmpty()) {
+                requeueFailedSaves(failedSaves);
+            }
+        }
+    }
+
+    private synchronized ScheduledThreadPoolExecutor getSaveExecutor() {
+        if (saveExecutor == null) {
+            saveExecutor = new ScheduledThreadPoolExecutor(1);
+        }
+
+        return saveExecutor;
     }
 
     private void finishRemoteSave(Video video, VideoCallback callback) {
         video.setRepository(this);
         video.setIsTemporary(true);
-        allVideos.put(video.getId(), new OptimizedVideo(video));
-        bus.post(new VideoRepositoryUpdatedEvent(this));
+        boolean isNew = !allVideos.contains(video.getId());
+        OptimizedVideo optimizedVideo = new OptimizedVideo(video);
+        allVideos.put(optimizedVideo);
+        videoOrder.put(optimizedVideo);
+        putToSearchIndex(optimizedVideo);
+        postVideoSaved(video.getId(), isNew);
         if (callback != null) {
             callback.found(video);
         }
@@ -545,12 +1457,18 @@ public class CombinedVideoRepository implements VideoRepository {
         UUID id = result.getId();
 
         File cacheFile = getOriginalCacheFile(id);
-        writeVideoToFile(result, cacheFile);
-
         File localFile = getLocalVideoFile(id);
-        if (!localFile.delete()) {
-            // For logging purposes
-            throw new IOException("Failed to delete local file");
+
+        synchronized (saveWriteLock) {
+            writeVideoToFile(result, cacheFile);
+
+            // A pending save would write the local file again
+            discardPendingSave(id);
+
+            if (!deleteManifestFile(localFile)) {
+                // For logging purposes
+                throw new IOException("Failed to delete local file");
+            }
         }
 
         video.removeTrimming();
@@ -594,8 +1512,24 @@ public class CombinedVideoRepository implements VideoRepository {
     }
 
     @Override
-    public void findOnlineVideoByQuery(String query, VideoListCallback callback) {
-        new QueryVideoOnlineTask(callback).execute(query);
+    public Cancellable searchOnlineVideos(String query, int offset, int limit,
+            VideoSearchCallback callback) {
+        final Object tag = new Object();
+        final QueryVideoOnlineTask task = new QueryVideoOnlineTask(callback, tag, offset, limit);
+
+        // Don't queue behind other tasks, the user is waiting for the results
+        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, query);
+
+        return new Cancellable() {
+            @Override
+            public void cancel() {
+                task.cancel(false);
+
+                for (VideoHost host : cloudHosts) {
+                    host.cancelRequests(tag);
+                }
+            }
+        };
     }
 
     private abstract class BaseVideoFindTask<T> extends AsyncTask<T, Void, Video> {
@@ -646,21 +1580,37 @@ public class CombinedVideoRepository implements VideoRepository {
         }
     }
 
+    @Override
+    public void downloadVideoManifest(UUID id, VideoCallback callback) {
+        new DownloadVideoManifestTask(callback).execute(id);
+    }
+
     private class QueryVideoOnlineTask extends  AsyncTask<String, Void, Void> {
-        private VideoListCallback callback;
+        private VideoSearchCallback callback;
+        private Object tag;
+        private int offset;
+        private int limit;
 
-        public QueryVideoOnlineTask(VideoListCallback callback) {
+        public QueryVideoOnlineTask(VideoSearchCallback callback, Object tag, int offset,
+                int limit) {
             this.callback = callback;
+            this.tag = tag;
+            this.offset = offset;
+            this.limit = limit;
         }
 
         @Override
         protected Void doInBackground(String... params) {
             for (VideoHost host: cloudHosts) {
+                if (isCancelled()) {
+                    break;
+                }
+
                 try {
-                    ArrayList<Video> list = host.findVideosByQuery(params[0]);
-                    callback.found(list);
+                    VideoSearchPage page = host.searchVideos(params[0], offset, limit, tag);
+                    callback.found(page);
                 } catch (IOException ex) {
-                    System.out.println(ex.getMessage());
+                    Log.e(TAG, "Could not search videos", ex);
                     callback.notFound();
                 }
             }
@@ -668,6 +1618,37 @@ public class CombinedVideoRepository implements VideoRepository {
         }
     }
 
+    private class DownloadVideoManifestTask extends BaseVideoFindTask<UUID> {
+
+        public DownloadVideoManifestTask(VideoCallback callback) {
+            super(callback);
+        }
+
+        @Override
+        protected Video doInBackground(UUID... params) {
+            UUID id = params[0];
+
+            for (VideoHost host : cloudHosts) {
+                try {
+                    Video video = host.downloadVideoManifest(id);
+                    if (video == null) {
+                        continue;
+                    }
+
+                    video.setIsTemporary(true);
+                    video.setRepository(CombinedVideoRepository.this);
+                    addVideos(Collections.singletonList(new OptimizedVideo(video)));
+
+                    return video;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            return null;
+        }
+    }
+
     private class FindVideoTask extends BaseVideoFindTask<Uri> {
 
         public FindVideoTask(VideoCallback callback) {
@@ -786,8 +1767,6 @@ public class CombinedVideoRepository implements VideoRepository {
             regularVideo.save(null);
 
         }
-
-        bus.post(new VideoRepositoryUpdatedEvent(this));
     }
 
     @Override
@@ -812,8 +1791,6 @@ public class CombinedVideoRepository implements VideoRepository {
 
             }
         }
-
-        bus.post(new VideoRepositoryUpdatedEvent(this));
     }
 
 
@@ -824,8 +1801,12 @@ public class CombinedVideoRepository implements VideoRepository {
         this.stateModified();
 
         if (video.isLocal()) {
-            if (!getLocalVideoFile(id).delete()) {
-                throw new IOException("Failed to delete file");
+            synchronized (saveWriteLock) {
+                discardPendingSave(id);
+
+                if (!deleteManifestFile(getLocalVideoFile(id))) {
+                    throw new IOException("Failed to delete file");
+                }
             }
 
             File thumbFile = new File(video.getThumbUri().getPath());
@@ -837,9 +1818,15 @@ public class CombinedVideoRepository implements VideoRepository {
 
             // Remove the video from memory, if deleting has failed we have thrown before this
             allVideos.remove(id);
-            bus.post(new VideoRepositoryUpdatedEvent(this));
+            videoOrder.remove(id);
+            removeFromSearchIndex(id);
+            bus.post(VideoRepositoryUpdatedEvent.removed(this, Collections.singleton(id)));
 
         } else {
+            synchronized (saveWriteLock) {
+                discardPendingSave(id);
+            }
+
             if (video.hasCachedFiles()) {
                 File cacheThumbFile = new File(video.getCacheThumbUri().getPath());
                 File cacheVideoFile = new File(video.getCacheVideoUri().getPath());
@@ -862,16 +1849,23 @@ public class CombinedVideoRepository implements VideoRepository {
     }
 
     @Override
-    public boolean videoBelongsToGroup(UUID id) {
-        if (this.allGroups == null) { return false; }
+    public List<UUID> findVideos(String query) {
+        return searchIndex.search(query);
+    }
 
-        for (Group group : this.allGroups) {
-            if (group.hasVideo(id)) {
-                return true;
-            }
-        }
+    @Override
+    public List<UUID> getOrderedVideoIds() {
+        return videoOrder.getVideoIds();
+    }
 
-        return false;
+    @Override
+    public List<UUID> getOrderedGroupVideoIds(int groupId) {
+        return videoOrder.getGroupVideoIds(groupId);
+    }
+
+    @Override
+    public boolean videoBelongsToGroup(UUID id) {
+        return groupMembership.belongsToAnyGroup(id);
     }
 
     private class ShareVideoTask extends AsyncTask<Boolean, Void, Void> {
@@ -915,8 +1909,61 @@ public class CombinedVideoRepository implements VideoRepository {
         }
     }
 
+    /**
+     * Update the local groups right away, the next sync will correct them if sharing fails.
+     *
+     * The published groups are shared with the sync thread, so the changed group is copied and
+     * a new list is published in place of the old one.
+     */
+    protected void updateGroupMembership(List<UUID> videoIds, int groupId, boolean isMember) {
+        synchronized (groupsLock) {
+            List<Group> groups = new ArrayList<>(allGroups);
+            int index = -1;
+
+            for (int i = 0; i < groups.size(); i++) {
+                if (groups.get(i).getId() == groupId) {
+                    index = i;
+                    break;
+                }
+            }
+
+            if (index < 0) {
+                return;
+            }
+
+            Group oldGroup = groups.get(index);
+
+            Group group = new Group();
+            group.setId(oldGroup.getId());
+            group.setName(oldGroup.getName());
+            group.setVideos(oldGroup.getVideos() != null
+                    ? new ArrayList<>(oldGroup.getVideos())
+                    : new ArrayList<UUID>());
+
+            for (UUID id : videoIds) {
+                if (isMember) {
+                    group.addVideoToGroup(id);
+                } else {
+                    group.removeVideoFromGroup(id);
+                }
+            }
+
+            groups.set(index, group);
+            allGroups = Collections.unmodifiableList(groups);
+
+            for (UUID id : videoIds) {
+                groupMembership.setMembership(id, groupId, isMember);
+                videoOrder.setGroupMembership(id, groupId, isMember);
+            }
+        }
+
+        bus.post(new VideoRepositoryUpdatedEvent(this));
+    }
+
     @Override
     public void removeVideoFromGroup(ArrayList<UUID> videoIDs, int groupID) {
+        updateGroupMembership(videoIDs, groupID, false);
+
         ShareVideoTask task = new ShareVideoTask();
         task.setGroupId(groupID);
         task.setVideos(videoIDs);
@@ -925,6 +1972,8 @@ public class CombinedVideoRepository implements VideoRepository {
 
     @Override
     public void addVideoToGroup(ArrayList<UUID> videoIDs , int groupID) {
+        updateGroupMembership(videoIDs, groupID, true);
+
         ShareVideoTask task = new ShareVideoTask();
         task.setGroupId(groupID);
         task.setVideos(videoIDs);
@@ -986,12 +2035,7 @@ public class CombinedVideoRepository implements VideoRepository {
 
     @Override
     public boolean doesVideoExist(UUID id) {
-        try {
-            getVideo(id);
-            return true;
-        } catch (IOException ex) {
-            return false;
-        }
+        return allVideos.contains(id);
     }
 
     @Override
@@ -1004,10 +2048,30 @@ public class CombinedVideoRepository implements VideoRepository {
         return isFirstSync || hasVideoToUpload || forceImportant;
     }
 
+    /**
+     * Returns the name of the account the hosts are synced with, or null if logged out.
+     */
+    protected String getSyncAccountName() {
+        Account account = App.loginManager.getAccount();
+        return account != null ? account.name : null;
+    }
+
+    /**
+     * Returns a key for the host that stays the same when the hosts are set up again, for
+     * example after a restart.
+     */
+    private String getHostKey(VideoHost host) {
+        return cloudHosts.indexOf(host) + " " + host.getClass().getName();
+    }
+
+    /**
+     * Accepts the JSON manifests of local videos and the binary ones of the cache.
+     */
     protected final static class ManifestFileFilter implements FilenameFilter {
         @Override
         public boolean accept(File directory, String fileName) {
-            return Files.getFileExtension(fileName).equals("json");
+            String extension = Files.getFileExtension(fileName);
+            return extension.equals("json") || extension.equals("bin");
         }
     }
 }
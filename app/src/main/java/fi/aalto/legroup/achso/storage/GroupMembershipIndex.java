@@ -0,0 +1,101 @@
+package fi.aalto.legroup.achso.storage;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import fi.aalto.legroup.achso.entities.Group;
+
+/**
+ * Inverted index from video IDs to the groups they have been shared to, so that checking the
+ * membership of a video doesn't need to go through the groups.
+ *
+ * The groups of a video are stored as a bitset of group slots. The bitsets are never modified
+ * once they are in the index, changes replace them, so they can be read from any thread.
+ */
+public final class GroupMembershipIndex {
+
+    private final Object writeLock = new Object();
+
+    private volatile Map<UUID, BitSet> videoGroups = new ConcurrentHashMap<>();
+
+    // Slots of the groups in the bitsets, mapped by group ID. Guarded by writeLock.
+    private Map<Integer, Integer> groupSlots = Collections.emptyMap();
+
+    /**
+     * Index the groups from scratch, for example after a sync.
+     */
+    public void rebuild(Collection<Group> groups) {
+        Map<Integer, Integer> newGroupSlots = new HashMap<>(groups.size() * 2);
+        Map<UUID, BitSet> newVideoGroups = new ConcurrentHashMap<>();
+
+        for (Group group : groups) {
+            List<UUID> ids = group.getVideos();
+
+            Integer slot = newGroupSlots.get(group.getId());
+            if (slot == null) {
+                slot = newGroupSlots.size();
+                newGroupSlots.put(group.getId(), slot);
+            }
+
+            if (ids == null) {
+                continue;
+            }
+
+            for (UUID id : ids) {
+                BitSet slots = newVideoGroups.get(id);
+                if (slots == null) {
+                    slots = new BitSet();
+                    newVideoGroups.put(id, slots);
+                }
+                slots.set(slot);
+            }
+        }
+
+        synchronized (writeLock) {
+            groupSlots = newGroupSlots;
+            videoGroups = newVideoGroups;
+        }
+    }
+
+    /**
+     * Returns true if the video has been shared to any group.
+     */
+    public boolean belongsToAnyGroup(UUID id) {
+        BitSet slots = videoGroups.get(id);
+        return slots != null && !slots.isEmpty();
+    }
+
+    /**
+     * Record that a video has been shared to or unshared from a group. Unknown groups are ignored
+     * until the next rebuild.
+     */
+    public void setMembership(UUID id, int groupId, boolean isMember) {
+        synchronized (writeLock) {
+            Integer slot = groupSlots.get(groupId);
+            if (slot == null) {
+                return;
+            }
+
+            BitSet oldSlots = videoGroups.get(id);
+            BitSet slots = oldSlots != null ? (BitSet) oldSlots.clone() : new BitSet();
+
+            slots.set(slot, isMember);
+
+            if (slots.isEmpty()) {
+                videoGroups.remove(id);
+            } else {
+                videoGroups.put(id, slots);
+            }
+        }
+    }
+
+    public void clear() {
+        rebuild(Collections.<Group>emptyList());
+    }
+}
@@ -0,0 +1,19 @@
+package fi.aalto.legroup.achso.storage;
+
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * What a host's index looked like after the last sync, so that the next sync only needs to
+ * process the changes.
+ */
+final class HostSyncState {
+
+    final String cursor;
+    final Set<UUID> videoIds;
+
+    HostSyncState(String cursor, Set<UUID> videoIds) {
+        this.cursor = cursor;
+        this.videoIds = videoIds;
+    }
+}
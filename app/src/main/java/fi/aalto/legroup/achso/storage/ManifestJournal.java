@@ -0,0 +1,337 @@
+package fi.aalto.legroup.achso.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of the manifest files in the repository directories, so that they don't need to be
+ * parsed again on every sync.
+ *
+ * A directory is listed the first time it's asked for after the journal is read or rescan() is
+ * called, and the files the saved journal knows are checked against their size and modification
+ * time once before their revisions are trusted. After that the journal is kept up to date with
+ * update() and remove() by the repository, which writes and deletes every manifest, so a sync
+ * doesn't touch the file system for the files it knows. Changes made by anyone else are only
+ * noticed on the next rescan, which the repository does when it loads everything from disk.
+ * Neither directory modification times nor file observers are trusted for that, as neither is
+ * reliable on the FUSE backed external storage.
+ */
+public final class ManifestJournal {
+
+    public static final int UNKNOWN_REVISION = -1;
+
+    private static final int MAGIC = 0x41434d4a;
+    private static final int VERSION = 2;
+
+    private static final class Entry {
+        private final long length;
+        private final long lastModified;
+        private final int revision;
+
+        // Written or checked against the file by this process, not only read from the journal
+        private final boolean isVerified;
+
+        private Entry(long length, long lastModified, int revision, boolean isVerified) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.revision = revision;
+            this.isVerified = isVerified;
+        }
+
+        private static Entry fromFile(File file, int revision) {
+            return new Entry(file.length(), file.lastModified(), revision, true);
+        }
+
+        private Entry verified() {
+            return new Entry(length, lastModified, revision, true);
+        }
+
+        private boolean matches(File file) {
+            return length == file.length() && lastModified == file.lastModified();
+        }
+    }
+
+    private final File file;
+    private final FilenameFilter filter;
+
+    // Known files of every directory, mapped by file name
+    private final Map<String, Map<String, Entry>> directoryEntries = new HashMap<>();
+
+    // Directories listed since the journal was read or last rescanned
+    private final Set<String> scannedDirectories = new HashSet<>();
+
+    private boolean isDirty = false;
+
+    /**
+     * @param file   File to persist the journal in.
+     * @param filter Filter for the files to keep track of.
+     */
+    public ManifestJournal(File file, FilenameFilter filter) {
+        this.file = file;
+        this.filter = filter;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Lists the tracked files in the directory. The directory is only listed if it hasn't been
+     * since the last rescan, and then only the files that weren't known before are stat-ed.
+     */
+    public synchronized File[] listFiles(File directory) {
+        Map<String, Entry> entries;
+
+        if (scannedDirectories.contains(directory.getPath())) {
+            entries = getOrCreateEntries(directory);
+        } else {
+            entries = rescan(directory);
+        }
+
+        File[] files = new File[entries.size()];
+        int index = 0;
+
+        for (String name : entries.keySet()) {
+            files[index++] = new File(directory, name);
+        }
+
+        return files;
+    }
+
+    private Map<String, Entry> rescan(File directory) {
+        String path = directory.getPath();
+        String[] names = directory.list(filter);
+
+        Map<String, Entry> oldEntries = directoryEntries.get(path);
+        Map<String, Entry> entries = new HashMap<>();
+
+        if (names == null) {
+            names = new String[0];
+        }
+
+        for (String name : names) {
+            Entry entry = null;
+
+            if (oldEntries != null) {
+                entry = oldEntries.get(name);
+            }
+
+            // Only stat the files that weren't known before
+            if (entry == null) {
+                entry = Entry.fromFile(new File(directory, name), UNKNOWN_REVISION);
+                isDirty = true;
+            }
+
+            entries.put(name, entry);
+        }
+
+        if (oldEntries == null || oldEntries.size() != names.length) {
+            isDirty = true;
+        }
+
+        directoryEntries.put(path, entries);
+        scannedDirectories.add(path);
+
+        return entries;
+    }
+
+    /**
+     * List the directories again the next time they're asked for, to notice the files added or
+     * removed by anyone else.
+     */
+    public synchronized void rescan() {
+        scannedDirectories.clear();
+    }
+
+    /**
+     * Returns true if the file is known to exist. The directory of the file should have been
+     * listed with listFiles() at some point for this to be accurate.
+     */
+    public synchronized boolean contains(File file) {
+        Map<String, Entry> entries = directoryEntries.get(file.getParent());
+        return entries != null && entries.containsKey(file.getName());
+    }
+
+    /**
+     * Returns the revision of the video stored in the file, or UNKNOWN_REVISION if it's not
+     * known or the file was modified before this process started and after it was recorded.
+     */
+    public synchronized int getRevision(File file) {
+        Map<String, Entry> entries = directoryEntries.get(file.getParent());
+        if (entries == null) {
+            return UNKNOWN_REVISION;
+        }
+
+        Entry entry = entries.get(file.getName());
+        if (entry == null) {
+            return UNKNOWN_REVISION;
+        }
+
+        // Files from the saved journal are checked once, after that this process knows of
+        // every change
+        if (!entry.isVerified) {
+            if (!entry.matches(file)) {
+                entries.put(file.getName(), Entry.fromFile(file, UNKNOWN_REVISION));
+                isDirty = true;
+                return UNKNOWN_REVISION;
+            }
+
+            entries.put(file.getName(), entry.verified());
+        }
+
+        return entry.revision;
+    }
+
+    /**
+     * Record that a file has been written with the given revision.
+     */
+    public synchronized void update(File file, int revision) {
+        Map<String, Entry> entries = getOrCreateEntries(file.getParentFile());
+        entries.put(file.getName(), Entry.fromFile(file, revision));
+        isDirty = true;
+    }
+
+    /**
+     * Record that a file has been deleted.
+     */
+    public synchronized void remove(File file) {
+        Map<String, Entry> entries = directoryEntries.get(file.getParent());
+
+        if (entries != null && entries.remove(file.getName()) != null) {
+            isDirty = true;
+        }
+    }
+
+    private Map<String, Entry> getOrCreateEntries(File directory) {
+        String path = directory.getPath();
+        Map<String, Entry> entries = directoryEntries.get(path);
+
+        if (entries == null) {
+            entries = new HashMap<>();
+            directoryEntries.put(path, entries);
+        }
+
+        return entries;
+    }
+
+    /**
+     * Load the journal from the file. Starts from an empty journal if the file can't be read.
+     */
+    public synchronized void read() {
+        directoryEntries.clear();
+        scannedDirectories.clear();
+        isDirty = false;
+
+        if (!file.exists()) {
+            return;
+        }
+
+        DataInputStream input = null;
+
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Unsupported manifest journal " + file);
+            }
+
+            int directoryCount = input.readInt();
+
+            for (int i = 0; i < directoryCount; i++) {
+                String path = input.readUTF();
+                int entryCount = input.readInt();
+
+                Map<String, Entry> entries = new HashMap<>(entryCount * 2);
+
+                for (int j = 0; j < entryCount; j++) {
+                    String name = input.readUTF();
+                    long length = input.readLong();
+                    long entryLastModified = input.readLong();
+                    int revision = input.readInt();
+
+                    entries.put(name, new Entry(length, entryLastModified, revision, false));
+                }
+
+                directoryEntries.put(path, entries);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+
+            // Rebuild the journal from scratch
+            directoryEntries.clear();
+            isDirty = true;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Persist the journal if it has changed since it was read or last written.
+     */
+    public synchronized void writeIfDirty() {
+        if (!isDirty) {
+            return;
+        }
+
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        DataOutputStream output = null;
+
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temporaryFile)));
+
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(directoryEntries.size());
+
+            for (Map.Entry<String, Map<String, Entry>> directory : directoryEntries.entrySet()) {
+                output.writeUTF(directory.getKey());
+                output.writeInt(directory.getValue().size());
+
+                for (Map.Entry<String, Entry> entry : directory.getValue().entrySet()) {
+                    output.writeUTF(entry.getKey());
+                    output.writeLong(entry.getValue().length);
+                    output.writeLong(entry.getValue().lastModified);
+                    output.writeInt(entry.getValue().revision);
+                }
+            }
+
+            output.close();
+            output = null;
+
+            if (!temporaryFile.renameTo(file)) {
+                throw new IOException("Failed to replace manifest journal " + file);
+            }
+
+            isDirty = false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            temporaryFile.delete();
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
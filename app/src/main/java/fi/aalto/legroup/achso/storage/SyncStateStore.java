@@ -0,0 +1,160 @@
+package fi.aalto.legroup.achso.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Persists the delta sync state of the hosts, so that the first sync after a restart only needs
+ * to fetch the changes instead of the full index.
+ *
+ * The index of a host depends on who is logged in, so the states are stored along with the name
+ * of the account they were synced with and only given back for the same account. States without
+ * a cursor would lead to a full sync anyway and aren't stored.
+ *
+ * Layout: int magic, int version, string account,
+ *         int hostCount, { string host, string cursor, int idCount, { long, long } * idCount }
+ */
+final class SyncStateStore {
+
+    private static final int MAGIC = 0x41435353;
+    private static final int VERSION = 1;
+
+    private final File file;
+
+    SyncStateStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the stored states mapped by host, or an empty map if there are none for the
+     * account or they can't be read.
+     */
+    Map<String, HostSyncState> read(String accountName) {
+        if (!file.exists()) {
+            return new HashMap<>();
+        }
+
+        DataInputStream input = null;
+
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Unsupported sync state " + file);
+            }
+
+            if (!input.readUTF().equals(normalize(accountName))) {
+                return new HashMap<>();
+            }
+
+            int hostCount = input.readInt();
+            Map<String, HostSyncState> states = new HashMap<>(hostCount * 2);
+
+            for (int i = 0; i < hostCount; i++) {
+                String host = input.readUTF();
+                String cursor = input.readUTF();
+                int idCount = input.readInt();
+
+                Set<UUID> ids = new HashSet<>(idCount * 2);
+
+                for (int j = 0; j < idCount; j++) {
+                    ids.add(new UUID(input.readLong(), input.readLong()));
+                }
+
+                states.put(host, new HostSyncState(cursor, ids));
+            }
+
+            return states;
+        } catch (IOException e) {
+            e.printStackTrace();
+            file.delete();
+            return new HashMap<>();
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace the stored states with the given ones.
+     */
+    void write(String accountName, Map<String, HostSyncState> states) {
+        Map<String, HostSyncState> storedStates = new HashMap<>();
+
+        for (Map.Entry<String, HostSyncState> entry : states.entrySet()) {
+            if (entry.getValue().cursor != null) {
+                storedStates.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        if (storedStates.isEmpty()) {
+            file.delete();
+            return;
+        }
+
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        DataOutputStream output = null;
+
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temporaryFile)));
+
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(normalize(accountName));
+            output.writeInt(storedStates.size());
+
+            for (Map.Entry<String, HostSyncState> entry : storedStates.entrySet()) {
+                HostSyncState state = entry.getValue();
+
+                output.writeUTF(entry.getKey());
+                output.writeUTF(state.cursor);
+                output.writeInt(state.videoIds.size());
+
+                for (UUID id : state.videoIds) {
+                    output.writeLong(id.getMostSignificantBits());
+                    output.writeLong(id.getLeastSignificantBits());
+                }
+            }
+
+            output.close();
+            output = null;
+
+            if (!temporaryFile.renameTo(file)) {
+                throw new IOException("Failed to replace sync state " + file);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            temporaryFile.delete();
+            file.delete();
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static String normalize(String accountName) {
+        return accountName != null ? accountName : "";
+    }
+}
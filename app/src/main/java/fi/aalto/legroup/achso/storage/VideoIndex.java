@@ -0,0 +1,118 @@
+package fi.aalto.legroup.achso.storage;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import fi.aalto.legroup.achso.entities.OptimizedVideo;
+
+/**
+ * Index of the videos in a repository.
+ *
+ * Readers never block, so the UI can iterate the videos while a sync is running. A sync
+ * publishes a whole new map at once, so readers never see a partial sync. Saving or removing a
+ * single video changes the current map in place, which keeps it constant time however large the
+ * library is. Iterating the videos sees every video that was there when it started and wasn't
+ * removed, and may or may not see the changes made meanwhile.
+ */
+public final class VideoIndex {
+
+    private final Object writeLock = new Object();
+
+    // Replaced by replaceAll() and clear() and changed in place otherwise, always under writeLock
+    private volatile Map<UUID, OptimizedVideo> videos = new ConcurrentHashMap<>();
+    private volatile long generation = 0;
+
+    /**
+     * Returns the current video with the ID or null if there is none.
+     */
+    public OptimizedVideo get(UUID id) {
+        return videos.get(id);
+    }
+
+    public boolean contains(UUID id) {
+        return videos.containsKey(id);
+    }
+
+    /**
+     * Returns an unmodifiable view of the videos. The view belongs to the current map, so it
+     * follows saves and removals but not a later sync, and iterating it never throws
+     * ConcurrentModificationException.
+     */
+    public Collection<OptimizedVideo> values() {
+        return Collections.unmodifiableCollection(videos.values());
+    }
+
+    public int size() {
+        return videos.size();
+    }
+
+    public boolean isEmpty() {
+        return videos.isEmpty();
+    }
+
+    /**
+     * Returns a number that is incremented every time the index is changed.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Publish a new map with the given videos, replacing all of the old ones.
+     */
+    public void replaceAll(Collection<OptimizedVideo> newVideos) {
+        Map<UUID, OptimizedVideo> map = new ConcurrentHashMap<>(newVideos.size() * 2);
+
+        for (OptimizedVideo video : newVideos) {
+            map.put(video.getId(), video);
+        }
+
+        synchronized (writeLock) {
+            videos = map;
+            generation++;
+        }
+    }
+
+    /**
+     * Add or replace a video.
+     */
+    public void put(OptimizedVideo video) {
+        synchronized (writeLock) {
+            videos.put(video.getId(), video);
+            generation++;
+        }
+    }
+
+    /**
+     * Add the videos which are not in the index yet.
+     */
+    public void putAllAbsent(Collection<OptimizedVideo> newVideos) {
+        synchronized (writeLock) {
+            for (OptimizedVideo video : newVideos) {
+                if (!videos.containsKey(video.getId())) {
+                    videos.put(video.getId(), video);
+                }
+            }
+
+            generation++;
+        }
+    }
+
+    public void remove(UUID id) {
+        synchronized (writeLock) {
+            if (videos.remove(id) != null) {
+                generation++;
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (writeLock) {
+            videos = new ConcurrentHashMap<>();
+            generation++;
+        }
+    }
+}
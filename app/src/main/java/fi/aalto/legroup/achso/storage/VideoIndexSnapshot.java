@@ -0,0 +1,231 @@
+package fi.aalto.legroup.achso.storage;
+
+import android.net.Uri;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import fi.aalto.legroup.achso.entities.OptimizedVideo;
+import fi.aalto.legroup.achso.entities.User;
+import fi.aalto.legroup.achso.entities.UserPool;
+
+/**
+ * Binary snapshot of the whole video index, so that the manifests don't need to be parsed again
+ * on every startup.
+ *
+ * Every entry remembers the manifest file it was loaded from with the size and modification time
+ * of the file when the snapshot was written. If the file has changed since, the entry is stale
+ * and the manifest should be parsed again.
+ *
+ * Layout (big-endian):
+ *   int magic, int version
+ *   int userCount, { string name, string uri, string id } * userCount
+ *   int entryCount, { string path, long lastModified, long length, video } * entryCount
+ *
+ * Strings are stored as an UTF-8 byte count followed by the bytes, null is marked with -1.
+ * The users are written in UserPool order so the videos can store their user indices as-is.
+ */
+public final class VideoIndexSnapshot {
+
+    private static final int MAGIC = 0x41434958;
+
+    /**
+     * Increment this if the binary layout of the snapshot or OptimizedVideo changes, old
+     * snapshots are then just ignored and rebuilt from the manifests.
+     */
+    private static final int VERSION = 1;
+
+    private VideoIndexSnapshot() {
+        // Static access only
+    }
+
+    public static final class Entry {
+
+        private final String manifestPath;
+        private final long manifestLastModified;
+        private final long manifestLength;
+        private final OptimizedVideo video;
+
+        private Entry(String manifestPath, long manifestLastModified, long manifestLength,
+                OptimizedVideo video) {
+            this.manifestPath = manifestPath;
+            this.manifestLastModified = manifestLastModified;
+            this.manifestLength = manifestLength;
+            this.video = video;
+        }
+
+        /**
+         * Create an entry for a video loaded from the manifest file. The file is stat-ed here so
+         * the entry should be created only after the manifest has been written.
+         */
+        public static Entry fromFile(OptimizedVideo video, File manifest) {
+            return new Entry(manifest.getPath(), manifest.lastModified(), manifest.length(),
+                    video);
+        }
+
+        /**
+         * Returns true if the manifest file is the one this entry was created from and it has
+         * not been modified since.
+         */
+        public boolean matches(File manifest) {
+            return manifestPath.equals(manifest.getPath())
+                    && manifestLastModified == manifest.lastModified()
+                    && manifestLength == manifest.length();
+        }
+
+        public OptimizedVideo getVideo() {
+            return video;
+        }
+    }
+
+    /**
+     * Read and validate a snapshot. The file is memory-mapped instead of streamed.
+     *
+     * @return The entries of the snapshot mapped by video ID.
+     * @throws IOException If the snapshot doesn't exist, is corrupted or is an old version.
+     */
+    public static Map<UUID, Entry> read(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+
+            return readEntries(buffer);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                | NegativeArraySizeException | IllegalArgumentException e) {
+            throw new IOException("Corrupted video index snapshot " + file, e);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static Map<UUID, Entry> readEntries(ByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a video index snapshot");
+        }
+
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported video index snapshot version " + version);
+        }
+
+        // Intern the users of the snapshot and map their snapshot indices to the current pool
+        int userCount = buffer.getInt();
+        int[] userIndexMap = new int[userCount];
+
+        for (int i = 0; i < userCount; i++) {
+            String name = readString(buffer);
+            String uri = readString(buffer);
+            String id = readString(buffer);
+
+            User user = new User(name, uri != null ? Uri.parse(uri) : null, id);
+            userIndexMap[i] = UserPool.internUser(user);
+        }
+
+        int entryCount = buffer.getInt();
+        Map<UUID, Entry> entries = new HashMap<>(entryCount * 2);
+
+        for (int i = 0; i < entryCount; i++) {
+            String path = readString(buffer);
+            long lastModified = buffer.getLong();
+            long length = buffer.getLong();
+            OptimizedVideo video = OptimizedVideo.readFrom(buffer, userIndexMap);
+
+            entries.put(video.getId(), new Entry(path, lastModified, length, video));
+        }
+
+        return entries;
+    }
+
+    /**
+     * Write a snapshot of the entries. The snapshot is written to a temporary file first and
+     * renamed over the old one, so a half-written snapshot is never read.
+     */
+    public static void write(File file, List<Entry> entries) throws IOException {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        DataOutputStream output = null;
+
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temporaryFile)));
+
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+
+            // Write the whole user pool so the user indices of the videos stay valid
+            int userCount = UserPool.getUserCount();
+            output.writeInt(userCount);
+
+            for (int i = 0; i < userCount; i++) {
+                User user = UserPool.getInternedUser(i);
+                Uri uri = user.getUri();
+
+                writeString(output, user.getName());
+                writeString(output, uri != null ? uri.toString() : null);
+                writeString(output, user.getId());
+            }
+
+            output.writeInt(entries.size());
+
+            for (Entry entry : entries) {
+                writeString(output, entry.manifestPath);
+                output.writeLong(entry.manifestLastModified);
+                output.writeLong(entry.manifestLength);
+                entry.video.writeTo(output);
+            }
+        } finally {
+            if (output != null) {
+                output.close();
+            }
+        }
+
+        if (!temporaryFile.renameTo(file)) {
+            temporaryFile.delete();
+            throw new IOException("Failed to replace video index snapshot " + file);
+        }
+    }
+
+    /**
+     * Write a nullable string as an UTF-8 byte count followed by the bytes.
+     */
+    public static void writeString(DataOutputStream output, String string) throws IOException {
+        if (string == null) {
+            output.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = string.getBytes(Charsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * Read a nullable string written with writeString().
+     */
+    public static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+}
@@ -23,11 +23,32 @@ public interface VideoInfoRepository {
      */
     public Collection<Group> getGroups() throws IOException;
 
+    /**
+     * Returns the IDs of the videos whose title, tag, author or annotations contain words
+     * starting with the words of the query, best matches first.
+     */
+    public List<UUID> findVideos(String query);
+
+    /**
+     * Returns the IDs of all the videos, newest first.
+     */
+    public List<UUID> getOrderedVideoIds();
+
+    /**
+     * Returns the IDs of the videos of a group, newest first.
+     */
+    public List<UUID> getOrderedGroupVideoIds(int groupId);
+
     /**
      * Returns an information object describing an entity with the given ID.
      */
     public OptimizedVideo getVideo(UUID id) throws IOException;
 
+    /**
+     * Checks whether video storage contains a video with a certain ID.
+     */
+    public boolean doesVideoExist(UUID id);
+
     /**
      * Returns an information object describing an entity with the given ID.
      */
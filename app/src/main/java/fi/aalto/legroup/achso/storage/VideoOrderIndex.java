@@ -0,0 +1,362 @@
+package fi.aalto.legroup.achso.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import fi.aalto.legroup.achso.entities.Group;
+import fi.aalto.legroup.achso.entities.OptimizedVideo;
+
+/**
+ * Keeps the videos of a repository sorted newest first, both all of them and the ones of every
+ * group, so that the views can get the ordered lists without sorting.
+ *
+ * Every ordering is a sorted set of (date, ID) pairs that is changed in place under the lock, so
+ * saving or removing a video only touches the orderings it is in, in logarithmic time. Readers get
+ * an immutable snapshot of an ordering that is taken on the first read after a change and shared
+ * until the next one, so the lists returned never change and can be read from any thread.
+ *
+ * A rebuild sorts outside the lock, so the videos put or removed meanwhile are recorded and
+ * brought up to date from the source index before the new orderings are published.
+ */
+public final class VideoOrderIndex {
+
+    /**
+     * Videos sorted by date, newest first. Videos with the same date are sorted by ID so that
+     * every entry has a well-defined position.
+     */
+    private static final class Ordering {
+
+        // Guarded by writeLock once published
+        private final NavigableSet<Entry> entries = new TreeSet<>();
+
+        // Snapshot of the IDs, or null if the entries have changed since it was taken
+        private volatile List<UUID> idList = Collections.emptyList();
+
+        private void add(long date, UUID id) {
+            if (entries.add(new Entry(date, id))) {
+                idList = null;
+            }
+        }
+
+        private void remove(long date, UUID id) {
+            if (entries.remove(new Entry(date, id))) {
+                idList = null;
+            }
+        }
+
+        private void move(Long oldDate, long date, UUID id) {
+            if (oldDate != null) {
+                remove(oldDate, id);
+            }
+            add(date, id);
+        }
+
+        /**
+         * Returns the snapshot of the IDs, taking a new one if needed. Called with writeLock held.
+         */
+        private List<UUID> snapshot() {
+            List<UUID> ids = idList;
+
+            if (ids == null) {
+                UUID[] array = new UUID[entries.size()];
+                int index = 0;
+
+                for (Entry entry : entries) {
+                    array[index++] = entry.id;
+                }
+
+                ids = Collections.unmodifiableList(Arrays.asList(array));
+                idList = ids;
+            }
+
+            return ids;
+        }
+
+        /**
+         * Sort the videos with the dates from the map, videos without a date are left out.
+         */
+        private static Ordering sort(Collection<UUID> videoIds, Map<UUID, Long> videoDates) {
+            Ordering ordering = new Ordering();
+
+            // Groups may list the same video twice, the set keeps only one
+            for (UUID id : videoIds) {
+                Long date = videoDates.get(id);
+                if (date != null) {
+                    ordering.add(date, id);
+                }
+            }
+
+            return ordering;
+        }
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        private final long date;
+        private final UUID id;
+
+        private Entry(long date, UUID id) {
+            this.date = date;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (date != other.date) {
+                // Newest first
+                return date > other.date ? -1 : 1;
+            }
+            return id.compareTo(other.id);
+        }
+    }
+
+    private final Object writeLock = new Object();
+    private final Object rebuildLock = new Object();
+
+    // Replaced by rebuilds, the orderings themselves are changed in place
+    private volatile Ordering allVideos = new Ordering();
+    private volatile Map<Integer, Ordering> groupVideos = Collections.emptyMap();
+
+    // Guarded by writeLock
+    private Map<UUID, Long> videoDates = new HashMap<>();
+    private Map<UUID, List<Integer>> videoGroupIds = new HashMap<>();
+
+    // Videos put or removed during a rebuild, or null if there is none. Guarded by writeLock
+    private Set<UUID> changedIds;
+
+    /**
+     * Returns the IDs of all the videos, newest first. The list doesn't change afterwards.
+     */
+    public List<UUID> getVideoIds() {
+        return getIds(allVideos);
+    }
+
+    /**
+     * Returns the IDs of the videos of a group, newest first. The list doesn't change afterwards.
+     */
+    public List<UUID> getGroupVideoIds(int groupId) {
+        Ordering ordering = groupVideos.get(groupId);
+
+        if (ordering == null) {
+            return Collections.emptyList();
+        }
+
+        return getIds(ordering);
+    }
+
+    private List<UUID> getIds(Ordering ordering) {
+        List<UUID> ids = ordering.idList;
+
+        if (ids != null) {
+            return ids;
+        }
+
+        synchronized (writeLock) {
+            return ordering.snapshot();
+        }
+    }
+
+    /**
+     * Sort everything from scratch, for example after a sync.
+     *
+     * @param source Index to take the videos from. The videos put or removed while sorting are
+     *               looked up from it again, so it must be updated before this index is.
+     */
+    public void rebuild(VideoIndex source, Collection<Group> groups) {
+        synchronized (rebuildLock) {
+            Collection<OptimizedVideo> videos;
+
+            synchronized (writeLock) {
+                videos = source.values();
+                changedIds = new HashSet<>();
+            }
+
+            rebuild(source, videos, groups);
+        }
+    }
+
+    private void rebuild(VideoIndex source, Collection<OptimizedVideo> videos,
+            Collection<Group> groups) {
+        Map<UUID, Long> newVideoDates = new HashMap<>(videos.size() * 2);
+        for (OptimizedVideo video : videos) {
+            newVideoDates.put(video.getId(), video.getDateInMs());
+        }
+
+        Map<Integer, Ordering> newGroupVideos = new HashMap<>();
+        Map<UUID, List<Integer>> newVideoGroupIds = new HashMap<>();
+
+        for (Group group : groups) {
+            List<UUID> ids = group.getVideos();
+            if (ids == null) {
+                continue;
+            }
+
+            newGroupVideos.put(group.getId(), Ordering.sort(ids, newVideoDates));
+
+            for (UUID id : ids) {
+                List<Integer> groupIds = newVideoGroupIds.get(id);
+                if (groupIds == null) {
+                    groupIds = new ArrayList<>(1);
+                    newVideoGroupIds.put(id, groupIds);
+                }
+                if (!groupIds.contains(group.getId())) {
+                    groupIds.add(group.getId());
+                }
+            }
+        }
+
+        Ordering newAllVideos = Ordering.sort(newVideoDates.keySet(), newVideoDates);
+
+        synchronized (writeLock) {
+            videoDates = newVideoDates;
+            videoGroupIds = newVideoGroupIds;
+            allVideos = newAllVideos;
+            groupVideos = Collections.unmodifiableMap(newGroupVideos);
+
+            // Catch up with the changes made while sorting
+            for (UUID id : changedIds) {
+                OptimizedVideo video = source.get(id);
+
+                if (video != null) {
+                    putLocked(video);
+                } else {
+                    removeLocked(id);
+                }
+            }
+
+            changedIds = null;
+        }
+    }
+
+    /**
+     * Add a video or move it to its new position if its date has changed.
+     */
+    public void put(OptimizedVideo video) {
+        synchronized (writeLock) {
+            if (changedIds != null) {
+                changedIds.add(video.getId());
+            }
+
+            putLocked(video);
+        }
+    }
+
+    private void putLocked(OptimizedVideo video) {
+        UUID id = video.getId();
+        long date = video.getDateInMs();
+
+        Long oldDate = videoDates.put(id, date);
+
+        if (oldDate != null && oldDate == date) {
+            return;
+        }
+
+        allVideos.move(oldDate, date, id);
+
+        List<Integer> groupIds = videoGroupIds.get(id);
+        if (groupIds == null) {
+            return;
+        }
+
+        for (Integer groupId : groupIds) {
+            Ordering ordering = groupVideos.get(groupId);
+            if (ordering != null) {
+                ordering.move(oldDate, date, id);
+            }
+        }
+    }
+
+    /**
+     * Remove a video from all of the orderings. Group memberships are remembered, so if the video
+     * is put back it appears in its groups again.
+     */
+    public void remove(UUID id) {
+        synchronized (writeLock) {
+            if (changedIds != null) {
+                changedIds.add(id);
+            }
+
+            removeLocked(id);
+        }
+    }
+
+    private void removeLocked(UUID id) {
+        Long oldDate = videoDates.remove(id);
+
+        if (oldDate == null) {
+            return;
+        }
+
+        allVideos.remove(oldDate, id);
+
+        List<Integer> groupIds = videoGroupIds.get(id);
+        if (groupIds == null) {
+            return;
+        }
+
+        for (Integer groupId : groupIds) {
+            Ordering ordering = groupVideos.get(groupId);
+            if (ordering != null) {
+                ordering.remove(oldDate, id);
+            }
+        }
+    }
+
+    /**
+     * Add a video to the ordering of a group or remove it, for example when it is shared.
+     */
+    public void setGroupMembership(UUID id, int groupId, boolean isMember) {
+        // Waits for a rebuild, which would replace the change with the groups it was given
+        synchronized (rebuildLock) {
+            synchronized (writeLock) {
+                List<Integer> groupIds = videoGroupIds.get(id);
+                if (groupIds == null) {
+                    groupIds = new ArrayList<>(1);
+                    videoGroupIds.put(id, groupIds);
+                }
+
+                if (isMember) {
+                    if (!groupIds.contains(groupId)) {
+                        groupIds.add(groupId);
+                    }
+                } else {
+                    groupIds.remove(Integer.valueOf(groupId));
+                }
+
+                Ordering ordering = groupVideos.get(groupId);
+                Long date = videoDates.get(id);
+
+                if (ordering == null || date == null) {
+                    return;
+                }
+
+                if (isMember) {
+                    ordering.add(date, id);
+                } else {
+                    ordering.remove(date, id);
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        // Waits for a rebuild so that it doesn't publish the videos again afterwards
+        synchronized (rebuildLock) {
+            synchronized (writeLock) {
+                videoDates = new HashMap<>();
+                videoGroupIds = new HashMap<>();
+                allVideos = new Ordering();
+                groupVideos = Collections.emptyMap();
+            }
+        }
+    }
+}
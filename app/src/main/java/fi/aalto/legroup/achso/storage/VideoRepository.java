@@ -10,6 +10,7 @@ import java.util.List;
 import java.util.UUID;
 
 import fi.aalto.legroup.achso.entities.Video;
+import fi.aalto.legroup.achso.entities.VideoSearchPage;
 
 /**
  * Provides full read/write access to video root entities.
@@ -26,6 +27,11 @@ public interface VideoRepository extends VideoInfoRepository {
         public void notFound();
     }
 
+    interface VideoSearchCallback {
+        public void found(VideoSearchPage page);
+        public void notFound();
+    }
+
     /**
      * Update the video repository with new data, but without doing any networking.
      */
@@ -54,6 +60,11 @@ public interface VideoRepository extends VideoInfoRepository {
      */
     public void save(Video video, VideoCallback callback) throws IOException;
 
+    /**
+     * Writes saves that haven't been persisted yet, blocking until they are done.
+     */
+    public void flushSaves();
+
     /**
      * Deletes cached files from video
      */
@@ -83,6 +94,16 @@ public interface VideoRepository extends VideoInfoRepository {
 
     public File getVideoCacheFile(UUID id);
 
+    /**
+     * Returns the file the manifest of a remote video is cached in as it was downloaded.
+     */
+    public File getManifestCacheFile(UUID id);
+
+    /**
+     * Reads the cached manifest of a remote video, see getManifestCacheFile().
+     */
+    public Video readManifestCacheFile(UUID id) throws IOException;
+
     public void removeVideoFromGroup(ArrayList<UUID> videoIds, int groupId);
 
     public void addVideoToGroup(ArrayList<UUID> videoIds, int groupId);
@@ -102,12 +123,19 @@ public interface VideoRepository extends VideoInfoRepository {
      */
     public void findVideoByVideoUri(Uri videoUri, String type, VideoCallback callback);
 
-    public void findOnlineVideoByQuery(String query, VideoListCallback callback);
+    /**
+     * Search the hosts for a page of videos. The callback is called once for every host, from a
+     * background thread. The results are not added to the repository, see downloadVideoManifest().
+     * @return A handle to cancel the search and its requests with.
+     */
+    public Cancellable searchOnlineVideos(String query, int offset, int limit,
+            VideoSearchCallback callback);
 
     /**
-     * Checks whether video storage contains a video with a certain ID.
+     * Download the manifest of a video that isn't in the repository yet, such as a search
+     * result, and add it to the repository as a temporary video.
      */
-    public boolean doesVideoExist(UUID id);
+    public void downloadVideoManifest(UUID id, VideoCallback callback);
 
     /**
      * Migrate all videos to the current format version.
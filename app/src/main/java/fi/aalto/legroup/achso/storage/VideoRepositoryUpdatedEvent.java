@@ -1,18 +1,133 @@
 package fi.aalto.legroup.achso.storage;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import fi.aalto.legroup.achso.app.CoalescingEvent;
+
 /**
- * TODO: Split this event into something more specific.
+ * Posted when the videos of a repository change. Carries the IDs of the videos that have been
+ * added, updated and removed so that the views can be updated incrementally.
+ *
+ * A full update means that anything may have changed, including the groups, and the change sets
+ * should not be relied on.
  */
-public class VideoRepositoryUpdatedEvent {
+public class VideoRepositoryUpdatedEvent implements CoalescingEvent {
 
     private VideoRepository repository;
 
+    private Set<UUID> added;
+    private Set<UUID> updated;
+    private Set<UUID> removed;
+    private boolean isFullUpdate;
+
+    /**
+     * Creates a full update.
+     */
     public VideoRepositoryUpdatedEvent(VideoRepository repository) {
+        this(repository, Collections.<UUID>emptySet(), Collections.<UUID>emptySet(),
+                Collections.<UUID>emptySet(), true);
+    }
+
+    public VideoRepositoryUpdatedEvent(VideoRepository repository, Set<UUID> added,
+            Set<UUID> updated, Set<UUID> removed, boolean isFullUpdate) {
         this.repository = repository;
+        this.added = Collections.unmodifiableSet(added);
+        this.updated = Collections.unmodifiableSet(updated);
+        this.removed = Collections.unmodifiableSet(removed);
+        this.isFullUpdate = isFullUpdate;
+    }
+
+    public static VideoRepositoryUpdatedEvent added(VideoRepository repository,
+            Collection<UUID> ids) {
+        return new VideoRepositoryUpdatedEvent(repository, new HashSet<>(ids),
+                Collections.<UUID>emptySet(), Collections.<UUID>emptySet(), false);
+    }
+
+    public static VideoRepositoryUpdatedEvent updated(VideoRepository repository,
+            Collection<UUID> ids) {
+        return new VideoRepositoryUpdatedEvent(repository, Collections.<UUID>emptySet(),
+                new HashSet<>(ids), Collections.<UUID>emptySet(), false);
+    }
+
+    public static VideoRepositoryUpdatedEvent removed(VideoRepository repository,
+            Collection<UUID> ids) {
+        return new VideoRepositoryUpdatedEvent(repository, Collections.<UUID>emptySet(),
+                Collections.<UUID>emptySet(), new HashSet<>(ids), false);
     }
 
     public VideoRepository getRepository() {
         return this.repository;
     }
 
+    public Set<UUID> getAdded() {
+        return added;
+    }
+
+    public Set<UUID> getUpdated() {
+        return updated;
+    }
+
+    public Set<UUID> getRemoved() {
+        return removed;
+    }
+
+    public boolean isFullUpdate() {
+        return isFullUpdate;
+    }
+
+    /**
+     * Returns true if the event doesn't change anything.
+     */
+    public boolean isEmpty() {
+        return !isFullUpdate && added.isEmpty() && updated.isEmpty() && removed.isEmpty();
+    }
+
+    /**
+     * Combine the changes of this event and a newer one, as if they had been made at once.
+     */
+    @Override
+    public VideoRepositoryUpdatedEvent coalesce(CoalescingEvent newerEvent) {
+        VideoRepositoryUpdatedEvent newer = (VideoRepositoryUpdatedEvent) newerEvent;
+
+        if (isFullUpdate || newer.isFullUpdate) {
+            return new VideoRepositoryUpdatedEvent(newer.repository);
+        }
+
+        Set<UUID> newAdded = new HashSet<>(added);
+        Set<UUID> newUpdated = new HashSet<>(updated);
+        Set<UUID> newRemoved = new HashSet<>(removed);
+
+        for (UUID id : newer.added) {
+            // Removed and added back is just an update
+            if (newRemoved.remove(id)) {
+                newUpdated.add(id);
+            } else {
+                newAdded.add(id);
+            }
+        }
+
+        for (UUID id : newer.updated) {
+            // Updates to videos added in this burst are part of the addition
+            if (!newAdded.contains(id)) {
+                newUpdated.add(id);
+            }
+        }
+
+        for (UUID id : newer.removed) {
+            newUpdated.remove(id);
+
+            // Added and removed is no change at all
+            if (!newAdded.remove(id)) {
+                newRemoved.add(id);
+            }
+        }
+
+        return new VideoRepositoryUpdatedEvent(newer.repository, newAdded, newUpdated,
+                newRemoved, false);
+    }
+
 }
@@ -0,0 +1,542 @@
+package fi.aalto.legroup.achso.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import fi.aalto.legroup.achso.entities.OptimizedVideo;
+import fi.aalto.legroup.achso.entities.User;
+import fi.aalto.legroup.achso.entities.UserPool;
+
+/**
+ * Inverted index of the words in the titles, tags, authors and annotations of the videos.
+ *
+ * Words are split at anything that isn't a letter or a digit and lower-cased. Every query word
+ * is matched as a prefix and all of them must match. Results are ranked by the fields the words
+ * were found in, with whole-word matches counting double, and then by date.
+ *
+ * Every indexed video gets a document number, and the postings of a word are packed into an
+ * array of document numbers and fields, so that a search only goes through arrays even when most
+ * of the videos match.
+ *
+ * Searches never take the lock. The index is published through a volatile field as an immutable
+ * snapshot: a base index built in one go, plus the videos put since then in a small index of
+ * their own that is searched alongside it. The base documents of the videos changed or removed
+ * since are hidden with a bit set. Once there are too many pending or hidden videos they are
+ * merged into a new base by copying the live postings.
+ */
+public final class VideoSearchIndex {
+
+    // Field flags stored in the postings, each with a weight used for ranking
+    private static final int FIELD_TITLE = 1;
+    private static final int FIELD_TAG = 1 << 1;
+    private static final int FIELD_AUTHOR = 1 << 2;
+    private static final int FIELD_ANNOTATION = 1 << 3;
+
+    private static final int FIELD_BITS = 4;
+    private static final int FIELD_MASK = (1 << FIELD_BITS) - 1;
+
+    private static final int TITLE_WEIGHT = 8;
+    private static final int TAG_WEIGHT = 4;
+    private static final int AUTHOR_WEIGHT = 2;
+    private static final int ANNOTATION_WEIGHT = 1;
+
+    // The pending videos are indexed again on every change, so there mustn't be many of them
+    private static final int MAX_PENDING_VIDEOS = 64;
+
+    // Small indexes aren't worth merging because of hidden documents
+    private static final int MIN_HIDDEN_DOCUMENTS_TO_MERGE = 64;
+
+    private final Object rebuildLock = new Object();
+
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    // Videos put or removed during a rebuild, or null if there is none. Guarded by this
+    private Set<UUID> changedIds;
+
+    /**
+     * Index the videos from scratch. The new index is built before taking the lock, so changes
+     * can go on against the old one meanwhile. The videos put or removed while building are
+     * looked up from the source again before the new index replaces the old one.
+     */
+    public void rebuild(VideoIndex source) {
+        synchronized (rebuildLock) {
+            Collection<OptimizedVideo> videos;
+
+            synchronized (this) {
+                videos = source.values();
+                changedIds = new HashSet<>();
+            }
+
+            Index newIndex = new Index();
+
+            for (OptimizedVideo video : videos) {
+                newIndex.add(video);
+            }
+
+            synchronized (this) {
+                snapshot = new Snapshot(newIndex, Collections.<UUID, OptimizedVideo>emptyMap(),
+                        new BitSet());
+
+                for (UUID id : changedIds) {
+                    OptimizedVideo video = source.get(id);
+
+                    if (video != null) {
+                        putLocked(video);
+                    } else {
+                        removeLocked(id);
+                    }
+                }
+
+                changedIds = null;
+            }
+        }
+    }
+
+    /**
+     * Add a video or re-index it if it has changed.
+     */
+    public synchronized void put(OptimizedVideo video) {
+        if (changedIds != null) {
+            changedIds.add(video.getId());
+        }
+
+        putLocked(video);
+    }
+
+    public synchronized void remove(UUID id) {
+        if (changedIds != null) {
+            changedIds.add(id);
+        }
+
+        removeLocked(id);
+    }
+
+    public void clear() {
+        // Waits for a rebuild so that it doesn't publish the videos again afterwards
+        synchronized (rebuildLock) {
+            synchronized (this) {
+                snapshot = Snapshot.EMPTY;
+            }
+        }
+    }
+
+    /**
+     * Returns the IDs of the videos matching the query, best matches first.
+     */
+    public List<UUID> search(String query) {
+        List<String> queryWords = tokenize(query);
+
+        if (queryWords.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        Snapshot current = snapshot;
+        List<Result> results = new ArrayList<>();
+
+        current.base.search(queryWords, current.hiddenDocuments, results);
+        current.pendingIndex.search(queryWords, null, results);
+
+        Collections.sort(results);
+
+        List<UUID> ids = new ArrayList<>(results.size());
+        for (Result result : results) {
+            ids.add(result.id);
+        }
+
+        return ids;
+    }
+
+    private void putLocked(OptimizedVideo video) {
+        Snapshot current = snapshot;
+
+        Map<UUID, OptimizedVideo> pendingVideos = new HashMap<>(current.pendingVideos);
+        pendingVideos.put(video.getId(), video);
+
+        publish(current.base, pendingVideos, hide(current, video.getId()));
+    }
+
+    private void removeLocked(UUID id) {
+        Snapshot current = snapshot;
+        BitSet hiddenDocuments = hide(current, id);
+
+        if (hiddenDocuments == current.hiddenDocuments
+                && !current.pendingVideos.containsKey(id)) {
+            return;
+        }
+
+        Map<UUID, OptimizedVideo> pendingVideos = new HashMap<>(current.pendingVideos);
+        pendingVideos.remove(id);
+
+        publish(current.base, pendingVideos, hiddenDocuments);
+    }
+
+    /**
+     * Returns the hidden documents with the base document of the video added, or the same set
+     * if there is nothing to add.
+     */
+    private static BitSet hide(Snapshot snapshot, UUID id) {
+        Integer document = snapshot.base.documents.get(id);
+
+        if (document == null || snapshot.hiddenDocuments.get(document)) {
+            return snapshot.hiddenDocuments;
+        }
+
+        BitSet hiddenDocuments = (BitSet) snapshot.hiddenDocuments.clone();
+        hiddenDocuments.set(document);
+        return hiddenDocuments;
+    }
+
+    private void publish(Index base, Map<UUID, OptimizedVideo> pendingVideos,
+            BitSet hiddenDocuments) {
+
+        int hiddenCount = hiddenDocuments.cardinality();
+        int liveCount = base.documentCount - hiddenCount;
+
+        boolean shouldMerge = pendingVideos.size() > MAX_PENDING_VIDEOS
+                || (hiddenCount >= MIN_HIDDEN_DOCUMENTS_TO_MERGE && hiddenCount > liveCount);
+
+        if (!shouldMerge) {
+            snapshot = new Snapshot(base, Collections.unmodifiableMap(pendingVideos),
+                    hiddenDocuments);
+            return;
+        }
+
+        Index merged = base.compact(hiddenDocuments);
+
+        for (OptimizedVideo video : pendingVideos.values()) {
+            merged.add(video);
+        }
+
+        snapshot = new Snapshot(merged, Collections.<UUID, OptimizedVideo>emptyMap(),
+                new BitSet());
+    }
+
+    /**
+     * Split the text into lower-cased words.
+     */
+    public static List<String> tokenize(String text) {
+        if (text == null || text.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        String folded = text.toLowerCase(Locale.ROOT);
+        List<String> words = new ArrayList<>();
+
+        int length = folded.length();
+        int start = -1;
+
+        for (int i = 0; i <= length; i++) {
+            boolean isWordCharacter = i < length && Character.isLetterOrDigit(folded.charAt(i));
+
+            if (isWordCharacter && start < 0) {
+                start = i;
+            } else if (!isWordCharacter && start >= 0) {
+                words.add(folded.substring(start, i));
+                start = -1;
+            }
+        }
+
+        return words;
+    }
+
+    private static void addWords(Map<String, Integer> fields, String text, int field) {
+        for (String word : tokenize(text)) {
+            Integer oldFields = fields.get(word);
+            fields.put(word, oldFields != null ? oldFields | field : field);
+        }
+    }
+
+    private static int getFieldScore(int fields) {
+        int score = 0;
+
+        if ((fields & FIELD_TITLE) != 0) {
+            score += TITLE_WEIGHT;
+        }
+        if ((fields & FIELD_TAG) != 0) {
+            score += TAG_WEIGHT;
+        }
+        if ((fields & FIELD_AUTHOR) != 0) {
+            score += AUTHOR_WEIGHT;
+        }
+        if ((fields & FIELD_ANNOTATION) != 0) {
+            score += ANNOTATION_WEIGHT;
+        }
+
+        return score;
+    }
+
+    private static int[] append(int[] array, int size, int value) {
+        if (size == array.length) {
+            array = Arrays.copyOf(array, Math.max(4, size * 2));
+        }
+
+        array[size] = value;
+        return array;
+    }
+
+    /**
+     * The documents of a word, each packed as (document number << FIELD_BITS) | fields.
+     */
+    private static final class Postings {
+
+        private int[] entries = new int[2];
+        private int size = 0;
+
+        private void add(int document, int fields) {
+            entries = append(entries, size, (document << FIELD_BITS) | fields);
+            size++;
+        }
+    }
+
+    /**
+     * What a search reads, the base index and the pending videos. Never changed once published.
+     */
+    private static final class Snapshot {
+
+        private static final Snapshot EMPTY = new Snapshot(new Index(),
+                Collections.<UUID, OptimizedVideo>emptyMap(), new BitSet());
+
+        private final Index base;
+
+        // Base documents of the videos that have been changed or removed since it was built
+        private final BitSet hiddenDocuments;
+
+        // Videos put since the base was built and the index of them
+        private final Map<UUID, OptimizedVideo> pendingVideos;
+        private final Index pendingIndex;
+
+        private Snapshot(Index base, Map<UUID, OptimizedVideo> pendingVideos,
+                BitSet hiddenDocuments) {
+
+            this.base = base;
+            this.hiddenDocuments = hiddenDocuments;
+            this.pendingVideos = pendingVideos;
+            this.pendingIndex = new Index();
+
+            for (OptimizedVideo video : pendingVideos.values()) {
+                pendingIndex.add(video);
+            }
+        }
+    }
+
+    /**
+     * The postings and documents that a search reads. Only added to before it is published.
+     */
+    private static final class Index {
+
+        private final NavigableMap<String, Postings> postings = new TreeMap<>();
+
+        // Document numbers of the videos
+        private final Map<UUID, Integer> documents = new HashMap<>();
+
+        // ID and date of every document
+        private UUID[] documentIds = new UUID[16];
+        private long[] documentDates = new long[16];
+        private int documentCount = 0;
+
+        private void add(OptimizedVideo video) {
+            Map<String, Integer> fields = new HashMap<>();
+
+            addWords(fields, video.getTitle(), FIELD_TITLE);
+            addWords(fields, video.getTag(), FIELD_TAG);
+
+            User author = UserPool.getInternedUser(video.getAuthorUserIndex());
+            if (author != null) {
+                addWords(fields, author.getName(), FIELD_AUTHOR);
+            }
+
+            for (int i = 0; i < video.getAnnotationCount(); i++) {
+                addWords(fields, video.getAnnotationText(i), FIELD_ANNOTATION);
+            }
+
+            int document = addDocument(video.getId(), video.getDateInMs());
+
+            for (Map.Entry<String, Integer> field : fields.entrySet()) {
+                getOrCreatePostings(field.getKey()).add(document, field.getValue());
+            }
+        }
+
+        private int addDocument(UUID id, long date) {
+            int document = documentCount++;
+
+            if (document == documentIds.length) {
+                documentIds = Arrays.copyOf(documentIds, document * 2);
+                documentDates = Arrays.copyOf(documentDates, document * 2);
+            }
+
+            documentIds[document] = id;
+            documentDates[document] = date;
+            documents.put(id, document);
+
+            return document;
+        }
+
+        private Postings getOrCreatePostings(String word) {
+            Postings wordPostings = postings.get(word);
+
+            if (wordPostings == null) {
+                wordPostings = new Postings();
+                postings.put(word, wordPostings);
+            }
+
+            return wordPostings;
+        }
+
+        /**
+         * Add the documents matching all of the query words to the results.
+         *
+         * @param hiddenDocuments Documents to skip, or null if there are none.
+         */
+        private void search(List<String> queryWords, BitSet hiddenDocuments,
+                List<Result> results) {
+            int[] scores = new int[documentCount];
+            int[] wordScores = new int[documentCount];
+
+            // Number of query words each document has matched so far
+            int[] matchedWordCounts = new int[documentCount];
+
+            int[] matches = null;
+            int matchCount = 0;
+
+            for (int wordIndex = 0; wordIndex < queryWords.size(); wordIndex++) {
+                String queryWord = queryWords.get(wordIndex);
+
+                int[] wordMatches = new int[16];
+                int wordMatchCount = 0;
+
+                // All of the words starting with the query word are next to each other
+                NavigableMap<String, Postings> words =
+                        postings.subMap(queryWord, true, queryWord + Character.MAX_VALUE, true);
+
+                for (Map.Entry<String, Postings> word : words.entrySet()) {
+                    boolean isWholeWord = word.getKey().equals(queryWord);
+                    Postings wordPostings = word.getValue();
+
+                    for (int i = 0; i < wordPostings.size; i++) {
+                        int entry = wordPostings.entries[i];
+                        int document = entry >>> FIELD_BITS;
+
+                        // Skip hidden documents and the ones that missed an earlier word
+                        if (matchedWordCounts[document] != wordIndex || (hiddenDocuments != null
+                                && hiddenDocuments.get(document))) {
+                            continue;
+                        }
+
+                        int score = getFieldScore(entry & FIELD_MASK);
+                        if (isWholeWord) {
+                            score *= 2;
+                        }
+
+                        int oldScore = wordScores[document];
+
+                        if (oldScore == 0) {
+                            wordMatches = append(wordMatches, wordMatchCount, document);
+                            wordMatchCount++;
+                        }
+
+                        if (score > oldScore) {
+                            wordScores[document] = score;
+                        }
+                    }
+                }
+
+                if (wordMatchCount == 0) {
+                    return;
+                }
+
+                for (int i = 0; i < wordMatchCount; i++) {
+                    int document = wordMatches[i];
+                    scores[document] += wordScores[document];
+                    wordScores[document] = 0;
+                    matchedWordCounts[document] = wordIndex + 1;
+                }
+
+                matches = wordMatches;
+                matchCount = wordMatchCount;
+            }
+
+            for (int i = 0; i < matchCount; i++) {
+                int document = matches[i];
+                results.add(new Result(documentIds[document], scores[document],
+                        documentDates[document]));
+            }
+        }
+
+        /**
+         * Returns a copy without the hidden documents and their postings.
+         */
+        private Index compact(BitSet hiddenDocuments) {
+            Index compacted = new Index();
+            int[] newDocuments = new int[documentCount];
+
+            for (int document = 0; document < documentCount; document++) {
+                newDocuments[document] = !hiddenDocuments.get(document)
+                        ? compacted.addDocument(documentIds[document], documentDates[document])
+                        : -1;
+            }
+
+            for (Map.Entry<String, Postings> word : postings.entrySet()) {
+                Postings wordPostings = word.getValue();
+                Postings newPostings = null;
+
+                for (int i = 0; i < wordPostings.size; i++) {
+                    int entry = wordPostings.entries[i];
+                    int newDocument = newDocuments[entry >>> FIELD_BITS];
+
+                    if (newDocument < 0) {
+                        continue;
+                    }
+
+                    if (newPostings == null) {
+                        newPostings = compacted.getOrCreatePostings(word.getKey());
+                    }
+
+                    newPostings.add(newDocument, entry & FIELD_MASK);
+                }
+            }
+
+            return compacted;
+        }
+    }
+
+    /**
+     * A matching video, ordered by score and then newest first.
+     */
+    private static final class Result implements Comparable<Result> {
+
+        private final UUID id;
+        private final int score;
+        private final long date;
+
+        private Result(UUID id, int score, long date) {
+            this.id = id;
+            this.score = score;
+            this.date = date;
+        }
+
+        @Override
+        public int compareTo(Result other) {
+            if (score != other.score) {
+                return score > other.score ? -1 : 1;
+            }
+
+            if (date != other.date) {
+                return date > other.date ? -1 : 1;
+            }
+
+            return id.compareTo(other.id);
+        }
+    }
+}
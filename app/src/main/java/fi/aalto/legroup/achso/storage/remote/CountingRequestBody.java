@@ -0,0 +1,58 @@
+package fi.aalto.legroup.achso.storage.remote;
+
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.RequestBody;
+
+import java.io.IOException;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.Okio;
+
+/**
+ * Request body that reports the bytes of another body to a tracker as they are written.
+ */
+public final class CountingRequestBody extends RequestBody {
+
+    private final RequestBody body;
+    private final TransferProgressTracker tracker;
+    private final long offset;
+
+    /**
+     * @param offset Bytes of the transfer sent before this body, eg. in the earlier chunks.
+     */
+    public CountingRequestBody(RequestBody body, TransferProgressTracker tracker, long offset) {
+        this.body = body;
+        this.tracker = tracker;
+        this.offset = offset;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return body.contentType();
+    }
+
+    @Override
+    public long contentLength() {
+        return body.contentLength();
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        BufferedSink countingSink = Okio.buffer(new ForwardingSink(sink) {
+            private long bytesWritten = 0;
+
+            @Override
+            public void write(Buffer source, long byteCount) throws IOException {
+                super.write(source, byteCount);
+
+                bytesWritten += byteCount;
+                tracker.update(offset + bytesWritten);
+            }
+        });
+
+        body.writeTo(countingSink);
+        countingSink.flush();
+    }
+}
@@ -0,0 +1,34 @@
+package fi.aalto.legroup.achso.storage.remote;
+
+import java.io.IOException;
+
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Source;
+
+/**
+ * Source that reports the bytes read from another source to a tracker.
+ */
+public final class CountingSource extends ForwardingSource {
+
+    private final TransferProgressTracker tracker;
+
+    private long bytesRead = 0;
+
+    public CountingSource(Source source, TransferProgressTracker tracker) {
+        super(source);
+        this.tracker = tracker;
+    }
+
+    @Override
+    public long read(Buffer sink, long byteCount) throws IOException {
+        long count = super.read(sink, byteCount);
+
+        if (count > 0) {
+            bytesRead += count;
+            tracker.update(bytesRead);
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,310 @@
+package fi.aalto.legroup.achso.storage.remote;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Persistent cache of HTTP validators (ETag and Last-Modified) of the resources we have already
+ * downloaded, so that they can be requested conditionally and unchanged ones come back as 304s.
+ *
+ * The cache doesn't store the responses themselves, callers keep the bodies wherever it makes
+ * sense (eg. the manifest cache) and just ask for a place to store them if there is none.
+ */
+public final class HttpValidatorCache {
+
+    public static final int NO_REVISION = -1;
+
+    private static final int MAGIC = 0x41434856;
+    private static final int VERSION = 1;
+
+    private static final String VALIDATORS_FILE_NAME = "validators";
+
+    public static final class Validator {
+
+        private final String etag;
+        private final String lastModified;
+        private final int revision;
+
+        private Validator(String etag, String lastModified, int revision) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.revision = revision;
+        }
+
+        /**
+         * Returns the revision of the video the validated response contained, or NO_REVISION
+         * if it wasn't a manifest.
+         */
+        public int getRevision() {
+            return revision;
+        }
+
+        /**
+         * Add the conditional headers to a request for the resource.
+         */
+        public Request.Builder addConditions(Request.Builder builder) {
+            if (etag != null) {
+                builder.header("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                builder.header("If-Modified-Since", lastModified);
+            }
+            return builder;
+        }
+    }
+
+    /**
+     * How well the cache has done since the statistics were last taken.
+     */
+    public static final class Statistics {
+
+        private final int requestCount;
+        private final int hitCount;
+        private final long bytesSaved;
+
+        private Statistics(int requestCount, int hitCount, long bytesSaved) {
+            this.requestCount = requestCount;
+            this.hitCount = hitCount;
+            this.bytesSaved = bytesSaved;
+        }
+
+        public int getRequestCount() {
+            return requestCount;
+        }
+
+        public int getHitCount() {
+            return hitCount;
+        }
+
+        public long getBytesSaved() {
+            return bytesSaved;
+        }
+
+        public float getHitRatio() {
+            if (requestCount == 0) {
+                return 0;
+            }
+            return (float) hitCount / requestCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d/%d not modified (%.0f%%), %d bytes saved",
+                    hitCount, requestCount, getHitRatio() * 100, bytesSaved);
+        }
+    }
+
+    private final File directory;
+    private final Map<String, Validator> validators = new HashMap<>();
+
+    private boolean isLoaded = false;
+    private boolean isDirty = false;
+
+    private int requestCount = 0;
+    private int hitCount = 0;
+    private long bytesSaved = 0;
+
+    /**
+     * @param directory Directory to persist the validators and the stored bodies in.
+     */
+    public HttpValidatorCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the validator of the resource or null if there is none.
+     */
+    public synchronized Validator get(String key) {
+        ensureLoaded();
+        return validators.get(key);
+    }
+
+    /**
+     * Remember the validators of a successful response. If the response has none the old ones
+     * are forgotten.
+     *
+     * @param revision Revision of the video in the response, or NO_REVISION.
+     */
+    public synchronized void put(String key, Response response, int revision) {
+        ensureLoaded();
+
+        String etag = response.header("ETag");
+        String lastModified = response.header("Last-Modified");
+
+        if (etag == null && lastModified == null) {
+            remove(key);
+            return;
+        }
+
+        validators.put(key, new Validator(etag, lastModified, revision));
+        isDirty = true;
+    }
+
+    public synchronized void remove(String key) {
+        ensureLoaded();
+
+        if (validators.remove(key) != null) {
+            isDirty = true;
+        }
+    }
+
+    /**
+     * Returns a file to store the body of the resource in, for resources that aren't stored
+     * anywhere else.
+     */
+    public File getBodyFile(String key) {
+        String name = Hashing.sha1().hashString(key, Charsets.UTF_8).toString();
+        return new File(directory, name + ".body");
+    }
+
+    /**
+     * Record the outcome of a conditional request.
+     *
+     * @param bytesSaved Size of the body that didn't need to be transferred, if any.
+     */
+    public synchronized void recordRequest(boolean isNotModified, long bytesSaved) {
+        requestCount++;
+
+        if (isNotModified) {
+            hitCount++;
+            this.bytesSaved += bytesSaved;
+        }
+    }
+
+    /**
+     * Returns the statistics since the last call and starts counting from zero.
+     */
+    public synchronized Statistics takeStatistics() {
+        Statistics statistics = new Statistics(requestCount, hitCount, bytesSaved);
+
+        requestCount = 0;
+        hitCount = 0;
+        bytesSaved = 0;
+
+        return statistics;
+    }
+
+    private void ensureLoaded() {
+        if (!isLoaded) {
+            read();
+            isLoaded = true;
+        }
+    }
+
+    private void read() {
+        File file = new File(directory, VALIDATORS_FILE_NAME);
+
+        if (!file.exists()) {
+            return;
+        }
+
+        DataInputStream input = null;
+
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Unsupported validator cache " + file);
+            }
+
+            int count = input.readInt();
+
+            for (int i = 0; i < count; i++) {
+                String key = input.readUTF();
+                String etag = input.readBoolean() ? input.readUTF() : null;
+                String lastModified = input.readBoolean() ? input.readUTF() : null;
+                int revision = input.readInt();
+
+                validators.put(key, new Validator(etag, lastModified, revision));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+
+            // Everything will just be requested unconditionally once
+            validators.clear();
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Persist the validators if they have changed since they were read or last written.
+     */
+    public synchronized void writeIfDirty() {
+        if (!isDirty) {
+            return;
+        }
+
+        directory.mkdirs();
+
+        File file = new File(directory, VALIDATORS_FILE_NAME);
+        File temporaryFile = new File(directory, VALIDATORS_FILE_NAME + ".tmp");
+        DataOutputStream output = null;
+
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temporaryFile)));
+
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(validators.size());
+
+            for (Map.Entry<String, Validator> entry : validators.entrySet()) {
+                Validator validator = entry.getValue();
+
+                output.writeUTF(entry.getKey());
+                writeNullableString(output, validator.etag);
+                writeNullableString(output, validator.lastModified);
+                output.writeInt(validator.revision);
+            }
+
+            output.close();
+            output = null;
+
+            if (!temporaryFile.renameTo(file)) {
+                throw new IOException("Failed to replace validator cache " + file);
+            }
+
+            isDirty = false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            temporaryFile.delete();
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static void writeNullableString(DataOutputStream output, String string)
+            throws IOException {
+        output.writeBoolean(string != null);
+        if (string != null) {
+            output.writeUTF(string);
+        }
+    }
+}
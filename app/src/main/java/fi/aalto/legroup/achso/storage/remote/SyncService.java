@@ -3,6 +3,7 @@ package fi.aalto.legroup.achso.storage.remote;
 import android.app.IntentService;
 import android.content.Context;
 import android.content.Intent;
+import android.util.Log;
 
 import fi.aalto.legroup.achso.app.App;
 
@@ -12,6 +13,8 @@ import fi.aalto.legroup.achso.app.App;
  */
 public final class SyncService extends IntentService {
 
+    private static final String TAG = SyncService.class.getSimpleName();
+
     private static boolean isSyncPending = false;
 
     /**
@@ -35,5 +38,12 @@ public final class SyncService extends IntentService {
     protected void onHandleIntent(Intent intent) {
         App.videoRepository.refreshOnline();
         isSyncPending = false;
+
+        if (App.achRails != null) {
+            HttpValidatorCache validatorCache = App.achRails.getValidatorCache();
+            validatorCache.writeIfDirty();
+
+            Log.i(TAG, "Conditional requests during sync: " + validatorCache.takeStatistics());
+        }
     }
 }
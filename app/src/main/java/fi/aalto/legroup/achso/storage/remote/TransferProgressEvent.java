@@ -0,0 +1,65 @@
+package fi.aalto.legroup.achso.storage.remote;
+
+import java.util.UUID;
+
+/**
+ * Progress of the transfer of a video. Any of the values may be UNKNOWN, for example the total
+ * size if the server didn't tell it.
+ */
+public class TransferProgressEvent {
+
+    public static final long UNKNOWN = -1;
+
+    private UUID videoId;
+    private long bytesTransferred;
+    private long bytesTotal;
+    private long bytesPerSecond;
+    private long remainingMilliseconds;
+
+    public TransferProgressEvent(UUID videoId, long bytesTransferred, long bytesTotal,
+            long bytesPerSecond, long remainingMilliseconds) {
+        this.videoId = videoId;
+        this.bytesTransferred = bytesTransferred;
+        this.bytesTotal = bytesTotal;
+        this.bytesPerSecond = bytesPerSecond;
+        this.remainingMilliseconds = remainingMilliseconds;
+    }
+
+    public UUID getVideoId() {
+        return this.videoId;
+    }
+
+    public long getBytesTransferred() {
+        return this.bytesTransferred;
+    }
+
+    public long getBytesTotal() {
+        return this.bytesTotal;
+    }
+
+    public long getBytesPerSecond() {
+        return this.bytesPerSecond;
+    }
+
+    public long getRemainingMilliseconds() {
+        return this.remainingMilliseconds;
+    }
+
+    /**
+     * Returns true if the fraction of the transfer that is done is known.
+     */
+    public boolean isDeterminate() {
+        return bytesTransferred != UNKNOWN && bytesTotal > 0;
+    }
+
+    /**
+     * Returns the fraction of the transfer that is done, between 0 and 1.
+     */
+    public float getFraction() {
+        if (!isDeterminate()) {
+            return 0;
+        }
+        return Math.min(1f, (float) bytesTransferred / bytesTotal);
+    }
+
+}
@@ -0,0 +1,163 @@
+package fi.aalto.legroup.achso.storage.remote;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.analytics.HitBuilders;
+import com.squareup.otto.Bus;
+
+import java.util.UUID;
+
+import fi.aalto.legroup.achso.app.AppAnalytics;
+import fi.aalto.legroup.achso.storage.remote.download.DownloadProgressEvent;
+import fi.aalto.legroup.achso.storage.remote.upload.UploadProgressEvent;
+
+/**
+ * Follows the bytes of a transfer as they go and posts progress events about them, at most ten
+ * times a second so that the bus and the views aren't flooded.
+ *
+ * The throughput is counted from the first update, so a resumed transfer isn't credited with
+ * the bytes that were sent before. When the transfer is finished the throughput is logged and
+ * sent to analytics for capacity planning.
+ */
+public abstract class TransferProgressTracker {
+
+    private static final String TAG = TransferProgressTracker.class.getSimpleName();
+
+    private static final long REPORT_INTERVAL_MILLISECONDS = 100;
+
+    protected final Bus bus;
+    protected final UUID videoId;
+
+    private final long bytesTotal;
+
+    private long startTime = -1;
+    private long startBytes;
+    private long lastReportTime;
+    private long bytesTransferred;
+
+    protected TransferProgressTracker(Bus bus, UUID videoId, long bytesTotal) {
+        this.bus = bus;
+        this.videoId = videoId;
+        this.bytesTotal = bytesTotal;
+    }
+
+    /**
+     * Returns a tracker that posts UploadProgressEvents for the video data.
+     */
+    public static TransferProgressTracker forUpload(Bus bus, UUID videoId, long bytesTotal) {
+        return new TransferProgressTracker(bus, videoId, bytesTotal) {
+            @Override
+            protected Object createEvent(long bytesTransferred, long bytesTotal,
+                    long bytesPerSecond, long remainingMilliseconds) {
+                return new UploadProgressEvent(videoId, UploadProgressEvent.Stage.VIDEO,
+                        bytesTransferred, bytesTotal, bytesPerSecond, remainingMilliseconds);
+            }
+
+            @Override
+            protected String getDirection() {
+                return "Upload";
+            }
+        };
+    }
+
+    /**
+     * Returns a tracker that posts DownloadProgressEvents.
+     *
+     * @param bytesTotal Size of the download or TransferProgressEvent.UNKNOWN.
+     */
+    public static TransferProgressTracker forDownload(Bus bus, UUID videoId, long bytesTotal) {
+        return new TransferProgressTracker(bus, videoId, bytesTotal) {
+            @Override
+            protected Object createEvent(long bytesTransferred, long bytesTotal,
+                    long bytesPerSecond, long remainingMilliseconds) {
+                return new DownloadProgressEvent(videoId, bytesTransferred, bytesTotal,
+                        bytesPerSecond, remainingMilliseconds);
+            }
+
+            @Override
+            protected String getDirection() {
+                return "Download";
+            }
+        };
+    }
+
+    protected abstract Object createEvent(long bytesTransferred, long bytesTotal,
+            long bytesPerSecond, long remainingMilliseconds);
+
+    protected abstract String getDirection();
+
+    /**
+     * Record the number of bytes transferred so far. May be called from any thread as often as
+     * needed, events are only posted every now and then.
+     */
+    public synchronized void update(long bytesTransferred) {
+        long now = SystemClock.elapsedRealtime();
+
+        this.bytesTransferred = bytesTransferred;
+
+        if (startTime < 0) {
+            startTime = now;
+            startBytes = bytesTransferred;
+        } else if (now - lastReportTime < REPORT_INTERVAL_MILLISECONDS
+                && bytesTransferred != bytesTotal) {
+            return;
+        }
+
+        lastReportTime = now;
+
+        long bytesPerSecond = getBytesPerSecond(now);
+        long remainingMilliseconds = TransferProgressEvent.UNKNOWN;
+
+        if (bytesPerSecond > 0 && bytesTotal > 0) {
+            remainingMilliseconds = Math.max(0, bytesTotal - bytesTransferred) * 1000
+                    / bytesPerSecond;
+        }
+
+        bus.post(createEvent(bytesTransferred, bytesTotal, bytesPerSecond,
+                remainingMilliseconds));
+    }
+
+    /**
+     * Record that the transfer has ended. A failed transfer is reported too, the bytes it got
+     * through are as good a sample of the throughput as any.
+     */
+    public synchronized void finish() {
+        if (startTime < 0) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        long elapsedMilliseconds = now - startTime;
+        long bytes = bytesTransferred - startBytes;
+        long bytesPerSecond = getBytesPerSecond(now);
+
+        Log.i(TAG, String.format("%s of %s: %d bytes in %d ms (%d kB/s)", getDirection(),
+                videoId, bytes, elapsedMilliseconds, bytesPerSecond / 1024));
+
+        AppAnalytics.send(new HitBuilders.TimingBuilder()
+                .setCategory(AppAnalytics.CATEGORY_TRANSFERS)
+                .setVariable(getDirection())
+                .setValue(elapsedMilliseconds)
+                .setLabel(getThroughputLabel(bytesPerSecond))
+                .build());
+    }
+
+    private long getBytesPerSecond(long now) {
+        long elapsedMilliseconds = now - startTime;
+
+        if (elapsedMilliseconds <= 0) {
+            return TransferProgressEvent.UNKNOWN;
+        }
+
+        return (bytesTransferred - startBytes) * 1000 / elapsedMilliseconds;
+    }
+
+    /**
+     * Round the throughput down to a power of two so that the analytics can be grouped by it.
+     */
+    private static String getThroughputLabel(long bytesPerSecond) {
+        long kilobytesPerSecond = Math.max(1, bytesPerSecond / 1024);
+        return Long.highestOneBit(kilobytesPerSecond) + " kB/s";
+    }
+}
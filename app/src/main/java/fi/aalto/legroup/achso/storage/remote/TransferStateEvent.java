@@ -21,6 +21,7 @@ public class TransferStateEvent {
     }
 
     public static enum Type {
+        QUEUED,
         STARTED,
         SUCCEEDED,
         FAILED,
@@ -13,7 +13,9 @@ import java.util.UUID;
 
 import fi.aalto.legroup.achso.entities.Group;
 import fi.aalto.legroup.achso.entities.Video;
+import fi.aalto.legroup.achso.entities.VideoIndexDelta;
 import fi.aalto.legroup.achso.entities.VideoReference;
+import fi.aalto.legroup.achso.entities.VideoSearchPage;
 
 /**
  * Online video storage.
@@ -22,6 +24,15 @@ public interface VideoHost {
 
     public List<VideoReference> getIndex() throws IOException;
 
+    /**
+     * Get the changes to the video index since the last sync.
+     * @param cursor Cursor returned with the previous index, or null to get the full index.
+     * @return The changed and deleted videos since the cursor. Note: Hosts that don't support
+     * cursors return the full index, check `isFullIndex()`.
+     * @throws IOException
+     */
+    public VideoIndexDelta getIndexSince(String cursor) throws IOException;
+
     public List<Group> getGroups() throws IOException;
 
     public void makeVideoPublic(UUID videoId) throws IOException, JSONException;
@@ -32,7 +43,21 @@ public interface VideoHost {
 
     public void shareVideo(UUID videoId, int groupId) throws IOException, JSONException;
 
-    public ArrayList<Video> findVideosByQuery(String query) throws  IOException;
+    /**
+     * Search the host for videos, one page at a time.
+     * @param offset Offset of the page, 0 for the first one and then the next offset of the
+     *               previous page.
+     * @param limit  Maximum number of results on the page.
+     * @param tag    Tag of the requests made, so that they can be cancelled with cancelRequests().
+     * @throws IOException
+     */
+    public VideoSearchPage searchVideos(String query, int offset, int limit, Object tag)
+            throws  IOException;
+
+    /**
+     * Cancel the requests made with the tag that are still in flight.
+     */
+    public void cancelRequests(Object tag);
 
     /**
      * Download video manifest data with a given ID.
@@ -42,6 +67,14 @@ public interface VideoHost {
      */
     public Video downloadVideoManifest(UUID id) throws IOException;
 
+    /**
+     * Download the manifests of many videos with as few requests as possible.
+     * @return The videos that could be downloaded, in no particular order. Note: IDs that failed
+     * to download are left out of the result, the caller should check which ones are missing.
+     * @throws IOException If none of the manifests could be requested.
+     */
+    public List<Video> downloadVideoManifests(List<UUID> ids) throws IOException;
+
     public void downloadCachedFiles(Video video, Uri thumbUri, Uri videoUri) throws IOException;
 
     /**
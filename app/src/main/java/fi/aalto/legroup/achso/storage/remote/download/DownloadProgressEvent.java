@@ -0,0 +1,13 @@
+package fi.aalto.legroup.achso.storage.remote.download;
+
+import java.util.UUID;
+
+import fi.aalto.legroup.achso.storage.remote.TransferProgressEvent;
+
+public class DownloadProgressEvent extends TransferProgressEvent {
+
+    public DownloadProgressEvent(UUID videoId, long bytesTransferred, long bytesTotal,
+            long bytesPerSecond, long remainingMilliseconds) {
+        super(videoId, bytesTransferred, bytesTotal, bytesPerSecond, remainingMilliseconds);
+    }
+}
@@ -3,6 +3,7 @@ package fi.aalto.legroup.achso.storage.remote.strategies;
 import android.accounts.Account;
 import android.net.Uri;
 
+import com.google.common.io.Files;
 import com.squareup.okhttp.Callback;
 import com.squareup.okhttp.FormEncodingBuilder;
 import com.squareup.okhttp.MediaType;
@@ -15,22 +16,39 @@ import org.apache.http.protocol.RequestUserAgent;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import fi.aalto.legroup.achso.app.App;
+import fi.aalto.legroup.achso.authentication.AuthenticatedHttpClient;
 import fi.aalto.legroup.achso.entities.Group;
 import fi.aalto.legroup.achso.entities.Video;
+import fi.aalto.legroup.achso.entities.VideoIndexDelta;
 import fi.aalto.legroup.achso.entities.VideoReference;
+import fi.aalto.legroup.achso.entities.VideoSearchPage;
+import fi.aalto.legroup.achso.entities.VideoSummary;
 import fi.aalto.legroup.achso.entities.serialization.json.JsonSerializable;
 import fi.aalto.legroup.achso.entities.serialization.json.JsonSerializer;
+import fi.aalto.legroup.achso.storage.VideoRepository;
+import fi.aalto.legroup.achso.storage.remote.CountingSource;
+import fi.aalto.legroup.achso.storage.remote.HttpValidatorCache;
+import fi.aalto.legroup.achso.storage.remote.TransferProgressTracker;
 import fi.aalto.legroup.achso.storage.remote.VideoHost;
 import fi.aalto.legroup.achso.utilities.EmptyCallback;
 import okio.BufferedSink;
 import okio.Okio;
+import okio.Source;
 
 public class AchRailsStrategy implements VideoHost {
 
@@ -42,35 +60,107 @@ public class AchRailsStrategy implements VideoHost {
         public List<Group> groups;
     }
 
-    class JsonVideoList implements  JsonSerializable {
-        public ArrayList<Video> videos;
+    class JsonVideoSummaryList implements  JsonSerializable {
+        public ArrayList<VideoSummary> videos;
     }
 
     class JsonVideoReferences implements JsonSerializable {
         public JsonVideoReference[] videos;
+
+        // Only sent by servers that support delta syncing
+        public String[] deleted;
+        public String cursor;
+        public boolean delta;
     }
 
+    public static final int DEFAULT_MANIFEST_BATCH_SIZE = 50;
+
     private JsonSerializer serializer;
+    private AuthenticatedHttpClient httpClient;
     private Uri endpointUrl;
+    private HttpValidatorCache validatorCache;
+    private VideoRepository repository;
+
+    private int manifestBatchSize = DEFAULT_MANIFEST_BATCH_SIZE;
 
-    public AchRailsStrategy(JsonSerializer serializer, Uri endpointUrl) {
+    // Cleared if the server doesn't have the batch endpoint, manifests are then requested one by one
+    private volatile boolean supportsManifestBatches = true;
+
+    /**
+     * @param repository Repository whose cache the manifests and files are stored in.
+     */
+    public AchRailsStrategy(JsonSerializer serializer, AuthenticatedHttpClient httpClient,
+            Uri endpointUrl, HttpValidatorCache validatorCache, VideoRepository repository) {
         this.serializer = serializer;
+        this.httpClient = httpClient;
         this.endpointUrl = endpointUrl;
+        this.validatorCache = validatorCache;
+        this.repository = repository;
+    }
+
+    public HttpValidatorCache getValidatorCache() {
+        return validatorCache;
+    }
+
+    /**
+     * Set the maximum number of manifests to request at once. Larger batches save round trips
+     * but a failed batch has to be retried one by one.
+     */
+    public void setManifestBatchSize(int manifestBatchSize) {
+        this.manifestBatchSize = Math.max(1, manifestBatchSize);
+    }
+
+    public int getManifestBatchSize() {
+        return manifestBatchSize;
+    }
+
+    /**
+     * The index and the manifests are revalidated through the validator cache and their bodies
+     * are kept by it and the repository, so the HTTP cache shouldn't store another copy.
+     */
+    private static Request.Builder newValidatedRequest() {
+        return new Request.Builder().header("Cache-Control", "no-store");
     }
 
     Request.Builder buildVideosRequest() {
-        return new Request.Builder()
+        return newValidatedRequest()
             .url(endpointUrl.buildUpon().appendPath("videos.json").toString());
     }
 
+    Request.Builder buildVideosSinceRequest(String cursor) {
+        return newValidatedRequest()
+            .url(endpointUrl.buildUpon()
+                    .appendPath("videos.json")
+                    .appendQueryParameter("since", cursor)
+                    .toString());
+    }
+
     Request.Builder buildVideosRequest(UUID id) {
-        return new Request.Builder()
+        return newValidatedRequest()
             .url(endpointUrl.buildUpon()
                     .appendPath("videos")
                     .appendPath(id.toString() + ".json")
                     .toString());
     }
 
+    Request.Builder buildVideoBatchRequest(List<UUID> ids) {
+        StringBuilder idList = new StringBuilder(ids.size() * 37);
+
+        for (UUID id : ids) {
+            if (idList.length() > 0) {
+                idList.append(',');
+            }
+            idList.append(id.toString());
+        }
+
+        return newValidatedRequest()
+            .url(endpointUrl.buildUpon()
+                    .appendPath("videos")
+                    .appendPath("batch.json")
+                    .appendQueryParameter("ids", idList.toString())
+                    .toString());
+    }
+
     Request.Builder buildOwnGroupsRequest() {
         return new Request.Builder()
                 .url(endpointUrl.buildUpon().appendPath("groups").appendPath("own.json").toString());
@@ -91,9 +181,16 @@ public class AchRailsStrategy implements VideoHost {
                 .url(endpointUrl.buildUpon().appendPath("videos").appendPath(videoId.toString()).appendPath("shares").appendPath(Integer.toString(groupId)).toString());
     }
 
+    /**
+     * Returns the account the requests are made with.
+     */
+    protected Account getAccount() {
+        return App.loginManager.getAccount();
+    }
+
     private Response executeRequestNoFail(Request request) throws IOException {
-        Account account = App.loginManager.getAccount();
-        return App.authenticatedHttpClient.execute(request, account);
+        Account account = getAccount();
+        return httpClient.execute(request, account);
     }
 
     private Response validateResponse(Response response) throws IOException {
@@ -106,7 +203,7 @@ public class AchRailsStrategy implements VideoHost {
 
     private Response executeRequestWithAccount(Account account, Request request) {
         try {
-            return App.authenticatedHttpClient.execute(request, account);
+            return httpClient.execute(request, account);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -118,17 +215,106 @@ public class AchRailsStrategy implements VideoHost {
         return validateResponse(executeRequestNoFail(request));
     }
 
+    /**
+     * The same URL returns different data for different users, so validators are per account.
+     */
+    private String getValidatorKey(Request request) {
+        Account account = getAccount();
+        String accountName = account != null ? account.name : "";
+        return accountName + " " + request.urlString();
+    }
+
     @Override
     public List<VideoReference> getIndex() throws IOException {
-        Request request = buildVideosRequest().get().build();
-        Response response = executeRequest(request);
-        JsonVideoReferences videos = serializer.read(JsonVideoReferences.class,
-                response.body().byteStream());
-        List<VideoReference> references = new ArrayList<>(videos.videos.length);
-        for (JsonVideoReference video : videos.videos) {
+        return getIndexSince(null).getChanged();
+    }
+
+    @Override
+    public VideoIndexDelta getIndexSince(String cursor) throws IOException {
+        if (cursor == null) {
+            return getFullIndex();
+        }
+
+        Request request = buildVideosSinceRequest(cursor).get().build();
+        Response response = executeRequestNoFail(request);
+
+        if (!response.isSuccessful()) {
+            // The server may reject expired or unknown cursors, start over with the full index
+            response.body().close();
+            return getFullIndex();
+        }
+
+        // Servers without delta support ignore the cursor and respond with the full index
+        return readIndex(response.body().byteStream());
+    }
+
+    private VideoIndexDelta getFullIndex() throws IOException {
+        Request.Builder builder = buildVideosRequest().get();
+        String key = getValidatorKey(builder.build());
+
+        // The index isn't stored anywhere else, so keep the last one around for 304s
+        HttpValidatorCache.Validator validator = validatorCache.get(key);
+        File bodyFile = validatorCache.getBodyFile(key);
+        boolean isConditional = validator != null && bodyFile.exists();
+
+        if (isConditional) {
+            validator.addConditions(builder);
+        }
+
+        Response response = executeRequestNoFail(builder.build());
+
+        if (isConditional && response.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            response.body().close();
+            validatorCache.recordRequest(true, bodyFile.length());
+            return readIndex(new FileInputStream(bodyFile));
+        }
+
+        validateResponse(response);
+        validatorCache.recordRequest(false, 0);
+
+        byte[] body = response.body().bytes();
+
+        try {
+            Files.write(body, bodyFile);
+            validatorCache.put(key, response, HttpValidatorCache.NO_REVISION);
+        } catch (IOException e) {
+            e.printStackTrace();
+            validatorCache.remove(key);
+        }
+
+        return readIndex(new ByteArrayInputStream(body));
+    }
+
+    private VideoIndexDelta readIndex(InputStream input) throws IOException {
+        JsonVideoReferences videos = serializer.read(JsonVideoReferences.class, input);
+
+        if (videos == null) {
+            throw new IOException("Empty video index.");
+        }
+
+        // Deltas with only deletions may leave out the changed videos
+        JsonVideoReference[] changed = videos.videos;
+        if (changed == null) {
+            changed = new JsonVideoReference[0];
+        }
+
+        List<VideoReference> references = new ArrayList<>(changed.length);
+        for (JsonVideoReference video : changed) {
             references.add(new VideoReference(UUID.fromString(video.uuid), video.revision));
         }
-        return references;
+
+        if (!videos.delta) {
+            return VideoIndexDelta.fullIndex(references, videos.cursor);
+        }
+
+        List<UUID> deleted = new ArrayList<>();
+        if (videos.deleted != null) {
+            for (String uuid : videos.deleted) {
+                deleted.add(UUID.fromString(uuid));
+            }
+        }
+
+        return new VideoIndexDelta(references, deleted, videos.cursor, false);
     }
 
     @Override
@@ -212,34 +398,197 @@ public class AchRailsStrategy implements VideoHost {
     @Override
     public Video downloadVideoManifest(UUID id) throws IOException {
 
-        Request request = buildVideosRequest(id).get().build();
-        Response response = executeRequest(request);
+        Request.Builder builder = buildVideosRequest(id).get();
+        String key = getValidatorKey(builder.build());
+
+        // Unchanged manifests are served from the manifest cache
+        HttpValidatorCache.Validator validator = validatorCache.get(key);
+        File cachedFile = repository.getManifestCacheFile(id);
+        boolean isConditional = validator != null && cachedFile.exists();
+
+        if (isConditional) {
+            validator.addConditions(builder);
+        }
+
+        Request request = builder.build();
+        Response response = executeRequestNoFail(request);
+
+        if (isConditional && response.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            response.body().close();
+
+            Video video = repository.readManifestCacheFile(id);
+
+            if (video.getRevision() != validator.getRevision()) {
+                // The cached manifest has been replaced since, it can't be trusted
+                validatorCache.remove(key);
+                return downloadVideoManifest(id);
+            }
+
+            validatorCache.recordRequest(true, cachedFile.length());
+
+            Date lastModified = response.headers().getDate("Last-Modified");
+            if (lastModified == null) {
+                lastModified = new Date(cachedFile.lastModified());
+            }
+
+            video.setManifestUri(Uri.parse(request.uri().toString()));
+            video.setLastModified(lastModified);
+            return video;
+        }
+
+        validateResponse(response);
+        validatorCache.recordRequest(false, 0);
 
         Video video = serializer.read(Video.class, response.body().byteStream());
+        validatorCache.put(key, response, video.getRevision());
 
         video.setManifestUri(Uri.parse(request.uri().toString()));
         video.setLastModified(response.headers().getDate("Last-Modified"));
         return video;
     }
-    private void downloadFile(Uri uri, File endpoint) throws IOException {
-        Request request = new Request.Builder()
+
+    @Override
+    public List<Video> downloadVideoManifests(List<UUID> ids) throws IOException {
+        List<Video> videos = new ArrayList<>(ids.size());
+
+        for (int start = 0; start < ids.size(); start += manifestBatchSize) {
+            List<UUID> batch = ids.subList(start, Math.min(start + manifestBatchSize, ids.size()));
+            Set<UUID> missingIds = new HashSet<>(batch);
+
+            if (supportsManifestBatches && batch.size() > 1) {
+                try {
+                    downloadVideoManifestBatch(batch, videos, missingIds);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            // Fall back to requesting the rest one by one
+            for (UUID id : missingIds) {
+                try {
+                    videos.add(downloadVideoManifest(id));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        return videos;
+    }
+
+    /**
+     * Download the manifests in one request. The validators of the response cover the whole
+     * batch, so nothing is stored in the validator cache and the last modified date of the
+     * manifests is left unset. A validator stored earlier for a single manifest is kept, it is
+     * checked against the revision of the cached manifest before a 304 is trusted.
+     */
+    private void downloadVideoManifestBatch(List<UUID> ids, final List<Video> videos,
+            final Set<UUID> missingIds) throws IOException {
+
+        Request request = buildVideoBatchRequest(ids).get().build();
+        Response response = executeRequestNoFail(request);
+
+        int code = response.code();
+        if (code == 404 || code == 405 || code == 501) {
+            response.body().close();
+            supportsManifestBatches = false;
+            return;
+        }
+
+        validateResponse(response);
+
+        serializer.readArray(Video.class, "videos", response.body().byteStream(),
+                new JsonSerializer.ElementHandler<Video>() {
+                    @Override
+                    public void onElement(Video video) throws IOException {
+                        // Ignore anything the server sends that wasn't asked for
+                        if (video.getId() == null || !missingIds.remove(video.getId())) {
+                            return;
+                        }
+
+                        Uri manifestUri = Uri.parse(buildVideosRequest(video.getId()).build()
+                                .uri().toString());
+
+                        video.setManifestUri(manifestUri);
+                        videos.add(video);
+                    }
+                });
+    }
+
+    /**
+     * @param videoId Video to report the progress of the download for, or null to not report it.
+     */
+    private void downloadFile(Uri uri, File endpoint, boolean isCacheable, UUID videoId)
+            throws IOException {
+        Request.Builder builder = new Request.Builder()
                 .url(uri.toString())
-                .get().build();
+                .get();
+
+        // The file is kept in the video cache anyway, so large ones shouldn't push everything
+        // else out of the HTTP cache
+        if (!isCacheable) {
+            builder.header("Cache-Control", "no-store");
+        }
+
+        Response response = httpClient.getHttpClient().newCall(builder.build()).execute();
+
+        if (!response.isSuccessful()) {
+            response.body().close();
+            throw new IOException(response.code() + " " + response.message());
+        }
 
-        Response response = App.httpClient.newCall(request).execute();
-        BufferedSink sink = Okio.buffer(Okio.sink(endpoint));
-        sink.writeAll(response.body().source());
-        sink.close();
+        Source source = response.body().source();
+        TransferProgressTracker tracker = null;
+
+        if (videoId != null) {
+            tracker = TransferProgressTracker.forDownload(App.bus, videoId,
+                    response.body().contentLength());
+            source = new CountingSource(source, tracker);
+        }
+
+        BufferedSink sink = null;
+        boolean isComplete = false;
+
+        try {
+            sink = Okio.buffer(Okio.sink(endpoint));
+            sink.writeAll(source);
+            sink.close();
+            sink = null;
+            isComplete = true;
+        } finally {
+            if (sink != null) {
+                try {
+                    sink.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            try {
+                source.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            // A partial file would be taken for a cached copy
+            if (!isComplete) {
+                endpoint.delete();
+            }
+
+            if (tracker != null) {
+                tracker.finish();
+            }
+        }
     }
 
     @Override
     public void downloadCachedFiles(Video video, Uri thumbUri, Uri videoUri) throws IOException {
         UUID uuid = video.getId();
-        File thumbFile = App.videoRepository.getThumbCacheFile(uuid);
-        File videoFile = App.videoRepository.getVideoCacheFile(uuid);
+        File thumbFile = repository.getThumbCacheFile(uuid);
+        File videoFile = repository.getVideoCacheFile(uuid);
 
-        downloadFile(thumbUri, thumbFile);
-        downloadFile(videoUri, videoFile);
+        downloadFile(thumbUri, thumbFile, true, null);
+        downloadFile(videoUri, videoFile, false, uuid);
 
         video.setCacheThumbUri(android.net.Uri.parse((thumbFile.toURI().toString())));
         video.setCacheVideoUri(android.net.Uri.parse((videoFile.toURI().toString())));
@@ -271,9 +620,8 @@ public class AchRailsStrategy implements VideoHost {
 
         Request.Builder requestBuilder = buildVideosRequest(video.getId());
 
-        String serializedVideo = serializer.write(video);
         Request request = requestBuilder
-                .put(RequestBody.create(MediaType.parse("application/json"), serializedVideo))
+                .put(serializer.createRequestBody(video))
                 .build();
 
         Response response = executeRequest(request);
@@ -292,31 +640,50 @@ public class AchRailsStrategy implements VideoHost {
     }
 
     @Override
-    public ArrayList<Video> findVideosByQuery(String query) throws  IOException {
+    public VideoSearchPage searchVideos(String query, int offset, int limit, Object tag)
+            throws  IOException {
         Uri url = endpointUrl.buildUpon()
                 .appendPath("videos")
                 .appendPath("search")
                 .appendQueryParameter("q", query)
+                .appendQueryParameter("offset", String.valueOf(offset))
+                .appendQueryParameter("limit", String.valueOf(limit))
                 .build();
 
         Request request = new Request.Builder()
                 .url(url.toString())
                 .addHeader("Accept", "application/json")
+                .tag(tag)
                 .get().build();
 
         Response response = executeRequest(request);
-        if (response.isSuccessful()) {
-            JsonVideoList jsonVideoList = serializer.read(JsonVideoList.class, response.body().byteStream());
 
-            for (Video video : jsonVideoList.videos) {
-                video.setIsTemporary(true);
-                video.setRepository(App.videoRepository);
-            }
-            return jsonVideoList.videos;
+        // The results are full manifests, only the summary fields are picked from them and the
+        // rest is skipped while parsing.
+        JsonVideoSummaryList list = serializer.read(JsonVideoSummaryList.class,
+                response.body().byteStream());
+
+        List<VideoSummary> summaries = list.videos;
+        if (summaries == null) {
+            summaries = Collections.emptyList();
+        }
+
+        int nextOffset;
+
+        // A short page is the last one, and a longer one means that the server doesn't support
+        // paging and sent everything at once
+        if (summaries.size() != limit) {
+            nextOffset = VideoSearchPage.NO_MORE_PAGES;
         } else {
-            return null;
+            nextOffset = offset + summaries.size();
         }
 
+        return new VideoSearchPage(summaries, nextOffset);
+    }
+
+    @Override
+    public void cancelRequests(Object tag) {
+        httpClient.getHttpClient().cancel(tag);
     }
 
     @Override
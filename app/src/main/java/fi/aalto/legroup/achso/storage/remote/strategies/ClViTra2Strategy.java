@@ -17,9 +17,15 @@ import com.squareup.okhttp.Response;
 import java.io.File;
 import java.io.IOException;
 import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.Map;
 
 import fi.aalto.legroup.achso.app.App;
+import fi.aalto.legroup.achso.authentication.AuthenticatedHttpClient;
 import fi.aalto.legroup.achso.entities.Video;
+import fi.aalto.legroup.achso.storage.remote.CountingRequestBody;
+import fi.aalto.legroup.achso.storage.remote.TransferProgressTracker;
+import fi.aalto.legroup.achso.storage.remote.upload.ResumableUpload;
 import fi.aalto.legroup.achso.storage.remote.upload.uploaders.VideoUploader;
 
 /**
@@ -27,9 +33,14 @@ import fi.aalto.legroup.achso.storage.remote.upload.uploaders.VideoUploader;
  */
 public class ClViTra2Strategy implements VideoUploader {
 
+    private AuthenticatedHttpClient httpClient;
+    private ResumableUpload resumableUpload;
     private Uri endpointUrl;
 
-    public ClViTra2Strategy(Uri endpointUrl) {
+    public ClViTra2Strategy(AuthenticatedHttpClient httpClient, ResumableUpload resumableUpload,
+            Uri endpointUrl) {
+        this.httpClient = httpClient;
+        this.resumableUpload = resumableUpload;
         this.endpointUrl = App.getLayersServiceUrl(endpointUrl);
     }
 
@@ -61,7 +72,53 @@ public class ClViTra2Strategy implements VideoUploader {
             mimeType = "application/octet-stream";
         }
 
+        Uri requestUrl = endpointUrl.buildUpon().appendEncodedPath("videos").build();
+
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put("filename", fileName);
+        metadata.put("filetype", mimeType);
+
+        TransferProgressTracker tracker = TransferProgressTracker.forUpload(App.bus,
+                video.getId(), videoFile.length());
+
+        try {
+            String uploadUrl = resumableUpload.upload("clvitra2-" + video.getId(), requestUrl,
+                    videoFile, metadata, tracker, App.loginManager.getAccount());
+
+            if (uploadUrl == null) {
+                Response response = uploadInOneRequest(requestUrl, videoFile, fileName,
+                        mimeType, tracker);
+
+                if (!response.isSuccessful()) {
+                    throw new IOException(response.code() + " " + response.message());
+                }
+            }
+        } finally {
+            tracker.finish();
+        }
+
+        JsonObject videoDetails = getDetails(fileName);
+
+        // FIXME: Save thumbnail URIs again when Picasso can handle EXIF data in JPEGs.
+        //        Or when ClViTra rotates JPEGs for us?
+
+        Uri videoUri = Uri.parse(videoDetails.get("Video_URL").getAsString());
+        // Uri thumbUri = Uri.parse(videoDetails.get("Thumbnail_URL").getAsString());
+
+        // video.setVideoUri(videoUri);
+        // video.setThumbUri(thumbUri);
+
+        return new VideoUploadResult(videoUri, true);
+    }
+
+    /**
+     * Upload the whole file in a multi-part request, for servers without resumable uploads.
+     */
+    private Response uploadInOneRequest(Uri requestUrl, File videoFile, String fileName,
+            String mimeType, TransferProgressTracker tracker) throws IOException {
+
         MediaType mediaType = MediaType.parse(mimeType);
+        RequestBody fileBody = RequestBody.create(mediaType, videoFile);
 
         // Build a multi-part request body with the file
         RequestBody body = new MultipartBuilder()
@@ -71,37 +128,17 @@ public class ClViTra2Strategy implements VideoUploader {
                                 "Content-Disposition",
                                 "form-data; name=\"file\"; filename=\"" + fileName + "\""
                         ),
-                        RequestBody.create(mediaType, videoFile)
+                        new CountingRequestBody(fileBody, tracker, 0)
                 )
                 .build();
 
-        Uri requestUrl = endpointUrl.buildUpon().appendEncodedPath("videos").build();
-
         Request request = new Request.Builder()
                 .url(requestUrl.toString())
                 .post(body)
                 .build();
 
         Account account = App.loginManager.getAccount();
-        Response response = App.authenticatedHttpClient.execute(request, account);
-
-        if (response.isSuccessful()) {
-            JsonObject videoDetails = getDetails(fileName);
-
-            // FIXME: Save thumbnail URIs again when Picasso can handle EXIF data in JPEGs.
-            //        Or when ClViTra rotates JPEGs for us?
-
-            Uri videoUri = Uri.parse(videoDetails.get("Video_URL").getAsString());
-            // Uri thumbUri = Uri.parse(videoDetails.get("Thumbnail_URL").getAsString());
-
-            // video.setVideoUri(videoUri);
-            // video.setThumbUri(thumbUri);
-            
-            return new VideoUploadResult(videoUri, true);
-
-        } else {
-            throw new IOException(response.code() + " " + response.message());
-        }
+        return httpClient.execute(request, account);
     }
 
     private JsonObject getDetails(String videoFileName) throws IOException {
@@ -111,7 +148,7 @@ public class ClViTra2Strategy implements VideoUploader {
                 .build();
 
         Account account = App.loginManager.getAccount();
-        Response response = App.authenticatedHttpClient.execute(request, account);
+        Response response = httpClient.execute(request, account);
 
         String jsonString = response.body().string();
         JsonObject body = new JsonParser().parse(jsonString).getAsJsonObject();
@@ -3,6 +3,7 @@ package fi.aalto.legroup.achso.storage.remote.strategies;
 import android.net.Uri;
 
 import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.RequestBody;
 import com.squareup.okhttp.Response;
@@ -12,17 +13,19 @@ import java.io.IOException;
 import java.net.URLConnection;
 import java.util.UUID;
 
-import fi.aalto.legroup.achso.app.App;
 import fi.aalto.legroup.achso.entities.Video;
 import fi.aalto.legroup.achso.storage.remote.upload.uploaders.ThumbnailUploader;
 import fi.aalto.legroup.achso.storage.remote.upload.uploaders.VideoUploader;
 
 public class DumbPhpStrategy implements VideoUploader, ThumbnailUploader {
 
+    private final OkHttpClient httpClient;
     private final Uri endpointUri;
     private final boolean doesNormalizeRotation;
 
-    public DumbPhpStrategy(Uri endpointUri, boolean doesNormalizeRotation) {
+    public DumbPhpStrategy(OkHttpClient httpClient, Uri endpointUri,
+            boolean doesNormalizeRotation) {
+        this.httpClient = httpClient;
         this.endpointUri = endpointUri.buildUpon().appendPath("upload.php").build();
         this.doesNormalizeRotation = doesNormalizeRotation;
     }
@@ -41,7 +44,7 @@ public class DumbPhpStrategy implements VideoUploader, ThumbnailUploader {
                 .put(RequestBody.create(MediaType.parse(mimeType), file))
                 .build();
 
-        Response response = App.httpClient.newCall(request).execute();
+        Response response = httpClient.newCall(request).execute();
         if (!response.isSuccessful())
             throw new IOException(response.body().string());
 
@@ -11,16 +11,24 @@ import com.squareup.okhttp.Response;
 import java.io.File;
 import java.io.IOException;
 import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.Map;
 
 import fi.aalto.legroup.achso.app.App;
+import fi.aalto.legroup.achso.authentication.AuthenticatedHttpClient;
 import fi.aalto.legroup.achso.entities.Video;
 import fi.aalto.legroup.achso.entities.serialization.json.JsonSerializable;
 import fi.aalto.legroup.achso.entities.serialization.json.JsonSerializer;
+import fi.aalto.legroup.achso.storage.remote.CountingRequestBody;
+import fi.aalto.legroup.achso.storage.remote.TransferProgressTracker;
+import fi.aalto.legroup.achso.storage.remote.upload.ResumableUpload;
 import fi.aalto.legroup.achso.storage.remote.upload.uploaders.VideoUploader;
 
 public class GoViTraStrategy implements VideoUploader {
 
     private JsonSerializer serializer;
+    private AuthenticatedHttpClient httpClient;
+    private ResumableUpload resumableUpload;
     private final Uri endpointUri;
 
     private static class JsonResult implements JsonSerializable {
@@ -30,8 +38,11 @@ public class GoViTraStrategy implements VideoUploader {
         public String title;
     }
 
-    public GoViTraStrategy(JsonSerializer serializer, Uri endpointUri) {
+    public GoViTraStrategy(JsonSerializer serializer, AuthenticatedHttpClient httpClient,
+            ResumableUpload resumableUpload, Uri endpointUri) {
         this.serializer = serializer;
+        this.httpClient = httpClient;
+        this.resumableUpload = resumableUpload;
         this.endpointUri = endpointUri.buildUpon().appendPath("uploads").build();
     }
 
@@ -40,6 +51,8 @@ public class GoViTraStrategy implements VideoUploader {
         int trimStart = video.getStartTime();
         String endpoint = endpointUri.toString();
 
+        // Videos are normally trimmed before uploading, this is only left for the videos that
+        // couldn't be cut on the device
         if (video.hasTrimming()) {
             endpoint += String.format("?start=%s&end=%s", trimStart, trimEnd);
         }
@@ -50,16 +63,49 @@ public class GoViTraStrategy implements VideoUploader {
     public VideoUploader.VideoUploadResult uploadVideo(Video video) throws IOException {
         File file = new File(video.getVideoUri().getPath());
         String mimeType = URLConnection.guessContentTypeFromName(file.getPath());
+        Uri uploadUri = Uri.parse(buildUploadUrl(video));
 
-        Request request = new Request.Builder()
-                .url(buildUploadUrl(video))
-                .post(RequestBody.create(MediaType.parse(mimeType), file))
-                .build();
+        TransferProgressTracker tracker = TransferProgressTracker.forUpload(App.bus,
+                video.getId(), file.length());
+
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put("filename", file.getName());
+        if (mimeType != null) {
+            metadata.put("filetype", mimeType);
+        }
 
         Account account = App.loginManager.getAccount();
-        Response response = App.authenticatedHttpClient.execute(request, account);
-        if (!response.isSuccessful())
-            throw new IOException(response.body().string());
+        Response response;
+
+        try {
+            String uploadUrl = resumableUpload.upload("govitra-" + video.getId(), uploadUri,
+                    file, metadata, tracker, account);
+
+            if (uploadUrl != null) {
+                // The last chunk is answered without a body, the result is asked for separately
+                Request request = new Request.Builder()
+                        .url(uploadUrl)
+                        .header("Accept", "application/json")
+                        .get()
+                        .build();
+
+                response = httpClient.execute(request, account);
+            } else {
+                RequestBody body = RequestBody.create(MediaType.parse(mimeType), file);
+
+                Request request = new Request.Builder()
+                        .url(uploadUri.toString())
+                        .post(new CountingRequestBody(body, tracker, 0))
+                        .build();
+
+                response = httpClient.execute(request, account);
+            }
+
+            if (!response.isSuccessful())
+                throw new IOException(response.body().string());
+        } finally {
+            tracker.finish();
+        }
 
         JsonResult result = serializer.read(JsonResult.class, response.body().byteStream());
 
@@ -75,7 +121,7 @@ public class GoViTraStrategy implements VideoUploader {
                 .build();
 
         Account account = App.loginManager.getAccount();
-        Response response = App.authenticatedHttpClient.execute(request, account);
+        Response response = httpClient.execute(request, account);
         if (!response.isSuccessful())
             throw new IOException(response.body().string());
     }
@@ -0,0 +1,413 @@
+package fi.aalto.legroup.achso.storage.remote.upload;
+
+import android.accounts.Account;
+import android.net.Uri;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import fi.aalto.legroup.achso.authentication.AuthenticatedHttpClient;
+import fi.aalto.legroup.achso.storage.remote.CountingRequestBody;
+import fi.aalto.legroup.achso.storage.remote.TransferProgressTracker;
+import okio.BufferedSink;
+
+import static java.net.HttpURLConnection.HTTP_CONFLICT;
+import static java.net.HttpURLConnection.HTTP_GONE;
+import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
+
+/**
+ * Uploads files in chunks with the tus resumable upload protocol (http://tus.io/protocols), so
+ * that an interrupted upload continues from the last byte the server has received instead of
+ * starting over.
+ *
+ * The upload URL is persisted in an UploadSessionStore as soon as the server has created it, so
+ * an upload can be resumed even after the process has been killed. Failed chunks are retried a
+ * few times, asking the server for its offset in between since a dropped connection may have
+ * delivered part of the chunk.
+ *
+ * The server answers the last chunk like any other, without a body, so the caller has to ask
+ * its own API for the result of the upload once it has finished.
+ */
+public final class ResumableUpload {
+
+    private static final String TUS_VERSION = "1.0.0";
+
+    private static final MediaType OFFSET_OCTET_STREAM =
+            MediaType.parse("application/offset+octet-stream");
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int MAX_CHUNK_ATTEMPTS = 5;
+    private static final long DEFAULT_RETRY_DELAY_MILLISECONDS = 2000;
+
+    private final AuthenticatedHttpClient httpClient;
+    private final UploadSessionStore sessionStore;
+
+    private long retryDelay = DEFAULT_RETRY_DELAY_MILLISECONDS;
+
+    // Whether the creation endpoints support resumable uploads, mapped by URL. Guarded by itself.
+    private final Map<String, Boolean> supportedEndpoints = new HashMap<>();
+
+    public ResumableUpload(AuthenticatedHttpClient httpClient, UploadSessionStore sessionStore) {
+        this.httpClient = httpClient;
+        this.sessionStore = sessionStore;
+    }
+
+    /**
+     * Set the delay before retrying the first failed chunk. The delay grows with every failure.
+     */
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = Math.max(0, retryDelay);
+    }
+
+    /**
+     * Upload the file, continuing an earlier session with the same key if there is one.
+     *
+     * @param key         Identifies the upload across attempts, eg. the uploader and video ID.
+     * @param endpointUri URL to create the upload at.
+     * @param metadata    Sent to the server with the creation request.
+     * @param tracker     Told about the bytes as they are sent.
+     * @param account     Account to authenticate the requests with.
+     * @return The URL of the finished upload, or null if the endpoint doesn't support resumable
+     *         uploads and the file should be sent in one request instead.
+     * @throws IOException If the upload failed. The session is kept if it can still be resumed.
+     */
+    public String upload(String key, Uri endpointUri, File file, Map<String, String> metadata,
+            TransferProgressTracker tracker, Account account) throws IOException {
+
+        String endpoint = endpointUri.toString();
+
+        // Uploads to a different endpoint, eg. with other trimming parameters, are different
+        String sessionKey = key + " " + endpoint;
+
+        if (!isSupported(endpoint, account)) {
+            return null;
+        }
+
+        long length = file.length();
+        long offset = -1;
+
+        UploadSessionStore.Session session = sessionStore.get(sessionKey);
+
+        if (session != null && session.matches(file)) {
+            offset = queryOffset(session.getUploadUrl(), account);
+
+            // An offset past the end of the file can't be right, start over
+            if (offset > length) {
+                offset = -1;
+            }
+        }
+
+        if (offset < 0) {
+            // No session or the server has forgotten it
+            session = new UploadSessionStore.Session(create(endpointUri, length, metadata,
+                    account), file);
+            sessionStore.put(sessionKey, session);
+            offset = 0;
+        }
+
+        String uploadUrl = session.getUploadUrl();
+        int failureCount = 0;
+        boolean needsOffset = false;
+
+        while (offset < length) {
+            Response response;
+
+            try {
+                if (needsOffset) {
+                    offset = queryOffset(uploadUrl, account);
+                    needsOffset = false;
+
+                    if (offset < 0) {
+                        sessionStore.remove(sessionKey);
+                        throw new IOException("The upload session has expired.");
+                    }
+
+                    if (offset > length) {
+                        throw new IOException("Invalid upload offset " + offset + ".");
+                    }
+
+                    // The failed chunk may have reached the server in full
+                    continue;
+                }
+
+                response = sendChunk(uploadUrl, file, offset,
+                        Math.min(CHUNK_SIZE, length - offset), tracker, account);
+            } catch (IOException e) {
+                e.printStackTrace();
+
+                if (++failureCount >= MAX_CHUNK_ATTEMPTS) {
+                    throw e;
+                }
+
+                sleep(retryDelay * failureCount);
+                needsOffset = true;
+                continue;
+            }
+
+            int code = response.code();
+
+            if (code == HTTP_CONFLICT) {
+                // We have a different idea of the offset than the server
+                response.body().close();
+
+                if (++failureCount >= MAX_CHUNK_ATTEMPTS) {
+                    throw new IOException("The upload offset doesn't match the server.");
+                }
+
+                needsOffset = true;
+                continue;
+            }
+
+            if (code == HTTP_NOT_FOUND || code == HTTP_GONE) {
+                response.body().close();
+                sessionStore.remove(sessionKey);
+                throw new IOException("The upload session has expired.");
+            }
+
+            if (!response.isSuccessful()) {
+                String message = response.code() + " " + response.message();
+                response.body().close();
+
+                // Server errors may go away, anything else won't get better by retrying
+                if (code < HTTP_INTERNAL_ERROR || ++failureCount >= MAX_CHUNK_ATTEMPTS) {
+                    throw new IOException(message);
+                }
+
+                sleep(retryDelay * failureCount);
+                needsOffset = true;
+                continue;
+            }
+
+            long newOffset = parseOffset(response, -1);
+            response.body().close();
+
+            // An offset that is missing, didn't move forward or is past the end of the file
+            // can't be trusted, so ask the server again instead of resending the chunk forever
+            if (newOffset <= offset || newOffset > length) {
+                if (++failureCount >= MAX_CHUNK_ATTEMPTS) {
+                    throw new IOException("Invalid upload offset " + newOffset + ".");
+                }
+
+                sleep(retryDelay * failureCount);
+                needsOffset = true;
+                continue;
+            }
+
+            failureCount = 0;
+            offset = newOffset;
+        }
+
+        sessionStore.remove(sessionKey);
+        return uploadUrl;
+    }
+
+    /**
+     * Ask the server whether it supports creating resumable uploads at the endpoint. The answer
+     * is remembered, so this costs one request per endpoint.
+     */
+    private boolean isSupported(String endpoint, Account account) throws IOException {
+        synchronized (supportedEndpoints) {
+            Boolean isSupported = supportedEndpoints.get(endpoint);
+            if (isSupported != null) {
+                return isSupported;
+            }
+        }
+
+        Request request = new Request.Builder()
+                .url(endpoint)
+                .method("OPTIONS", null)
+                .build();
+
+        Response response = httpClient.execute(request, account, false);
+        response.body().close();
+
+        String version = response.header("Tus-Version");
+        String extensions = response.header("Tus-Extension");
+
+        boolean isSupported = response.isSuccessful()
+                && version != null && version.contains(TUS_VERSION)
+                && extensions != null && extensions.contains("creation");
+
+        synchronized (supportedEndpoints) {
+            supportedEndpoints.put(endpoint, isSupported);
+        }
+
+        return isSupported;
+    }
+
+    /**
+     * Create the upload on the server and return its URL.
+     */
+    private String create(Uri endpointUri, long length, Map<String, String> metadata,
+            Account account) throws IOException {
+
+        Request request = new Request.Builder()
+                .url(endpointUri.toString())
+                .header("Tus-Resumable", TUS_VERSION)
+                .header("Upload-Length", Long.toString(length))
+                .header("Upload-Metadata", encodeMetadata(metadata))
+                .post(RequestBody.create(null, new byte[0]))
+                .build();
+
+        Response response = httpClient.execute(request, account);
+        response.body().close();
+
+        String location = response.header("Location");
+
+        if (!response.isSuccessful() || location == null) {
+            throw new IOException("Couldn't create upload: " + response.code() + " "
+                    + response.message());
+        }
+
+        // The location may be relative to the endpoint
+        return new URL(response.request().url(), location).toString();
+    }
+
+    /**
+     * Returns the number of bytes the server has received, or -1 if it doesn't know the upload.
+     */
+    private long queryOffset(String uploadUrl, Account account) throws IOException {
+        Request request = new Request.Builder()
+                .url(uploadUrl)
+                .header("Tus-Resumable", TUS_VERSION)
+                .head()
+                .build();
+
+        Response response = httpClient.execute(request, account);
+        response.body().close();
+
+        int code = response.code();
+
+        if (code == HTTP_NOT_FOUND || code == HTTP_GONE) {
+            return -1;
+        }
+
+        if (!response.isSuccessful()) {
+            throw new IOException(response.code() + " " + response.message());
+        }
+
+        return parseOffset(response, -1);
+    }
+
+    private Response sendChunk(String uploadUrl, File file, long offset, long chunkLength,
+            TransferProgressTracker tracker, Account account) throws IOException {
+
+        RequestBody body = new CountingRequestBody(new FileChunkBody(file, offset, chunkLength),
+                tracker, offset);
+
+        Request request = new Request.Builder()
+                .url(uploadUrl)
+                .header("Tus-Resumable", TUS_VERSION)
+                .header("Upload-Offset", Long.toString(offset))
+                .method("PATCH", body)
+                .build();
+
+        return httpClient.execute(request, account);
+    }
+
+    private static long parseOffset(Response response, long defaultOffset) {
+        String offset = response.header("Upload-Offset");
+
+        if (offset == null) {
+            return defaultOffset;
+        }
+
+        try {
+            return Long.parseLong(offset.trim());
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            return defaultOffset;
+        }
+    }
+
+    private static String encodeMetadata(Map<String, String> metadata) {
+        StringBuilder builder = new StringBuilder();
+
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+
+            byte[] value = entry.getValue().getBytes(Charsets.UTF_8);
+
+            builder.append(entry.getKey())
+                    .append(' ')
+                    .append(BaseEncoding.base64().encode(value));
+        }
+
+        return builder.toString();
+    }
+
+    private static void sleep(long milliseconds) throws InterruptedIOException {
+        try {
+            Thread.sleep(milliseconds);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload interrupted.");
+        }
+    }
+
+    /**
+     * Request body of a part of a file.
+     */
+    private static final class FileChunkBody extends RequestBody {
+
+        private final File file;
+        private final long offset;
+        private final long length;
+
+        private FileChunkBody(File file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return OFFSET_OCTET_STREAM;
+        }
+
+        @Override
+        public long contentLength() {
+            return length;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+
+            try {
+                input.seek(offset);
+
+                byte[] buffer = new byte[8192];
+                long remaining = length;
+
+                while (remaining > 0) {
+                    int count = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+
+                    if (count < 0) {
+                        throw new IOException("Unexpected end of " + file);
+                    }
+
+                    sink.write(buffer, 0, count);
+                    remaining -= count;
+                }
+            } finally {
+                input.close();
+            }
+        }
+    }
+}
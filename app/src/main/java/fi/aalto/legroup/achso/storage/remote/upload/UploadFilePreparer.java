@@ -0,0 +1,254 @@
+package fi.aalto.legroup.achso.storage.remote.upload;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import fi.aalto.legroup.achso.app.AppCache;
+import fi.aalto.legroup.achso.entities.Video;
+import fi.aalto.legroup.achso.storage.remote.upload.transcoding.Mp4Trimmer;
+import fi.aalto.legroup.achso.storage.remote.upload.transcoding.TranscodePlan;
+import fi.aalto.legroup.achso.storage.remote.upload.transcoding.TranscodeSettings;
+import fi.aalto.legroup.achso.storage.remote.upload.transcoding.VideoTranscoder;
+
+/**
+ * Produces the file that is actually uploaded for a video. Trimmed videos are cut on the device
+ * so that only the kept part is uploaded, and the result is transcoded to a smaller size if the
+ * user has chosen a lower upload quality.
+ *
+ * The prepared files are kept in the cache under names derived from the video and the output
+ * settings, so an interrupted upload finds the same file again and can resume where it stopped.
+ * Preparing a file never fails: if a step goes wrong it is skipped.
+ */
+public final class UploadFilePreparer {
+
+    private static final String TAG = UploadFilePreparer.class.getSimpleName();
+
+    /**
+     * The file to upload for a video.
+     */
+    public static final class PreparedFile {
+
+        public final File file;
+
+        /**
+         * True if the trimming of the video has been applied to the file.
+         */
+        public final boolean didTrim;
+
+        /**
+         * Time in the original where the file starts, in milliseconds. The cut is moved to a
+         * sync sample, so this can differ from the start time of the trimming.
+         */
+        public final long trimOffsetMilliseconds;
+
+        /**
+         * True if the rotation of the original has been baked into the frames.
+         */
+        public final boolean didNormalizeRotation;
+
+        // Name of the file without the extension, the next step builds its own name on it
+        private final String name;
+
+        // Everything this preparer has created for the file
+        private final List<File> temporaryFiles;
+
+        private PreparedFile(File file, String name, boolean didTrim,
+                long trimOffsetMilliseconds, boolean didNormalizeRotation,
+                List<File> temporaryFiles) {
+            this.file = file;
+            this.name = name;
+            this.didTrim = didTrim;
+            this.trimOffsetMilliseconds = trimOffsetMilliseconds;
+            this.didNormalizeRotation = didNormalizeRotation;
+            this.temporaryFiles = temporaryFiles;
+        }
+    }
+
+    private final Context context;
+
+    // Transcoding keeps a hardware codec busy, so only one video is transcoded at a time
+    private final Object transcodeLock = new Object();
+
+    private volatile TranscodeSettings transcodeSettings;
+
+    public UploadFilePreparer(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Set the limits for transcoding the uploaded videos, or null to upload the originals.
+     */
+    public void setTranscodeSettings(TranscodeSettings transcodeSettings) {
+        this.transcodeSettings = transcodeSettings;
+    }
+
+    /**
+     * Returns the file that should be uploaded for the given local video. This can take a long
+     * time and must not be called on the main thread.
+     */
+    public PreparedFile prepare(Video video) {
+        File original = new File(video.getVideoUri().getPath());
+
+        PreparedFile prepared = new PreparedFile(original, "upload-" + video.getId(), false, 0,
+                false, Collections.<File>emptyList());
+
+        if (video.hasTrimming()) {
+            prepared = trim(video, prepared);
+        }
+
+        TranscodeSettings settings = transcodeSettings;
+
+        if (settings != null && VideoTranscoder.isSupported()) {
+            prepared = transcode(prepared, settings);
+        }
+
+        return prepared;
+    }
+
+    /**
+     * Delete the temporary files created for the prepared file. Call this once the file has been
+     * uploaded.
+     */
+    public void discard(PreparedFile preparedFile) {
+        for (File file : preparedFile.temporaryFiles) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    /**
+     * Returns the input with the trimming of the video applied, or the input itself if it can't
+     * be cut. The trimmed copy is reused if it already exists.
+     */
+    private PreparedFile trim(Video video, PreparedFile input) {
+        int start = video.getStartTime();
+        int end = video.getEndTime();
+
+        // The offset file is only valid for the trimmer that wrote it, so the version is a part
+        // of the name along with the cut points
+        String name = input.name + "-trim" + Mp4Trimmer.VERSION + "-" + start + "-" + end;
+
+        File output = AppCache.newFile(context, name + ".mp4");
+
+        // The actual start depends on the sync samples, remember it along with the file
+        File offsetFile = AppCache.newFile(context, name + ".offset");
+
+        try {
+            long offset;
+
+            if (output.isFile() && offsetFile.isFile()) {
+                offset = readOffset(offsetFile);
+            } else {
+                File temporary = new File(output.getPath() + ".tmp");
+                offset = Mp4Trimmer.trim(input.file, temporary, start, end);
+
+                writeOffset(offsetFile, offset);
+
+                if (!temporary.renameTo(output)) {
+                    //noinspection ResultOfMethodCallIgnored
+                    temporary.delete();
+                    throw new IOException("Could not rename " + temporary + " to " + output);
+                }
+
+                Log.i(TAG, String.format("Trimmed %s to %d-%d ms (%d -> %d bytes)",
+                        input.file.getName(), start, end, input.file.length(),
+                        output.length()));
+            }
+
+            List<File> temporaryFiles = new ArrayList<>(input.temporaryFiles);
+            temporaryFiles.add(output);
+            temporaryFiles.add(offsetFile);
+
+            return new PreparedFile(output, name, true, offset, input.didNormalizeRotation,
+                    temporaryFiles);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            //noinspection ResultOfMethodCallIgnored
+            offsetFile.delete();
+            return input;
+        }
+    }
+
+    /**
+     * Returns the input transcoded according to the settings, or the input itself if it isn't
+     * worth transcoding or transcoding fails. The transcoded copy is reused if it already exists.
+     */
+    private PreparedFile transcode(PreparedFile input, TranscodeSettings settings) {
+        try {
+            TranscodePlan.Source source = VideoTranscoder.readSource(context, input.file);
+            TranscodePlan plan = TranscodePlan.create(source, settings);
+
+            if (plan == null) {
+                return input;
+            }
+
+            String name = input.name + "-" + plan.getSignature();
+            File output = AppCache.newFile(context, name + ".mp4");
+
+            synchronized (transcodeLock) {
+                if (!output.isFile()) {
+                    transcode(input.file, output, plan);
+                }
+            }
+
+            List<File> temporaryFiles = new ArrayList<>(input.temporaryFiles);
+            temporaryFiles.add(output);
+
+            return new PreparedFile(output, name, input.didTrim, input.trimOffsetMilliseconds,
+                    true, temporaryFiles);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return input;
+        }
+    }
+
+    private static void transcode(File input, File output, TranscodePlan plan)
+            throws IOException {
+
+        // Transcode to a temporary file so that a half-written one is never mistaken for done
+        File temporary = new File(output.getPath() + ".tmp");
+        long startTime = System.currentTimeMillis();
+
+        VideoTranscoder.transcode(input, temporary, plan);
+
+        if (!temporary.renameTo(output)) {
+            //noinspection ResultOfMethodCallIgnored
+            temporary.delete();
+            throw new IOException("Could not rename " + temporary + " to " + output);
+        }
+
+        Log.i(TAG, String.format("Transcoded %s to %s (%d -> %d bytes) in %d ms", input.getName(),
+                plan.getSignature(), input.length(), output.length(),
+                System.currentTimeMillis() - startTime));
+    }
+
+    private static long readOffset(File file) throws IOException {
+        DataInputStream stream = new DataInputStream(new FileInputStream(file));
+
+        try {
+            return stream.readLong();
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static void writeOffset(File file, long offset) throws IOException {
+        DataOutputStream stream = new DataOutputStream(new FileOutputStream(file));
+
+        try {
+            stream.writeLong(offset);
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package fi.aalto.legroup.achso.storage.remote.upload;
+
+import java.util.UUID;
+
+import fi.aalto.legroup.achso.storage.remote.TransferProgressEvent;
+
+/**
+ * Posted when the upload of a video moves on to its next stage, and while the video data is
+ * being sent with the number of bytes sent so far.
+ */
+public class UploadProgressEvent extends TransferProgressEvent {
+
+    public static enum Stage {
+        VIDEO,
+        THUMBNAIL,
+        MANIFEST,
+        METADATA,
+    }
+
+    private Stage stage;
+
+    public UploadProgressEvent(UUID videoId, Stage stage) {
+        this(videoId, stage, UNKNOWN, UNKNOWN, UNKNOWN, UNKNOWN);
+    }
+
+    public UploadProgressEvent(UUID videoId, Stage stage, long bytesTransferred, long bytesTotal,
+            long bytesPerSecond, long remainingMilliseconds) {
+        super(videoId, bytesTransferred, bytesTotal, bytesPerSecond, remainingMilliseconds);
+        this.stage = stage;
+    }
+
+    public Stage getStage() {
+        return this.stage;
+    }
+
+}
@@ -0,0 +1,296 @@
+package fi.aalto.legroup.achso.storage.remote.upload;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Persistent queue of the videos waiting to be uploaded. Videos stay in the queue until their
+ * upload has finished, so the ones that were in progress when the process died are uploaded
+ * again when it comes back.
+ *
+ * Videos with a higher priority are taken first, videos with the same priority in the order they
+ * were queued. Videos whose upload has failed wait in the queue until their retry time. The queue
+ * is written to disk whenever it changes; it is small, so that is cheap.
+ */
+public final class UploadQueue {
+
+    private static final int MAGIC = 0x41435551;
+    private static final int VERSION = 2;
+
+    private static final class Entry {
+        private final UUID id;
+        private final int priority;
+        private final long sequence;
+        private final int failureCount;
+
+        // Wall clock time in milliseconds before which the video isn't retried, or 0
+        private final long retryTime;
+
+        private Entry(UUID id, int priority, long sequence, int failureCount, long retryTime) {
+            this.id = id;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.failureCount = failureCount;
+            this.retryTime = retryTime;
+        }
+
+        private boolean isBefore(Entry other) {
+            if (priority != other.priority) {
+                return priority > other.priority;
+            }
+            return sequence < other.sequence;
+        }
+    }
+
+    private final File file;
+    private final Map<UUID, Entry> entries = new LinkedHashMap<>();
+
+    private long nextSequence = 0;
+
+    /**
+     * @param file File to persist the queue in.
+     */
+    public UploadQueue(File file) {
+        this.file = file;
+        read();
+    }
+
+    /**
+     * Add videos to the queue. Videos that are already queued keep their place, unless the new
+     * priority is higher. Failed videos that are queued again are retried right away.
+     *
+     * @return The IDs of the videos that weren't queued before.
+     */
+    public synchronized List<UUID> add(Collection<UUID> ids, int priority) {
+        List<UUID> addedIds = new ArrayList<>(ids.size());
+
+        for (UUID id : ids) {
+            Entry entry = entries.get(id);
+
+            if (entry == null) {
+                entries.put(id, new Entry(id, priority, nextSequence++, 0, 0));
+                addedIds.add(id);
+            } else {
+                entries.put(id, new Entry(id, Math.max(entry.priority, priority),
+                        entry.sequence, 0, 0));
+            }
+        }
+
+        write();
+        return addedIds;
+    }
+
+    /**
+     * Raise the priority of a queued video. Returns false if the video isn't queued.
+     */
+    public synchronized boolean raisePriority(UUID id, int priority) {
+        Entry entry = entries.get(id);
+
+        if (entry == null) {
+            return false;
+        }
+
+        if (entry.priority < priority) {
+            entries.put(id, new Entry(id, priority, entry.sequence, entry.failureCount,
+                    entry.retryTime));
+            write();
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the number of times the upload of a queued video has failed in a row.
+     */
+    public synchronized int getFailureCount(UUID id) {
+        Entry entry = entries.get(id);
+        return entry != null ? entry.failureCount : 0;
+    }
+
+    /**
+     * Count a failed upload and keep the video waiting until the retry time. Does nothing if the
+     * video isn't queued.
+     *
+     * @param retryTime Wall clock time in milliseconds.
+     */
+    public synchronized void markFailed(UUID id, long retryTime) {
+        Entry entry = entries.get(id);
+
+        if (entry == null) {
+            return;
+        }
+
+        entries.put(id, new Entry(id, entry.priority, entry.sequence, entry.failureCount + 1,
+                retryTime));
+        write();
+    }
+
+    public synchronized void remove(UUID id) {
+        if (entries.remove(id) != null) {
+            write();
+        }
+    }
+
+    /**
+     * Returns the queued video that should be uploaded next, leaving out the excluded ones and
+     * the ones waiting to be retried, or null if there is none.
+     *
+     * @param now Wall clock time in milliseconds.
+     */
+    public synchronized UUID peek(Set<UUID> excludedIds, long now) {
+        Entry next = null;
+
+        for (Entry entry : entries.values()) {
+            if (excludedIds.contains(entry.id) || entry.retryTime > now) {
+                continue;
+            }
+            if (next == null || entry.isBefore(next)) {
+                next = entry;
+            }
+        }
+
+        return next != null ? next.id : null;
+    }
+
+    /**
+     * Returns the earliest retry time after now of the waiting videos, or -1 if no video is
+     * waiting.
+     *
+     * @param now Wall clock time in milliseconds.
+     */
+    public synchronized long getNextRetryTime(long now) {
+        long nextRetryTime = -1;
+
+        for (Entry entry : entries.values()) {
+            if (entry.retryTime > now && (nextRetryTime < 0 || entry.retryTime < nextRetryTime)) {
+                nextRetryTime = entry.retryTime;
+            }
+        }
+
+        return nextRetryTime;
+    }
+
+    public synchronized boolean contains(UUID id) {
+        return entries.containsKey(id);
+    }
+
+    public synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Returns the IDs of the queued videos. The list is a copy.
+     */
+    public synchronized List<UUID> getIds() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    private void read() {
+        if (!file.exists()) {
+            return;
+        }
+
+        DataInputStream input = null;
+
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Unsupported upload queue " + file);
+            }
+
+            // Queues written before the retries have no failures
+            int version = input.readInt();
+
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported upload queue " + file);
+            }
+
+            int count = input.readInt();
+
+            for (int i = 0; i < count; i++) {
+                UUID id = new UUID(input.readLong(), input.readLong());
+                int priority = input.readInt();
+                int failureCount = 0;
+                long retryTime = 0;
+
+                if (version >= 2) {
+                    failureCount = input.readInt();
+                    retryTime = input.readLong();
+                }
+
+                entries.put(id, new Entry(id, priority, nextSequence++, failureCount,
+                        retryTime));
+            }
+        } catch (IOException e) {
+            // The videos just have to be uploaded again by hand
+            e.printStackTrace();
+            entries.clear();
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void write() {
+        file.getParentFile().mkdirs();
+
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        DataOutputStream output = null;
+
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temporaryFile)));
+
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(entries.size());
+
+            // The entries are kept in the order they were queued in, so the sequence numbers
+            // can be given again when reading
+            for (Entry entry : entries.values()) {
+                output.writeLong(entry.id.getMostSignificantBits());
+                output.writeLong(entry.id.getLeastSignificantBits());
+                output.writeInt(entry.priority);
+                output.writeInt(entry.failureCount);
+                output.writeLong(entry.retryTime);
+            }
+
+            output.close();
+            output = null;
+
+            if (!temporaryFile.renameTo(file)) {
+                throw new IOException("Failed to replace upload queue " + file);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            temporaryFile.delete();
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
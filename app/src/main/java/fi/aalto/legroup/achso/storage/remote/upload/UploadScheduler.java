@@ -0,0 +1,491 @@
+package fi.aalto.legroup.achso.storage.remote.upload;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.Uri;
+
+import com.squareup.otto.Bus;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import fi.aalto.legroup.achso.R;
+import fi.aalto.legroup.achso.app.App;
+import fi.aalto.legroup.achso.entities.Annotation;
+import fi.aalto.legroup.achso.entities.Video;
+import fi.aalto.legroup.achso.storage.remote.upload.transcoding.TranscodeSettings;
+import fi.aalto.legroup.achso.storage.remote.upload.uploaders.MetadataUploader;
+import fi.aalto.legroup.achso.storage.remote.upload.uploaders.ThumbnailUploader;
+import fi.aalto.legroup.achso.storage.remote.upload.uploaders.VideoUploader;
+
+/**
+ * Uploads videos from a persistent queue, a few of them at a time.
+ *
+ * The videos with the highest priority are started first, so the one the user is watching can
+ * jump the queue. Videos stay in the queue until their upload has finished, and the uploads that
+ * didn't finish are resumed after the process has been restarted. Failed uploads are retried
+ * with a growing delay. UploadService is kept running while there are uploads in progress so
+ * that the process isn't killed in the middle of them.
+ *
+ * Parallel uploads split the bandwidth between them, which only pays off on a fast connection.
+ * On metered connections the videos are uploaded one at a time, so the one at the front of the
+ * queue gets the whole link and finishes first instead of all of them finishing late.
+ */
+public final class UploadScheduler {
+
+    public static final int PRIORITY_NORMAL = 0;
+
+    /**
+     * Priority of the video the user is watching.
+     */
+    public static final int PRIORITY_HIGH = 1;
+
+    public static final int DEFAULT_CONCURRENCY = 2;
+
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+
+    private static final long RETRY_DELAY_MILLISECONDS = 30 * 1000;
+    private static final long MAX_RETRY_DELAY_MILLISECONDS = 30 * 60 * 1000;
+
+    private final Context context;
+    private final Bus bus;
+    private final UploadQueue queue;
+    private final UploadFilePreparer filePreparer;
+
+    private final List<VideoUploader> videoUploaders = new CopyOnWriteArrayList<>();
+    private final List<ThumbnailUploader> thumbUploaders = new CopyOnWriteArrayList<>();
+    private final List<MetadataUploader> metadataUploaders = new CopyOnWriteArrayList<>();
+
+    // Guarded by this
+    private final Set<UUID> runningIds = new HashSet<>();
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private boolean isServiceStarted = false;
+
+    // Wall clock time of the next scheduled retry, or -1 if there is none
+    private long scheduledRetryTime = -1;
+
+    private ScheduledThreadPoolExecutor executor;
+
+    public UploadScheduler(Context context, Bus bus, UploadQueue queue) {
+        this.context = context.getApplicationContext();
+        this.bus = bus;
+        this.queue = queue;
+        this.filePreparer = new UploadFilePreparer(context);
+    }
+
+    /**
+     * Remove all set uploaders
+     */
+    public void clearUploaders() {
+        videoUploaders.clear();
+        thumbUploaders.clear();
+        metadataUploaders.clear();
+    }
+
+    /**
+     * Add an uploader to as many things as possible.
+     * @param uploader Should implement one or more of the following:
+     *                 VideoUploader, ThumbnailUploader, MetadataUploader
+     */
+    public void addUploader(Object uploader) {
+        if (uploader instanceof VideoUploader) {
+            videoUploaders.add((VideoUploader) uploader);
+        }
+        if (uploader instanceof ThumbnailUploader) {
+            thumbUploaders.add((ThumbnailUploader) uploader);
+        }
+        if (uploader instanceof MetadataUploader) {
+            metadataUploaders.add((MetadataUploader) uploader);
+        }
+    }
+
+    /**
+     * Set the limits for transcoding videos before uploading them, or null to upload the
+     * original files. Uploads that have already started are not affected.
+     */
+    public void setTranscodeSettings(TranscodeSettings settings) {
+        filePreparer.setTranscodeSettings(settings);
+    }
+
+    /**
+     * Queue videos for uploading.
+     */
+    public void upload(Collection<UUID> ids) {
+        if (App.loginManager.isLoggedOut()) {
+            for (UUID id : ids) {
+                bus.post(new UploadErrorEvent(id,
+                        context.getString(R.string.not_loggedin_nag_title)));
+            }
+            return;
+        }
+
+        for (UUID id : queue.add(ids, PRIORITY_NORMAL)) {
+            bus.post(new UploadStateEvent(id, UploadStateEvent.Type.QUEUED));
+        }
+
+        scheduleUploads();
+    }
+
+    /**
+     * Move a queued video to the front of the queue, for example when the user starts watching
+     * it. Does nothing if the video isn't queued.
+     */
+    public void prioritize(UUID id) {
+        queue.raisePriority(id, PRIORITY_HIGH);
+    }
+
+    /**
+     * Returns true if the video is queued or being uploaded.
+     */
+    public boolean isUploadingVideo(UUID id) {
+        return queue.contains(id);
+    }
+
+    /**
+     * Returns the IDs of the videos that are queued or being uploaded. The set is a copy.
+     */
+    public Set<UUID> getUploadingVideoIds() {
+        return new HashSet<>(queue.getIds());
+    }
+
+    /**
+     * Set how many videos are uploaded at the same time on unmetered connections. Uploads that
+     * are already running are not stopped if there are more of them.
+     */
+    public void setConcurrency(int concurrency) {
+        synchronized (this) {
+            this.concurrency = Math.max(1, concurrency);
+
+            if (executor != null) {
+                executor.setCorePoolSize(this.concurrency);
+            }
+        }
+        scheduleUploads();
+    }
+
+    /**
+     * Continue the uploads left in the queue, for example after the process has been restarted.
+     */
+    public void resume() {
+        scheduleUploads();
+    }
+
+    /**
+     * Start uploads from the queue until the concurrency limit is reached.
+     */
+    private synchronized void scheduleUploads() {
+        long now = System.currentTimeMillis();
+
+        // Queued uploads wait for the login after a restart
+        if (App.loginManager.isLoggedIn()) {
+            int limit = getConcurrencyLimit();
+
+            while (runningIds.size() < limit) {
+                UUID id = queue.peek(runningIds, now);
+
+                if (id == null) {
+                    break;
+                }
+
+                runningIds.add(id);
+                getExecutor().execute(new UploadTask(id));
+            }
+
+            scheduleRetry(now);
+        }
+
+        if (!runningIds.isEmpty() && !isServiceStarted) {
+            context.startService(new Intent(context, UploadService.class));
+            isServiceStarted = true;
+        } else if (runningIds.isEmpty() && isServiceStarted) {
+            context.stopService(new Intent(context, UploadService.class));
+            isServiceStarted = false;
+        }
+    }
+
+    /**
+     * Returns how many uploads may run at once on the current connection. The limit is checked
+     * whenever uploads are scheduled, so a change of network takes effect as uploads finish.
+     */
+    private int getConcurrencyLimit() {
+        ConnectivityManager connectivityManager = App.connectivityManager;
+
+        if (connectivityManager != null && connectivityManager.isActiveNetworkMetered()) {
+            return 1;
+        }
+
+        return concurrency;
+    }
+
+    /**
+     * Wake up when the first failed upload is due to be retried, unless a wake-up at that time
+     * or before it has already been scheduled. Retries that are due when the process is
+     * restarted are picked up by resume().
+     */
+    private void scheduleRetry(long now) {
+        long retryTime = queue.getNextRetryTime(now);
+
+        if (retryTime < 0 || (scheduledRetryTime > now && scheduledRetryTime <= retryTime)) {
+            return;
+        }
+
+        scheduledRetryTime = retryTime;
+
+        getExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                scheduleUploads();
+            }
+        }, retryTime - now, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void onUploadFinished(UUID id, boolean shouldRetry) {
+        runningIds.remove(id);
+
+        if (shouldRetry) {
+            int failureCount = queue.getFailureCount(id);
+            long delay = RETRY_DELAY_MILLISECONDS << Math.min(failureCount, 16);
+            long retryTime = System.currentTimeMillis()
+                    + Math.min(delay, MAX_RETRY_DELAY_MILLISECONDS);
+
+            queue.markFailed(id, retryTime);
+        } else {
+            queue.remove(id);
+        }
+
+        scheduleUploads();
+    }
+
+    private synchronized ScheduledThreadPoolExecutor getExecutor() {
+        // The scheduler already limits the number of uploads, the pool is capped at the same
+        // number in case the limit is lowered while uploads are running
+        if (executor == null) {
+            executor = new ScheduledThreadPoolExecutor(concurrency);
+            executor.setKeepAliveTime(WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    private final class UploadTask implements Runnable {
+
+        private final UUID id;
+
+        private UploadTask(UUID id) {
+            this.id = id;
+        }
+
+        @Override
+        public void run() {
+            boolean shouldRetry = false;
+
+            try {
+                shouldRetry = !upload();
+            } finally {
+                onUploadFinished(id, shouldRetry);
+            }
+        }
+
+        /**
+         * Returns false if the upload failed and should be tried again later.
+         */
+        private boolean upload() {
+            Video video;
+
+            try {
+                video = App.videoRepository.getVideo(id).inflate();
+            } catch (IOException e) {
+                e.printStackTrace();
+                postError("Could not load video.");
+                return true;
+            }
+
+            if (App.loginManager.isLoggedOut()) {
+                postError(context.getString(R.string.not_loggedin_nag_title));
+                return true;
+            }
+
+            if (video.isRemote()) {
+                postError("Video already uploaded.");
+                return true;
+            }
+
+            bus.post(new UploadStateEvent(id, UploadStateEvent.Type.STARTED));
+
+            boolean success = tryUpload(video);
+
+            if (success) {
+                //TODO: callback here
+                video.save(null);
+            } else {
+                // TODO: Get more data from tryUpload?
+                postError("Failed to upload video.");
+            }
+
+            UploadStateEvent.Type type = success
+                ? UploadStateEvent.Type.SUCCEEDED
+                : UploadStateEvent.Type.FAILED;
+
+            bus.post(new UploadStateEvent(id, type));
+
+            return success;
+        }
+
+        private boolean tryUpload(Video video) {
+
+            // Try to upload the Video mp4 data somewhere.
+
+            VideoUploader videoHost = null;
+            ThumbnailUploader thumbnailHost = null;
+            VideoUploader.VideoUploadResult videoResult = null;
+
+            UploadFilePreparer.PreparedFile preparedFile = filePreparer.prepare(video);
+            video.setVideoUri(Uri.fromFile(preparedFile.file));
+
+            // The file has already been cut, so the uploaders mustn't trim it again
+            if (preparedFile.didTrim) {
+                applyTrimming(video, preparedFile.trimOffsetMilliseconds);
+            }
+
+            bus.post(new UploadProgressEvent(id, UploadProgressEvent.Stage.VIDEO));
+
+            for (VideoUploader uploader : videoUploaders) {
+                try {
+                    videoResult = uploader.uploadVideo(video);
+                    videoHost = uploader;
+
+                    // Stop at the first uploader which succeeds.
+                    break;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            if (videoResult == null) {
+                // No cleanup required, the prepared file is kept for retrying
+                return false;
+            }
+
+            filePreparer.discard(preparedFile);
+
+            video.setVideoUri(videoResult.videoUrl);
+            video.setDeleteUri(videoResult.deleteUrl);
+
+            Uri thumbUrl = null;
+            if (videoResult.thumbUrl != null) {
+
+                // Use the thumbnail provided by the video uploader
+                thumbUrl = videoResult.thumbUrl;
+            } else {
+
+                bus.post(new UploadProgressEvent(id, UploadProgressEvent.Stage.THUMBNAIL));
+
+                // Upload the thumbnail somewhere else
+                for (ThumbnailUploader uploader : thumbUploaders) {
+                    try {
+                        thumbUrl = uploader.uploadThumb(video);
+                        thumbnailHost = uploader;
+
+                        // Stop at the first uploader which succeeds.
+                        break;
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+
+            if (thumbUrl == null) {
+                // Cleanup, it doesn't really matter if it succeeds or not so just ignore the error
+                try {
+                    videoHost.deleteVideo(video);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                return false;
+            }
+            video.setThumbUri(thumbUrl);
+
+            // Now we have the video and thumbnail urls and they are stored in the Video object,
+            // we can serialize it to json with the new data and upload that.
+
+            // The uploaded video will have normalized rotation after transcoding, so clear the
+            // hacky rotation compensation property.
+            if (videoResult.didNormalizeRotation || preparedFile.didNormalizeRotation)
+                video.setRotation(0);
+
+            bus.post(new UploadProgressEvent(id, UploadProgressEvent.Stage.MANIFEST));
+
+            try {
+                // Upload the video manifest.
+                App.videoRepository.uploadVideo(video);
+
+            } catch (IOException ee) {
+                ee.printStackTrace();
+
+                // Cleanup, it doesn't matter if it succeeds _but_ it would be good that we try to
+                // cleanup every resource even if an earlier one fails.
+                try {
+                    if (thumbnailHost != null)
+                        thumbnailHost.deleteThumb(video);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                try {
+                    videoHost.deleteVideo(video);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                return false;
+            }
+
+            bus.post(new UploadProgressEvent(id, UploadProgressEvent.Stage.METADATA));
+
+            // In the end just run through some other uploaders that just receive metadata instead
+            // of hosting the video data.
+            for (MetadataUploader uploader : metadataUploaders) {
+                try {
+                    uploader.uploadMetadata(video);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Move the annotations to the timeline of the trimmed file and clear the trimming.
+         */
+        private void applyTrimming(Video video, long offsetMilliseconds) {
+            int end = video.getEndTime();
+            Iterator<Annotation> annotations = video.getAnnotations().iterator();
+
+            while (annotations.hasNext()) {
+                Annotation annotation = annotations.next();
+
+                // Annotations past the end point to a part of the video that isn't uploaded
+                if (annotation.getTime() > end) {
+                    annotations.remove();
+                    continue;
+                }
+
+                annotation.setTime(Math.max(0, annotation.getTime() - offsetMilliseconds));
+            }
+
+            video.removeTrimming();
+        }
+
+        private void postError(String errorMessage) {
+            bus.post(new UploadErrorEvent(id, errorMessage));
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package fi.aalto.legroup.achso.storage.remote.upload;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Persists the resumable upload sessions that are in progress, so that an upload interrupted by
+ * a dropped connection or a killed process can continue where it stopped.
+ *
+ * Every session is stored in its own small file, named after a hash of the session key.
+ */
+public final class UploadSessionStore {
+
+    private static final int MAGIC = 0x41435553;
+    private static final int VERSION = 1;
+
+    public static final class Session {
+
+        private final String uploadUrl;
+        private final long fileLength;
+        private final long fileLastModified;
+
+        public Session(String uploadUrl, File file) {
+            this(uploadUrl, file.length(), file.lastModified());
+        }
+
+        private Session(String uploadUrl, long fileLength, long fileLastModified) {
+            this.uploadUrl = uploadUrl;
+            this.fileLength = fileLength;
+            this.fileLastModified = fileLastModified;
+        }
+
+        /**
+         * Returns the URL the server gave for the upload.
+         */
+        public String getUploadUrl() {
+            return uploadUrl;
+        }
+
+        /**
+         * Returns true if the session was started for the file as it is now. A file that has
+         * changed since, for example because it has been trimmed, must be uploaded from scratch.
+         */
+        public boolean matches(File file) {
+            return file.length() == fileLength && file.lastModified() == fileLastModified;
+        }
+    }
+
+    private final File directory;
+
+    /**
+     * @param directory Directory to persist the sessions in.
+     */
+    public UploadSessionStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the session stored with the key or null if there is none.
+     */
+    public synchronized Session get(String key) {
+        File file = getSessionFile(key);
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream input = null;
+
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Unsupported upload session " + file);
+            }
+
+            String uploadUrl = input.readUTF();
+            long fileLength = input.readLong();
+            long fileLastModified = input.readLong();
+
+            return new Session(uploadUrl, fileLength, fileLastModified);
+        } catch (IOException e) {
+            e.printStackTrace();
+
+            // The upload will just start from the beginning
+            file.delete();
+            return null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    public synchronized void put(String key, Session session) {
+        directory.mkdirs();
+
+        File file = getSessionFile(key);
+        File temporaryFile = new File(directory, file.getName() + ".tmp");
+        DataOutputStream output = null;
+
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temporaryFile)));
+
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(session.uploadUrl);
+            output.writeLong(session.fileLength);
+            output.writeLong(session.fileLastModified);
+
+            output.close();
+            output = null;
+
+            if (!temporaryFile.renameTo(file)) {
+                throw new IOException("Failed to replace upload session " + file);
+            }
+        } catch (IOException e) {
+            // Not fatal, the upload just can't be resumed if it is interrupted
+            e.printStackTrace();
+            temporaryFile.delete();
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    public synchronized void remove(String key) {
+        getSessionFile(key).delete();
+    }
+
+    private File getSessionFile(String key) {
+        String name = Hashing.sha1().hashString(key, Charsets.UTF_8).toString();
+        return new File(directory, name + ".session");
+    }
+}
@@ -0,0 +1,148 @@
+package fi.aalto.legroup.achso.storage.remote.upload.transcoding;
+
+import com.coremedia.iso.boxes.Container;
+import com.googlecode.mp4parser.DataSource;
+import com.googlecode.mp4parser.FileDataSourceImpl;
+import com.googlecode.mp4parser.authoring.Movie;
+import com.googlecode.mp4parser.authoring.Track;
+import com.googlecode.mp4parser.authoring.builder.DefaultMp4Builder;
+import com.googlecode.mp4parser.authoring.container.mp4.MovieCreator;
+import com.googlecode.mp4parser.authoring.tracks.CroppedTrack;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Cuts mp4 files without re-encoding them using mp4parser.
+ *
+ * The start is moved back to the sync sample before it and the end is cut at a sample boundary,
+ * see TrimPoints. The samples of the other tracks are cut at the same times.
+ */
+public final class Mp4Trimmer {
+
+    /**
+     * Changed whenever the cut points or the layout of the output change, so that copies
+     * trimmed by an older version aren't reused.
+     */
+    public static final int VERSION = 2;
+
+    /**
+     * Handler for video tracks in MP4 files, see ISO/IEC 14496-12.
+     */
+    private static final String VIDEO_TRACK_HANDLER = "vide";
+
+    private Mp4Trimmer() {
+        // Static only
+    }
+
+    /**
+     * Write the part of the input between the given times to the output file. The output file
+     * is deleted if trimming fails.
+     *
+     * @param startMilliseconds Start of the kept part.
+     * @param endMilliseconds   End of the kept part, or Integer.MAX_VALUE to keep the rest.
+     * @return The time in the input where the output actually starts, in milliseconds.
+     */
+    public static long trim(File input, File output, long startMilliseconds,
+            long endMilliseconds) throws IOException {
+
+        DataSource dataSource = null;
+        boolean isSuccessful = false;
+
+        try {
+            dataSource = new FileDataSourceImpl(input);
+
+            Movie movie = MovieCreator.build(dataSource);
+            List<Track> tracks = movie.getTracks();
+
+            double start = startMilliseconds / 1000.0;
+            double end = endMilliseconds == Integer.MAX_VALUE
+                    ? Double.MAX_VALUE
+                    : endMilliseconds / 1000.0;
+
+            Track syncTrack = findSyncTrack(tracks);
+
+            if (syncTrack != null) {
+                start = TrimPoints.snapStart(getSampleTimes(syncTrack),
+                        syncTrack.getSyncSamples(), start);
+            }
+
+            if (end <= start) {
+                throw new IOException("Nothing left of " + input + " after trimming.");
+            }
+
+            // The movie keeps its matrix and other metadata, only the tracks are replaced
+            movie.setTracks(new LinkedList<Track>());
+
+            for (Track track : tracks) {
+                double[] sampleTimes = getSampleTimes(track);
+
+                movie.addTrack(new CroppedTrack(track, TrimPoints.findSample(sampleTimes, start),
+                        TrimPoints.findSample(sampleTimes, end)));
+            }
+
+            Container container = new DefaultMp4Builder().build(movie);
+            FileOutputStream stream = new FileOutputStream(output);
+
+            try {
+                container.writeContainer(stream.getChannel());
+            } finally {
+                stream.close();
+            }
+
+            isSuccessful = true;
+
+            return Math.round(start * 1000);
+        } catch (RuntimeException e) {
+            // mp4parser reports malformed files this way
+            throw new IOException(e);
+        } finally {
+            if (dataSource != null) {
+                try {
+                    dataSource.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            if (!isSuccessful) {
+                //noinspection ResultOfMethodCallIgnored
+                output.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the track whose sync samples decide the start, preferring video tracks, or
+     * null if all samples of all tracks are sync samples.
+     */
+    private static Track findSyncTrack(List<Track> tracks) {
+        Track syncTrack = null;
+
+        for (Track track : tracks) {
+            long[] syncSamples = track.getSyncSamples();
+
+            if (syncSamples == null || syncSamples.length == 0) {
+                continue;
+            }
+
+            if (track.getHandler().equals(VIDEO_TRACK_HANDLER)) {
+                return track;
+            }
+
+            if (syncTrack == null) {
+                syncTrack = track;
+            }
+        }
+
+        return syncTrack;
+    }
+
+    private static double[] getSampleTimes(Track track) {
+        return TrimPoints.getSampleTimes(track.getSampleDurations(),
+                track.getTrackMetaData().getTimescale());
+    }
+}
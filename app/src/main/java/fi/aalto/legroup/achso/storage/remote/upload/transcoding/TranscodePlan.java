@@ -0,0 +1,181 @@
+package fi.aalto.legroup.achso.storage.remote.upload.transcoding;
+
+import java.util.Locale;
+
+/**
+ * Decides whether a video should be transcoded before uploading and to what. This is kept free
+ * of Android classes so that the decisions can be checked without a device.
+ *
+ * The output is scaled so that its shorter edge fits the limit of the settings, keeping the
+ * aspect ratio, and the rotation of the source is baked into the frames. Transcoding is skipped
+ * if it wouldn't make the file meaningfully smaller.
+ */
+public final class TranscodePlan {
+
+    /**
+     * Encoders commonly require the frame size to be a multiple of this.
+     */
+    private static final int SIZE_ALIGNMENT = 16;
+
+    /**
+     * Transcoding has to save at least this fraction of the bytes to be worth the trouble.
+     */
+    private static final float MIN_SAVED_FRACTION = 0.3f;
+
+    /**
+     * The audio track is copied as it is, assume this bitrate for it when estimating the size.
+     */
+    private static final int ESTIMATED_AUDIO_BITRATE = 128 * 1000;
+
+    /**
+     * What is known about the source video.
+     */
+    public static final class Source {
+
+        private final int width;
+        private final int height;
+        private final int rotationDegrees;
+        private final long durationMicroseconds;
+        private final long fileSize;
+
+        /**
+         * @param width           Width of the encoded frames.
+         * @param height          Height of the encoded frames.
+         * @param rotationDegrees Rotation the player should apply, 0, 90, 180 or 270.
+         */
+        public Source(int width, int height, int rotationDegrees, long durationMicroseconds,
+                long fileSize) {
+            this.width = width;
+            this.height = height;
+            this.rotationDegrees = normalizeRotation(rotationDegrees);
+            this.durationMicroseconds = durationMicroseconds;
+            this.fileSize = fileSize;
+        }
+
+        /**
+         * Returns the bitrate of the whole file, or 0 if it can't be known.
+         */
+        private long getBitrate() {
+            if (durationMicroseconds <= 0) {
+                return 0;
+            }
+            return fileSize * 8 * 1000000 / durationMicroseconds;
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final int rotationDegrees;
+    private final int videoBitrate;
+    private final int frameRate;
+    private final int keyFrameIntervalSeconds;
+
+    private TranscodePlan(int width, int height, int rotationDegrees, int videoBitrate,
+            int frameRate, int keyFrameIntervalSeconds) {
+        this.width = width;
+        this.height = height;
+        this.rotationDegrees = rotationDegrees;
+        this.videoBitrate = videoBitrate;
+        this.frameRate = frameRate;
+        this.keyFrameIntervalSeconds = keyFrameIntervalSeconds;
+    }
+
+    /**
+     * Returns the plan for transcoding the source, or null if it should be uploaded as it is.
+     */
+    public static TranscodePlan create(Source source, TranscodeSettings settings) {
+        if (source.width <= 0 || source.height <= 0) {
+            return null;
+        }
+
+        boolean isRotated = source.rotationDegrees == 90 || source.rotationDegrees == 270;
+
+        // The size of the frames as they are shown
+        int displayWidth = isRotated ? source.height : source.width;
+        int displayHeight = isRotated ? source.width : source.height;
+
+        int shortEdge = Math.min(displayWidth, displayHeight);
+        float scale = Math.min(1f, (float) settings.getMaxShortEdge() / shortEdge);
+
+        int width = align(displayWidth * scale);
+        int height = align(displayHeight * scale);
+
+        int videoBitrate = settings.getVideoBitrate();
+        long sourceBitrate = source.getBitrate();
+
+        // Never encode at a higher bitrate than the source had
+        if (sourceBitrate > 0 && sourceBitrate < videoBitrate) {
+            videoBitrate = (int) sourceBitrate;
+        }
+
+        long estimatedSize = (videoBitrate + ESTIMATED_AUDIO_BITRATE)
+                * source.durationMicroseconds / 8 / 1000000;
+
+        if (source.durationMicroseconds <= 0
+                || estimatedSize > source.fileSize * (1 - MIN_SAVED_FRACTION)) {
+            return null;
+        }
+
+        return new TranscodePlan(width, height, source.rotationDegrees, videoBitrate,
+                settings.getFrameRate(), settings.getKeyFrameIntervalSeconds());
+    }
+
+    /**
+     * Width of the output frames, with the rotation applied.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Height of the output frames, with the rotation applied.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Rotation of the source that has to be applied to the frames.
+     */
+    public int getRotationDegrees() {
+        return rotationDegrees;
+    }
+
+    public int getVideoBitrate() {
+        return videoBitrate;
+    }
+
+    public int getFrameRate() {
+        return frameRate;
+    }
+
+    public int getKeyFrameIntervalSeconds() {
+        return keyFrameIntervalSeconds;
+    }
+
+    /**
+     * Returns a string identifying the output, for naming the transcoded files.
+     */
+    public String getSignature() {
+        return String.format(Locale.US, "%dx%d-%d-%d", width, height, videoBitrate, frameRate);
+    }
+
+    private static int align(float size) {
+        int aligned = Math.round(size / SIZE_ALIGNMENT) * SIZE_ALIGNMENT;
+        return Math.max(SIZE_ALIGNMENT, aligned);
+    }
+
+    private static int normalizeRotation(int rotationDegrees) {
+        int rotation = rotationDegrees % 360;
+        if (rotation < 0) {
+            rotation += 360;
+        }
+
+        // Anything else than the right angles can't be baked in
+        if (rotation % 90 != 0) {
+            return 0;
+        }
+
+        return rotation;
+    }
+}
@@ -0,0 +1,69 @@
+package fi.aalto.legroup.achso.storage.remote.upload.transcoding;
+
+/**
+ * Limits for the videos transcoded before uploading.
+ */
+public final class TranscodeSettings {
+
+    public static final int DEFAULT_FRAME_RATE = 30;
+    public static final int DEFAULT_KEY_FRAME_INTERVAL_SECONDS = 1;
+
+    private final int maxShortEdge;
+    private final int videoBitrate;
+    private final int frameRate;
+    private final int keyFrameIntervalSeconds;
+
+    /**
+     * @param maxShortEdge Maximum size of the shorter edge of the frames, eg. 720 for 720p.
+     * @param videoBitrate Bitrate of the video track in bits per second.
+     */
+    public TranscodeSettings(int maxShortEdge, int videoBitrate) {
+        this(maxShortEdge, videoBitrate, DEFAULT_FRAME_RATE, DEFAULT_KEY_FRAME_INTERVAL_SECONDS);
+    }
+
+    public TranscodeSettings(int maxShortEdge, int videoBitrate, int frameRate,
+            int keyFrameIntervalSeconds) {
+        this.maxShortEdge = maxShortEdge;
+        this.videoBitrate = videoBitrate;
+        this.frameRate = frameRate;
+        this.keyFrameIntervalSeconds = keyFrameIntervalSeconds;
+    }
+
+    /**
+     * Returns the settings for a quality preference value, or null if the videos should be
+     * uploaded as they are.
+     *
+     * @param quality Height of the video, eg. "720", or "original".
+     */
+    public static TranscodeSettings forQuality(String quality) {
+        switch (quality) {
+            case "1080":
+                return new TranscodeSettings(1080, 8000000);
+
+            case "720":
+                return new TranscodeSettings(720, 4000000);
+
+            case "480":
+                return new TranscodeSettings(480, 2000000);
+
+            default:
+                return null;
+        }
+    }
+
+    public int getMaxShortEdge() {
+        return maxShortEdge;
+    }
+
+    public int getVideoBitrate() {
+        return videoBitrate;
+    }
+
+    public int getFrameRate() {
+        return frameRate;
+    }
+
+    public int getKeyFrameIntervalSeconds() {
+        return keyFrameIntervalSeconds;
+    }
+}
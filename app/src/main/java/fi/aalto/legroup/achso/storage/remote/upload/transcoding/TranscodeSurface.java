@@ -0,0 +1,347 @@
+package fi.aalto.legroup.achso.storage.remote.upload.transcoding;
+
+import android.annotation.TargetApi;
+import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.os.Build;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Moves decoded frames to the input surface of an encoder through OpenGL, rotating them on the
+ * way so that the rotation of the source is baked into the output. Scaling comes for free, as
+ * the frames are drawn to fill the encoder surface.
+ *
+ * The decoder renders to the surface returned by getDecoderSurface(). Everything else must be
+ * called on the thread that created this object, which is where the EGL context is current.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+final class TranscodeSurface implements SurfaceTexture.OnFrameAvailableListener {
+
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+
+    private static final long FRAME_TIMEOUT_MILLISECONDS = 2500;
+
+    private static final String VERTEX_SHADER = ""
+            + "uniform mat4 uMvpMatrix;\n"
+            + "uniform mat4 uTextureMatrix;\n"
+            + "attribute vec4 aPosition;\n"
+            + "attribute vec4 aTextureCoordinate;\n"
+            + "varying vec2 vTextureCoordinate;\n"
+            + "void main() {\n"
+            + "    gl_Position = uMvpMatrix * aPosition;\n"
+            + "    vTextureCoordinate = (uTextureMatrix * aTextureCoordinate).xy;\n"
+            + "}\n";
+
+    private static final String FRAGMENT_SHADER = ""
+            + "#extension GL_OES_EGL_image_external : require\n"
+            + "precision mediump float;\n"
+            + "varying vec2 vTextureCoordinate;\n"
+            + "uniform samplerExternalOES sTexture;\n"
+            + "void main() {\n"
+            + "    gl_FragColor = texture2D(sTexture, vTextureCoordinate);\n"
+            + "}\n";
+
+    // X, Y, Z, U and V of a quad covering the whole surface
+    private static final float[] VERTICES = {
+            -1f, -1f, 0f, 0f, 0f,
+            1f, -1f, 0f, 1f, 0f,
+            -1f, 1f, 0f, 0f, 1f,
+            1f, 1f, 0f, 1f, 1f,
+    };
+
+    private static final int FLOAT_SIZE = 4;
+    private static final int VERTEX_STRIDE = 5 * FLOAT_SIZE;
+
+    private final int width;
+    private final int height;
+
+    private final float[] mvpMatrix = new float[16];
+    private final float[] textureMatrix = new float[16];
+
+    private final FloatBuffer vertices;
+
+    private final Object frameLock = new Object();
+    private boolean isFrameAvailable = false;
+
+    private EGLDisplay eglDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext eglContext = EGL14.EGL_NO_CONTEXT;
+    private EGLSurface eglSurface = EGL14.EGL_NO_SURFACE;
+
+    private Surface encoderSurface;
+    private SurfaceTexture surfaceTexture;
+    private Surface decoderSurface;
+
+    private int program;
+    private int textureId;
+    private int mvpMatrixHandle;
+    private int textureMatrixHandle;
+    private int positionHandle;
+    private int textureCoordinateHandle;
+
+    /**
+     * @param encoderSurface Input surface of the encoder.
+     * @param plan           Size of the encoder surface and the rotation to apply.
+     */
+    TranscodeSurface(Surface encoderSurface, TranscodePlan plan) throws IOException {
+        this.encoderSurface = encoderSurface;
+        this.width = plan.getWidth();
+        this.height = plan.getHeight();
+
+        vertices = ByteBuffer.allocateDirect(VERTICES.length * FLOAT_SIZE)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        vertices.put(VERTICES).position(0);
+
+        // The player would rotate the frames clockwise, the Y axis of OpenGL points up
+        Matrix.setIdentityM(mvpMatrix, 0);
+        Matrix.rotateM(mvpMatrix, 0, -plan.getRotationDegrees(), 0f, 0f, 1f);
+
+        setUpEgl();
+        setUpProgram();
+
+        surfaceTexture = new SurfaceTexture(textureId);
+        surfaceTexture.setOnFrameAvailableListener(this);
+        decoderSurface = new Surface(surfaceTexture);
+    }
+
+    /**
+     * Returns the surface the decoder should render to.
+     */
+    Surface getDecoderSurface() {
+        return decoderSurface;
+    }
+
+    /**
+     * Wait for the frame released by the decoder to arrive and make it the current texture.
+     */
+    void awaitNewFrame() throws IOException {
+        synchronized (frameLock) {
+            long deadline = System.currentTimeMillis() + FRAME_TIMEOUT_MILLISECONDS;
+
+            while (!isFrameAvailable) {
+                long remaining = deadline - System.currentTimeMillis();
+
+                if (remaining <= 0) {
+                    throw new IOException("Timed out waiting for a decoded frame.");
+                }
+
+                try {
+                    frameLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for a decoded frame.");
+                }
+            }
+
+            isFrameAvailable = false;
+        }
+
+        surfaceTexture.updateTexImage();
+    }
+
+    /**
+     * Draw the current frame and send it to the encoder.
+     *
+     * @param presentationTimeNanoseconds Time stamp of the frame.
+     */
+    void drawFrame(long presentationTimeNanoseconds) throws IOException {
+        surfaceTexture.getTransformMatrix(textureMatrix);
+
+        GLES20.glViewport(0, 0, width, height);
+        GLES20.glClearColor(0f, 0f, 0f, 1f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+
+        GLES20.glUseProgram(program);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+
+        vertices.position(0);
+        GLES20.glVertexAttribPointer(positionHandle, 3, GLES20.GL_FLOAT, false, VERTEX_STRIDE,
+                vertices);
+        GLES20.glEnableVertexAttribArray(positionHandle);
+
+        vertices.position(3);
+        GLES20.glVertexAttribPointer(textureCoordinateHandle, 2, GLES20.GL_FLOAT, false,
+                VERTEX_STRIDE, vertices);
+        GLES20.glEnableVertexAttribArray(textureCoordinateHandle);
+
+        GLES20.glUniformMatrix4fv(mvpMatrixHandle, 1, false, mvpMatrix, 0);
+        GLES20.glUniformMatrix4fv(textureMatrixHandle, 1, false, textureMatrix, 0);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        checkGlError("glDrawArrays");
+
+        EGLExt.eglPresentationTimeANDROID(eglDisplay, eglSurface, presentationTimeNanoseconds);
+
+        if (!EGL14.eglSwapBuffers(eglDisplay, eglSurface)) {
+            throw new IOException("eglSwapBuffers failed: " + EGL14.eglGetError());
+        }
+    }
+
+    @Override
+    public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+        synchronized (frameLock) {
+            isFrameAvailable = true;
+            frameLock.notifyAll();
+        }
+    }
+
+    void release() {
+        if (eglDisplay != EGL14.EGL_NO_DISPLAY) {
+            EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                    EGL14.EGL_NO_CONTEXT);
+            EGL14.eglDestroySurface(eglDisplay, eglSurface);
+            EGL14.eglDestroyContext(eglDisplay, eglContext);
+            EGL14.eglReleaseThread();
+            EGL14.eglTerminate(eglDisplay);
+        }
+
+        if (decoderSurface != null) {
+            decoderSurface.release();
+        }
+        if (surfaceTexture != null) {
+            surfaceTexture.release();
+        }
+        if (encoderSurface != null) {
+            encoderSurface.release();
+        }
+
+        eglDisplay = EGL14.EGL_NO_DISPLAY;
+        eglContext = EGL14.EGL_NO_CONTEXT;
+        eglSurface = EGL14.EGL_NO_SURFACE;
+        decoderSurface = null;
+        surfaceTexture = null;
+        encoderSurface = null;
+    }
+
+    private void setUpEgl() throws IOException {
+        eglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+
+        int[] version = new int[2];
+        if (!EGL14.eglInitialize(eglDisplay, version, 0, version, 1)) {
+            throw new IOException("Couldn't initialize EGL.");
+        }
+
+        int[] configAttributes = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL_RECORDABLE_ANDROID, 1,
+                EGL14.EGL_NONE
+        };
+
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] configCount = new int[1];
+
+        if (!EGL14.eglChooseConfig(eglDisplay, configAttributes, 0, configs, 0, 1, configCount,
+                0) || configCount[0] == 0) {
+            throw new IOException("No recordable EGL config.");
+        }
+
+        int[] contextAttributes = {
+                EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
+                EGL14.EGL_NONE
+        };
+
+        eglContext = EGL14.eglCreateContext(eglDisplay, configs[0], EGL14.EGL_NO_CONTEXT,
+                contextAttributes, 0);
+
+        if (eglContext == null || eglContext == EGL14.EGL_NO_CONTEXT) {
+            throw new IOException("Couldn't create EGL context.");
+        }
+
+        int[] surfaceAttributes = {
+                EGL14.EGL_NONE
+        };
+
+        eglSurface = EGL14.eglCreateWindowSurface(eglDisplay, configs[0], encoderSurface,
+                surfaceAttributes, 0);
+
+        if (eglSurface == null || eglSurface == EGL14.EGL_NO_SURFACE) {
+            throw new IOException("Couldn't create EGL surface.");
+        }
+
+        if (!EGL14.eglMakeCurrent(eglDisplay, eglSurface, eglSurface, eglContext)) {
+            throw new IOException("eglMakeCurrent failed.");
+        }
+    }
+
+    private void setUpProgram() throws IOException {
+        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER);
+        int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+
+        program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, fragmentShader);
+        GLES20.glLinkProgram(program);
+
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+
+        if (status[0] != GLES20.GL_TRUE) {
+            String log = GLES20.glGetProgramInfoLog(program);
+            GLES20.glDeleteProgram(program);
+            throw new IOException("Couldn't link program: " + log);
+        }
+
+        positionHandle = GLES20.glGetAttribLocation(program, "aPosition");
+        textureCoordinateHandle = GLES20.glGetAttribLocation(program, "aTextureCoordinate");
+        mvpMatrixHandle = GLES20.glGetUniformLocation(program, "uMvpMatrix");
+        textureMatrixHandle = GLES20.glGetUniformLocation(program, "uTextureMatrix");
+
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        textureId = textures[0];
+
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        checkGlError("glTexParameter");
+    }
+
+    private static int loadShader(int type, String source) throws IOException {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+
+        int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+
+        if (status[0] == 0) {
+            String log = GLES20.glGetShaderInfoLog(shader);
+            GLES20.glDeleteShader(shader);
+            throw new IOException("Couldn't compile shader: " + log);
+        }
+
+        return shader;
+    }
+
+    private static void checkGlError(String operation) throws IOException {
+        int error = GLES20.glGetError();
+
+        if (error != GLES20.GL_NO_ERROR) {
+            throw new IOException(operation + " failed: " + error);
+        }
+    }
+}
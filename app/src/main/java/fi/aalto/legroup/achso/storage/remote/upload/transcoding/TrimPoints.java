@@ -0,0 +1,93 @@
+package fi.aalto.legroup.achso.storage.remote.upload.transcoding;
+
+/**
+ * Finds where the tracks of an mp4 file are cut when trimming it. This is kept free of mp4parser
+ * and Android classes so that the cut points can be checked without a device.
+ *
+ * A video can only start from a sync sample, so the start is moved back to the sync sample at or
+ * before the requested time and nothing that was asked for is lost. Samples only depend on
+ * earlier ones, so the end is cut at the first sample that starts at or after the requested time.
+ */
+public final class TrimPoints {
+
+    private TrimPoints() {
+        // Static only
+    }
+
+    /**
+     * Returns the start times of the samples followed by the end of the track, in seconds.
+     *
+     * @param durations Durations of the samples in the units of the timescale.
+     * @param timescale Units per second.
+     */
+    public static double[] getSampleTimes(long[] durations, long timescale) {
+        double[] times = new double[durations.length + 1];
+        long time = 0;
+
+        for (int i = 0; i < durations.length; i++) {
+            times[i] = (double) time / timescale;
+            time += durations[i];
+        }
+
+        times[durations.length] = (double) time / timescale;
+
+        return times;
+    }
+
+    /**
+     * Returns the time of the last sync sample at or before the start, or of the first sync
+     * sample if the start is before it.
+     *
+     * @param sampleTimes Times from getSampleTimes().
+     * @param syncSamples Numbers of the sync samples in ascending order, starting from 1 like in
+     *                    mp4 files. Null or empty if every sample is a sync sample.
+     * @param start       Requested start in seconds.
+     */
+    public static double snapStart(double[] sampleTimes, long[] syncSamples, double start) {
+        if (syncSamples == null || syncSamples.length == 0) {
+            return start;
+        }
+
+        int sampleCount = sampleTimes.length - 1;
+        double snapped = -1;
+
+        for (long syncSample : syncSamples) {
+            if (syncSample < 1 || syncSample > sampleCount) {
+                continue;
+            }
+
+            double time = sampleTimes[(int) syncSample - 1];
+
+            if (snapped >= 0 && time > start) {
+                break;
+            }
+
+            snapped = time;
+        }
+
+        return snapped >= 0 ? snapped : start;
+    }
+
+    /**
+     * Returns the index of the first sample that starts at or after the given time, or the
+     * number of samples if there is none.
+     *
+     * @param sampleTimes Times from getSampleTimes().
+     */
+    public static int findSample(double[] sampleTimes, double seconds) {
+        int low = 0;
+        int high = sampleTimes.length - 1;
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+
+            if (sampleTimes[middle] < seconds) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+}
@@ -0,0 +1,395 @@
+package fi.aalto.legroup.achso.storage.remote.upload.transcoding;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import fi.aalto.legroup.achso.playback.utilities.VideoOrientationReader;
+
+/**
+ * Re-encodes the video track of an mp4 file with the hardware encoder and copies the audio track
+ * as it is. The frames go from the decoder to the encoder through a TranscodeSurface, so they
+ * never have to be copied to the Java heap. The audio samples are written between the encoded
+ * frames in presentation time order, so the output is interleaved like the recording was.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public final class VideoTranscoder {
+
+    private static final String OUTPUT_VIDEO_MIME_TYPE = "video/avc";
+    private static final String AUDIO_MIME_TYPE = "audio/mp4a-latm";
+
+    private static final long TIMEOUT_MICROSECONDS = 10000;
+
+    private static final int AUDIO_BUFFER_SIZE = 256 * 1024;
+
+    private VideoTranscoder() {
+        // Static only
+    }
+
+    /**
+     * Returns true if videos can be transcoded on this device.
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
+    /**
+     * Returns what the transcoding decisions need to know about the file.
+     */
+    public static TranscodePlan.Source readSource(Context context, File file) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+
+        try {
+            extractor.setDataSource(file.getAbsolutePath());
+
+            int track = findTrack(extractor, "video/");
+
+            if (track < 0) {
+                throw new IOException("No video track in " + file);
+            }
+
+            MediaFormat format = extractor.getTrackFormat(track);
+
+            long duration = 0;
+            if (format.containsKey(MediaFormat.KEY_DURATION)) {
+                duration = format.getLong(MediaFormat.KEY_DURATION);
+            }
+
+            int rotation = Math.max(0, VideoOrientationReader.readOrientation(context, file));
+
+            return new TranscodePlan.Source(format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT), rotation, duration, file.length());
+        } finally {
+            extractor.release();
+        }
+    }
+
+    /**
+     * Transcode the input file according to the plan. The output file is deleted if transcoding
+     * fails.
+     */
+    public static void transcode(File input, File output, TranscodePlan plan) throws IOException {
+        MediaExtractor videoExtractor = null;
+        MediaExtractor audioExtractor = null;
+        MediaCodec decoder = null;
+        MediaCodec encoder = null;
+        TranscodeSurface surface = null;
+        Output muxerOutput = null;
+        boolean isSuccessful = false;
+
+        try {
+            videoExtractor = new MediaExtractor();
+            videoExtractor.setDataSource(input.getAbsolutePath());
+
+            int videoTrack = findTrack(videoExtractor, "video/");
+
+            if (videoTrack < 0) {
+                throw new IOException("No video track in " + input);
+            }
+
+            videoExtractor.selectTrack(videoTrack);
+            MediaFormat inputFormat = videoExtractor.getTrackFormat(videoTrack);
+
+            audioExtractor = new MediaExtractor();
+            audioExtractor.setDataSource(input.getAbsolutePath());
+
+            int audioTrack = findTrack(audioExtractor, "audio/");
+            MediaFormat audioFormat = null;
+
+            if (audioTrack >= 0) {
+                audioFormat = audioExtractor.getTrackFormat(audioTrack);
+
+                // Only AAC can be muxed into mp4 without re-encoding it
+                if (!AUDIO_MIME_TYPE.equals(audioFormat.getString(MediaFormat.KEY_MIME))) {
+                    throw new IOException("Unsupported audio track in " + input);
+                }
+
+                audioExtractor.selectTrack(audioTrack);
+            }
+
+            MediaFormat outputFormat = MediaFormat.createVideoFormat(OUTPUT_VIDEO_MIME_TYPE,
+                    plan.getWidth(), plan.getHeight());
+            outputFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                    MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+            outputFormat.setInteger(MediaFormat.KEY_BIT_RATE, plan.getVideoBitrate());
+            outputFormat.setInteger(MediaFormat.KEY_FRAME_RATE, plan.getFrameRate());
+            outputFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL,
+                    plan.getKeyFrameIntervalSeconds());
+
+            encoder = MediaCodec.createEncoderByType(OUTPUT_VIDEO_MIME_TYPE);
+            encoder.configure(outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            surface = new TranscodeSurface(encoder.createInputSurface(), plan);
+            encoder.start();
+
+            decoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
+            decoder.configure(inputFormat, surface.getDecoderSurface(), null, 0);
+            decoder.start();
+
+            muxerOutput = new Output(new MediaMuxer(output.getAbsolutePath(),
+                    MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4));
+
+            if (audioFormat != null) {
+                muxerOutput.addAudioTrack(audioExtractor, audioFormat);
+            }
+
+            transcodeVideo(videoExtractor, decoder, surface, encoder, muxerOutput);
+
+            // Whatever audio is left after the last frame
+            muxerOutput.copyAudioUntil(Long.MAX_VALUE);
+
+            isSuccessful = true;
+        } catch (IllegalStateException e) {
+            // The codecs report most of their failures this way
+            throw new IOException(e);
+        } finally {
+            if (decoder != null) {
+                stopQuietly(decoder);
+                decoder.release();
+            }
+            if (encoder != null) {
+                stopQuietly(encoder);
+                encoder.release();
+            }
+            if (surface != null) {
+                surface.release();
+            }
+            if (videoExtractor != null) {
+                videoExtractor.release();
+            }
+            if (audioExtractor != null) {
+                audioExtractor.release();
+            }
+            if (muxerOutput != null && !muxerOutput.release()) {
+                isSuccessful = false;
+            }
+
+            if (!isSuccessful) {
+                output.delete();
+            }
+        }
+    }
+
+    /**
+     * Push the video track through the decoder and the encoder. The muxer is started once the
+     * encoder knows its output format, which happens before the first encoded frame.
+     */
+    private static void transcodeVideo(MediaExtractor extractor, MediaCodec decoder,
+            TranscodeSurface surface, MediaCodec encoder, Output output) throws IOException {
+
+        ByteBuffer[] decoderInputBuffers = decoder.getInputBuffers();
+        ByteBuffer[] encoderOutputBuffers = encoder.getOutputBuffers();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+        boolean isInputDone = false;
+        boolean isDecoderDone = false;
+        boolean isEncoderDone = false;
+
+        while (!isEncoderDone) {
+            if (!isInputDone) {
+                int index = decoder.dequeueInputBuffer(TIMEOUT_MICROSECONDS);
+
+                if (index >= 0) {
+                    int size = extractor.readSampleData(decoderInputBuffers[index], 0);
+
+                    if (size < 0) {
+                        decoder.queueInputBuffer(index, 0, 0, 0,
+                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        isInputDone = true;
+                    } else {
+                        decoder.queueInputBuffer(index, 0, size, extractor.getSampleTime(), 0);
+                        extractor.advance();
+                    }
+                }
+            }
+
+            if (!isDecoderDone) {
+                int index = decoder.dequeueOutputBuffer(info, TIMEOUT_MICROSECONDS);
+
+                if (index >= 0) {
+                    boolean isEndOfStream =
+                            (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                    boolean shouldRender = info.size > 0;
+
+                    // Rendering releases the frame to the surface texture
+                    decoder.releaseOutputBuffer(index, shouldRender);
+
+                    if (shouldRender) {
+                        surface.awaitNewFrame();
+                        surface.drawFrame(info.presentationTimeUs * 1000);
+                    }
+
+                    if (isEndOfStream) {
+                        encoder.signalEndOfInputStream();
+                        isDecoderDone = true;
+                    }
+                }
+            }
+
+            int index = encoder.dequeueOutputBuffer(info, TIMEOUT_MICROSECONDS);
+
+            if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                encoderOutputBuffers = encoder.getOutputBuffers();
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                if (output.isStarted()) {
+                    throw new IOException("Encoder output format changed twice.");
+                }
+
+                output.start(encoder.getOutputFormat());
+            } else if (index >= 0) {
+                ByteBuffer buffer = encoderOutputBuffers[index];
+
+                // The codec config is already part of the output format
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    info.size = 0;
+                }
+
+                if (info.size > 0) {
+                    if (!output.isStarted()) {
+                        throw new IOException("Encoder output before its format.");
+                    }
+
+                    buffer.position(info.offset);
+                    buffer.limit(info.offset + info.size);
+                    output.writeVideo(buffer, info);
+                }
+
+                isEncoderDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                encoder.releaseOutputBuffer(index, false);
+            }
+        }
+
+        if (!output.isStarted()) {
+            throw new IOException("Encoder didn't produce any output.");
+        }
+    }
+
+    private static int findTrack(MediaExtractor extractor, String mimePrefix) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+
+            if (mime != null && mime.startsWith(mimePrefix)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * The muxer and the audio track copied into it. The audio samples are copied as the encoded
+     * frames come out, each one before the first frame that is shown after it.
+     */
+    private static final class Output {
+
+        private final MediaMuxer muxer;
+        private final MediaCodec.BufferInfo audioInfo = new MediaCodec.BufferInfo();
+
+        private MediaExtractor audioExtractor;
+        private ByteBuffer audioBuffer;
+        private int audioTrack = -1;
+
+        private int videoTrack = -1;
+        private boolean isStarted = false;
+
+        private Output(MediaMuxer muxer) {
+            this.muxer = muxer;
+        }
+
+        /**
+         * @param extractor Extractor with the audio track selected.
+         */
+        private void addAudioTrack(MediaExtractor extractor, MediaFormat format) {
+            audioTrack = muxer.addTrack(format);
+            audioExtractor = extractor;
+            audioBuffer = ByteBuffer.allocate(AUDIO_BUFFER_SIZE);
+        }
+
+        private boolean isStarted() {
+            return isStarted;
+        }
+
+        private void start(MediaFormat videoFormat) {
+            videoTrack = muxer.addTrack(videoFormat);
+            muxer.start();
+            isStarted = true;
+        }
+
+        private void writeVideo(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            copyAudioUntil(info.presentationTimeUs);
+            muxer.writeSampleData(videoTrack, buffer, info);
+        }
+
+        /**
+         * Copy the audio samples that start at or before the given time.
+         */
+        private void copyAudioUntil(long timeUs) {
+            if (audioExtractor == null) {
+                return;
+            }
+
+            while (true) {
+                long sampleTime = audioExtractor.getSampleTime();
+
+                // Negative once the track has ended
+                if (sampleTime < 0 || sampleTime > timeUs) {
+                    return;
+                }
+
+                int size = audioExtractor.readSampleData(audioBuffer, 0);
+
+                if (size < 0) {
+                    return;
+                }
+
+                audioInfo.offset = 0;
+                audioInfo.size = size;
+                audioInfo.presentationTimeUs = sampleTime;
+                audioInfo.flags =
+                        (audioExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                                ? MediaCodec.BUFFER_FLAG_SYNC_FRAME
+                                : 0;
+
+                muxer.writeSampleData(audioTrack, audioBuffer, audioInfo);
+                audioExtractor.advance();
+            }
+        }
+
+        /**
+         * Stop the muxer if it was started and release it.
+         *
+         * @return False if the file couldn't be finished.
+         */
+        private boolean release() {
+            boolean isFinished = true;
+
+            try {
+                if (isStarted) {
+                    muxer.stop();
+                }
+            } catch (IllegalStateException e) {
+                e.printStackTrace();
+                isFinished = false;
+            }
+
+            muxer.release();
+            return isFinished;
+        }
+    }
+
+    private static void stopQuietly(MediaCodec codec) {
+        try {
+            codec.stop();
+        } catch (IllegalStateException e) {
+            // The codec was never started or has already failed
+        }
+    }
+}
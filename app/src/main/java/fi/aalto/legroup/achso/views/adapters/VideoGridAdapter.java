@@ -15,24 +15,40 @@ import com.squareup.picasso.Picasso;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import fi.aalto.legroup.achso.R;
 import fi.aalto.legroup.achso.entities.OptimizedVideo;
+import fi.aalto.legroup.achso.entities.VideoSummary;
 import fi.aalto.legroup.achso.storage.VideoInfoRepository;
 
 public final class VideoGridAdapter extends RecyclerView.Adapter<VideoGridAdapter.ViewHolder> {
 
+    // Payload for rebinding only the progress bar of an item
+    private static final Object PROGRESS_PAYLOAD = new Object();
+
+    private static final int PROGRESS_MAX = 1000;
+
     private Context context;
     private LayoutInflater inflater;
     private VideoInfoRepository repository;
 
     private List<UUID> videoIds = Collections.emptyList();
 
+    // Search results that are not in the repository are shown from their summaries
+    private Map<UUID, VideoSummary> summaries = Collections.emptyMap();
+
     private List<Integer> selectedItems = new ArrayList<>();
     private List<Integer> itemsInProgress = new ArrayList<>();
 
+    // Fractions of the transfers that report their progress, by video ID
+    private Map<UUID, Float> progressFractions = new HashMap<>();
+
     public VideoGridAdapter(Context context, VideoInfoRepository repository) {
         this.context = context;
         this.inflater = LayoutInflater.from(context);
@@ -45,18 +61,30 @@ public final class VideoGridAdapter extends RecyclerView.Adapter<VideoGridAdapte
         return new ViewHolder(view);
     }
 
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position, List<Object> payloads) {
+        boolean isProgressOnly = !payloads.isEmpty();
+
+        for (Object payload : payloads) {
+            if (payload != PROGRESS_PAYLOAD) {
+                isProgressOnly = false;
+            }
+        }
+
+        if (isProgressOnly) {
+            bindProgress(holder, position);
+        } else {
+            onBindViewHolder(holder, position);
+        }
+    }
+
     @Override
     public void onBindViewHolder(ViewHolder holder, int position) {
         OptimizedVideo video;
 
-        ProgressBar progressBar = holder.getProgressBar();
         View selectionOverlay = holder.getSelectionOverlay();
 
-        if (isInProgress(position)) {
-            progressBar.setVisibility(View.VISIBLE);
-        } else {
-            progressBar.setVisibility(View.GONE);
-        }
+        bindProgress(holder, position);
 
         if (isSelected(position)) {
             selectionOverlay.setVisibility(View.VISIBLE);
@@ -64,8 +92,15 @@ public final class VideoGridAdapter extends RecyclerView.Adapter<VideoGridAdapte
             selectionOverlay.setVisibility(View.GONE);
         }
 
+        UUID id = this.videoIds.get(position);
+        VideoSummary summary = this.summaries.get(id);
+
+        if (summary != null && !this.repository.doesVideoExist(id)) {
+            bindSummary(holder, summary);
+            return;
+        }
+
         try {
-            UUID id = this.videoIds.get(position);
             video = this.repository.getVideo(id);
         } catch (IOException e) {
             e.printStackTrace();
@@ -97,6 +132,36 @@ public final class VideoGridAdapter extends RecyclerView.Adapter<VideoGridAdapte
         }
     }
 
+    private void bindProgress(ViewHolder holder, int position) {
+        ProgressBar progressBar = holder.getProgressBar();
+
+        if (!isInProgress(position)) {
+            progressBar.setVisibility(View.GONE);
+            return;
+        }
+
+        Float fraction = this.progressFractions.get(this.videoIds.get(position));
+
+        if (fraction != null) {
+            progressBar.setIndeterminate(false);
+            progressBar.setMax(PROGRESS_MAX);
+            progressBar.setProgress(Math.round(fraction * PROGRESS_MAX));
+        } else {
+            progressBar.setIndeterminate(true);
+        }
+
+        progressBar.setVisibility(View.VISIBLE);
+    }
+
+    private void bindSummary(ViewHolder holder, VideoSummary summary) {
+        holder.getTitleText().setText(summary.getTitle());
+
+        Picasso.with(this.context).load(summary.getThumbUri()).into(holder.getThumbImage());
+
+        holder.getUploadIndicator().setImageResource(R.drawable.ic_cloud_done_white_24dp);
+        holder.getSharedIndicator().setVisibility(View.INVISIBLE);
+    }
+
     @Override
     public int getItemCount() {
         return this.videoIds.size();
@@ -115,6 +180,81 @@ public final class VideoGridAdapter extends RecyclerView.Adapter<VideoGridAdapte
         notifyDataSetChanged();
     }
 
+    /**
+     * Replace the items with an updated list and notify only about the items that have changed.
+     * The lists are expected to differ only by insertions and removals, otherwise everything is
+     * just reloaded.
+     *
+     * @param updatedIds Items whose contents have changed.
+     */
+    public void updateItems(List<UUID> newVideoIds, Set<UUID> updatedIds) {
+        List<UUID> oldVideoIds = this.videoIds;
+
+        Set<UUID> oldIdSet = new HashSet<>(oldVideoIds);
+        Set<UUID> newIdSet = new HashSet<>(newVideoIds);
+
+        // The selection and progress are stored as positions, remember which items they were
+        List<UUID> selectedIds = getIdsAt(this.selectedItems);
+        List<UUID> inProgressIds = getIdsAt(this.itemsInProgress);
+
+        this.videoIds = newVideoIds;
+
+        this.selectedItems = getPositionsOf(selectedIds);
+        this.itemsInProgress = getPositionsOf(inProgressIds);
+
+        // Walk both lists, position is the index in the list as it has been notified so far
+        int oldIndex = 0;
+        int position = 0;
+
+        while (oldIndex < oldVideoIds.size() || position < newVideoIds.size()) {
+            UUID oldId = oldIndex < oldVideoIds.size() ? oldVideoIds.get(oldIndex) : null;
+            UUID newId = position < newVideoIds.size() ? newVideoIds.get(position) : null;
+
+            if (oldId != null && oldId.equals(newId)) {
+                if (updatedIds.contains(newId)) {
+                    notifyItemChanged(position);
+                }
+                oldIndex++;
+                position++;
+            } else if (oldId != null && !newIdSet.contains(oldId)) {
+                notifyItemRemoved(position);
+                oldIndex++;
+            } else if (newId != null && !oldIdSet.contains(newId)) {
+                notifyItemInserted(position);
+                position++;
+            } else {
+                // The items have been reordered
+                notifyDataSetChanged();
+                return;
+            }
+        }
+    }
+
+    private List<UUID> getIdsAt(List<Integer> positions) {
+        List<UUID> ids = new ArrayList<>(positions.size());
+        for (Integer position : positions) {
+            if (position < this.videoIds.size()) {
+                ids.add(this.videoIds.get(position));
+            }
+        }
+        return ids;
+    }
+
+    private List<Integer> getPositionsOf(List<UUID> ids) {
+        List<Integer> positions = new ArrayList<>(ids.size());
+        for (UUID id : ids) {
+            int position = this.videoIds.indexOf(id);
+            if (position != -1) {
+                positions.add(position);
+            }
+        }
+        return positions;
+    }
+
+    public void setSummaries(Map<UUID, VideoSummary> summaries) {
+        this.summaries = summaries;
+    }
+
     public List<Integer> getSelectedItems() {
         return this.selectedItems;
     }
@@ -152,13 +292,28 @@ public final class VideoGridAdapter extends RecyclerView.Adapter<VideoGridAdapte
     public void showProgress(UUID videoId) {
         Integer position = this.videoIds.indexOf(videoId);
 
-        if (position != -1) {
+        if (position != -1 && !isInProgress(position)) {
             this.itemsInProgress.add(position);
             notifyItemChanged(position);
         }
     }
 
+    /**
+     * Show how much of the transfer of an item is done. The item must be in progress already.
+     */
+    public void setProgress(UUID videoId, float fraction) {
+        this.progressFractions.put(videoId, fraction);
+
+        Integer position = this.videoIds.indexOf(videoId);
+
+        if (position != -1 && isInProgress(position)) {
+            notifyItemChanged(position, PROGRESS_PAYLOAD);
+        }
+    }
+
     public void hideProgress(UUID videoId) {
+        this.progressFractions.remove(videoId);
+
         Integer position = this.videoIds.indexOf(videoId);
 
         if (position != -1) {
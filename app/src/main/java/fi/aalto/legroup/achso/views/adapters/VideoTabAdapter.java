@@ -11,9 +11,7 @@ import com.melnykov.fab.ScrollDirectionListener;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -23,8 +21,7 @@ import fi.aalto.legroup.achso.R;
 import fi.aalto.legroup.achso.app.App;
 import fi.aalto.legroup.achso.browsing.BrowserFragment;
 import fi.aalto.legroup.achso.entities.Group;
-import fi.aalto.legroup.achso.entities.OptimizedVideo;
-import fi.aalto.legroup.achso.storage.VideoRepository;
+import fi.aalto.legroup.achso.storage.VideoRepositoryUpdatedEvent;
 import fi.aalto.legroup.achso.views.utilities.ScrollDirectionListenable;
 
 public final class VideoTabAdapter extends FragmentStatePagerAdapter implements
@@ -33,6 +30,7 @@ public final class VideoTabAdapter extends FragmentStatePagerAdapter implements
     private Map<Integer, Object> activeItems = new HashMap<>();
     private List<String> tabNames = new ArrayList<>();
     private String allVideosText;
+    private List<Integer> tabGroupIds = new ArrayList<>();
     private List<List<UUID>> tabVideoIds;
 
     @Nullable
@@ -107,55 +105,58 @@ public final class VideoTabAdapter extends FragmentStatePagerAdapter implements
         return tabNames.size();
     }
 
-    private static List<UUID> toIds(Collection<OptimizedVideo> videos) {
-        List<UUID> list = new ArrayList<>(videos.size());
-        for (OptimizedVideo video : videos) {
-            list.add(video.getId());
-        }
-        return list;
-    }
-
     @Override
     public void notifyDataSetChanged() {
 
-        // Fetch the videos here
-        List<OptimizedVideo> allVideos;
+        // Fetch the groups here
         List<Group> allGroups;
 
         try {
-            allVideos = new ArrayList<>(App.videoInfoRepository.getAll());
             allGroups = new ArrayList<>(App.videoInfoRepository.getGroups());
         } catch (IOException e) {
             e.printStackTrace();
             return;
         }
 
-
         List<String> newTabNames = new ArrayList<String>();
+        List<Integer> newTabGroupIds = new ArrayList<>();
+
         newTabNames.add(allVideosText);
         for (Group group : allGroups) {
             // TODO: Truncate.
             newTabNames.add(group.getName());
+            newTabGroupIds.add(group.getId());
         }
 
-        List<List<UUID>> newTabVideoIds = new ArrayList<>(newTabNames.size());
+        tabNames = newTabNames;
+        tabGroupIds = newTabGroupIds;
+        tabVideoIds = fetchTabVideoIds();
 
-        // First tab has all the videos
-        newTabVideoIds.add(toIds(allVideos));
+        for (Map.Entry<Integer, Object> entry : activeItems.entrySet()) {
+            Object item = entry.getValue();
+
+            if (item instanceof BrowserFragment) {
+                int position = entry.getKey();
+                List<UUID> videos = getVideosForPosition(position);
 
-        for (int i = 0; i < allGroups.size(); i++) {
-            newTabVideoIds.add(allGroups.get(i).getVideos());
+                ((BrowserFragment) item).setVideos(videos);
+            }
         }
 
-        Comparator<OptimizedVideo> videoComparator = Collections.reverseOrder(
-                new OptimizedVideo.CreateTimeComparator());
-        Comparator<UUID> idComparator = new VideoIDComparator(App.videoRepository, videoComparator);
-        for (int i = 0; i < newTabVideoIds.size(); i++) {
-            Collections.sort(newTabVideoIds.get(i), idComparator);
+        super.notifyDataSetChanged();
+    }
+
+    /**
+     * Apply a repository update to the tabs. Unless the update is a full one, the tabs stay the
+     * same and only the changed videos are updated in the grids.
+     */
+    public void applyUpdate(VideoRepositoryUpdatedEvent event) {
+        if (event.isFullUpdate() || tabVideoIds == null) {
+            notifyDataSetChanged();
+            return;
         }
 
-        tabNames = newTabNames;
-        tabVideoIds = newTabVideoIds;
+        tabVideoIds = fetchTabVideoIds();
 
         for (Map.Entry<Integer, Object> entry : activeItems.entrySet()) {
             Object item = entry.getValue();
@@ -164,11 +165,25 @@ public final class VideoTabAdapter extends FragmentStatePagerAdapter implements
                 int position = entry.getKey();
                 List<UUID> videos = getVideosForPosition(position);
 
-                ((BrowserFragment) item).setVideos(videos);
+                ((BrowserFragment) item).updateVideos(videos, event.getUpdated());
             }
         }
+    }
 
-        super.notifyDataSetChanged();
+    /**
+     * The repository keeps the videos sorted, so this just picks up the current lists.
+     */
+    private List<List<UUID>> fetchTabVideoIds() {
+        List<List<UUID>> newTabVideoIds = new ArrayList<>(tabGroupIds.size() + 1);
+
+        // First tab has all the videos
+        newTabVideoIds.add(App.videoInfoRepository.getOrderedVideoIds());
+
+        for (Integer groupId : tabGroupIds) {
+            newTabVideoIds.add(App.videoInfoRepository.getOrderedGroupVideoIds(groupId));
+        }
+
+        return newTabVideoIds;
     }
 
     private List<UUID> getVideosForPosition(int position) {
@@ -188,38 +203,4 @@ public final class VideoTabAdapter extends FragmentStatePagerAdapter implements
     public void setScrollDirectionListener(@Nullable ScrollDirectionListener listener) {
         this.scrollListener = listener;
     }
-
-    private static class VideoIDComparator implements Comparator<UUID> {
-
-        private final VideoRepository videoRepository;
-        private final Comparator<OptimizedVideo> comparator;
-
-        public VideoIDComparator(VideoRepository videoRepository, Comparator<OptimizedVideo> comparator) {
-            this.videoRepository = videoRepository;
-            this.comparator = comparator;
-        }
-
-        @Override
-        public int compare(UUID lhs, UUID rhs) {
-            OptimizedVideo a = null, b = null;
-            try {
-                a = videoRepository.getVideo(lhs);
-            } catch (IOException ignored) {
-            }
-            try {
-                b = videoRepository.getVideo(rhs);
-            } catch (IOException ignored) {
-            }
-
-            if (a == null && b == null) {
-                return 0;
-            } else if (a == null) {
-                return 1;
-            } else if (b == null) {
-                return -1;
-            }
-
-            return comparator.compare(a, b);
-        }
-    }
 }
@@ -0,0 +1,89 @@
+package fi.aalto.legroup.achso.app;
+
+import com.squareup.otto.Subscribe;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import fi.aalto.legroup.achso.storage.VideoRepositoryUpdatedEvent;
+import fi.aalto.legroup.achso.testing.Manifests;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Bursts of events from background threads are combined, events from the main thread are not
+ * held back. The test itself runs on the main thread.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class AppBusTest {
+
+    private AppBus bus;
+    private List<VideoRepositoryUpdatedEvent> events = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        bus = new AppBus();
+        bus.register(this);
+    }
+
+    @Subscribe
+    public void onVideoRepositoryUpdated(VideoRepositoryUpdatedEvent event) {
+        events.add(event);
+    }
+
+    @Test
+    public void mainThreadPostIsDeliveredAtOnce() {
+        bus.post(VideoRepositoryUpdatedEvent.added(null, Collections.singleton(Manifests.id(1))));
+
+        assertEquals(1, events.size());
+    }
+
+    @Test
+    public void backgroundBurstIsDeliveredAsOne() throws InterruptedException {
+        postInBackground(1, 2, 3);
+
+        assertEquals(0, events.size());
+
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+        assertEquals(1, events.size());
+        assertEquals(3, events.get(0).getAdded().size());
+    }
+
+    @Test
+    public void mainThreadPostTakesPendingBurstAlong() throws InterruptedException {
+        postInBackground(1, 2);
+        bus.post(VideoRepositoryUpdatedEvent.added(null, Collections.singleton(Manifests.id(3))));
+
+        assertEquals(1, events.size());
+        assertEquals(3, events.get(0).getAdded().size());
+
+        // Nothing is left to deliver later
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertEquals(1, events.size());
+    }
+
+    private void postInBackground(final int... numbers) throws InterruptedException {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int number : numbers) {
+                    bus.post(VideoRepositoryUpdatedEvent.added(null,
+                            Collections.singleton(Manifests.id(number))));
+                }
+            }
+        });
+
+        thread.start();
+        thread.join();
+    }
+}
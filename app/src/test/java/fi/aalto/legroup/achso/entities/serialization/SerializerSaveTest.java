@@ -0,0 +1,163 @@
+package fi.aalto.legroup.achso.entities.serialization;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Crashes the serialiser in the middle of saving and checks that the destination still has the
+ * previous serialisation in full.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SerializerSaveTest {
+
+    private static final String OLD_TEXT = "old text that is longer than the crashed one";
+    private static final String NEW_TEXT = "new text";
+
+    private File root;
+    private File file;
+    private File temporaryFile;
+    private TextSerializer serializer;
+
+    private static final class Text implements Serializable {
+        private final String text;
+
+        private Text(String text) {
+            this.text = text;
+        }
+    }
+
+    /**
+     * Writes the text as UTF-8, or crashes after writing the given number of bytes of it.
+     */
+    private static final class TextSerializer extends Serializer<Text> {
+
+        private int crashAfterBytes = -1;
+        private RuntimeException crash;
+
+        @Override
+        public <T extends Text> T read(Class<T> type, InputStream input) throws IOException {
+            return type.cast(new Text(new String(ByteStreams.toByteArray(input), Charsets.UTF_8)));
+        }
+
+        @Override
+        public void write(Text object, OutputStream output) throws IOException {
+            byte[] bytes = object.text.getBytes(Charsets.UTF_8);
+
+            if (crashAfterBytes < 0) {
+                output.write(bytes);
+                output.close();
+                return;
+            }
+
+            output.write(bytes, 0, crashAfterBytes);
+            output.flush();
+
+            if (crash != null) {
+                throw crash;
+            }
+            throw new IOException("Disk full");
+        }
+
+        @Override
+        public String write(Text object) {
+            return object.text;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDir();
+        file = new File(root, "text.json");
+        temporaryFile = new File(root, "text.json.tmp");
+
+        serializer = new TextSerializer();
+        serializer.save(new Text(OLD_TEXT), file.toURI());
+    }
+
+    @After
+    public void tearDown() {
+        File[] children = root.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+
+        root.delete();
+    }
+
+    @Test
+    public void saveReplacesFile() throws IOException {
+        serializer.save(new Text(NEW_TEXT), file.toURI());
+
+        assertEquals(NEW_TEXT, load());
+        assertFalse(temporaryFile.exists());
+    }
+
+    @Test
+    public void failedWriteKeepsOldFile() throws IOException {
+        serializer.crashAfterBytes = 3;
+
+        try {
+            serializer.save(new Text(NEW_TEXT), file.toURI());
+            fail("The save should have failed");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        assertEquals(OLD_TEXT, load());
+        assertFalse(temporaryFile.exists());
+    }
+
+    @Test
+    public void crashedWriteKeepsOldFile() throws IOException {
+        serializer.crashAfterBytes = 3;
+        serializer.crash = new IllegalStateException("Crash");
+
+        try {
+            serializer.save(new Text(NEW_TEXT), file.toURI());
+            fail("The save should have failed");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        assertEquals(OLD_TEXT, load());
+        assertFalse(temporaryFile.exists());
+    }
+
+    @Test
+    public void killedSaveIsRecovered() throws IOException {
+        // The process was killed before the rename, leaving a partial temporary file behind
+        Files.write("new t".getBytes(Charsets.UTF_8), temporaryFile);
+
+        assertEquals(OLD_TEXT, load());
+
+        serializer.save(new Text(NEW_TEXT), file.toURI());
+
+        assertEquals(NEW_TEXT, load());
+        assertFalse(temporaryFile.exists());
+    }
+
+    private String load() throws IOException {
+        return serializer.load(Text.class, file.toURI()).text;
+    }
+}
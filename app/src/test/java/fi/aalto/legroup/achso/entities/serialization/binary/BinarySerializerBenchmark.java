@@ -0,0 +1,150 @@
+package fi.aalto.legroup.achso.entities.serialization.binary;
+
+import android.location.Location;
+import android.net.Uri;
+
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import fi.aalto.legroup.achso.entities.Video;
+import fi.aalto.legroup.achso.entities.serialization.json.DateTypeConverter;
+import fi.aalto.legroup.achso.entities.serialization.json.JsonSerializer;
+import fi.aalto.legroup.achso.entities.serialization.json.LocationTypeConverter;
+import fi.aalto.legroup.achso.entities.serialization.json.UriTypeConverter;
+import fi.aalto.legroup.achso.testing.Benchmark;
+import fi.aalto.legroup.achso.testing.Manifests;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the binary cache format with the JSON one in size and in the time it takes to save
+ * and load a video. The videos are written to memory so that only the formats are measured.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class BinarySerializerBenchmark {
+
+    private static final int VIDEO_COUNT = 100;
+
+    private final JsonSerializer jsonSerializer = new JsonSerializer();
+
+    // Same as the Gson of JsonSerializer. Gson also looks up the runtime classes of the URIs,
+    // which fails on the instrumented Robolectric ones, so the converter has to cover them.
+    private final Gson gson = new GsonBuilder()
+            .registerTypeHierarchyAdapter(Uri.class, new UriTypeConverter())
+            .registerTypeAdapter(Location.class, new LocationTypeConverter())
+            .registerTypeAdapter(Date.class, new DateTypeConverter())
+            .create();
+    private final BinarySerializer binarySerializer = new BinarySerializer();
+
+    @Test
+    public void saveAndLoadVideos() throws Exception {
+        measure(0);
+        measure(50);
+        measure(500);
+    }
+
+    private void measure(int annotationCount) throws Exception {
+        final List<Video> videos = new ArrayList<>(VIDEO_COUNT);
+
+        for (int i = 0; i < VIDEO_COUNT; i++) {
+            String manifest = Manifests.create(Manifests.id(i), "https://example.com/video.mp4",
+                    annotationCount);
+            videos.add(jsonSerializer.read(Video.class,
+                    new ByteArrayInputStream(manifest.getBytes(Charsets.UTF_8))));
+        }
+
+        final List<byte[]> jsonFiles = new ArrayList<>(VIDEO_COUNT);
+        final List<byte[]> binaryFiles = new ArrayList<>(VIDEO_COUNT);
+        long jsonSize = 0;
+        long binarySize = 0;
+
+        for (Video video : videos) {
+            ByteArrayOutputStream json = new ByteArrayOutputStream();
+            writeJson(video, json);
+            jsonFiles.add(json.toByteArray());
+            jsonSize += json.size();
+
+            ByteArrayOutputStream binary = new ByteArrayOutputStream();
+            binarySerializer.write(video, binary);
+            binaryFiles.add(binary.toByteArray());
+            binarySize += binary.size();
+        }
+
+        // Both formats must give back the same video
+        for (int i = 0; i < VIDEO_COUNT; i++) {
+            Video fromJson = jsonSerializer.read(Video.class,
+                    new ByteArrayInputStream(jsonFiles.get(i)));
+            Video fromBinary = binarySerializer.read(Video.class,
+                    new ByteArrayInputStream(binaryFiles.get(i)));
+
+            assertEquals(gson.toJson(fromJson), gson.toJson(fromBinary));
+        }
+
+        long jsonSaveTime = Benchmark.measure(new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                for (Video video : videos) {
+                    writeJson(video, new ByteArrayOutputStream());
+                }
+            }
+        });
+
+        long binarySaveTime = Benchmark.measure(new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                for (Video video : videos) {
+                    binarySerializer.write(video, new ByteArrayOutputStream());
+                }
+            }
+        });
+
+        long jsonLoadTime = Benchmark.measure(new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                for (byte[] file : jsonFiles) {
+                    jsonSerializer.read(Video.class, new ByteArrayInputStream(file));
+                }
+            }
+        });
+
+        long binaryLoadTime = Benchmark.measure(new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                for (byte[] file : binaryFiles) {
+                    binarySerializer.read(Video.class, new ByteArrayInputStream(file));
+                }
+            }
+        });
+
+        Benchmark.report("cache format", "%d annotations: JSON %d bytes, binary %d bytes "
+                        + "(%.0f%%); save JSON %.1f us, binary %.1f us (%.2fx); "
+                        + "load JSON %.1f us, binary %.1f us (%.2fx) per video",
+                annotationCount, jsonSize / VIDEO_COUNT, binarySize / VIDEO_COUNT,
+                100.0 * binarySize / jsonSize,
+                jsonSaveTime / 1e3 / VIDEO_COUNT, binarySaveTime / 1e3 / VIDEO_COUNT,
+                (double) jsonSaveTime / binarySaveTime,
+                jsonLoadTime / 1e3 / VIDEO_COUNT, binaryLoadTime / 1e3 / VIDEO_COUNT,
+                (double) jsonLoadTime / binaryLoadTime);
+    }
+
+    private void writeJson(Video video, ByteArrayOutputStream output) throws Exception {
+        Writer writer = new OutputStreamWriter(output, Charsets.UTF_8);
+        gson.toJson(video, writer);
+        writer.close();
+    }
+}
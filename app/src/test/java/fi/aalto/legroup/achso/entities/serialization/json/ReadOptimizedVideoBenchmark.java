@@ -0,0 +1,82 @@
+package fi.aalto.legroup.achso.entities.serialization.json;
+
+import com.google.common.base.Charsets;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import fi.aalto.legroup.achso.entities.OptimizedVideo;
+import fi.aalto.legroup.achso.entities.Video;
+import fi.aalto.legroup.achso.testing.Benchmark;
+import fi.aalto.legroup.achso.testing.Manifests;
+
+/**
+ * Compares decoding manifests straight into OptimizedVideo with reading a Video through Gson and
+ * converting it, in throughput and in allocated bytes.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class ReadOptimizedVideoBenchmark {
+
+    private static final int MANIFEST_COUNT = 500;
+
+    private final JsonSerializer serializer = new JsonSerializer();
+
+    @Test
+    public void decodeManifests() throws Exception {
+        measure(0);
+        measure(10);
+        measure(100);
+    }
+
+    private void measure(int annotationCount) throws Exception {
+        final List<byte[]> manifests = new ArrayList<>(MANIFEST_COUNT);
+        long totalBytes = 0;
+
+        for (int i = 0; i < MANIFEST_COUNT; i++) {
+            byte[] manifest = Manifests.create(Manifests.id(i), "https://example.com/video.mp4",
+                    annotationCount).getBytes(Charsets.UTF_8);
+            manifests.add(manifest);
+            totalBytes += manifest.length;
+        }
+
+        Benchmark.Task gsonTask = new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                for (byte[] manifest : manifests) {
+                    Video video = serializer.read(Video.class, new ByteArrayInputStream(manifest));
+                    new OptimizedVideo(video);
+                }
+            }
+        };
+
+        Benchmark.Task streamingTask = new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                for (byte[] manifest : manifests) {
+                    serializer.readOptimizedVideo(new ByteArrayInputStream(manifest));
+                }
+            }
+        };
+
+        long gsonTime = Benchmark.measure(gsonTask);
+        long streamingTime = Benchmark.measure(streamingTask);
+
+        long gsonAllocations = Benchmark.measureAllocations(gsonTask);
+        long streamingAllocations = Benchmark.measureAllocations(streamingTask);
+
+        Benchmark.report("manifest decoding", "%d annotations, %d bytes per manifest: "
+                        + "Gson + convert %.1f us and %d bytes allocated per manifest, "
+                        + "streaming %.1f us and %d bytes, %.2fx faster",
+                annotationCount, totalBytes / MANIFEST_COUNT,
+                gsonTime / 1e3 / MANIFEST_COUNT, gsonAllocations / MANIFEST_COUNT,
+                streamingTime / 1e3 / MANIFEST_COUNT, streamingAllocations / MANIFEST_COUNT,
+                (double) gsonTime / streamingTime);
+    }
+}
@@ -0,0 +1,82 @@
+package fi.aalto.legroup.achso.entities.serialization.json;
+
+import com.google.common.base.Charsets;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import fi.aalto.legroup.achso.entities.OptimizedVideo;
+import fi.aalto.legroup.achso.entities.Video;
+import fi.aalto.legroup.achso.testing.Manifests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The streaming decoder must give the same video as reading a Video with Gson and converting it.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class ReadOptimizedVideoTest {
+
+    private static final String POSITION = "{\"x\": 0.5, \"y\": 0.5}";
+
+    private final JsonSerializer serializer = new JsonSerializer();
+
+    @Test
+    public void matchesGsonPath() throws Exception {
+        for (int annotationCount : new int[] { 0, 1, 50 }) {
+            String manifest = Manifests.create(Manifests.id(annotationCount),
+                    "https://example.com/video.mp4", annotationCount);
+
+            assertArrayEquals(toBytes(readThroughVideo(manifest)),
+                    toBytes(serializer.readOptimizedVideo(toStream(manifest))));
+        }
+    }
+
+    @Test
+    public void nullAndMissingTextAreEmpty() throws Exception {
+        String manifest = "{\"id\": \"" + Manifests.id(1) + "\", \"title\": \"Test\", "
+                + "\"videoUri\": \"https://example.com/video.mp4\", "
+                + "\"thumbUri\": \"https://example.com/thumb.jpg\", "
+                + "\"date\": \"2016-01-01T12:00:00.000Z\", \"annotations\": ["
+                + "{\"time\": 1, \"position\": " + POSITION + ", \"text\": null}, "
+                + "{\"time\": 2, \"position\": " + POSITION + "}, "
+                + "{\"time\": 3, \"position\": " + POSITION + ", \"text\": \"\"}, "
+                + "{\"time\": 4, \"position\": " + POSITION + ", \"text\": \"Weld\"}]}";
+
+        OptimizedVideo streamed = serializer.readOptimizedVideo(toStream(manifest));
+        OptimizedVideo converted = readThroughVideo(manifest);
+
+        assertEquals(4, streamed.getAnnotationCount());
+
+        for (int i = 0; i < 4; i++) {
+            String expected = i < 3 ? "" : "Weld";
+
+            assertEquals(expected, streamed.getAnnotationText(i));
+            assertEquals(expected, converted.getAnnotationText(i));
+        }
+    }
+
+    private OptimizedVideo readThroughVideo(String manifest) throws IOException {
+        return new OptimizedVideo(serializer.read(Video.class, toStream(manifest)));
+    }
+
+    private static InputStream toStream(String manifest) {
+        return new ByteArrayInputStream(manifest.getBytes(Charsets.UTF_8));
+    }
+
+    private static byte[] toBytes(OptimizedVideo video) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        video.writeTo(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,119 @@
+package fi.aalto.legroup.achso.storage;
+
+import com.google.common.io.Files;
+import com.squareup.otto.Bus;
+import com.squareup.otto.ThreadEnforcer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.UUID;
+
+import fi.aalto.legroup.achso.entities.serialization.binary.BinarySerializer;
+import fi.aalto.legroup.achso.entities.serialization.json.JsonSerializer;
+import fi.aalto.legroup.achso.testing.Manifests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cached manifests written by older versions are JSON files with the .json extension, they must
+ * be picked up and moved to the binary names.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class LegacyCacheFileTest {
+
+    private static final UUID ID = Manifests.id(1);
+    private static final String VIDEO_URI = "https://example.com/videos/1.mp4";
+
+    private File root;
+    private File cacheRoot;
+
+    @Before
+    public void setUp() {
+        root = Files.createTempDir();
+        cacheRoot = new File(root, "cache");
+        cacheRoot.mkdirs();
+        new File(root, "local").mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(root);
+    }
+
+    @Test
+    public void legacyFilesAreRenamedAndConverted() throws IOException {
+        File legacyFile = Manifests.write(cacheRoot, "_original.json", ID, VIDEO_URI, 3);
+        long lastModified = legacyFile.lastModified();
+
+        CombinedVideoRepository repository = createRepository();
+        repository.refreshOffline();
+
+        File binaryFile = new File(cacheRoot, ID + "_original.bin");
+
+        assertNotNull(repository.getVideo(ID));
+        assertEquals(3, repository.getVideo(ID).getAnnotationCount());
+        assertFalse(legacyFile.exists());
+        assertTrue(isBinary(binaryFile));
+        assertEquals(lastModified, binaryFile.lastModified());
+
+        // A restarted app finds the renamed file
+        repository = createRepository();
+        repository.refreshOffline();
+        assertNotNull(repository.getVideo(ID));
+    }
+
+    @Test
+    public void legacyFileIsDroppedIfBinaryExists() throws IOException {
+        CombinedVideoRepository repository = createRepository();
+
+        Manifests.write(cacheRoot, "_original.json", ID, VIDEO_URI, 3);
+        repository.refreshOffline();
+
+        File legacyFile = Manifests.write(cacheRoot, "_original.json", ID, VIDEO_URI, 5);
+        repository.refreshOffline();
+
+        assertFalse(legacyFile.exists());
+        assertEquals(3, repository.getVideo(ID).getAnnotationCount());
+    }
+
+    private CombinedVideoRepository createRepository() {
+        return new CombinedVideoRepository(new Bus(ThreadEnforcer.ANY), new JsonSerializer(),
+                new File(root, "local"), cacheRoot);
+    }
+
+    private static boolean isBinary(File file) throws IOException {
+        InputStream input = new BufferedInputStream(new FileInputStream(file));
+
+        try {
+            return BinarySerializer.isBinary(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+
+        file.delete();
+    }
+}
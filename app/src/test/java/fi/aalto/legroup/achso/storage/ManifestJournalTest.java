@@ -0,0 +1,125 @@
+package fi.aalto.legroup.achso.storage;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks when the journal goes to the file system and when it trusts what it has recorded.
+ */
+public class ManifestJournalTest {
+
+    private static final FilenameFilter MANIFESTS = new FilenameFilter() {
+        @Override
+        public boolean accept(File directory, String name) {
+            return name.endsWith(".json");
+        }
+    };
+
+    private File root;
+    private File directory;
+    private File journalFile;
+
+    @Before
+    public void setUp() {
+        root = Files.createTempDir();
+        directory = new File(root, "local");
+        directory.mkdirs();
+        journalFile = new File(root, "journal");
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+
+        directory.delete();
+        journalFile.delete();
+        root.delete();
+    }
+
+    @Test
+    public void listsDirectoryOnlyUntilRescan() throws IOException {
+        File first = write("first", "1");
+
+        ManifestJournal journal = createJournal();
+        assertEquals(1, journal.listFiles(directory).length);
+
+        // Written behind the back of the journal
+        File second = write("second", "2");
+        first.delete();
+
+        assertEquals(1, journal.listFiles(directory).length);
+        assertTrue(journal.contains(first));
+
+        journal.rescan();
+
+        File[] files = journal.listFiles(directory);
+        assertEquals(1, files.length);
+        assertEquals(second, files[0]);
+        assertFalse(journal.contains(first));
+    }
+
+    @Test
+    public void recordedChangesAreListedWithoutRescan() throws IOException {
+        ManifestJournal journal = createJournal();
+        assertEquals(0, journal.listFiles(directory).length);
+
+        File file = write("video", "1");
+        journal.update(file, 3);
+
+        assertEquals(1, journal.listFiles(directory).length);
+        assertEquals(3, journal.getRevision(file));
+
+        file.delete();
+        journal.remove(file);
+
+        assertEquals(0, journal.listFiles(directory).length);
+        assertFalse(journal.contains(file));
+    }
+
+    @Test
+    public void savedRevisionIsCheckedOnce() throws IOException {
+        File unchanged = write("unchanged", "1");
+        File changed = write("changed", "1");
+
+        ManifestJournal journal = createJournal();
+        journal.listFiles(directory);
+        journal.update(unchanged, 1);
+        journal.update(changed, 1);
+        journal.writeIfDirty();
+
+        // Changed while the app wasn't running
+        write("changed", "22");
+
+        ManifestJournal restarted = createJournal();
+        restarted.listFiles(directory);
+
+        assertEquals(1, restarted.getRevision(unchanged));
+        assertEquals(ManifestJournal.UNKNOWN_REVISION, restarted.getRevision(changed));
+    }
+
+    private ManifestJournal createJournal() {
+        ManifestJournal journal = new ManifestJournal(journalFile, MANIFESTS);
+        journal.read();
+        return journal;
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(directory, name + ".json");
+        Files.write(content, file, Charsets.UTF_8);
+        return file;
+    }
+}
@@ -0,0 +1,148 @@
+package fi.aalto.legroup.achso.storage;
+
+import com.google.common.io.Files;
+import com.squareup.otto.Bus;
+import com.squareup.otto.ThreadEnforcer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import fi.aalto.legroup.achso.entities.OptimizedVideo;
+import fi.aalto.legroup.achso.entities.serialization.json.JsonSerializer;
+import fi.aalto.legroup.achso.testing.Benchmark;
+import fi.aalto.legroup.achso.testing.Manifests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares loading manifests one by one with the parallel loader used by refreshOffline().
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class ManifestLoadingBenchmark {
+
+    private static final int ANNOTATIONS_PER_VIDEO = 10;
+
+    private File root;
+    private File localRoot;
+    private File videoFile;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDir();
+        localRoot = new File(root, "local");
+        localRoot.mkdirs();
+
+        // Local manifests are only loaded if their video file exists
+        videoFile = new File(root, "video.mp4");
+        videoFile.createNewFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        deleteRecursively(root);
+    }
+
+    @Test
+    public void loadManifests() throws Exception {
+        measure(100);
+        measure(1000);
+        measure(10000);
+    }
+
+    private void measure(int manifestCount) throws Exception {
+        final List<File> files = new ArrayList<>(manifestCount);
+        final List<UUID> ids = new ArrayList<>(manifestCount);
+
+        for (int i = 0; i < manifestCount; i++) {
+            UUID id = Manifests.id(i);
+            files.add(Manifests.write(localRoot, ".json", id, videoFile.getPath(),
+                    ANNOTATIONS_PER_VIDEO));
+            ids.add(id);
+        }
+
+        final CombinedVideoRepository repository = createRepository();
+        final List<List<OptimizedVideo>> results = new ArrayList<>();
+
+        long serialTime = Benchmark.measure(new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                List<OptimizedVideo> videos = new ArrayList<>();
+
+                for (int i = 0; i < files.size(); i++) {
+                    OptimizedVideo video = repository.tryLoadOrReUseVideo(files.get(i),
+                            ids.get(i));
+                    if (video != null) {
+                        videos.add(video);
+                    }
+                }
+
+                results.add(videos);
+            }
+        }, 1, 3);
+
+        long parallelTime = Benchmark.measure(new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                results.add(repository.tryLoadOrReUseVideos(files, ids));
+            }
+        }, 1, 3);
+
+        // Every run must give the very same videos in the same order
+        List<OptimizedVideo> expected = results.get(0);
+        assertEquals(manifestCount, expected.size());
+
+        for (List<OptimizedVideo> result : results) {
+            assertEquals(expected.size(), result.size());
+
+            for (int i = 0; i < expected.size(); i++) {
+                assertArrayEquals(toBytes(expected.get(i)), toBytes(result.get(i)));
+            }
+        }
+
+        Benchmark.report("refreshOffline loading", "%d manifests: serial %.1f ms, "
+                        + "parallel %.1f ms, speedup %.2fx on %d cores", manifestCount,
+                Benchmark.toMilliseconds(serialTime), Benchmark.toMilliseconds(parallelTime),
+                (double) serialTime / parallelTime, Runtime.getRuntime().availableProcessors());
+
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    private CombinedVideoRepository createRepository() {
+        return new CombinedVideoRepository(new Bus(ThreadEnforcer.ANY), new JsonSerializer(),
+                localRoot, new File(root, "cache"));
+    }
+
+    private static byte[] toBytes(OptimizedVideo video) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        video.writeTo(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+
+        file.delete();
+    }
+}
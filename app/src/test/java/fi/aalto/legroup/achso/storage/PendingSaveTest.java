@@ -0,0 +1,156 @@
+package fi.aalto.legroup.achso.storage;
+
+import com.google.common.io.Files;
+import com.squareup.otto.Bus;
+import com.squareup.otto.ThreadEnforcer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+import fi.aalto.legroup.achso.entities.Video;
+import fi.aalto.legroup.achso.entities.serialization.binary.BinarySerializer;
+import fi.aalto.legroup.achso.entities.serialization.json.JsonSerializer;
+import fi.aalto.legroup.achso.testing.Manifests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Saves are written in the background, so a write that fails must not lose the changes. The
+ * video is a cached remote one, so its edits are written to the modified cache file.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class PendingSaveTest {
+
+    private static final UUID ID = Manifests.id(1);
+    private static final String VIDEO_URI = "https://example.com/videos/1.mp4";
+
+    private File root;
+    private File cacheRoot;
+    private File modifiedFile;
+    private JsonSerializer serializer;
+    private FailingRepository repository;
+
+    /**
+     * Fails the given number of manifest writes before letting them through.
+     */
+    private static final class FailingRepository extends CombinedVideoRepository {
+
+        private int failuresLeft;
+
+        private FailingRepository(JsonSerializer serializer, File localRoot, File cacheRoot) {
+            super(new Bus(ThreadEnforcer.ANY), serializer, localRoot, cacheRoot);
+        }
+
+        @Override
+        protected void writeVideoToFile(Video video, File file) throws IOException {
+            if (failuresLeft > 0) {
+                failuresLeft--;
+                throw new IOException("Storage unmounted");
+            }
+
+            super.writeVideoToFile(video, file);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDir();
+        cacheRoot = new File(root, "cache");
+        cacheRoot.mkdirs();
+        new File(root, "local").mkdirs();
+
+        Manifests.write(cacheRoot, "_original.bin", ID, VIDEO_URI, 2);
+        modifiedFile = new File(cacheRoot, ID + "_modified.bin");
+
+        serializer = new JsonSerializer();
+        repository = new FailingRepository(serializer, new File(root, "local"), cacheRoot);
+        repository.refreshOffline();
+    }
+
+    @After
+    public void tearDown() {
+        // The tests flush by hand, don't let a scheduled flush run after the files are gone
+        if (repository.saveExecutor != null) {
+            repository.saveExecutor.shutdownNow();
+        }
+
+        deleteRecursively(root);
+    }
+
+    @Test
+    public void failedSaveIsWrittenLater() throws IOException {
+        repository.failuresLeft = 2;
+        repository.save(createVideo("First"), null);
+
+        repository.flushSaves();
+        assertFalse(modifiedFile.exists());
+
+        repository.flushSaves();
+        assertFalse(modifiedFile.exists());
+
+        repository.flushSaves();
+        assertTrue(modifiedFile.exists());
+        assertEquals("First", readTitle());
+    }
+
+    @Test
+    public void newerSaveReplacesFailedOne() throws IOException {
+        repository.failuresLeft = 1;
+        repository.save(createVideo("First"), null);
+        repository.flushSaves();
+
+        repository.save(createVideo("Second"), null);
+        repository.flushSaves();
+
+        assertEquals("Second", readTitle());
+
+        // Nothing is left to write the older title over the newer one
+        repository.flushSaves();
+        assertEquals("Second", readTitle());
+    }
+
+    @Test
+    public void deleteDropsFailedSave() throws IOException {
+        repository.failuresLeft = 1;
+        repository.save(createVideo("First"), null);
+        repository.flushSaves();
+
+        repository.delete(ID);
+        repository.flushSaves();
+
+        assertFalse(modifiedFile.exists());
+    }
+
+    private Video createVideo(String title) throws IOException {
+        Video video = repository.getVideo(ID).inflate();
+        video.setTitle(title);
+        return video;
+    }
+
+    private String readTitle() throws IOException {
+        return new BinarySerializer().load(Video.class, modifiedFile.toURI()).getTitle();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,120 @@
+package fi.aalto.legroup.achso.storage;
+
+import com.google.common.io.Files;
+import com.squareup.otto.Bus;
+import com.squareup.otto.ThreadEnforcer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import fi.aalto.legroup.achso.entities.serialization.json.JsonSerializer;
+import fi.aalto.legroup.achso.testing.FakeVideoHost;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The delta sync cursor must survive a restart, but only for the account it was synced with.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SyncStatePersistenceTest {
+
+    private File root;
+
+    @Before
+    public void setUp() {
+        root = Files.createTempDir();
+        new File(root, "local").mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(root);
+    }
+
+    @Test
+    public void cursorSurvivesRestart() {
+        FakeVideoHost host = new FakeVideoHost();
+        host.setNextCursor("c1");
+
+        createRepository("tester", host).refreshOnline();
+
+        // A new repository on the same directories is what a cold start looks like
+        FakeVideoHost restartedHost = new FakeVideoHost();
+        restartedHost.setNextCursor("c2");
+
+        CombinedVideoRepository repository = createRepository("tester", restartedHost);
+        repository.refreshOnline();
+        repository.refreshOnline();
+
+        assertEquals(Collections.<String>singletonList(null), host.requestedCursors);
+        assertEquals(Arrays.asList("c1", "c2"), restartedHost.requestedCursors);
+    }
+
+    @Test
+    public void cursorOfAnotherAccountIsIgnored() {
+        FakeVideoHost host = new FakeVideoHost();
+        host.setNextCursor("c1");
+
+        createRepository("tester", host).refreshOnline();
+
+        FakeVideoHost otherHost = new FakeVideoHost();
+        createRepository("someone else", otherHost).refreshOnline();
+
+        assertEquals(Collections.<String>singletonList(null), otherHost.requestedCursors);
+    }
+
+    @Test
+    public void clearedRepositoryReadsCursorAgain() {
+        FakeVideoHost host = new FakeVideoHost();
+        host.setNextCursor("c1");
+
+        CombinedVideoRepository repository = createRepository("tester", host);
+        repository.refreshOnline();
+
+        // The hosts are set up again like after a login
+        repository.clear();
+
+        FakeVideoHost newHost = new FakeVideoHost();
+        repository.addHost(newHost);
+        repository.refreshOnline();
+
+        assertEquals(Collections.singletonList("c1"), newHost.requestedCursors);
+    }
+
+    private CombinedVideoRepository createRepository(final String accountName,
+            FakeVideoHost host) {
+        CombinedVideoRepository repository = new CombinedVideoRepository(
+                new Bus(ThreadEnforcer.ANY), new JsonSerializer(), new File(root, "local"),
+                new File(root, "cache")) {
+            @Override
+            protected String getSyncAccountName() {
+                return accountName;
+            }
+        };
+
+        repository.addHost(host);
+
+        return repository;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,278 @@
+package fi.aalto.legroup.achso.storage;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.squareup.otto.Bus;
+import com.squareup.otto.ThreadEnforcer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import fi.aalto.legroup.achso.entities.Group;
+import fi.aalto.legroup.achso.entities.OptimizedVideo;
+import fi.aalto.legroup.achso.entities.serialization.json.JsonSerializer;
+import fi.aalto.legroup.achso.testing.Manifests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Syncs new generations of videos and groups while other threads browse the repository and
+ * share videos, the way the sync service and the UI do.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SyncWhileBrowsingTest {
+
+    private static final int VIDEO_COUNT = 300;
+    private static final int GROUP_COUNT = 5;
+    private static final int GENERATION_COUNT = 300;
+    private static final int READER_COUNT = 3;
+
+    private File root;
+    private CombinedVideoRepository repository;
+    private List<OptimizedVideo> videos;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDir();
+
+        File localRoot = new File(root, "local");
+        localRoot.mkdirs();
+
+        JsonSerializer serializer = new JsonSerializer();
+
+        repository = new CombinedVideoRepository(new Bus(ThreadEnforcer.ANY), serializer,
+                localRoot, new File(root, "cache"));
+
+        videos = new ArrayList<>(VIDEO_COUNT);
+
+        for (int i = 0; i < VIDEO_COUNT; i++) {
+            String manifest = Manifests.create(Manifests.id(i),
+                    "https://example.com/videos/" + i + ".mp4", 2);
+            videos.add(serializer.readOptimizedVideo(
+                    new ByteArrayInputStream(manifest.getBytes(Charsets.UTF_8))));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(root);
+    }
+
+    @Test
+    public void browseAndShareDuringSync() throws Exception {
+        final Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean isSyncing = new AtomicBoolean(true);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> threads = new ArrayList<>();
+
+        Thread syncThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+
+                    for (int generation = 0; generation < GENERATION_COUNT; generation++) {
+                        repository.updateVideos(createVideos(generation),
+                                createGroups(generation));
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                } finally {
+                    isSyncing.set(false);
+                }
+            }
+        });
+
+        Thread shareThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(1);
+
+                try {
+                    start.await();
+
+                    while (isSyncing.get()) {
+                        UUID id = videos.get(random.nextInt(VIDEO_COUNT)).getId();
+                        repository.updateGroupMembership(Collections.singletonList(id),
+                                1 + random.nextInt(GROUP_COUNT), random.nextBoolean());
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }
+        });
+
+        threads.add(syncThread);
+        threads.add(shareThread);
+
+        for (int i = 0; i < READER_COUNT; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+
+                        while (isSyncing.get()) {
+                            browse();
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        start.countDown();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (Throwable failure : failures) {
+            failure.printStackTrace();
+        }
+
+        if (!failures.isEmpty()) {
+            fail(failures.size() + " threads failed, first: " + failures.peek());
+        }
+
+        assertIndexesMatchGroups();
+    }
+
+    /**
+     * Go through everything a list of videos shows, checking that each snapshot is whole.
+     */
+    private void browse() throws IOException {
+        Collection<OptimizedVideo> all = repository.getAll();
+        Set<UUID> ids = new HashSet<>();
+
+        for (OptimizedVideo video : all) {
+            assertTrue("Video listed twice", ids.add(video.getId()));
+            video.getTitle();
+        }
+
+        Collection<Group> groups = repository.getGroups();
+        String generationName = null;
+
+        for (Group group : groups) {
+            // Every group of a sync has the name of its generation
+            if (generationName == null) {
+                generationName = group.getName();
+            }
+            assertEquals("Groups from two syncs mixed", generationName, group.getName());
+
+            for (UUID id : group.getVideos()) {
+                assertTrue(group.hasVideo(id));
+            }
+
+            List<UUID> groupIds = repository.getOrderedGroupVideoIds(group.getId());
+            assertEquals(groupIds.size(), new HashSet<>(groupIds).size());
+        }
+
+        List<UUID> orderedIds = repository.getOrderedVideoIds();
+        assertEquals(orderedIds.size(), new HashSet<>(orderedIds).size());
+
+        for (UUID id : orderedIds) {
+            repository.videoBelongsToGroup(id);
+        }
+    }
+
+    /**
+     * Once everything has settled the indexes must agree with the published groups.
+     */
+    private void assertIndexesMatchGroups() throws IOException {
+        Set<UUID> videoIds = new HashSet<>();
+        for (OptimizedVideo video : repository.getAll()) {
+            videoIds.add(video.getId());
+        }
+
+        assertEquals(videoIds, new HashSet<>(repository.getOrderedVideoIds()));
+
+        Set<UUID> sharedIds = new HashSet<>();
+
+        for (Group group : repository.getGroups()) {
+            Set<UUID> expected = new HashSet<>(group.getVideos());
+            sharedIds.addAll(expected);
+            expected.retainAll(videoIds);
+
+            assertEquals(expected,
+                    new HashSet<>(repository.getOrderedGroupVideoIds(group.getId())));
+        }
+
+        for (OptimizedVideo video : videos) {
+            assertEquals(sharedIds.contains(video.getId()),
+                    repository.videoBelongsToGroup(video.getId()));
+        }
+    }
+
+    /**
+     * Each sync sees a slightly different set of videos.
+     */
+    private List<OptimizedVideo> createVideos(int generation) {
+        int count = VIDEO_COUNT - 50 + generation % 50;
+        return new ArrayList<>(videos.subList(0, count));
+    }
+
+    private List<Group> createGroups(int generation) {
+        Random random = new Random(generation);
+        List<Group> groups = new ArrayList<>(GROUP_COUNT);
+
+        for (int i = 1; i <= GROUP_COUNT; i++) {
+            List<UUID> ids = new ArrayList<>();
+
+            for (OptimizedVideo video : videos) {
+                if (random.nextInt(4) == 0) {
+                    ids.add(video.getId());
+                }
+            }
+
+            Group group = new Group();
+            group.setId(i);
+            group.setName("generation-" + generation);
+            group.setVideos(ids);
+            groups.add(group);
+        }
+
+        return groups;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,239 @@
+package fi.aalto.legroup.achso.storage;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.squareup.otto.Bus;
+import com.squareup.otto.ThreadEnforcer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import fi.aalto.legroup.achso.entities.Group;
+import fi.aalto.legroup.achso.entities.OptimizedVideo;
+import fi.aalto.legroup.achso.entities.serialization.json.JsonSerializer;
+import fi.aalto.legroup.achso.testing.Benchmark;
+import fi.aalto.legroup.achso.testing.Manifests;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares getting the sorted lists of the browser tabs from VideoOrderIndex with sorting them
+ * every time through repository lookups, the way VideoTabAdapter used to.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class VideoOrderIndexBenchmark {
+
+    private static final int VIDEO_COUNT = 10000;
+    private static final int GROUP_COUNT = 50;
+
+    // Every video is shared to this many groups at most
+    private static final int MAX_GROUPS_PER_VIDEO = 3;
+
+    private File root;
+    private CombinedVideoRepository repository;
+    private List<OptimizedVideo> videos;
+    private List<Group> groups;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDir();
+
+        JsonSerializer serializer = new JsonSerializer();
+
+        repository = new CombinedVideoRepository(new Bus(ThreadEnforcer.ANY), serializer,
+                new File(root, "local"), new File(root, "cache"));
+
+        videos = new ArrayList<>(VIDEO_COUNT);
+
+        for (int i = 0; i < VIDEO_COUNT; i++) {
+            String manifest = Manifests.create(Manifests.id(i),
+                    "https://example.com/videos/" + i + ".mp4", 0);
+            videos.add(serializer.readOptimizedVideo(
+                    new ByteArrayInputStream(manifest.getBytes(Charsets.UTF_8))));
+        }
+
+        groups = createGroups();
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(root);
+    }
+
+    @Test
+    public void orderTabs() throws Exception {
+        final List<List<UUID>> sortedTabs = new ArrayList<>();
+        final List<List<UUID>> indexedTabs = new ArrayList<>();
+
+        repository.updateVideos(videos, groups);
+
+        // The index is built along with the rest of the repository after a sync
+        long rebuildTime = Benchmark.measure(new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                repository.videoOrder.rebuild(repository.allVideos, groups);
+            }
+        });
+
+        long sortTime = Benchmark.measure(new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                sortedTabs.clear();
+                sortedTabs.addAll(sortTabs());
+            }
+        });
+
+        long indexTime = Benchmark.measure(new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                indexedTabs.clear();
+                indexedTabs.add(repository.getOrderedVideoIds());
+
+                for (Group group : groups) {
+                    indexedTabs.add(repository.getOrderedGroupVideoIds(group.getId()));
+                }
+            }
+        });
+
+        // Removing a video and adding it back moves entries in all of its tabs, the way a save
+        // updates the indexes
+        final Random random = new Random(1);
+
+        long moveTime = Benchmark.measure(new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                for (int i = 0; i < 100; i++) {
+                    OptimizedVideo video = videos.get(random.nextInt(VIDEO_COUNT));
+                    repository.allVideos.remove(video.getId());
+                    repository.videoOrder.remove(video.getId());
+                    repository.allVideos.put(video);
+                    repository.videoOrder.put(video);
+                }
+            }
+        });
+
+        // The views read every tab again after a save, which takes new snapshots of the ones
+        // the video is in
+        long readAfterSaveTime = Benchmark.measure(new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                OptimizedVideo video = videos.get(random.nextInt(VIDEO_COUNT));
+                repository.videoOrder.remove(video.getId());
+                repository.videoOrder.put(video);
+
+                repository.getOrderedVideoIds();
+                for (Group group : groups) {
+                    repository.getOrderedGroupVideoIds(group.getId());
+                }
+            }
+        });
+
+        assertEquals(sortedTabs, indexedTabs);
+        assertEquals(sortedTabs.get(0), repository.getOrderedVideoIds());
+
+        Benchmark.report("tab ordering", "%d videos in %d groups: sorting all tabs %.1f ms, "
+                        + "from the index %.3f ms, rebuilding the index %.1f ms, "
+                        + "removing and adding back a video %.3f ms, "
+                        + "reading the tabs after that %.3f ms", VIDEO_COUNT, GROUP_COUNT,
+                Benchmark.toMilliseconds(sortTime), Benchmark.toMilliseconds(indexTime),
+                Benchmark.toMilliseconds(rebuildTime), Benchmark.toMilliseconds(moveTime) / 100,
+                Benchmark.toMilliseconds(readAfterSaveTime));
+    }
+
+    /**
+     * Sorts every tab with repository lookups the way VideoTabAdapter did before the index.
+     */
+    private List<List<UUID>> sortTabs() throws IOException {
+        List<List<UUID>> tabs = new ArrayList<>(GROUP_COUNT + 1);
+
+        List<UUID> allIds = new ArrayList<>(VIDEO_COUNT);
+        for (OptimizedVideo video : repository.getAll()) {
+            allIds.add(video.getId());
+        }
+        tabs.add(allIds);
+
+        for (Group group : repository.getGroups()) {
+            tabs.add(new ArrayList<>(group.getVideos()));
+        }
+
+        Comparator<UUID> comparator = new Comparator<UUID>() {
+            @Override
+            public int compare(UUID lhs, UUID rhs) {
+                try {
+                    long lhsDate = repository.getVideo(lhs).getDateInMs();
+                    long rhsDate = repository.getVideo(rhs).getDateInMs();
+
+                    // Newest first, the dates of the generated videos are all different
+                    return lhsDate < rhsDate ? 1 : (lhsDate > rhsDate ? -1 : 0);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+
+        for (List<UUID> tab : tabs) {
+            Collections.sort(tab, comparator);
+        }
+
+        return tabs;
+    }
+
+    private List<Group> createGroups() {
+        Random random = new Random(1);
+        List<List<UUID>> groupVideoIds = new ArrayList<>(GROUP_COUNT);
+
+        for (int i = 0; i < GROUP_COUNT; i++) {
+            groupVideoIds.add(new ArrayList<UUID>());
+        }
+
+        for (OptimizedVideo video : videos) {
+            int groupCount = random.nextInt(MAX_GROUPS_PER_VIDEO + 1);
+
+            for (int i = 0; i < groupCount; i++) {
+                List<UUID> ids = groupVideoIds.get(random.nextInt(GROUP_COUNT));
+                if (!ids.contains(video.getId())) {
+                    ids.add(video.getId());
+                }
+            }
+        }
+
+        List<Group> groups = new ArrayList<>(GROUP_COUNT);
+
+        for (int i = 0; i < GROUP_COUNT; i++) {
+            Group group = new Group();
+            group.setId(i + 1);
+            group.setName("Group " + (i + 1));
+            group.setVideos(groupVideoIds.get(i));
+            groups.add(group);
+        }
+
+        return groups;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+
+        file.delete();
+    }
+}
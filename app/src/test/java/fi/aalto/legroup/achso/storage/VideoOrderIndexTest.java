@@ -0,0 +1,131 @@
+package fi.aalto.legroup.achso.storage;
+
+import com.google.common.base.Charsets;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import fi.aalto.legroup.achso.entities.Group;
+import fi.aalto.legroup.achso.entities.OptimizedVideo;
+import fi.aalto.legroup.achso.entities.serialization.json.JsonSerializer;
+import fi.aalto.legroup.achso.testing.Manifests;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Saves and deletes videos while the orderings are rebuilt after syncs.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class VideoOrderIndexTest {
+
+    private static final int SYNCED_COUNT = 2000;
+    private static final int SAVED_COUNT = 50;
+    private static final int CHANGE_COUNT = 20000;
+
+    private List<OptimizedVideo> syncedVideos;
+    private List<OptimizedVideo> savedVideos;
+
+    @Before
+    public void setUp() throws IOException {
+        JsonSerializer serializer = new JsonSerializer();
+
+        syncedVideos = createVideos(serializer, 0, SYNCED_COUNT);
+        savedVideos = createVideos(serializer, SYNCED_COUNT, SAVED_COUNT);
+    }
+
+    @Test
+    public void changesDuringRebuildAreKept() throws Exception {
+        final VideoIndex videos = new VideoIndex();
+        final VideoOrderIndex order = new VideoOrderIndex();
+        final AtomicBoolean isSaving = new AtomicBoolean(true);
+
+        videos.replaceAll(syncedVideos);
+
+        Thread syncThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // Keeps going until the last save so that it lands in the middle of a rebuild
+                while (isSaving.get()) {
+                    order.rebuild(videos, Collections.<Group>emptyList());
+                }
+            }
+        });
+
+        syncThread.start();
+
+        Random random = new Random(1);
+
+        try {
+            // Updated in the same order as the repository does
+            for (int i = 0; i < CHANGE_COUNT; i++) {
+                OptimizedVideo video = savedVideos.get(random.nextInt(SAVED_COUNT));
+
+                if (random.nextBoolean()) {
+                    videos.put(video);
+                    order.put(video);
+                } else {
+                    videos.remove(video.getId());
+                    order.remove(video.getId());
+                }
+            }
+        } finally {
+            isSaving.set(false);
+            syncThread.join();
+        }
+
+        assertEquals(sort(videos), order.getVideoIds());
+    }
+
+    private static List<OptimizedVideo> createVideos(JsonSerializer serializer, int first,
+            int count) throws IOException {
+
+        List<OptimizedVideo> videos = new ArrayList<>(count);
+
+        for (int i = first; i < first + count; i++) {
+            String manifest = Manifests.create(Manifests.id(i),
+                    "https://example.com/videos/" + i + ".mp4", 0);
+            videos.add(serializer.readOptimizedVideo(
+                    new ByteArrayInputStream(manifest.getBytes(Charsets.UTF_8))));
+        }
+
+        return videos;
+    }
+
+    /**
+     * Returns the IDs of the videos newest first, the way the orderings keep them.
+     */
+    private static List<UUID> sort(VideoIndex index) {
+        List<OptimizedVideo> videos = new ArrayList<>(index.values());
+
+        Collections.sort(videos, new Comparator<OptimizedVideo>() {
+            @Override
+            public int compare(OptimizedVideo a, OptimizedVideo b) {
+                if (a.getDateInMs() != b.getDateInMs()) {
+                    return a.getDateInMs() > b.getDateInMs() ? -1 : 1;
+                }
+                return a.getId().compareTo(b.getId());
+            }
+        });
+
+        List<UUID> ids = new ArrayList<>(videos.size());
+        for (OptimizedVideo video : videos) {
+            ids.add(video.getId());
+        }
+
+        return ids;
+    }
+}
@@ -0,0 +1,101 @@
+package fi.aalto.legroup.achso.storage;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import fi.aalto.legroup.achso.testing.Manifests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Coalesced events must have the same effect as the events they were made of, one by one.
+ */
+public class VideoRepositoryUpdatedEventTest {
+
+    private static final UUID FIRST = Manifests.id(1);
+    private static final UUID SECOND = Manifests.id(2);
+
+    @Test
+    public void disjointChangesAreCombined() {
+        VideoRepositoryUpdatedEvent event = added(FIRST).coalesce(updated(SECOND));
+
+        assertChanges(event, ids(FIRST), ids(SECOND), ids());
+    }
+
+    @Test
+    public void updateOfAddedVideoIsAddition() {
+        VideoRepositoryUpdatedEvent event = added(FIRST).coalesce(updated(FIRST));
+
+        assertChanges(event, ids(FIRST), ids(), ids());
+    }
+
+    @Test
+    public void addedAndRemovedIsNoChange() {
+        VideoRepositoryUpdatedEvent event = added(FIRST).coalesce(removed(FIRST));
+
+        assertChanges(event, ids(), ids(), ids());
+        assertTrue(event.isEmpty());
+    }
+
+    @Test
+    public void removedAndAddedBackIsUpdate() {
+        VideoRepositoryUpdatedEvent event = removed(FIRST).coalesce(added(FIRST));
+
+        assertChanges(event, ids(), ids(FIRST), ids());
+    }
+
+    @Test
+    public void updatedAndRemovedIsRemoval() {
+        VideoRepositoryUpdatedEvent event = updated(FIRST).coalesce(removed(FIRST));
+
+        assertChanges(event, ids(), ids(), ids(FIRST));
+    }
+
+    @Test
+    public void repeatedUpdatesAreOne() {
+        VideoRepositoryUpdatedEvent event = updated(FIRST).coalesce(updated(FIRST))
+                .coalesce(updated(FIRST));
+
+        assertChanges(event, ids(), ids(FIRST), ids());
+    }
+
+    @Test
+    public void fullUpdateWins() {
+        VideoRepositoryUpdatedEvent full = new VideoRepositoryUpdatedEvent(null);
+
+        assertTrue(added(FIRST).coalesce(full).isFullUpdate());
+        assertTrue(full.coalesce(removed(FIRST)).isFullUpdate());
+        assertFalse(full.coalesce(removed(FIRST)).isEmpty());
+    }
+
+    private static VideoRepositoryUpdatedEvent added(UUID id) {
+        return VideoRepositoryUpdatedEvent.added(null, Collections.singleton(id));
+    }
+
+    private static VideoRepositoryUpdatedEvent updated(UUID id) {
+        return VideoRepositoryUpdatedEvent.updated(null, Collections.singleton(id));
+    }
+
+    private static VideoRepositoryUpdatedEvent removed(UUID id) {
+        return VideoRepositoryUpdatedEvent.removed(null, Collections.singleton(id));
+    }
+
+    private static Set<UUID> ids(UUID... ids) {
+        return new HashSet<>(Arrays.asList(ids));
+    }
+
+    private static void assertChanges(VideoRepositoryUpdatedEvent event, Set<UUID> added,
+            Set<UUID> updated, Set<UUID> removed) {
+        assertFalse(event.isFullUpdate());
+        assertEquals(added, event.getAdded());
+        assertEquals(updated, event.getUpdated());
+        assertEquals(removed, event.getRemoved());
+    }
+}
@@ -0,0 +1,120 @@
+package fi.aalto.legroup.achso.storage;
+
+import com.google.common.base.Charsets;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import fi.aalto.legroup.achso.entities.OptimizedVideo;
+import fi.aalto.legroup.achso.entities.serialization.json.JsonSerializer;
+import fi.aalto.legroup.achso.testing.Benchmark;
+import fi.aalto.legroup.achso.testing.Manifests;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Searches 10,000 videos with typical queries. A search runs on every key press, so it should
+ * take well under a frame (16 ms) to keep typing smooth.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class VideoSearchIndexBenchmark {
+
+    private static final int VIDEO_COUNT = 10000;
+    private static final int ANNOTATIONS_PER_VIDEO = 5;
+    private static final double FRAME_MILLISECONDS = 16;
+
+    private static final String[] QUERIES = {
+            // The generated texts use a small vocabulary, so single words match most videos
+            "w", "weld", "scaff", "crane beam", "helmet ladder valve", "user 7", "nothing"
+    };
+
+    private List<OptimizedVideo> videos;
+
+    @Before
+    public void setUp() throws IOException {
+        JsonSerializer serializer = new JsonSerializer();
+        videos = new ArrayList<>(VIDEO_COUNT);
+
+        for (int i = 0; i < VIDEO_COUNT; i++) {
+            String manifest = Manifests.create(Manifests.id(i),
+                    "https://example.com/videos/" + i + ".mp4", ANNOTATIONS_PER_VIDEO);
+            videos.add(serializer.readOptimizedVideo(
+                    new ByteArrayInputStream(manifest.getBytes(Charsets.UTF_8))));
+        }
+    }
+
+    @Test
+    public void search() throws Exception {
+        final VideoSearchIndex index = new VideoSearchIndex();
+        final VideoIndex source = new VideoIndex();
+        source.replaceAll(videos);
+
+        long rebuildTime = Benchmark.measure(new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                index.rebuild(source);
+            }
+        }, 1, 3);
+
+        // Saves go through the pending videos and are merged into the base every now and then
+        final Random random = new Random(1);
+
+        long putTime = Benchmark.measure(new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                for (int i = 0; i < 1000; i++) {
+                    index.put(videos.get(random.nextInt(VIDEO_COUNT)));
+                }
+            }
+        }, 1, 3);
+
+        Benchmark.report("search index", "%d videos: rebuilding %.1f ms, saving a video %.3f ms",
+                VIDEO_COUNT, Benchmark.toMilliseconds(rebuildTime),
+                Benchmark.toMilliseconds(putTime) / 1000);
+
+        // Searches are short, so warm up the JIT with all of them before measuring any
+        for (int i = 0; i < 50; i++) {
+            for (String query : QUERIES) {
+                index.search(query);
+            }
+        }
+
+        for (final String query : QUERIES) {
+            final List<List<UUID>> results = new ArrayList<>();
+
+            long time = Benchmark.measure(new Benchmark.Task() {
+                @Override
+                public void run() throws Exception {
+                    results.add(index.search(query));
+                }
+            }, 5, 10);
+
+            int resultCount = results.get(0).size();
+            double milliseconds = Benchmark.toMilliseconds(time);
+
+            Benchmark.report("search index", "%d videos: \"%s\" %.2f ms, %d results",
+                    VIDEO_COUNT, query, milliseconds, resultCount);
+
+            if (query.equals("nothing")) {
+                assertTrue(results.get(0).isEmpty());
+            } else {
+                assertFalse(results.get(0).isEmpty());
+            }
+
+            assertTrue("Searching \"" + query + "\" took " + milliseconds + " ms",
+                    milliseconds < FRAME_MILLISECONDS);
+        }
+    }
+}
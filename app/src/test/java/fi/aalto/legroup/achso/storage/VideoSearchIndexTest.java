@@ -0,0 +1,191 @@
+package fi.aalto.legroup.achso.storage;
+
+import com.google.common.base.Charsets;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import fi.aalto.legroup.achso.entities.OptimizedVideo;
+import fi.aalto.legroup.achso.entities.serialization.json.JsonSerializer;
+import fi.aalto.legroup.achso.testing.Manifests;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Ranking and updates of the search index.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class VideoSearchIndexTest {
+
+    private final JsonSerializer serializer = new JsonSerializer();
+    private final VideoSearchIndex index = new VideoSearchIndex();
+
+    @Test
+    public void titleRanksAboveAnnotation() throws IOException {
+        rebuild(
+                video(1, 1, "Pipe insulation", "Welding"),
+                video(2, 2, "Welding basics", "Pipe"));
+
+        assertEquals(Arrays.asList(id(2), id(1)), index.search("weld"));
+        assertEquals(Arrays.asList(id(1), id(2)), index.search("pipe"));
+    }
+
+    @Test
+    public void wholeWordRanksAbovePrefix() throws IOException {
+        rebuild(
+                video(1, 2, "Welders", ""),
+                video(2, 1, "Weld", ""));
+
+        assertEquals(Arrays.asList(id(2), id(1)), index.search("weld"));
+    }
+
+    @Test
+    public void sameScoreIsNewestFirst() throws IOException {
+        rebuild(
+                video(1, 1, "Crane", ""),
+                video(2, 3, "Crane", ""),
+                video(3, 2, "Crane", ""));
+
+        assertEquals(Arrays.asList(id(2), id(3), id(1)), index.search("crane"));
+    }
+
+    @Test
+    public void everyWordMustMatch() throws IOException {
+        rebuild(
+                video(1, 1, "Crane safety", ""),
+                video(2, 2, "Crane", "Safety check"),
+                video(3, 3, "Safety", ""));
+
+        assertEquals(Arrays.asList(id(1), id(2)), index.search("crane saf"));
+        assertEquals(Collections.<UUID>emptyList(), index.search("crane bolt"));
+        assertEquals(Collections.<UUID>emptyList(), index.search(" - "));
+    }
+
+    @Test
+    public void putReplacesOldWords() throws IOException {
+        rebuild(video(1, 1, "Old title", ""));
+
+        index.put(video(1, 1, "New title", ""));
+
+        assertEquals(Collections.<UUID>emptyList(), index.search("old"));
+        assertEquals(Collections.singletonList(id(1)), index.search("new"));
+        assertEquals(Collections.singletonList(id(1)), index.search("title"));
+    }
+
+    @Test
+    public void removedVideoIsNotFound() throws IOException {
+        rebuild(video(1, 1, "Beam", ""), video(2, 2, "Beam", ""));
+
+        index.remove(id(1));
+
+        assertEquals(Collections.singletonList(id(2)), index.search("beam"));
+    }
+
+    @Test
+    public void manyChangesKeepResults() throws IOException {
+        rebuild(video(1, 1, "Anchor", ""), video(2, 2, "Bolt", ""));
+
+        // Enough changes for the dead entries to be compacted away several times
+        for (int i = 0; i < 500; i++) {
+            index.put(video(1, 1, i % 2 == 0 ? "Anchor" : "Joint", ""));
+            index.put(video(3, 3, "Ladder " + i, ""));
+        }
+
+        assertEquals(Collections.<UUID>emptyList(), index.search("anchor"));
+        assertEquals(Collections.singletonList(id(1)), index.search("joint"));
+        assertEquals(Collections.singletonList(id(2)), index.search("bolt"));
+        assertEquals(Collections.singletonList(id(3)), index.search("ladder 499"));
+        assertEquals(Collections.<UUID>emptyList(), index.search("ladder 498"));
+    }
+
+    @Test
+    public void changesDuringRebuildAreKept() throws Exception {
+        final VideoIndex source = new VideoIndex();
+        final AtomicBoolean isSaving = new AtomicBoolean(true);
+
+        List<OptimizedVideo> synced = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            synced.add(video(100 + i, 1 + i % 20, "Synced " + i, "Scaffold"));
+        }
+        source.replaceAll(synced);
+
+        List<OptimizedVideo> savedVideos = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            savedVideos.add(video(i, 1, "Saved", ""));
+        }
+
+        Thread syncThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (isSaving.get()) {
+                    index.rebuild(source);
+                }
+            }
+        });
+
+        syncThread.start();
+
+        Random random = new Random(1);
+        Set<UUID> saved = new HashSet<>();
+
+        try {
+            for (int i = 0; i < 5000; i++) {
+                OptimizedVideo video = savedVideos.get(random.nextInt(savedVideos.size()));
+
+                if (random.nextBoolean()) {
+                    source.put(video);
+                    index.put(video);
+                    saved.add(video.getId());
+                } else {
+                    source.remove(video.getId());
+                    index.remove(video.getId());
+                    saved.remove(video.getId());
+                }
+            }
+        } finally {
+            isSaving.set(false);
+            syncThread.join();
+        }
+
+        assertEquals(saved, new HashSet<>(index.search("saved")));
+    }
+
+    private void rebuild(OptimizedVideo... videos) {
+        VideoIndex source = new VideoIndex();
+        source.replaceAll(Arrays.asList(videos));
+        index.rebuild(source);
+    }
+
+    private static UUID id(int number) {
+        return Manifests.id(number);
+    }
+
+    private OptimizedVideo video(int number, int day, String title, String annotation)
+            throws IOException {
+
+        String json = "{\"id\": \"" + id(number) + "\", \"title\": \"" + title + "\", "
+                + "\"videoUri\": \"https://example.com/video.mp4\", "
+                + "\"thumbUri\": \"https://example.com/thumb.jpg\", "
+                + "\"date\": \"2016-01-" + (10 + day) + "T12:00:00.000Z\", \"annotations\": ["
+                + "{\"time\": 1, \"position\": {\"x\": 0.5, \"y\": 0.5}, "
+                + "\"text\": \"" + annotation + "\"}]}";
+
+        return serializer.readOptimizedVideo(
+                new ByteArrayInputStream(json.getBytes(Charsets.UTF_8)));
+    }
+}
@@ -0,0 +1,151 @@
+package fi.aalto.legroup.achso.storage.remote.strategies;
+
+import android.accounts.Account;
+import android.net.Uri;
+
+import com.google.common.io.Files;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+import fi.aalto.legroup.achso.entities.VideoIndexDelta;
+import fi.aalto.legroup.achso.entities.serialization.json.JsonSerializer;
+import fi.aalto.legroup.achso.storage.remote.HttpValidatorCache;
+import fi.aalto.legroup.achso.testing.TestHttpClient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Delta syncing of the video index against a stub server.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class AchRailsIndexTest {
+
+    private static final String FIRST_ID = "00000000-0000-0000-0000-000000000001";
+    private static final String SECOND_ID = "00000000-0000-0000-0000-000000000002";
+
+    private MockWebServer server;
+    private File validatorDirectory;
+    private AchRailsStrategy strategy;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.play();
+
+        validatorDirectory = Files.createTempDir();
+
+        Uri endpoint = Uri.parse(server.getUrl("/api").toString());
+
+        strategy = new AchRailsStrategy(new JsonSerializer(), new TestHttpClient(), endpoint,
+                new HttpValidatorCache(validatorDirectory), null) {
+            @Override
+            protected Account getAccount() {
+                return new Account("tester", "test");
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+
+        File[] files = validatorDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        validatorDirectory.delete();
+    }
+
+    @Test
+    public void fullIndexWithoutCursor() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"videos\": ["
+                + "{\"uuid\": \"" + FIRST_ID + "\", \"revision\": 3}], \"cursor\": \"c1\"}"));
+
+        VideoIndexDelta delta = strategy.getIndexSince(null);
+
+        assertTrue(delta.isFullIndex());
+        assertEquals("c1", delta.getCursor());
+        assertEquals(1, delta.getChanged().size());
+        assertEquals(UUID.fromString(FIRST_ID), delta.getChanged().get(0).getId());
+        assertEquals(3, delta.getChanged().get(0).getRevision());
+
+        assertEquals("/api/videos.json", server.takeRequest().getPath());
+    }
+
+    @Test
+    public void deltaSinceCursor() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"delta\": true, \"cursor\": \"c2\", "
+                + "\"videos\": [{\"uuid\": \"" + FIRST_ID + "\", \"revision\": 4}], "
+                + "\"deleted\": [\"" + SECOND_ID + "\"]}"));
+
+        VideoIndexDelta delta = strategy.getIndexSince("c1");
+
+        assertFalse(delta.isFullIndex());
+        assertEquals("c2", delta.getCursor());
+        assertEquals(1, delta.getChanged().size());
+        assertEquals(Collections.singletonList(UUID.fromString(SECOND_ID)), delta.getDeleted());
+
+        assertEquals("/api/videos.json?since=c1", server.takeRequest().getPath());
+    }
+
+    @Test
+    public void deltaWithoutVideosIsEmpty() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"delta\": true, \"cursor\": \"c2\", "
+                + "\"deleted\": [\"" + FIRST_ID + "\", \"" + SECOND_ID + "\"]}"));
+
+        VideoIndexDelta delta = strategy.getIndexSince("c1");
+
+        assertFalse(delta.isFullIndex());
+        assertTrue(delta.getChanged().isEmpty());
+        assertEquals(Arrays.asList(UUID.fromString(FIRST_ID), UUID.fromString(SECOND_ID)),
+                delta.getDeleted());
+    }
+
+    @Test
+    public void serverWithoutDeltasSendsFullIndex() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"videos\": ["
+                + "{\"uuid\": \"" + FIRST_ID + "\", \"revision\": 1}, "
+                + "{\"uuid\": \"" + SECOND_ID + "\", \"revision\": 2}]}"));
+
+        VideoIndexDelta delta = strategy.getIndexSince("c1");
+
+        assertTrue(delta.isFullIndex());
+        assertEquals(2, delta.getChanged().size());
+    }
+
+    @Test
+    public void rejectedCursorFallsBackToFullIndex() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(410));
+        server.enqueue(new MockResponse().setBody("{\"videos\": ["
+                + "{\"uuid\": \"" + FIRST_ID + "\", \"revision\": 1}], \"cursor\": \"c3\"}"));
+
+        VideoIndexDelta delta = strategy.getIndexSince("expired");
+
+        assertTrue(delta.isFullIndex());
+        assertEquals("c3", delta.getCursor());
+
+        RecordedRequest deltaRequest = server.takeRequest();
+        RecordedRequest fullRequest = server.takeRequest();
+
+        assertEquals("/api/videos.json?since=expired", deltaRequest.getPath());
+        assertEquals("/api/videos.json", fullRequest.getPath());
+    }
+}
@@ -0,0 +1,134 @@
+package fi.aalto.legroup.achso.storage.remote.strategies;
+
+import android.accounts.Account;
+import android.net.Uri;
+
+import com.google.common.io.Files;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import com.squareup.otto.Bus;
+import com.squareup.otto.ThreadEnforcer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.UUID;
+
+import fi.aalto.legroup.achso.entities.Video;
+import fi.aalto.legroup.achso.entities.serialization.json.JsonSerializer;
+import fi.aalto.legroup.achso.storage.CombinedVideoRepository;
+import fi.aalto.legroup.achso.storage.remote.HttpValidatorCache;
+import fi.aalto.legroup.achso.testing.Manifests;
+import fi.aalto.legroup.achso.testing.TestHttpClient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Manifests are revalidated with the validator cache and served from the manifest cache of the
+ * repository, never from the HTTP cache.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class AchRailsManifestCacheTest {
+
+    private static final UUID ID = Manifests.id(1);
+
+    private MockWebServer server;
+    private File root;
+    private CombinedVideoRepository repository;
+    private HttpValidatorCache validatorCache;
+    private AchRailsStrategy strategy;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.play();
+
+        root = Files.createTempDir();
+
+        File cacheRoot = new File(root, "cache");
+        repository = new CombinedVideoRepository(new Bus(ThreadEnforcer.ANY),
+                new JsonSerializer(), new File(root, "local"), cacheRoot);
+
+        validatorCache = new HttpValidatorCache(new File(root, "validators"));
+
+        strategy = new AchRailsStrategy(new JsonSerializer(), new TestHttpClient(),
+                Uri.parse(server.getUrl("/api").toString()), validatorCache, repository) {
+            @Override
+            protected Account getAccount() {
+                return new Account("tester", "test");
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        deleteRecursively(root);
+    }
+
+    @Test
+    public void unchangedManifestIsServedFromRepositoryCache() throws Exception {
+        String manifest = Manifests.create(ID, "https://example.com/video.mp4", 3);
+
+        server.enqueue(new MockResponse().setBody(manifest).setHeader("ETag", "\"v1\""));
+        server.enqueue(new MockResponse().setResponseCode(304).setHeader("ETag", "\"v1\""));
+
+        Video downloaded = strategy.downloadVideoManifest(ID);
+
+        // The sync stores the downloaded manifest in the cache
+        Files.write(manifest.getBytes("UTF-8"), repository.getManifestCacheFile(ID));
+
+        Video revalidated = strategy.downloadVideoManifest(ID);
+
+        assertEquals(downloaded.getId(), revalidated.getId());
+        assertEquals(downloaded.getRevision(), revalidated.getRevision());
+        assertEquals(downloaded.getAnnotations().size(), revalidated.getAnnotations().size());
+
+        RecordedRequest first = server.takeRequest();
+        RecordedRequest second = server.takeRequest();
+
+        assertNull(first.getHeader("If-None-Match"));
+        assertEquals("\"v1\"", second.getHeader("If-None-Match"));
+
+        // The HTTP cache is kept out of it so the body isn't stored twice
+        assertEquals("no-store", first.getHeader("Cache-Control"));
+
+        HttpValidatorCache.Statistics statistics = validatorCache.takeStatistics();
+        assertEquals(2, statistics.getRequestCount());
+        assertEquals(1, statistics.getHitCount());
+    }
+
+    @Test
+    public void manifestWithoutCacheFileIsRequestedUnconditionally() throws Exception {
+        String manifest = Manifests.create(ID, "https://example.com/video.mp4", 3);
+
+        server.enqueue(new MockResponse().setBody(manifest).setHeader("ETag", "\"v1\""));
+        server.enqueue(new MockResponse().setBody(manifest).setHeader("ETag", "\"v1\""));
+
+        strategy.downloadVideoManifest(ID);
+        strategy.downloadVideoManifest(ID);
+
+        server.takeRequest();
+        assertNull(server.takeRequest().getHeader("If-None-Match"));
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,182 @@
+package fi.aalto.legroup.achso.storage.remote.strategies;
+
+import android.accounts.Account;
+import android.net.Uri;
+
+import com.google.common.io.Files;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import com.squareup.otto.Bus;
+import com.squareup.otto.ThreadEnforcer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fi.aalto.legroup.achso.entities.Video;
+import fi.aalto.legroup.achso.entities.serialization.json.JsonSerializer;
+import fi.aalto.legroup.achso.storage.CombinedVideoRepository;
+import fi.aalto.legroup.achso.storage.remote.HttpValidatorCache;
+import fi.aalto.legroup.achso.testing.Benchmark;
+import fi.aalto.legroup.achso.testing.Manifests;
+import fi.aalto.legroup.achso.testing.TestHttpClient;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares downloading stale manifests one by one with downloading them in batches, against a
+ * stub server that adds a fixed latency to every request like a slow mobile network does.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class ManifestBatchBenchmark {
+
+    private static final int MANIFEST_COUNT = 50;
+    private static final int ANNOTATIONS_PER_VIDEO = 10;
+    private static final int LATENCY_MILLISECONDS = 30;
+
+    private MockWebServer server;
+    private File root;
+    private CombinedVideoRepository repository;
+    private List<UUID> ids;
+    private AtomicInteger requestCount = new AtomicInteger();
+    private volatile boolean supportsBatches = true;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Files.createTempDir();
+
+        ids = new ArrayList<>(MANIFEST_COUNT);
+        for (int i = 0; i < MANIFEST_COUNT; i++) {
+            ids.add(Manifests.id(i));
+        }
+
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                requestCount.incrementAndGet();
+                Thread.sleep(LATENCY_MILLISECONDS);
+                return respond(Uri.parse(request.getPath()));
+            }
+        });
+        server.play();
+
+        repository = new CombinedVideoRepository(new Bus(ThreadEnforcer.ANY),
+                new JsonSerializer(), new File(root, "local"), new File(root, "cache"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        deleteRecursively(root);
+    }
+
+    @Test
+    public void downloadStaleManifests() throws Exception {
+        measure("one by one", 1);
+        measure("batches of 10", 10);
+        measure("batches of 25", 25);
+        measure("one batch", MANIFEST_COUNT);
+
+        // Servers without the batch endpoint get the manifests one by one after the first try
+        supportsBatches = false;
+        measure("without batch support", AchRailsStrategy.DEFAULT_MANIFEST_BATCH_SIZE);
+    }
+
+    private void measure(String name, int batchSize) throws Exception {
+        final AchRailsStrategy strategy = createStrategy();
+        strategy.setManifestBatchSize(batchSize);
+
+        final List<List<Video>> results = new ArrayList<>();
+        requestCount.set(0);
+
+        long time = Benchmark.measure(new Benchmark.Task() {
+            @Override
+            public void run() throws Exception {
+                results.add(strategy.downloadVideoManifests(ids));
+            }
+        }, 1, 2);
+
+        for (List<Video> videos : results) {
+            Set<UUID> downloadedIds = new HashSet<>();
+            for (Video video : videos) {
+                downloadedIds.add(video.getId());
+            }
+            assertEquals(new HashSet<>(ids), downloadedIds);
+        }
+
+        Benchmark.report("manifest download", "%d manifests %s: %.1f ms, %d requests per run "
+                        + "(%d ms latency)", MANIFEST_COUNT, name, Benchmark.toMilliseconds(time),
+                requestCount.get() / results.size(), LATENCY_MILLISECONDS);
+    }
+
+    private MockResponse respond(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        String name = segments.get(segments.size() - 1);
+
+        if (name.equals("batch.json")) {
+            if (!supportsBatches) {
+                return new MockResponse().setResponseCode(404);
+            }
+
+            StringBuilder body = new StringBuilder("{\"videos\": [");
+            String[] requestedIds = uri.getQueryParameter("ids").split(",");
+
+            for (int i = 0; i < requestedIds.length; i++) {
+                if (i > 0) {
+                    body.append(',');
+                }
+                body.append(createManifest(UUID.fromString(requestedIds[i])));
+            }
+
+            return new MockResponse().setBody(body.append("]}").toString());
+        }
+
+        UUID id = UUID.fromString(name.substring(0, name.length() - ".json".length()));
+        return new MockResponse().setBody(createManifest(id));
+    }
+
+    private String createManifest(UUID id) {
+        return Manifests.create(id, "https://example.com/videos/" + id + ".mp4",
+                ANNOTATIONS_PER_VIDEO);
+    }
+
+    private AchRailsStrategy createStrategy() {
+        Uri endpoint = Uri.parse(server.getUrl("/api").toString());
+        File validatorDirectory = new File(root, "validators-" + System.nanoTime());
+
+        return new AchRailsStrategy(new JsonSerializer(), new TestHttpClient(), endpoint,
+                new HttpValidatorCache(validatorDirectory), repository) {
+            @Override
+            protected Account getAccount() {
+                return new Account("tester", "test");
+            }
+        };
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+
+        file.delete();
+    }
+}
@@ -0,0 +1,358 @@
+package fi.aalto.legroup.achso.storage.remote.upload;
+
+import android.accounts.Account;
+import android.net.Uri;
+
+import com.google.common.io.Files;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import com.squareup.okhttp.mockwebserver.SocketPolicy;
+import com.squareup.otto.Bus;
+import com.squareup.otto.ThreadEnforcer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import fi.aalto.legroup.achso.storage.remote.TransferProgressTracker;
+import fi.aalto.legroup.achso.testing.TestHttpClient;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Uploads a file to a stub tus server that drops connections in the middle of chunks.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class ResumableUploadTest {
+
+    private static final int FILE_LENGTH = 3 * 1024 * 1024 + 12345;
+    private static final int READ_TIMEOUT_MILLISECONDS = 500;
+    private static final String KEY = "test-upload";
+
+    private static final Map<String, String> METADATA =
+            Collections.singletonMap("filename", "video.mp4");
+
+    private MockWebServer server;
+    private TusServer tusServer;
+    private File root;
+    private File file;
+    private byte[] content;
+    private UploadSessionStore sessionStore;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDir();
+
+        content = new byte[FILE_LENGTH];
+        new Random(1).nextBytes(content);
+
+        file = new File(root, "video.mp4");
+        Files.write(content, file);
+
+        sessionStore = new UploadSessionStore(new File(root, "sessions"));
+
+        tusServer = new TusServer();
+        server = new MockWebServer();
+        server.setDispatcher(tusServer);
+        server.play();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+        deleteRecursively(root);
+    }
+
+    @Test
+    public void uploadSurvivesDroppedConnections() throws IOException {
+        // The server gets the second chunk but the response is lost
+        tusServer.addFault(2, Fault.KEEP_ALL);
+        // The server gets only a part of the third chunk
+        tusServer.addFault(3, Fault.KEEP_HALF);
+        // The server stops answering until the client gives up
+        tusServer.addFault(4, Fault.STALL);
+
+        String uploadUrl = createUpload().upload(KEY, getEndpoint(), file, METADATA,
+                createTracker(), getAccount());
+
+        assertEquals(server.getUrl("/files/1").toString(), uploadUrl);
+        assertArrayEquals(content, tusServer.getContent());
+        assertEquals(1, tusServer.getCreateCount());
+        assertNull(sessionStore.get(KEY + " " + getEndpoint()));
+    }
+
+    @Test
+    public void failedUploadResumesFromServerOffset() throws IOException {
+        // Every connection is dropped after the first chunk until the upload gives up
+        for (int patch = 2; patch < 2 + 10; patch++) {
+            tusServer.addFault(patch, Fault.KEEP_NONE);
+        }
+
+        try {
+            createUpload().upload(KEY, getEndpoint(), file, METADATA, createTracker(),
+                    getAccount());
+            fail("The upload should have failed");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        assertNotNull(sessionStore.get(KEY + " " + getEndpoint()));
+
+        tusServer.clearFaults();
+        int receivedBeforeResume = tusServer.getReceivedBytes();
+        long sentBeforeResume = tusServer.getSentBytes();
+
+        // A new instance like after the process has been restarted
+        String uploadUrl = createUpload().upload(KEY, getEndpoint(), file, METADATA,
+                createTracker(), getAccount());
+
+        assertEquals(server.getUrl("/files/1").toString(), uploadUrl);
+        assertArrayEquals(content, tusServer.getContent());
+        assertEquals(1, tusServer.getCreateCount());
+        // Only the bytes the server didn't have were sent again
+        assertEquals(FILE_LENGTH - receivedBeforeResume,
+                tusServer.getSentBytes() - sentBeforeResume);
+    }
+
+    @Test
+    public void uploadRecoversFromBadOffsets() throws IOException {
+        // The server answers without taking the chunk
+        tusServer.addFault(2, Fault.STALE_OFFSET);
+        // The server takes the chunk but reports an offset past the end of the file
+        tusServer.addFault(4, Fault.OFFSET_PAST_END);
+
+        String uploadUrl = createUpload().upload(KEY, getEndpoint(), file, METADATA,
+                createTracker(), getAccount());
+
+        assertEquals(server.getUrl("/files/1").toString(), uploadUrl);
+        assertArrayEquals(content, tusServer.getContent());
+    }
+
+    @Test
+    public void uploadGivesUpWhenOffsetNeverMoves() throws IOException {
+        for (int patch = 1; patch <= 100; patch++) {
+            tusServer.addFault(patch, Fault.STALE_OFFSET);
+        }
+
+        try {
+            createUpload().upload(KEY, getEndpoint(), file, METADATA, createTracker(),
+                    getAccount());
+            fail("The upload should have failed");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        // Each chunk is tried a limited number of times instead of forever
+        assertEquals(5, tusServer.getPatchCount());
+        assertNotNull(sessionStore.get(KEY + " " + getEndpoint()));
+    }
+
+    @Test
+    public void fallsBackWithoutTusSupport() throws IOException {
+        tusServer.setSupported(false);
+
+        assertNull(createUpload().upload(KEY, getEndpoint(), file, METADATA, createTracker(),
+                getAccount()));
+        assertEquals(0, tusServer.getCreateCount());
+    }
+
+    private ResumableUpload createUpload() {
+        OkHttpClient httpClient = new OkHttpClient();
+        httpClient.setReadTimeout(READ_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS);
+
+        ResumableUpload upload = new ResumableUpload(new TestHttpClient(httpClient),
+                sessionStore);
+        upload.setRetryDelay(10);
+        return upload;
+    }
+
+    private Uri getEndpoint() {
+        return Uri.parse(server.getUrl("/files").toString());
+    }
+
+    private static TransferProgressTracker createTracker() {
+        return TransferProgressTracker.forUpload(new Bus(ThreadEnforcer.ANY), UUID.randomUUID(),
+                FILE_LENGTH);
+    }
+
+    private static Account getAccount() {
+        return new Account("tester", "test");
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    private enum Fault {
+        KEEP_NONE,
+        KEEP_HALF,
+        KEEP_ALL,
+        STALL,
+        STALE_OFFSET,
+        OFFSET_PAST_END
+    }
+
+    /**
+     * Keeps a single upload in memory. Faults are injected into the numbered PATCH
+     * requests that have the right offset.
+     */
+    private static class TusServer extends Dispatcher {
+
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private final Map<Integer, Fault> faults = new HashMap<>();
+
+        private boolean isSupported = true;
+        private int createCount;
+        private int patchCount;
+        private long length = -1;
+        private long sentBytes;
+
+        @Override
+        public synchronized MockResponse dispatch(RecordedRequest request)
+                throws InterruptedException {
+            String method = request.getMethod();
+
+            if (method.equals("OPTIONS")) {
+                MockResponse response = new MockResponse().setResponseCode(204);
+
+                if (isSupported) {
+                    response.addHeader("Tus-Version", "1.0.0")
+                            .addHeader("Tus-Extension", "creation");
+                }
+
+                return response;
+            }
+
+            if (method.equals("POST")) {
+                createCount++;
+                length = Long.parseLong(request.getHeader("Upload-Length"));
+                received.reset();
+
+                // Relative to the endpoint like many servers do
+                return new MockResponse().setResponseCode(201).addHeader("Location", "files/1");
+            }
+
+            if (!request.getPath().equals("/files/1") || length < 0) {
+                return new MockResponse().setResponseCode(404);
+            }
+
+            if (method.equals("HEAD")) {
+                return new MockResponse()
+                        .addHeader("Upload-Offset", String.valueOf(received.size()));
+            }
+
+            if (!method.equals("PATCH")) {
+                return new MockResponse().setResponseCode(405);
+            }
+
+            byte[] body = request.getBody();
+            sentBytes += body.length;
+
+            if (Long.parseLong(request.getHeader("Upload-Offset")) != received.size()) {
+                return new MockResponse().setResponseCode(409);
+            }
+
+            patchCount++;
+
+            Fault fault = faults.get(patchCount);
+
+            if (fault == null) {
+                received.write(body, 0, body.length);
+
+                // The last chunk is answered like the others, without a body
+                return new MockResponse().setResponseCode(204)
+                        .addHeader("Upload-Offset", String.valueOf(received.size()));
+            }
+
+            switch (fault) {
+                case KEEP_HALF:
+                    received.write(body, 0, body.length / 2);
+                    break;
+
+                case KEEP_ALL:
+                    received.write(body, 0, body.length);
+                    break;
+
+                case STALL:
+                    // Waiting releases the lock so the other requests get through
+                    wait(READ_TIMEOUT_MILLISECONDS * 2);
+                    break;
+
+                case STALE_OFFSET:
+                    return new MockResponse().setResponseCode(204)
+                            .addHeader("Upload-Offset", String.valueOf(received.size()));
+
+                case OFFSET_PAST_END:
+                    received.write(body, 0, body.length);
+                    return new MockResponse().setResponseCode(204)
+                            .addHeader("Upload-Offset", String.valueOf(length + 1));
+            }
+
+            return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+        }
+
+        public synchronized void addFault(int patchNumber, Fault fault) {
+            faults.put(patchNumber, fault);
+        }
+
+        public synchronized void clearFaults() {
+            faults.clear();
+        }
+
+        public synchronized void setSupported(boolean isSupported) {
+            this.isSupported = isSupported;
+        }
+
+        public synchronized int getPatchCount() {
+            return patchCount;
+        }
+
+        public synchronized int getCreateCount() {
+            return createCount;
+        }
+
+        public synchronized int getReceivedBytes() {
+            return received.size();
+        }
+
+        /**
+         * Returns the number of bytes the client has sent in chunks, including the lost ones.
+         */
+        public synchronized long getSentBytes() {
+            return sentBytes;
+        }
+
+        public synchronized byte[] getContent() {
+            return received.toByteArray();
+        }
+    }
+}
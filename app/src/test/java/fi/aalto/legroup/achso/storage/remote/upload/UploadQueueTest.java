@@ -0,0 +1,116 @@
+package fi.aalto.legroup.achso.storage.remote.upload;
+
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that failed uploads wait in the queue for their retry time, also across restarts.
+ */
+public class UploadQueueTest {
+
+    private static final UUID FIRST = new UUID(0, 1);
+    private static final UUID SECOND = new UUID(0, 2);
+
+    private static final int PRIORITY_NORMAL = 0;
+    private static final int PRIORITY_HIGH = 1;
+
+    private static final Set<UUID> NONE = Collections.emptySet();
+
+    private File root;
+    private File file;
+
+    @Before
+    public void setUp() {
+        root = Files.createTempDir();
+        file = new File(root, "upload_queue");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        root.delete();
+    }
+
+    @Test
+    public void failedVideoWaitsForRetryTime() {
+        UploadQueue queue = new UploadQueue(file);
+        queue.add(Arrays.asList(FIRST, SECOND), PRIORITY_NORMAL);
+
+        queue.markFailed(FIRST, 2000);
+
+        assertTrue(queue.contains(FIRST));
+        assertEquals(1, queue.getFailureCount(FIRST));
+        assertEquals(SECOND, queue.peek(NONE, 1000));
+        assertNull(queue.peek(Collections.singleton(SECOND), 1000));
+        assertEquals(2000, queue.getNextRetryTime(1000));
+
+        assertEquals(FIRST, queue.peek(NONE, 2000));
+        assertEquals(-1, queue.getNextRetryTime(2000));
+    }
+
+    @Test
+    public void failuresSurviveRestart() {
+        UploadQueue queue = new UploadQueue(file);
+        queue.add(Arrays.asList(FIRST, SECOND), PRIORITY_NORMAL);
+        queue.markFailed(FIRST, 2000);
+        queue.markFailed(FIRST, 5000);
+
+        UploadQueue restoredQueue = new UploadQueue(file);
+
+        assertEquals(Arrays.asList(FIRST, SECOND), restoredQueue.getIds());
+        assertEquals(2, restoredQueue.getFailureCount(FIRST));
+        assertEquals(0, restoredQueue.getFailureCount(SECOND));
+        assertEquals(5000, restoredQueue.getNextRetryTime(1000));
+        assertEquals(SECOND, restoredQueue.peek(NONE, 1000));
+    }
+
+    @Test
+    public void queuingAgainRetriesRightAway() {
+        UploadQueue queue = new UploadQueue(file);
+        queue.add(Collections.singletonList(FIRST), PRIORITY_NORMAL);
+        queue.markFailed(FIRST, 2000);
+
+        assertTrue(queue.add(Collections.singletonList(FIRST), PRIORITY_NORMAL).isEmpty());
+
+        assertEquals(FIRST, queue.peek(NONE, 1000));
+        assertEquals(0, queue.getFailureCount(FIRST));
+    }
+
+    @Test
+    public void readsQueueWithoutFailures() throws IOException {
+        DataOutputStream output = new DataOutputStream(new FileOutputStream(file));
+
+        try {
+            output.writeInt(0x41435551);
+            output.writeInt(1);
+            output.writeInt(1);
+            output.writeLong(FIRST.getMostSignificantBits());
+            output.writeLong(FIRST.getLeastSignificantBits());
+            output.writeInt(PRIORITY_HIGH);
+        } finally {
+            output.close();
+        }
+
+        UploadQueue queue = new UploadQueue(file);
+
+        assertEquals(Collections.singletonList(FIRST), queue.getIds());
+        assertEquals(0, queue.getFailureCount(FIRST));
+        assertEquals(FIRST, queue.peek(NONE, 0));
+    }
+}
@@ -0,0 +1,132 @@
+package fi.aalto.legroup.achso.storage.remote.upload.transcoding;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks when videos are transcoded before uploading and what they are transcoded to.
+ */
+public class TranscodePlanTest {
+
+    private static final long DURATION_MICROSECONDS = 30 * 1000000L;
+
+    private static final TranscodeSettings SETTINGS_720 = TranscodeSettings.forQuality("720");
+
+    @Test
+    public void scalesFullHdRecordingTo720p() {
+        TranscodePlan plan = TranscodePlan.create(source(1920, 1080, 0, 17000000),
+                SETTINGS_720);
+
+        assertNotNull(plan);
+        assertEquals(1280, plan.getWidth());
+        assertEquals(720, plan.getHeight());
+        assertEquals(0, plan.getRotationDegrees());
+        assertEquals(4000000, plan.getVideoBitrate());
+        assertEquals(TranscodeSettings.DEFAULT_FRAME_RATE, plan.getFrameRate());
+        assertEquals(TranscodeSettings.DEFAULT_KEY_FRAME_INTERVAL_SECONDS,
+                plan.getKeyFrameIntervalSeconds());
+        assertEquals("1280x720-4000000-30", plan.getSignature());
+    }
+
+    @Test
+    public void bakesRotationIntoPortraitVideo() {
+        TranscodePlan plan = TranscodePlan.create(source(1920, 1080, 90, 17000000),
+                SETTINGS_720);
+
+        assertNotNull(plan);
+        assertEquals(720, plan.getWidth());
+        assertEquals(1280, plan.getHeight());
+        assertEquals(90, plan.getRotationDegrees());
+    }
+
+    @Test
+    public void normalizesRotation() {
+        assertEquals(270, TranscodePlan.create(source(1920, 1080, -90, 17000000),
+                SETTINGS_720).getRotationDegrees());
+        assertEquals(180, TranscodePlan.create(source(1920, 1080, 540, 17000000),
+                SETTINGS_720).getRotationDegrees());
+
+        // Odd angles can't be baked into the frames
+        TranscodePlan plan = TranscodePlan.create(source(1920, 1080, 45, 17000000),
+                SETTINGS_720);
+        assertEquals(0, plan.getRotationDegrees());
+        assertEquals(1280, plan.getWidth());
+    }
+
+    @Test
+    public void alignsSizeToEncoderBlocks() {
+        TranscodePlan plan = TranscodePlan.create(source(1920, 1080, 0, 17000000),
+                TranscodeSettings.forQuality("480"));
+
+        // 853.3 x 480 rounded to multiples of 16
+        assertEquals(848, plan.getWidth());
+        assertEquals(480, plan.getHeight());
+        assertEquals(2000000, plan.getVideoBitrate());
+    }
+
+    @Test
+    public void neverScalesUp() {
+        TranscodePlan plan = TranscodePlan.create(source(640, 480, 0, 10000000),
+                SETTINGS_720);
+
+        assertNotNull(plan);
+        assertEquals(640, plan.getWidth());
+        assertEquals(480, plan.getHeight());
+    }
+
+    @Test
+    public void keepsBitrateBelowSource() {
+        TranscodeSettings settings = new TranscodeSettings(720, 8000000);
+        TranscodePlan plan = TranscodePlan.create(source(1920, 1080, 0, 7000000), settings);
+
+        // Only the size goes down, which isn't enough to be worth it
+        assertNull(plan);
+    }
+
+    @Test
+    public void skipsSmallSavings() {
+        // 4.128 Mbit/s of video and audio out of 5.5 saves only 25%
+        assertNull(TranscodePlan.create(source(1920, 1080, 0, 5500000), SETTINGS_720));
+
+        // Out of 6.5 it saves 36%
+        TranscodePlan plan = TranscodePlan.create(source(1920, 1080, 0, 6500000),
+                SETTINGS_720);
+        assertNotNull(plan);
+        assertEquals(4000000, plan.getVideoBitrate());
+    }
+
+    @Test
+    public void skipsAlreadySmallVideo() {
+        assertNull(TranscodePlan.create(source(1280, 720, 0, 3000000), SETTINGS_720));
+    }
+
+    @Test
+    public void skipsUnknownSource() {
+        assertNull(TranscodePlan.create(new TranscodePlan.Source(0, 0, 0,
+                DURATION_MICROSECONDS, 60000000), SETTINGS_720));
+        assertNull(TranscodePlan.create(new TranscodePlan.Source(1920, 1080, 0, 0, 60000000),
+                SETTINGS_720));
+    }
+
+    @Test
+    public void readsQualityPreference() {
+        assertNull(TranscodeSettings.forQuality("original"));
+
+        TranscodeSettings settings = TranscodeSettings.forQuality("1080");
+        assertEquals(1080, settings.getMaxShortEdge());
+        assertEquals(8000000, settings.getVideoBitrate());
+    }
+
+    /**
+     * Returns a 30 second source whose file has the given overall bitrate.
+     */
+    private static TranscodePlan.Source source(int width, int height, int rotationDegrees,
+            long bitrate) {
+        long fileSize = bitrate * DURATION_MICROSECONDS / 8 / 1000000;
+        return new TranscodePlan.Source(width, height, rotationDegrees, DURATION_MICROSECONDS,
+                fileSize);
+    }
+}
@@ -0,0 +1,108 @@
+package fi.aalto.legroup.achso.storage.remote.upload.transcoding;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks where the tracks are cut when trimming a video.
+ */
+public class TrimPointsTest {
+
+    private static final double DELTA = 1e-9;
+
+    /**
+     * Ten seconds of video at 10 frames per second with a sync sample every second.
+     */
+    private static final int SAMPLE_COUNT = 100;
+    private static final long TIMESCALE = 1000;
+    private static final long[] SYNC_SAMPLES = { 1, 11, 21, 31, 41, 51, 61, 71, 81, 91 };
+
+    private static final double[] VIDEO_TIMES =
+            TrimPoints.getSampleTimes(durations(SAMPLE_COUNT), TIMESCALE);
+
+    @Test
+    public void computesSampleTimes() {
+        double[] times = TrimPoints.getSampleTimes(new long[] { 512, 1024, 512 }, 1024);
+
+        assertArrayEquals(new double[] { 0, 0.5, 1.5, 2 }, times, DELTA);
+    }
+
+    @Test
+    public void snapsStartBackToPreviousSyncSample() {
+        // Rounding to the nearest sync sample would have moved this forward to 3 seconds
+        assertEquals(2, TrimPoints.snapStart(VIDEO_TIMES, SYNC_SAMPLES, 2.9), DELTA);
+        assertEquals(2, TrimPoints.snapStart(VIDEO_TIMES, SYNC_SAMPLES, 2.1), DELTA);
+    }
+
+    @Test
+    public void keepsStartOnSyncSample() {
+        assertEquals(3, TrimPoints.snapStart(VIDEO_TIMES, SYNC_SAMPLES, 3), DELTA);
+        assertEquals(0, TrimPoints.snapStart(VIDEO_TIMES, SYNC_SAMPLES, 0), DELTA);
+    }
+
+    @Test
+    public void snapsStartPastEndToLastSyncSample() {
+        assertEquals(9, TrimPoints.snapStart(VIDEO_TIMES, SYNC_SAMPLES, 20), DELTA);
+    }
+
+    @Test
+    public void snapsStartBeforeFirstSyncSampleToIt() {
+        long[] syncSamples = { 5, 50 };
+
+        assertEquals(0.4, TrimPoints.snapStart(VIDEO_TIMES, syncSamples, 0.1), DELTA);
+    }
+
+    @Test
+    public void keepsStartWithoutSyncSamples() {
+        assertEquals(2.95, TrimPoints.snapStart(VIDEO_TIMES, null, 2.95), DELTA);
+        assertEquals(2.95, TrimPoints.snapStart(VIDEO_TIMES, new long[0], 2.95), DELTA);
+    }
+
+    @Test
+    public void ignoresSyncSamplesOutsideTrack() {
+        long[] syncSamples = { 0, 31, SAMPLE_COUNT + 1 };
+
+        assertEquals(3, TrimPoints.snapStart(VIDEO_TIMES, syncSamples, 9.5), DELTA);
+    }
+
+    @Test
+    public void cutsEndAtSampleBoundary() {
+        // The end isn't moved to a sync sample, the samples starting before it are kept
+        assertEquals(56, TrimPoints.findSample(VIDEO_TIMES, 5.55));
+        assertEquals(55, TrimPoints.findSample(VIDEO_TIMES, 5.5));
+        assertEquals(SAMPLE_COUNT, TrimPoints.findSample(VIDEO_TIMES, 10));
+        assertEquals(SAMPLE_COUNT, TrimPoints.findSample(VIDEO_TIMES, Double.MAX_VALUE));
+        assertEquals(0, TrimPoints.findSample(VIDEO_TIMES, 0));
+    }
+
+    @Test
+    public void cutsOtherTracksAtSameTimes() {
+        // AAC audio has 1024 samples per frame, at 44.1 kHz a frame lasts about 23 ms
+        long[] audioDurations = new long[431];
+        Arrays.fill(audioDurations, 1024);
+        double[] audioTimes = TrimPoints.getSampleTimes(audioDurations, 44100);
+
+        double start = TrimPoints.snapStart(VIDEO_TIMES, SYNC_SAMPLES, 2.5);
+        int first = TrimPoints.findSample(audioTimes, start);
+        int end = TrimPoints.findSample(audioTimes, 7.5);
+
+        assertEquals(2, start, DELTA);
+        assertEquals(87, first);
+        assertEquals(323, end);
+
+        // The first kept frame starts at or after the cut and the one before it before the cut
+        assertTrue(audioTimes[first] >= start && audioTimes[first - 1] < start);
+        assertTrue(audioTimes[end] >= 7.5 && audioTimes[end - 1] < 7.5);
+    }
+
+    private static long[] durations(int count) {
+        long[] durations = new long[count];
+        Arrays.fill(durations, TIMESCALE / 10);
+        return durations;
+    }
+}
@@ -0,0 +1,85 @@
+package fi.aalto.legroup.achso.testing;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * Minimal timing helper for the benchmarks among the unit tests. Every task is run a few times
+ * to warm up the JIT and the fastest of the measured runs is reported, which is the least noisy
+ * estimate on a shared machine.
+ */
+public final class Benchmark {
+
+    private static final int WARM_UP_RUNS = 2;
+    private static final int MEASURED_RUNS = 5;
+
+    /**
+     * A piece of work to measure.
+     */
+    public interface Task {
+        public void run() throws Exception;
+    }
+
+    private Benchmark() {
+        // Static only
+    }
+
+    /**
+     * Returns the fastest time of the task in nanoseconds.
+     */
+    public static long measure(Task task) throws Exception {
+        return measure(task, WARM_UP_RUNS, MEASURED_RUNS);
+    }
+
+    public static long measure(Task task, int warmUpRuns, int measuredRuns) throws Exception {
+        for (int i = 0; i < warmUpRuns; i++) {
+            task.run();
+        }
+
+        long fastest = Long.MAX_VALUE;
+
+        for (int i = 0; i < measuredRuns; i++) {
+            long start = System.nanoTime();
+            task.run();
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+
+        return fastest;
+    }
+
+    /**
+     * Returns the number of bytes the task allocates on the heap when run once after warming up,
+     * or -1 if the JVM can't tell. Only allocations of the calling thread are counted.
+     */
+    public static long measureAllocations(Task task) throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) bean;
+        long threadId = Thread.currentThread().getId();
+
+        for (int i = 0; i < WARM_UP_RUNS; i++) {
+            task.run();
+        }
+
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        task.run();
+        return allocationBean.getThreadAllocatedBytes(threadId) - before;
+    }
+
+    /**
+     * Print a result line so the numbers show up in the test output.
+     */
+    public static void report(String name, String format, Object... args) {
+        System.out.println(String.format(Locale.US, "[benchmark] %s: ", name)
+                + String.format(Locale.US, format, args));
+    }
+
+    public static double toMilliseconds(long nanoseconds) {
+        return nanoseconds / 1e6;
+    }
+}
@@ -0,0 +1,126 @@
+package fi.aalto.legroup.achso.testing;
+
+import android.accounts.Account;
+import android.net.Uri;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import fi.aalto.legroup.achso.entities.Group;
+import fi.aalto.legroup.achso.entities.Video;
+import fi.aalto.legroup.achso.entities.VideoIndexDelta;
+import fi.aalto.legroup.achso.entities.VideoReference;
+import fi.aalto.legroup.achso.entities.VideoSearchPage;
+import fi.aalto.legroup.achso.storage.remote.VideoHost;
+
+/**
+ * A host without any videos that records the cursors it is asked for. Override the methods a
+ * test needs, the rest fail.
+ */
+public class FakeVideoHost implements VideoHost {
+
+    public final List<String> requestedCursors = Collections.synchronizedList(
+            new ArrayList<String>());
+
+    private volatile String nextCursor;
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+
+    @Override
+    public List<VideoReference> getIndex() throws IOException {
+        return getIndexSince(null).getChanged();
+    }
+
+    @Override
+    public VideoIndexDelta getIndexSince(String cursor) throws IOException {
+        requestedCursors.add(cursor);
+
+        if (cursor == null) {
+            return VideoIndexDelta.fullIndex(new ArrayList<VideoReference>(), nextCursor);
+        }
+
+        return new VideoIndexDelta(new ArrayList<VideoReference>(), new ArrayList<UUID>(),
+                nextCursor, false);
+    }
+
+    @Override
+    public List<Group> getGroups() throws IOException {
+        return new ArrayList<>();
+    }
+
+    @Override
+    public void makeVideoPublic(UUID videoId) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void makeVideoPrivate(UUID videoId) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void unshareVideo(UUID videoIds, int groupId) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void shareVideo(UUID videoId, int groupId) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public VideoSearchPage searchVideos(String query, int offset, int limit, Object tag)
+            throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void cancelRequests(Object tag) {
+    }
+
+    @Override
+    public Video downloadVideoManifest(UUID id) throws IOException {
+        throw new IOException("No video " + id);
+    }
+
+    @Override
+    public List<Video> downloadVideoManifests(List<UUID> ids) throws IOException {
+        throw new IOException("No videos " + ids);
+    }
+
+    @Override
+    public void downloadCachedFiles(Video video, Uri thumbUri, Uri videoUri)
+            throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Video uploadVideoManifest(Video video) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void deleteVideoManifest(UUID id) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Video findVideoByVideoUri(Uri videoUri) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void registerToken(String notificationToken) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void unregisterToken(Account account, String notificationToken) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+}
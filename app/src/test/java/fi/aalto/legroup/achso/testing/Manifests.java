@@ -0,0 +1,137 @@
+package fi.aalto.legroup.achso.testing;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Builds video manifests in the JSON format the app stores and receives them in.
+ */
+public final class Manifests {
+
+    private static final String[] WORDS = {
+            "crane", "beam", "weld", "scaffold", "concrete", "rebar", "formwork", "anchor",
+            "bolt", "joint", "safety", "helmet", "ladder", "pipe", "valve", "insulation"
+    };
+
+    private Manifests() {
+        // Static only
+    }
+
+    /**
+     * Returns the manifest of a video with the given number of annotations. The contents are
+     * derived from the ID, so the same ID always gives the same manifest.
+     *
+     * @param videoUri URI of the video file, a local path or a remote URL.
+     */
+    public static String create(UUID id, String videoUri, int annotationCount) {
+        Random random = new Random(id.getLeastSignificantBits());
+
+        long dateInMs = 1400000000000L + (random.nextLong() & 0xffffffffffL);
+        int authorNumber = random.nextInt(20);
+
+        StringBuilder json = new StringBuilder();
+
+        json.append('{');
+        appendField(json, "id", id.toString()).append(',');
+        appendField(json, "title", words(random, 4)).append(',');
+        appendField(json, "tag", WORDS[random.nextInt(WORDS.length)]).append(',');
+        appendField(json, "videoUri", videoUri).append(',');
+        appendField(json, "thumbUri", videoUri.replace(".mp4", ".jpg")).append(',');
+        appendField(json, "date", formatDate(dateInMs)).append(',');
+        json.append("\"revision\":").append(random.nextInt(10)).append(',');
+        json.append("\"formatVersion\":1,");
+        json.append("\"isPublic\":").append(random.nextBoolean()).append(',');
+        json.append("\"rotation\":0,");
+        json.append("\"startTime\":0,");
+        json.append("\"endTime\":").append(Integer.MAX_VALUE).append(',');
+        json.append("\"author\":");
+        appendUser(json, authorNumber).append(',');
+        json.append("\"location\":{\"latitude\":60.18,\"longitude\":24.83,\"accuracy\":12.5},");
+        json.append("\"annotations\":[");
+
+        for (int i = 0; i < annotationCount; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+
+            json.append('{');
+            json.append("\"time\":").append(i * 1500L + random.nextInt(1000)).append(',');
+            json.append(String.format(Locale.US, "\"position\":{\"x\":%.4f,\"y\":%.4f},",
+                    random.nextFloat(), random.nextFloat()));
+            appendField(json, "text", words(random, 6)).append(',');
+            json.append("\"author\":");
+            appendUser(json, (authorNumber + i) % 20).append(',');
+            appendField(json, "createdTimestamp", formatDate(dateInMs + i * 60000L));
+            json.append('}');
+        }
+
+        json.append("]}");
+
+        return json.toString();
+    }
+
+    /**
+     * Write the manifest of a video into a file named after the ID in the directory.
+     */
+    public static File write(File directory, String suffix, UUID id, String videoUri,
+            int annotationCount) throws IOException {
+
+        File file = new File(directory, id + suffix);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), Charsets.UTF_8);
+
+        try {
+            writer.write(create(id, videoUri, annotationCount));
+        } finally {
+            writer.close();
+        }
+
+        return file;
+    }
+
+    /**
+     * Returns a random ID that is the same on every run for the same number.
+     */
+    public static UUID id(int number) {
+        return new UUID(0x0123456789abcdefL, number);
+    }
+
+    private static StringBuilder appendUser(StringBuilder json, int number) {
+        json.append('{');
+        appendField(json, "name", "User " + number).append(',');
+        appendField(json, "uri", "https://example.com/users/" + number).append(',');
+        appendField(json, "id", "user-" + number);
+        return json.append('}');
+    }
+
+    private static StringBuilder appendField(StringBuilder json, String name, String value) {
+        return json.append('"').append(name).append("\":\"").append(value).append('"');
+    }
+
+    private static String words(Random random, int count) {
+        StringBuilder words = new StringBuilder();
+
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                words.append(' ');
+            }
+            words.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+
+        return words.toString();
+    }
+
+    private static String formatDate(long dateInMs) {
+        return new DateTime(dateInMs, DateTimeZone.UTC).toString();
+    }
+}
@@ -0,0 +1,33 @@
+package fi.aalto.legroup.achso.testing;
+
+import android.accounts.Account;
+
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.IOException;
+
+import fi.aalto.legroup.achso.authentication.AuthenticatedHttpClient;
+
+/**
+ * Makes the requests as they are, without asking the account manager for tokens.
+ */
+public class TestHttpClient extends AuthenticatedHttpClient {
+
+    public TestHttpClient() {
+        this(new OkHttpClient());
+    }
+
+    public TestHttpClient(OkHttpClient httpClient) {
+        super(RuntimeEnvironment.application, httpClient);
+    }
+
+    @Override
+    public Response execute(Request request, Account account, boolean doRetry)
+            throws IOException {
+        return httpClient.newCall(request).execute();
+    }
+}